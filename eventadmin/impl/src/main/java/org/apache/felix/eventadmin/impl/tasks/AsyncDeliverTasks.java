@@ -18,7 +18,9 @@
  */
 package org.apache.felix.eventadmin.impl.tasks;
 
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 
@@ -60,6 +62,14 @@ public class AsyncDeliverTasks
 
     /**
      * This does not block an unrelated thread used to send a synchronous event.
+     * Handlers requesting ordered delivery get the events in the order they
+     * have been posted by the current thread. Handlers accepting unordered
+     * delivery get the event on their own thread of the pool.
+     * <p>
+     * The tasks for unordered handlers are queued in the same pool as the
+     * task delivering the ordered events of a thread, so a burst of events
+     * for unordered handlers delays the ordered delivery of events posted
+     * later until the pool has caught up. The order is kept nevertheless.
      *
      * @param tasks The event handler dispatch tasks to execute
      * @param event The event
@@ -67,25 +77,38 @@ public class AsyncDeliverTasks
      */
     public void execute(final Collection<EventHandlerProxy> tasks, final Event event)
     {
-        /*
-        final Iterator i = tasks.iterator();
-        boolean hasOrdered = false;
-        while ( i.hasNext() )
+        Collection<EventHandlerProxy> ordered = tasks;
+        for ( final EventHandlerProxy task : tasks )
         {
-            final EventHandlerProxy task = (EventHandlerProxy)i.next();
             if ( !task.isAsyncOrderedDelivery() )
             {
-                // do somethimg
+                if ( ordered == tasks )
+                {
+                    ordered = new ArrayList<EventHandlerProxy>(tasks.size());
+                    for ( final EventHandlerProxy previous : tasks )
+                    {
+                        if ( previous == task )
+                        {
+                            break;
+                        }
+                        ordered.add(previous);
+                    }
+                }
+                final UnorderedTask unorderedTask = new UnorderedTask(task, event, m_deliver_task);
+                if ( !m_pool.executeTask(unorderedTask) )
+                {
+                    // scheduling failed: last resort, call directly
+                    unorderedTask.run();
+                }
             }
-            else
+            else if ( ordered != tasks )
             {
-                hasOrdered = true;
+                ordered.add(task);
             }
-
         }
-        if ( hasOrdered )
-        {*/
-            final TaskInfo info = new TaskInfo(tasks, event);
+        if ( !ordered.isEmpty() )
+        {
+            final TaskInfo info = new TaskInfo(ordered, event);
             final Long currentThreadId = Thread.currentThread().getId();
             TaskExecuter executer = m_running_threads.get(currentThreadId);
             if ( executer == null )
@@ -107,7 +130,30 @@ public class AsyncDeliverTasks
                     m_running_threads.put(currentThreadId, executer);
                 }
             }
-        //}
+        }
+    }
+
+    /**
+     * Delivers an event to a single handler accepting unordered delivery.
+     */
+    private final static class UnorderedTask implements Runnable
+    {
+        private final Collection<EventHandlerProxy> tasks;
+        private final Event event;
+        private final SyncDeliverTasks m_deliver_task;
+
+        public UnorderedTask(final EventHandlerProxy task, final Event event, final SyncDeliverTasks deliverTask)
+        {
+            this.tasks = Collections.singletonList(task);
+            this.event = event;
+            this.m_deliver_task = deliverTask;
+        }
+
+        @Override
+        public void run()
+        {
+            m_deliver_task.execute(tasks, event, true);
+        }
     }
 
     private final static class TaskInfo {
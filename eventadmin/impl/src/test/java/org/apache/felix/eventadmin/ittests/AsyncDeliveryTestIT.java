@@ -0,0 +1,112 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.felix.eventadmin.ittests;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Dictionary;
+import java.util.HashSet;
+import java.util.Hashtable;
+import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+import org.osgi.framework.ServiceRegistration;
+import org.osgi.service.event.Event;
+import org.osgi.service.event.EventConstants;
+import org.osgi.service.event.EventHandler;
+
+/**
+ * Posts events to an ordered and an unordered handler of the same topic.
+ */
+public class AsyncDeliveryTestIT extends AbstractTest {
+
+    private static final String TOPIC = "org/apache/felix/eventing/delivery";
+    private static final int EVENTS = 1000;
+
+    @Override
+    protected void sendEvent(int index) {
+        this.send(TOPIC, null, index, false);
+    }
+
+    @Test
+    public void testMixedDelivery() throws Exception {
+        final Recorder ordered = new Recorder();
+        final Recorder unordered = new Recorder();
+        final List<ServiceRegistration<EventHandler>> regs = new ArrayList<>();
+        regs.add(register(ordered, EventConstants.DELIVERY_ASYNC_ORDERED));
+        regs.add(register(unordered, EventConstants.DELIVERY_ASYNC_UNORDERED));
+        try {
+            for (int i = 0; i < EVENTS; i++) {
+                this.sendEvent(i);
+            }
+            assertTrue(ordered.latch.await(30, TimeUnit.SECONDS));
+            assertTrue(unordered.latch.await(30, TimeUnit.SECONDS));
+        } finally {
+            for (final ServiceRegistration<EventHandler> reg : regs) {
+                reg.unregister();
+            }
+        }
+
+        // the ordered handler sees the events in the order they were posted
+        final List<Integer> expected = new ArrayList<>();
+        for (int i = 0; i < EVENTS; i++) {
+            expected.add(i);
+        }
+        assertEquals(expected, new ArrayList<>(ordered.indexes));
+
+        // the unordered handler sees every event once, on a pool thread
+        assertEquals(new HashSet<>(expected), new HashSet<>(unordered.indexes));
+        assertEquals(EVENTS, unordered.indexes.size());
+        final Set<String> threads = new HashSet<>(unordered.threads);
+        for (final String thread : threads) {
+            assertTrue(thread, thread.startsWith("EventAdminAsyncThread"));
+        }
+        logger.info("Unordered events delivered by {} threads.", threads.size());
+    }
+
+    private ServiceRegistration<EventHandler> register(final EventHandler handler, final String delivery) {
+        final Dictionary<String, Object> props = new Hashtable<>();
+        props.put(EventConstants.EVENT_TOPIC, TOPIC);
+        props.put(EventConstants.EVENT_DELIVERY, delivery);
+        return this.bundleContext.registerService(EventHandler.class, handler, props);
+    }
+
+    private static class Recorder implements EventHandler {
+
+        final Queue<Integer> indexes = new ConcurrentLinkedQueue<>();
+
+        final Queue<String> threads = new ConcurrentLinkedQueue<>();
+
+        final CountDownLatch latch = new CountDownLatch(EVENTS);
+
+        @Override
+        public void handleEvent(final Event event) {
+            indexes.offer((Integer) event.getProperty("index"));
+            threads.offer(Thread.currentThread().getName());
+            latch.countDown();
+        }
+    }
+}
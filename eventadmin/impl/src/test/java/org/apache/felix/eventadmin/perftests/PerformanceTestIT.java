@@ -50,6 +50,7 @@ import org.osgi.framework.ServiceReference;
 import org.osgi.framework.ServiceRegistration;
 import org.osgi.service.event.Event;
 import org.osgi.service.event.EventAdmin;
+import org.osgi.service.event.EventConstants;
 import org.osgi.service.event.EventHandler;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -75,6 +76,9 @@ public class PerformanceTestIT {
 
     final AtomicLong counter = new AtomicLong();
 
+    /** Keeps the work simulated by the handlers from being optimized away. */
+    volatile long result;
+
     Collection<Listener> listeners = new ArrayList<Listener>();
 
     @Configuration
@@ -274,6 +278,68 @@ public class PerformanceTestIT {
         logger.info("Post Avg: "+average / RUNS);
     }
 
+    @Test
+    public void measureThroughputPostOrdered() {
+        measureThroughputPostSingleProducer(EventConstants.DELIVERY_ASYNC_ORDERED);
+    }
+
+    @Test
+    public void measureThroughputPostUnordered() {
+        measureThroughputPostSingleProducer(EventConstants.DELIVERY_ASYNC_UNORDERED);
+    }
+
+    /**
+     * Posts events from a single thread to several handlers using the given
+     * delivery mode. With ordered delivery all handlers are called by one
+     * thread, with unordered delivery the handlers are called in parallel.
+     */
+    private void measureThroughputPostSingleProducer(final String delivery) {
+        loadEventAdmin();
+        final int handlers = Runtime.getRuntime().availableProcessors();
+        final int events = BATCH_SIZE / 10;
+
+        int average =0;
+        for (int runs = 0; runs < RUNS;runs ++) {
+            final String topic = "topic/" + delivery + "/" + runs;
+            final CountDownLatch latch = new CountDownLatch(events * handlers);
+            for (int h = 0; h < handlers; h++) {
+                final Listener listener = new Listener() {
+                    @Override
+                    public void handleEvent(Event event) {
+                        // simulate some work per event
+                        long value = (Integer) event.getProperty("key");
+                        for (int i = 0; i < 1000; i++) {
+                            value = value * 31 + i;
+                        }
+                        result = value;
+                        latch.countDown();
+                    }
+                };
+                listener.setDelivery(delivery);
+                addListener(listener, topic);
+            }
+
+            long startTime = System.nanoTime();
+            for (int i = 0; i < events; i++) {
+                final Hashtable<String,Object> localProperties = new Hashtable<String, Object>();
+                localProperties.put("key",i);
+                send(topic, localProperties, false);
+            }
+
+            try {
+                latch.await();
+            } catch (InterruptedException e) {
+                e.printStackTrace();
+            }
+            long endTime = System.nanoTime();
+            long milliseconds = (endTime - startTime) / 1000000;
+            logger.info("Post " + delivery + " Run "+runs+" Elapsed :" + milliseconds);
+            average += milliseconds;
+        }
+
+        logger.info("Post " + delivery + " Avg: "+average / RUNS);
+    }
+
     @After
     public void tearDown() {
         for (Listener listener : listeners) {
@@ -286,9 +352,15 @@ public class PerformanceTestIT {
     private static abstract class Listener implements EventHandler {
         private ServiceRegistration<EventHandler> registration;
 
+        private String delivery;
+
         protected Listener() {
         }
 
+        public void setDelivery(String delivery) {
+            this.delivery = delivery;
+        }
+
         public void register(BundleContext bundleContext, String...topics) {
             final Dictionary<String, Object> props = new Hashtable<String, Object>();
             if ( topics != null ) {
@@ -296,6 +368,9 @@ public class PerformanceTestIT {
             } else {
                 props.put("event.topics", "*");
             }
+            if ( delivery != null ) {
+                props.put(EventConstants.EVENT_DELIVERY, delivery);
+            }
             this.registration = bundleContext.registerService(EventHandler.class, this, props);
         }
 
@@ -19,6 +19,9 @@
 package org.apache.felix.framework;
 
 import org.apache.felix.framework.cache.BundleArchive;
+import org.apache.felix.framework.cache.BundleArchiveRevision;
+import org.apache.felix.framework.cache.BundleCache;
+import org.apache.felix.framework.util.FelixConstants;
 import org.apache.felix.framework.util.SecurityManagerEx;
 import org.apache.felix.framework.util.ShrinkableCollection;
 import org.apache.felix.framework.util.StringMap;
@@ -1276,10 +1279,29 @@ class BundleImpl implements Bundle, BundleRevisions
 
     private BundleRevisionImpl createRevision(boolean isUpdate) throws Exception
     {
+        BundleArchiveRevision archiveRevision = m_archive.getCurrentRevision();
+        String javaVersion = getFramework()._getProperty("java.specification.version");
+
+        // If enabled, try to reuse the manifest parsed when the revision
+        // was created by a previous framework instance.
+        File cacheFile = null;
+        String cacheKey = null;
+        ManifestCache cached = null;
+        String stamp = archiveRevision.getContentStamp();
+        if ((stamp != null) && Boolean.parseBoolean(
+            getFramework()._getProperty(BundleCache.CACHE_MANIFEST_PROP)))
+        {
+            cacheFile = new File(archiveRevision.getRevisionRootDir(), ManifestCache.CACHE_FILE_NAME);
+            cacheKey = getFramework()._getProperty(FelixConstants.FELIX_VERSION_PROPERTY)
+                + ";" + javaVersion + ";" + stamp;
+            cached = ManifestCache.read(cacheFile, cacheKey, getFramework().getLogger());
+        }
+
         // Get and parse the manifest from the most recent revision and
         // create an associated revision object for it.
-        Map headerMap = Util.getMultiReleaseAwareManifestHeaders(
-            getFramework()._getProperty("java.specification.version"), m_archive.getCurrentRevision());
+        Map headerMap = (cached != null)
+            ? cached.getHeaders()
+            : Util.getMultiReleaseAwareManifestHeaders(javaVersion, archiveRevision);
 
         // Create the bundle revision instance.
         BundleRevisionImpl revision = new BundleRevisionImpl(
@@ -1287,7 +1309,13 @@ class BundleImpl implements Bundle, BundleRevisions
             Long.toString(getBundleId())
                 + "." + m_archive.getCurrentRevisionNumber().toString(),
             headerMap,
-            m_archive.getCurrentRevision().getContent());
+            archiveRevision.getContent(),
+            cached);
+
+        if ((cacheFile != null) && (cached == null))
+        {
+            ManifestCache.write(cacheFile, cacheKey, headerMap, revision, getFramework().getLogger());
+        }
 
         // For R4 bundles, verify that the bundle symbolic name + version
         // is unique unless this check has been disabled.
@@ -32,6 +32,7 @@ import org.apache.felix.framework.cache.Content;
 import org.apache.felix.framework.util.FelixConstants;
 import org.apache.felix.framework.util.MultiReleaseContent;
 import org.apache.felix.framework.util.SecureAction;
+import org.apache.felix.framework.util.StartupProfiler;
 import org.apache.felix.framework.util.Util;
 import org.apache.felix.framework.util.manifestparser.ManifestParser;
 import org.apache.felix.framework.util.manifestparser.NativeLibrary;
@@ -106,17 +107,58 @@ public class BundleRevisionImpl implements BundleRevision, Resource
     BundleRevisionImpl(
         BundleImpl bundle, String id, Map<String, Object> headerMap, Content content)
         throws BundleException
+    {
+        this(bundle, id, headerMap, content, null);
+    }
+
+    /**
+     * Creates a revision from the specified manifest headers. If a cached
+     * manifest is given, its metadata is used instead of parsing the headers.
+     * @param bundle
+     * @param id
+     * @param headerMap
+     * @param content
+     * @param cached the cached manifest for the headers or <tt>null</tt>.
+     * @throws org.osgi.framework.BundleException
+     */
+    BundleRevisionImpl(
+        BundleImpl bundle, String id, Map<String, Object> headerMap, Content content,
+        ManifestCache cached)
+        throws BundleException
     {
         m_bundle = bundle;
         m_id = id;
         m_headerMap = headerMap;
         m_content = content;
+        m_isFragment = m_headerMap.containsKey(Constants.FRAGMENT_HOST);
 
+        if (cached != null)
+        {
+            m_isExtension = cached.isExtension();
+            m_manifestVersion = cached.getManifestVersion();
+            m_version = cached.getVersion();
+            m_declaredCaps = cached.getCapabilities(this);
+            m_declaredReqs = cached.getRequirements(this);
+            m_declaredNativeLibs = null;
+            m_declaredActivationPolicy = cached.getActivationPolicy();
+            m_activationExcludes = cached.getActivationExcludes();
+            m_activationIncludes = cached.getActivationIncludes();
+            m_symbolicName = cached.getSymbolicName();
+            return;
+        }
+
+        StartupProfiler profiler = bundle.getFramework().getStartupProfiler();
+        long profileStart = (profiler != null) ? profiler.begin() : 0;
         ManifestParser mp = new ManifestParser(
             bundle.getFramework().getLogger(),
             bundle.getFramework().getConfig(),
             this,
             m_headerMap);
+        if (profiler != null)
+        {
+            profiler.end(StartupProfiler.PHASE_MANIFEST,
+                bundle.getBundleId(), bundle._getLocation(), profileStart);
+        }
 
         // Record some of the parsed metadata. Note, if this is an extension
         // bundle it's exports are removed, since they will be added to the
@@ -136,7 +178,6 @@ public class BundleRevisionImpl implements BundleRevision, Resource
             ? null
             : ManifestParser.parseDelimitedString(mp.getActivationIncludeDirective(), ",");
         m_symbolicName = mp.getSymbolicName();
-        m_isFragment = m_headerMap.containsKey(Constants.FRAGMENT_HOST);
     }
 
     static SecureAction getSecureAction()
@@ -149,6 +190,16 @@ public class BundleRevisionImpl implements BundleRevision, Resource
         return m_declaredActivationPolicy;
     }
 
+    List<String> getActivationIncludes()
+    {
+        return m_activationIncludes;
+    }
+
+    List<String> getActivationExcludes()
+    {
+        return m_activationExcludes;
+    }
+
     boolean isActivationTrigger(String pkgName)
     {
         if ((m_activationIncludes == null) && (m_activationExcludes == null))
@@ -172,6 +172,15 @@ public class BundleWiringImpl implements BundleWiring
 
     private volatile ConcurrentHashMap<String, ClassLoader> m_accessorLookupCache;
 
+    // Delegation decisions per package name, filled on first use and
+    // replaced whenever the imported packages change.
+    private volatile ConcurrentHashMap<String, PackageDelegation> m_delegationTable =
+        new ConcurrentHashMap<String, PackageDelegation>();
+
+    // Package wires and exports per package name, used for service
+    // assignability checks and rebuilt whenever the wires change.
+    private volatile PackageIndex m_packageIndex;
+
     BundleWiringImpl(
         Logger logger, Map configMap, StatefulResolver resolver,
         BundleRevisionImpl revision, List<BundleRevision> fragments,
@@ -668,6 +677,52 @@ public class BundleWiringImpl implements BundleWiring
         return null;
     }
 
+    /**
+     * Returns the first wire to a package capability for the given package,
+     * as {@link Util#getWire(BundleRevision, String)} does, but without
+     * walking the wires.
+     * @param pkgName the package name.
+     * @return the package wire or <tt>null</tt> if there is none or this
+     *         wiring is no longer in use.
+    **/
+    BundleWire getPackageWire(String pkgName)
+    {
+        PackageIndex index = getPackageIndex();
+        return (index != null) ? index.m_wires.get(pkgName) : null;
+    }
+
+    /**
+     * Returns the first package capability of this wiring for the given
+     * package, as {@link Util#getPackageCapability(BundleRevision, String)}
+     * does, but without walking the capabilities.
+     * @param pkgName the package name.
+     * @return the package capability or <tt>null</tt> if there is none or
+     *         this wiring is no longer in use.
+    **/
+    BundleCapability getPackageCapability(String pkgName)
+    {
+        PackageIndex index = getPackageIndex();
+        return (index != null) ? index.m_capabilities.get(pkgName) : null;
+    }
+
+    private PackageIndex getPackageIndex()
+    {
+        if (!isInUse())
+        {
+            return null;
+        }
+        // The index remembers the wires it was built from, so a dynamic
+        // wire added concurrently is never hidden by a stale index.
+        List<BundleWire> wires = m_wires;
+        PackageIndex index = m_packageIndex;
+        if ((index == null) || (index.m_source != wires))
+        {
+            index = new PackageIndex(wires, m_resolvedCaps);
+            m_packageIndex = index;
+        }
+        return index;
+    }
+
     public synchronized void addDynamicWire(BundleWire wire)
     {
         // Make new wires list.
@@ -683,6 +738,9 @@ public class BundleWiringImpl implements BundleWiring
                     wire.getProviderWiring().getRevision());
 
             m_importedPkgs = importedPkgs;
+            // Discard delegation decisions based on the old imports, in
+            // particular the one recording that the package had no source.
+            m_delegationTable = new ConcurrentHashMap<String, PackageDelegation>();
         }
         // Update associated member values.
         // Technically, there is a window here where readers won't see
@@ -1126,10 +1184,11 @@ public class BundleWiringImpl implements BundleWiring
 
         // Get the package of the target class/resource.
         String pkgName = Util.getResourcePackage(name);
+        PackageDelegation delegation = getPackageDelegation(pkgName);
 
         // Delegate any packages listed in the boot delegation
         // property to the parent class loader.
-        if (shouldBootDelegate(pkgName))
+        if (delegation.m_bootDelegate)
         {
             try
             {
@@ -1155,7 +1214,7 @@ public class BundleWiringImpl implements BundleWiring
         // Look in the revisions's imported packages. If the package is
         // imported, then we stop searching no matter the result since
         // imported packages cannot be split.
-        BundleRevision provider = m_importedPkgs.get(pkgName);
+        BundleRevision provider = delegation.m_importedFrom;
         if (provider != null)
         {
             // Delegate to the provider revision.
@@ -1176,7 +1235,7 @@ public class BundleWiringImpl implements BundleWiring
         // See whether we can get the resource from the required bundles and
         // regardless of whether or not this is the case continue to the next
         // step potentially passing on the result of this search (if any).
-        List<BundleRevision> providers = m_requiredPkgs.get(pkgName);
+        BundleRevision[] providers = delegation.m_requiredFrom;
         if (providers != null)
         {
             for (BundleRevision p : providers)
@@ -1274,6 +1333,38 @@ public class BundleWiringImpl implements BundleWiring
         return parent;
     }
 
+    /**
+     * Returns how class and resource loads for the specified package are
+     * delegated, i.e., whether they are boot delegated and which revisions
+     * provide the package via imports or required bundles. This avoids the
+     * boot delegation checks and the lookups in the imported and required
+     * package maps for every load; a package without any source is recorded
+     * as well, so loads from the bundle's own packages are just as cheap.
+     * Dynamic imports are not recorded, since they are resolved on demand
+     * and result in a new imported package via {@link #addDynamicWire}.
+    **/
+    private PackageDelegation getPackageDelegation(String pkgName)
+    {
+        // Read the table before the imports, so that a decision based on
+        // outdated imports can only end up in an outdated table.
+        ConcurrentHashMap<String, PackageDelegation> table = m_delegationTable;
+        PackageDelegation delegation = table.get(pkgName);
+        if (delegation == null)
+        {
+            boolean bootDelegate = shouldBootDelegate(pkgName);
+            BundleRevision importedFrom = m_importedPkgs.get(pkgName);
+            List<BundleRevision> requiredFrom = m_requiredPkgs.get(pkgName);
+            delegation = (!bootDelegate && (importedFrom == null) && (requiredFrom == null))
+                ? PackageDelegation.NONE
+                : new PackageDelegation(bootDelegate, importedFrom,
+                    (requiredFrom == null)
+                        ? null
+                        : requiredFrom.toArray(new BundleRevision[requiredFrom.size()]));
+            table.put(pkgName, delegation);
+        }
+        return delegation;
+    }
+
     boolean shouldBootDelegate(String pkgName)
     {
         // Always boot delegate if the bundle has a configured
@@ -1430,6 +1521,7 @@ public class BundleWiringImpl implements BundleWiring
             {
                 // Get the package of the target class/resource.
                 String pkgName = (isClass) ? Util.getClassPackage(name) : Util.getResourcePackage(name);
+                PackageDelegation delegation = getPackageDelegation(pkgName);
 
                 boolean accessor = name.startsWith("sun.reflect.Generated") || name.startsWith("jdk.internal.reflect.");
 
@@ -1449,7 +1541,7 @@ public class BundleWiringImpl implements BundleWiring
 
                 // Delegate any packages listed in the boot delegation
                 // property to the parent class loader.
-                if (shouldBootDelegate(pkgName))
+                if (delegation.m_bootDelegate)
                 {
                     try
                     {
@@ -1525,7 +1617,7 @@ public class BundleWiringImpl implements BundleWiring
                 // Look in the revision's imports. Note that the search may
                 // be aborted if this method throws an exception, otherwise
                 // it continues if a null is returned.
-                result = searchImports(pkgName, name, isClass);
+                result = searchImports(delegation, name, isClass);
 
                 // If not found, try the revision's own class path.
                 if (result == null)
@@ -1600,11 +1692,11 @@ public class BundleWiringImpl implements BundleWiring
         return result;
     }
 
-    private Object searchImports(String pkgName, String name, boolean isClass)
+    private Object searchImports(PackageDelegation delegation, String name, boolean isClass)
             throws ClassNotFoundException, ResourceNotFoundException
     {
         // Check if the package is imported.
-        BundleRevision provider = m_importedPkgs.get(pkgName);
+        BundleRevision provider = delegation.m_importedFrom;
         if (provider != null)
         {
             // If we find the class or resource, then return it.
@@ -1627,7 +1719,7 @@ public class BundleWiringImpl implements BundleWiring
         }
 
         // Check if the package is required.
-        List<BundleRevision> providers = m_requiredPkgs.get(pkgName);
+        BundleRevision[] providers = delegation.m_requiredFrom;
         if (providers != null)
         {
             for (BundleRevision p : providers)
@@ -1888,6 +1980,61 @@ public class BundleWiringImpl implements BundleWiring
         return true;
     }
 
+    private static final class PackageDelegation
+    {
+        static final PackageDelegation NONE = new PackageDelegation(false, null, null);
+
+        final boolean m_bootDelegate;
+        final BundleRevision m_importedFrom;
+        final BundleRevision[] m_requiredFrom;
+
+        PackageDelegation(
+            boolean bootDelegate, BundleRevision importedFrom, BundleRevision[] requiredFrom)
+        {
+            m_bootDelegate = bootDelegate;
+            m_importedFrom = importedFrom;
+            m_requiredFrom = requiredFrom;
+        }
+    }
+
+    private static final class PackageIndex
+    {
+        final List<BundleWire> m_source;
+        final Map<String, BundleWire> m_wires = new HashMap<String, BundleWire>();
+        final Map<String, BundleCapability> m_capabilities =
+            new HashMap<String, BundleCapability>();
+
+        PackageIndex(List<BundleWire> wires, List<BundleCapability> caps)
+        {
+            m_source = wires;
+            for (BundleWire wire : wires)
+            {
+                BundleCapability cap = wire.getCapability();
+                if (cap.getNamespace().equals(BundleRevision.PACKAGE_NAMESPACE))
+                {
+                    String pkgName = (String) cap.getAttributes()
+                        .get(BundleRevision.PACKAGE_NAMESPACE);
+                    if (!m_wires.containsKey(pkgName))
+                    {
+                        m_wires.put(pkgName, wire);
+                    }
+                }
+            }
+            for (BundleCapability cap : caps)
+            {
+                if (cap.getNamespace().equals(BundleRevision.PACKAGE_NAMESPACE))
+                {
+                    String pkgName = (String) cap.getAttributes()
+                        .get(BundleRevision.PACKAGE_NAMESPACE);
+                    if (!m_capabilities.containsKey(pkgName))
+                    {
+                        m_capabilities.put(pkgName, cap);
+                    }
+                }
+            }
+        }
+    }
+
     static class ToLocalUrlEnumeration implements Enumeration
     {
         final Enumeration m_enumeration;
@@ -31,7 +31,12 @@ import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.Queue;
 import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
 
 import org.apache.felix.framework.util.*;
 import org.osgi.framework.AllServiceListener;
@@ -64,17 +69,30 @@ public class EventDispatcher
         m_syncBndlListeners = Collections.EMPTY_MAP;
     private Map<BundleContext, List<ListenerInfo>>
         m_svcListeners = Collections.EMPTY_MAP;
-
-    // A single thread is used to deliver events for all dispatchers.
-    private static Thread m_thread = null;
+    // Index of the service listeners by the object classes they filter on,
+    // maintained alongside m_svcListeners.
+    private ServiceListenerIndex m_svcListenerIndex = ServiceListenerIndex.EMPTY;
+
+    // Asynchronous events of all dispatchers are delivered by a shared set
+    // of lanes, each with its own thread and queue. By default there is a
+    // single lane; with more lanes every listener is pinned to one lane, so
+    // that it still receives events in the order they were fired.
+    private static volatile Lane[] m_lanes = null;
     private final static String m_threadLock = new String("thread lock");
     private static int m_references = 0;
+    private static int m_running = 0;
     private static volatile boolean m_stopping = false;
 
-    // List of requests.
-    private static final List<Request> m_requestList = new ArrayList<Request>();
-    // Pooled requests to avoid memory allocation.
-    private static final List<Request> m_requestPool = new ArrayList<Request>();
+    // Maximum number of requests a lane takes from its queue at once.
+    private static final int MAX_BATCH = 64;
+
+    // Delivery metrics of the asynchronous lanes, shared by all dispatchers
+    // like the lanes and reset when the lanes are stopped.
+    private static final AtomicInteger m_queueDepth = new AtomicInteger();
+    private static final AtomicInteger m_maxQueueDepth = new AtomicInteger();
+    private static final AtomicLong m_delivered = new AtomicLong();
+    private static final AtomicLong m_totalLatency = new AtomicLong();
+    private static final AtomicLong m_maxLatency = new AtomicLong();
 
     private static final SecureAction m_secureAction = new SecureAction();
 
@@ -86,49 +104,63 @@ public class EventDispatcher
 
     public void startDispatching()
     {
+        startDispatching(1);
+    }
+
+    /**
+     * Starts asynchronous event delivery, if it is not yet started by
+     * another dispatcher. Since the lanes are shared by all dispatchers,
+     * the number of lanes is only used if delivery is not started yet;
+     * otherwise a warning is logged if it differs.
+     * @param lanes the number of threads delivering asynchronous events.
+    **/
+    public void startDispatching(int lanes)
+    {
+        lanes = Math.max(1, Math.min(lanes, Long.SIZE));
+        int running;
         synchronized (m_threadLock)
         {
-            // Start event dispatching thread if necessary.
-            if (m_thread == null || !m_thread.isAlive())
+            // Start event dispatching threads if necessary.
+            if (m_lanes == null)
             {
                 m_stopping = false;
 
-                m_thread = new Thread(new Runnable() {
-                    @Override
-                    public void run()
-                    {
-                        try
-                        {
-                            EventDispatcher.run();
-                        }
-                        finally
-                        {
-                            // Ensure we update state even if stopped by external cause
-                            // e.g. an Applet VM forceably killing threads
-                            synchronized (m_threadLock)
-                            {
-                                m_thread = null;
-                                m_stopping = false;
-                                m_references = 0;
-                                m_threadLock.notifyAll();
-                            }
-                        }
-                    }
-                }, "FelixDispatchQueue");
-                m_thread.start();
+                Lane[] newLanes = new Lane[lanes];
+                for (int i = 0; i < lanes; i++)
+                {
+                    newLanes[i] = new Lane(i, lanes, (lanes == 1)
+                        ? "FelixDispatchQueue" : "FelixDispatchQueue-" + i);
+                }
+                m_running = lanes;
+                m_lanes = newLanes;
+                for (Lane lane : newLanes)
+                {
+                    lane.m_thread.start();
+                }
             }
 
+            running = m_lanes.length;
+
             // reference counting and flags
             m_references++;
         }
+
+        if (running != lanes)
+        {
+            m_logger.log(Logger.LOG_WARNING, "EventDispatcher: Ignoring " + lanes
+                + " event dispatch threads, asynchronous events are delivered by the "
+                + running + " threads already started by another framework.");
+        }
     }
 
     public void stopDispatching()
     {
+        Lane[] lanes;
         synchronized (m_threadLock)
         {
             // Return if already dead or stopping.
-            if (m_thread == null || m_stopping)
+            lanes = m_lanes;
+            if (lanes == null || m_stopping)
             {
                 return;
             }
@@ -143,16 +175,20 @@ public class EventDispatcher
             m_stopping = true;
         }
 
-        // Signal dispatch thread.
-        synchronized (m_requestList)
+        // Signal dispatch threads.
+        for (Lane lane : lanes)
         {
-            m_requestList.notify();
+            LockSupport.unpark(lane.m_thread);
         }
 
         // Use separate lock for shutdown to prevent any chance of nested lock deadlock
+        long delivered;
+        int maxQueueDepth;
+        long totalLatency;
+        long maxLatency;
         synchronized (m_threadLock)
         {
-            while (m_thread != null)
+            while (m_lanes != null)
             {
                 try
                 {
@@ -162,7 +198,71 @@ public class EventDispatcher
                 {
                 }
             }
+
+            // Reset the metrics before the lanes can be started again, so
+            // that they always cover the current lanes only.
+            delivered = m_delivered.getAndSet(0);
+            maxQueueDepth = m_maxQueueDepth.getAndSet(0);
+            totalLatency = m_totalLatency.getAndSet(0);
+            maxLatency = m_maxLatency.getAndSet(0);
+            m_queueDepth.set(0);
         }
+
+        m_logger.log(Logger.LOG_DEBUG, "EventDispatcher: Delivered " + delivered
+            + " asynchronous events, maximum queue depth " + maxQueueDepth
+            + ", average latency " + ((delivered > 0) ? totalLatency / delivered : 0)
+            + " ns, maximum latency " + maxLatency + " ns.");
+    }
+
+    /**
+     * Returns the number of asynchronous event deliveries that are queued
+     * but not yet started. An event counts once for each lane it is queued on.
+     * Like the other metrics it covers all frameworks sharing the lanes.
+     * @return the current queue depth.
+    **/
+    public static int getQueueDepth()
+    {
+        return m_queueDepth.get();
+    }
+
+    /**
+     * Returns the highest queue depth observed since the lanes were started.
+     * @return the maximum queue depth.
+    **/
+    public static int getMaxQueueDepth()
+    {
+        return m_maxQueueDepth.get();
+    }
+
+    /**
+     * Returns the number of asynchronous event deliveries started since the
+     * lanes were started.
+     * @return the number of delivered events.
+    **/
+    public static long getDeliveredEventCount()
+    {
+        return m_delivered.get();
+    }
+
+    /**
+     * Returns the average time between queueing an asynchronous event and
+     * starting its delivery.
+     * @return the average delivery latency in nanoseconds.
+    **/
+    public static long getAverageDeliveryLatency()
+    {
+        long delivered = m_delivered.get();
+        return (delivered > 0) ? m_totalLatency.get() / delivered : 0;
+    }
+
+    /**
+     * Returns the longest time between queueing an asynchronous event and
+     * starting its delivery observed since the lanes were started.
+     * @return the maximum delivery latency in nanoseconds.
+    **/
+    public static long getMaxDeliveryLatency()
+    {
+        return m_maxLatency.get();
     }
 
     public Filter addListener(BundleContext bc, Class clazz, EventListener l, Filter filter)
@@ -260,6 +360,7 @@ public class EventDispatcher
             else if (clazz == ServiceListener.class)
             {
                 m_svcListeners = listeners;
+                m_svcListenerIndex = m_svcListenerIndex.add(info);
             }
         }
         return null;
@@ -312,6 +413,7 @@ public class EventDispatcher
 
             // Try to find the instance in our list.
             int idx = -1;
+            ListenerInfo removedInfo = null;
             for (Entry<BundleContext, List<ListenerInfo>> entry : listeners.entrySet())
             {
                 List<ListenerInfo> infos = entry.getValue();
@@ -329,6 +431,7 @@ public class EventDispatcher
                             returnInfo = new ListenerInfo(infos.get(i), true);
                         }
                         idx = i;
+                        removedInfo = info;
                         break;
                     }
                 }
@@ -358,6 +461,10 @@ public class EventDispatcher
             else if (clazz == ServiceListener.class)
             {
                 m_svcListeners = listeners;
+                if (removedInfo != null)
+                {
+                    m_svcListenerIndex = m_svcListenerIndex.remove(removedInfo);
+                }
             }
         }
 
@@ -386,6 +493,14 @@ public class EventDispatcher
             m_syncBndlListeners = removeListenerInfos(m_syncBndlListeners, bc);
 
             // Remove all service listeners associated with the specified bundle.
+            List<ListenerInfo> infos = m_svcListeners.get(bc);
+            if (infos != null)
+            {
+                for (ListenerInfo info : infos)
+                {
+                    m_svcListenerIndex = m_svcListenerIndex.remove(info);
+                }
+            }
             m_svcListeners = removeListenerInfos(m_svcListeners, bc);
         }
     }
@@ -427,6 +542,8 @@ public class EventDispatcher
                             info.getSecurityContext(),
                             info.isRemoved());
                         m_svcListeners = updateListenerInfo(m_svcListeners, i, newInfo);
+                        m_svcListenerIndex =
+                            m_svcListenerIndex.remove(info).add(newInfo);
                         return oldFilter;
                     }
                 }
@@ -533,13 +650,34 @@ public class EventDispatcher
     {
         // Take a snapshot of the listener array.
         Map<BundleContext, List<ListenerInfo>> listeners = null;
+        ServiceListenerIndex index = null;
         synchronized (this)
         {
             listeners = m_svcListeners;
+            index = m_svcListenerIndex;
         }
 
-        // Use service registry hooks to filter target listeners.
-        listeners = filterListenersUsingHooks(event, felix, listeners);
+        if (m_registry.getHookRegistry().getHooks(
+                org.osgi.framework.hooks.service.EventHook.class).isEmpty()
+            && m_registry.getHookRegistry().getHooks(
+                org.osgi.framework.hooks.service.EventListenerHook.class).isEmpty())
+        {
+            // Without hooks, only the listeners whose filter can possibly
+            // match the service's object classes need to be considered.
+            // If there are hooks, they must see all listeners, so we don't
+            // narrow them down up front.
+            Map<BundleContext, List<ListenerInfo>> candidates =
+                index.getCandidates(event.getServiceReference());
+            if (candidates != null)
+            {
+                listeners = candidates;
+            }
+        }
+        else
+        {
+            // Use service registry hooks to filter target listeners.
+            listeners = filterListenersUsingHooks(event, felix, listeners);
+        }
 
         // Fire all service events immediately on the calling thread.
         fireEventImmediately(
@@ -770,46 +908,63 @@ public class EventDispatcher
         EventObject event)
     {
         //TODO: should possibly check this within thread lock, seems to be ok though without
-        // If dispatch thread is stopped, then ignore dispatch request.
-        if (m_stopping || m_thread == null)
+        // If dispatch threads are stopped, then ignore dispatch request.
+        Lane[] lanes = m_lanes;
+        if (m_stopping || lanes == null || listeners.isEmpty())
         {
             return;
         }
 
-        // First get a request from the pool or create one if necessary.
-        Request req = null;
-        synchronized (m_requestPool)
-        {
-            if (m_requestPool.size() > 0)
-            {
-                req = m_requestPool.remove(0);
-            }
-            else
-            {
-                req = new Request();
-            }
-        }
-
         // Initialize dispatch request.
+        Request req = new Request();
         req.m_dispatcher = dispatcher;
         req.m_type = type;
         req.m_listeners = listeners;
         req.m_event = event;
+        req.m_queued = System.nanoTime();
 
-        // Lock the request list.
-        synchronized (m_requestList)
+        if (lanes.length == 1)
         {
-            // Add our request to the list.
-            m_requestList.add(req);
-            // Notify the dispatch thread that there is work to do.
-            m_requestList.notify();
+            lanes[0].add(req);
+            return;
         }
+
+        // Queue the request on every lane that one of its listeners is
+        // pinned to; each lane only delivers to its own listeners.
+        long mask = 0;
+        for (List<ListenerInfo> infos : listeners.values())
+        {
+            for (ListenerInfo info : infos)
+            {
+                mask |= 1L << laneOf(info, lanes.length);
+            }
+        }
+        for (int i = 0; i < lanes.length; i++)
+        {
+            if ((mask & (1L << i)) != 0)
+            {
+                lanes[i].add(req);
+            }
+        }
+    }
+
+    private static int laneOf(ListenerInfo info, int lanes)
+    {
+        return (System.identityHashCode(info.getListener()) & Integer.MAX_VALUE) % lanes;
     }
 
     private static void fireEventImmediately(
         EventDispatcher dispatcher, int type,
         Map<BundleContext, List<ListenerInfo>> listeners,
         EventObject event, Dictionary oldProps)
+    {
+        fireEventImmediately(dispatcher, type, listeners, event, oldProps, -1, 1);
+    }
+
+    private static void fireEventImmediately(
+        EventDispatcher dispatcher, int type,
+        Map<BundleContext, List<ListenerInfo>> listeners,
+        EventObject event, Dictionary oldProps, int lane, int lanes)
     {
         if (!listeners.isEmpty())
         {
@@ -818,6 +973,10 @@ public class EventDispatcher
             {
                 for (ListenerInfo info : entry.getValue())
                 {
+                    if ((lane >= 0) && (laneOf(info, lanes) != lane))
+                    {
+                        continue;
+                    }
                     Bundle bundle = info.getBundle();
                     EventListener l = info.getListener();
                     Filter filter = info.getParsedFilter();
@@ -1099,63 +1258,132 @@ public class EventDispatcher
         return copy;
     }
 
+    private static void recordDelivery(Request req, long now)
+    {
+        m_queueDepth.decrementAndGet();
+        m_delivered.incrementAndGet();
+        long latency = now - req.m_queued;
+        m_totalLatency.addAndGet(latency);
+        for (long max = m_maxLatency.get(); (latency > max)
+            && !m_maxLatency.compareAndSet(max, latency); max = m_maxLatency.get())
+        {
+        }
+    }
+
+    private static void laneStopped()
+    {
+        synchronized (m_threadLock)
+        {
+            if (--m_running == 0)
+            {
+                m_lanes = null;
+                m_stopping = false;
+                m_references = 0;
+                m_threadLock.notifyAll();
+            }
+        }
+    }
+
     /**
-     * This is the dispatching thread's main loop.
+     * A delivery lane with its own thread and a lock-free queue, which is
+     * drained in batches.
     **/
-    private static void run()
+    private static class Lane implements Runnable
     {
-        Request req = null;
-        while (true)
+        private final int m_index;
+        private final int m_count;
+        private final Thread m_thread;
+        private final Queue<Request> m_queue = new ConcurrentLinkedQueue<Request>();
+        private volatile boolean m_waiting = false;
+
+        Lane(int index, int count, String name)
+        {
+            m_index = index;
+            m_count = count;
+            m_thread = new Thread(this, name);
+        }
+
+        void add(Request req)
+        {
+            m_queue.offer(req);
+            int depth = m_queueDepth.incrementAndGet();
+            for (int max = m_maxQueueDepth.get(); (depth > max)
+                && !m_maxQueueDepth.compareAndSet(max, depth); max = m_maxQueueDepth.get())
+            {
+            }
+            // Only wake up the thread if it is waiting for work.
+            if (m_waiting)
+            {
+                LockSupport.unpark(m_thread);
+            }
+        }
+
+        @Override
+        public void run()
+        {
+            try
+            {
+                dispatch();
+            }
+            finally
+            {
+                // Ensure we update state even if stopped by external cause
+                // e.g. an Applet VM forceably killing threads
+                laneStopped();
+            }
+        }
+
+        /**
+         * This is the dispatching thread's main loop.
+        **/
+        private void dispatch()
         {
-            // Lock the request list so we can try to get a
-            // dispatch request from it.
-            synchronized (m_requestList)
+            List<Request> batch = new ArrayList<Request>(MAX_BATCH);
+            while (true)
             {
-                // Wait while there are no requests to dispatch. If the
-                // dispatcher thread is supposed to stop, then let the
-                // dispatcher thread exit the loop and stop.
-                while (m_requestList.isEmpty() && !m_stopping)
+                for (Request req = m_queue.poll(); req != null;
+                    req = (batch.size() < MAX_BATCH) ? m_queue.poll() : null)
                 {
-                    // Wait until some signals us for work.
-                    try
+                    batch.add(req);
+                }
+
+                if (batch.isEmpty())
+                {
+                    // If there are no events to dispatch and shutdown
+                    // has been called then exit, otherwise wait until
+                    // someone signals us for work. The queue is checked
+                    // again after announcing that we wait, so that no
+                    // signal is missed.
+                    if (m_stopping)
                     {
-                        m_requestList.wait();
+                        return;
                     }
-                    catch (InterruptedException ex)
+                    m_waiting = true;
+                    if (m_queue.isEmpty() && !m_stopping)
                     {
-                        // Not much we can do here except for keep waiting.
+                        LockSupport.park(this);
+                        // Not much we can do on interrupts except for
+                        // keep waiting.
+                        Thread.interrupted();
                     }
+                    m_waiting = false;
+                    continue;
                 }
 
-                // If there are no events to dispatch and shutdown
-                // has been called then exit, otherwise dispatch event.
-                if (m_requestList.isEmpty() && m_stopping)
+                // Deliver events outside of any lock so that we don't
+                // block other requests from being queued during event
+                // processing.
+                // NOTE: We don't catch any exceptions here, because
+                // the invoked method shields us from exceptions by
+                // catching Throwables when it invokes callbacks.
+                for (Request req : batch)
                 {
-                    return;
+                    recordDelivery(req, System.nanoTime());
+                    fireEventImmediately(
+                        req.m_dispatcher, req.m_type, req.m_listeners,
+                        req.m_event, null, (m_count == 1) ? -1 : m_index, m_count);
                 }
-
-                // Get the dispatch request.
-                req = m_requestList.remove(0);
-            }
-
-            // Deliver event outside of synchronized block
-            // so that we don't block other requests from being
-            // queued during event processing.
-            // NOTE: We don't catch any exceptions here, because
-            // the invoked method shields us from exceptions by
-            // catching Throwables when it invokes callbacks.
-            fireEventImmediately(
-                req.m_dispatcher, req.m_type, req.m_listeners,
-                req.m_event, null);
-
-            // Put dispatch request in cache.
-            synchronized (m_requestPool)
-            {
-                req.m_dispatcher = null;
-                req.m_type = -1;
-                req.m_listeners = null;
-                req.m_event = null;
-                m_requestPool.add(req);
+                batch.clear();
             }
         }
     }
@@ -1170,5 +1398,6 @@ public class EventDispatcher
         public int m_type = -1;
         public Map<BundleContext, List<ListenerInfo>> m_listeners = null;
         public EventObject m_event = null;
+        public long m_queued;
     }
 }
@@ -30,6 +30,7 @@ import org.apache.felix.framework.util.ListenerInfo;
 import org.apache.felix.framework.util.MapToDictionary;
 import org.apache.felix.framework.util.SecureAction;
 import org.apache.felix.framework.util.ShrinkableCollection;
+import org.apache.felix.framework.util.StartupProfiler;
 import org.apache.felix.framework.util.StringMap;
 import org.apache.felix.framework.util.ThreadGate;
 import org.apache.felix.framework.util.Util;
@@ -94,6 +95,7 @@ import java.util.Dictionary;
 import java.util.Enumeration;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Hashtable;
 import java.util.Iterator;
 import java.util.LinkedHashSet;
 import java.util.List;
@@ -105,6 +107,14 @@ import java.util.StringTokenizer;
 import java.util.TreeMap;
 import java.util.TreeSet;
 import java.util.WeakHashMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.ReentrantLock;
 
@@ -130,6 +140,10 @@ public class Felix extends BundleImpl implements Framework
     // Resolver and resolver state.
     private final StatefulResolver m_resolver;
 
+    // Startup profiler, which is null unless profiling is enabled.
+    private final StartupProfiler m_profiler;
+    private volatile ServiceRegistration m_profilerReg;
+
     // Lock object used to determine if an individual bundle
     // lock or the global lock can be acquired.
     private final ReentrantLock m_bundleLock = new ReentrantLock(true);
@@ -265,6 +279,17 @@ public class Felix extends BundleImpl implements Framework
      *       sets an upper limit on how many files the cache will open. The default
      *       value is zero, which means there is no limit.
      *   </li>
+     *   <li><tt>felix.cache.idletime</tt> - The number of milliseconds after
+     *       which an unused bundle JAR file is closed again. If set, bundle JAR
+     *       files are not opened until their content is first needed. The
+     *       default value is zero, which means JAR files stay open.
+     *   </li>
+     *   <li><tt>felix.cache.snapshot</tt> - Enables or disables the bundle
+     *       cache snapshot. If enabled, the state of all bundle archives is
+     *       recorded in a single file when the framework shuts down and read
+     *       from it on the next start instead of from each bundle directory.
+     *       The default is disabled.
+     *   </li>
      *   <li><tt>felix.cache.locking</tt> - Enables or disables bundle cache locking,
      *       which is used to prevent concurrent access to the bundle cache. This is
      *       enabled by default, but on older/smaller JVMs file channel locking is
@@ -441,6 +466,11 @@ public class Felix extends BundleImpl implements Framework
             }
         });
 
+        // Create the startup profiler, if enabled.
+        m_profiler = ("true".equalsIgnoreCase(getProperty(FelixConstants.PROFILER_PROP))
+            || (getProperty(FelixConstants.PROFILER_FILE_PROP) != null))
+            ? new StartupProfiler() : null;
+
         // Create a resolver and its state.
         m_resolver = new StatefulResolver(this, m_registry);
 
@@ -485,6 +515,11 @@ public class Felix extends BundleImpl implements Framework
         return m_resolver;
     }
 
+    StartupProfiler getStartupProfiler()
+    {
+        return m_profiler;
+    }
+
     BundleRevisionDependencies getDependencies()
     {
         return m_dependencies;
@@ -698,7 +733,20 @@ public class Felix extends BundleImpl implements Framework
                     Util.randomUUID("true".equalsIgnoreCase(_getProperty(FelixConstants.FRAMEWORK_UUID_SECURE))));
 
                 // Initialize event dispatcher.
-                m_dispatcher.startDispatching();
+                int dispatchThreads = 1;
+                String s = _getProperty(FelixConstants.EVENT_DISPATCH_THREADS_PROP);
+                if (s != null)
+                {
+                    try
+                    {
+                        dispatchThreads = Integer.parseInt(s.trim());
+                    }
+                    catch (NumberFormatException ex)
+                    {
+                        // Ignore and use a single dispatch thread.
+                    }
+                }
+                m_dispatcher.startDispatching(dispatchThreads);
 
                 // Create the bundle cache, if necessary, so that we can reload any
                 // installed bundles.
@@ -795,7 +843,12 @@ public class Felix extends BundleImpl implements Framework
                 // First get cached bundle identifiers.
                 try
                 {
+                    long profileStart = (m_profiler != null) ? m_profiler.begin() : 0;
                     archives = m_cache.getArchives(m_connectFramework);
+                    if (m_profiler != null)
+                    {
+                        m_profiler.end(StartupProfiler.PHASE_CACHE, "bundle cache", profileStart);
+                    }
                 }
                 catch (Exception ex)
                 {
@@ -832,7 +885,13 @@ public class Felix extends BundleImpl implements Framework
                         else
                         {
                             // Install the cached bundle.
+                            long profileStart = (m_profiler != null) ? m_profiler.begin() : 0;
                             reloadBundle(archives[i], javaVersionChanged);
+                            if (m_profiler != null)
+                            {
+                                m_profiler.end(StartupProfiler.PHASE_CACHE,
+                                    archives[i].getId(), archives[i].getLocation(), profileStart);
+                            }
                         }
                     }
                     catch (Exception ex)
@@ -891,6 +950,16 @@ public class Felix extends BundleImpl implements Framework
 
                 // Start services
                 m_resolver.start();
+                if (m_profiler != null)
+                {
+                    // The profiler class is not exported, so it is only
+                    // registered as a shell command.
+                    Dictionary<String, Object> props = new Hashtable<String, Object>();
+                    props.put("osgi.command.scope", "felix");
+                    props.put("osgi.command.function", new String[] { "profile" });
+                    m_profilerReg = m_registry.registerService(this,
+                        new String[] { Object.class.getName() }, m_profiler, props);
+                }
                 m_fwkWiring.start();
                 m_fwkStartLevel.start();
 
@@ -1144,6 +1213,21 @@ public class Felix extends BundleImpl implements Framework
 
         // Send a framework event to indicate the framework has started.
         fireFrameworkEvent(FrameworkEvent.STARTED, this, null);
+
+        // Export the startup timeline, if requested.
+        String profilerFile = getProperty(FelixConstants.PROFILER_FILE_PROP);
+        if ((m_profiler != null) && (profilerFile != null))
+        {
+            try
+            {
+                m_profiler.writeTrace(new File(profilerFile));
+            }
+            catch (IOException ex)
+            {
+                m_logger.log(Logger.LOG_WARNING,
+                    "Unable to write startup profile to " + profilerFile, ex);
+            }
+        }
     }
 
     @Override
@@ -1483,126 +1567,81 @@ public class Felix extends BundleImpl implements Framework
             int high = (isLowering) ? m_activeStartLevel : m_targetStartLevel;
             m_activeStartLevel = (isLowering) ? high : low;
 
+            // Bundles of the same start level are started concurrently
+            // if configured; stopping is always done one at a time.
+            ExecutorService executor = (isLowering) ? null : createStartLevelExecutor();
+
             // Process bundles and stop or start them accordingly.
-            while (bundlesRemaining)
+            try
             {
-                StartLevelTuple tuple;
-
-                // Remove our tuple to be processed while holding the queue lock
-                // and update the active start level accordingly, which allows
-                // us to determine in startBundle() if concurrent requests to
-                // start a bundle should be handled synchronously or just added
-                // to the queue and handled asynchronously.
-                synchronized (m_startLevelBundles)
+                while (bundlesRemaining)
                 {
-                    if (isLowering)
-                    {
-                        tuple = m_startLevelBundles.last();
-                    }
-                    else
-                    {
-                        tuple = m_startLevelBundles.first();
-                    }
-
-                    if ((tuple.m_level >= low) && (tuple.m_level <= high))
-                    {
-                        m_activeStartLevel = tuple.m_level;
-                    }
-                }
+                    List<StartLevelTuple> tuples = new ArrayList<StartLevelTuple>();
 
-                // Ignore the system bundle, since its start() and
-                // stop() methods get called explicitly in Felix.start()
-                // and Felix.stop(), respectively.
-                if (tuple.m_bundle.getBundleId() != 0)
-                {
-                    // Lock the current bundle.
-                    try
-                    {
-                        acquireBundleLock(tuple.m_bundle,
-                            Bundle.INSTALLED | Bundle.RESOLVED | Bundle.ACTIVE
-                            | Bundle.STARTING | Bundle.STOPPING);
-                    }
-                    catch (IllegalStateException ex)
+                    // Remove our tuples to be processed while holding the queue
+                    // lock and update the active start level accordingly, which
+                    // allows us to determine in startBundle() if concurrent
+                    // requests to start a bundle should be handled synchronously
+                    // or just added to the queue and handled asynchronously.
+                    synchronized (m_startLevelBundles)
                     {
-                        // Ignore if the bundle has been uninstalled.
-                        if (tuple.m_bundle.getState() != Bundle.UNINSTALLED)
+                        StartLevelTuple tuple;
+                        if (isLowering)
                         {
-                            fireFrameworkEvent(FrameworkEvent.ERROR, tuple.m_bundle, ex);
-                            m_logger.log(tuple.m_bundle,
-                                Logger.LOG_ERROR,
-                                "Error locking " + tuple.m_bundle._getLocation(), ex);
+                            tuple = m_startLevelBundles.last();
                         }
                         else
                         {
-                            synchronized (m_startLevelBundles)
-                            {
-                                m_startLevelBundles.remove(tuple);
-                                bundlesRemaining = !m_startLevelBundles.isEmpty();
-                            }
+                            tuple = m_startLevelBundles.first();
                         }
-                        continue;
-                    }
 
-                    try
-                    {
-                        // Start the bundle if necessary.
-                        // Note that we only attempt to start the bundle if
-                        // its start level is equal to the active start level,
-                        // which means we assume lower bundles are in the state
-                        // they should be in (i.e., we won't attempt to restart
-                        // them if they previously failed to start).
-                        if (!isLowering
-                            && (((tuple.m_bundle.getPersistentState() == Bundle.ACTIVE)
-                                || (tuple.m_bundle.getPersistentState() == Bundle.STARTING))
-                                && (tuple.m_level == m_activeStartLevel)))
+                        if ((tuple.m_level >= low) && (tuple.m_level <= high))
                         {
-                            try
-                            {
-// TODO: LAZY - Not sure if this is the best way...
-                                int options = Bundle.START_TRANSIENT;
-                                options = (tuple.m_bundle.getPersistentState() == Bundle.STARTING)
-                                    ? options | Bundle.START_ACTIVATION_POLICY
-                                    : options;
-                                startBundle(tuple.m_bundle, options);
-                            }
-                            catch (Throwable th)
-                            {
-                                fireFrameworkEvent(FrameworkEvent.ERROR, tuple.m_bundle, th);
-                                m_logger.log(tuple.m_bundle,
-                                    Logger.LOG_ERROR,
-                                    "Error starting " + tuple.m_bundle._getLocation(), th);
-                            }
+                            m_activeStartLevel = tuple.m_level;
                         }
-                        // Stop the bundle if necessary.
-                        else if (isLowering
-                            && (((tuple.m_bundle.getState() == Bundle.ACTIVE)
-                                || (tuple.m_bundle.getState() == Bundle.STARTING))
-                                && (tuple.m_level == m_activeStartLevel)))
+
+                        tuples.add(tuple);
+                        if (executor != null)
                         {
-                            try
+                            // The queue is sorted by start level, so the rest
+                            // of the current start level directly follows.
+                            for (StartLevelTuple t : m_startLevelBundles.tailSet(tuple))
                             {
-                                stopBundle(tuple.m_bundle, false);
-                            }
-                            catch (Throwable th)
-                            {
-                                fireFrameworkEvent(FrameworkEvent.ERROR, tuple.m_bundle, th);
-                                m_logger.log(tuple.m_bundle,
-                                    Logger.LOG_ERROR,
-                                    "Error stopping " + tuple.m_bundle._getLocation(), th);
+                                if (t.m_level != tuple.m_level)
+                                {
+                                    break;
+                                }
+                                else if (t != tuple)
+                                {
+                                    tuples.add(t);
+                                }
                             }
                         }
                     }
-                    finally
+
+                    List<StartLevelTuple> processed;
+                    if (tuples.size() == 1)
                     {
-                        // Always release bundle lock.
-                        releaseBundleLock(tuple.m_bundle);
+                        processed = processStartLevelTuple(tuples.get(0), isLowering)
+                            ? tuples : Collections.<StartLevelTuple>emptyList();
+                    }
+                    else
+                    {
+                        processed = processStartLevelTuples(executor, tuples);
                     }
-                }
 
-                synchronized (m_startLevelBundles)
+                    synchronized (m_startLevelBundles)
+                    {
+                        m_startLevelBundles.removeAll(processed);
+                        bundlesRemaining = !m_startLevelBundles.isEmpty();
+                    }
+                }
+            }
+            finally
+            {
+                if (executor != null)
                 {
-                    m_startLevelBundles.remove(tuple);
-                    bundlesRemaining = !m_startLevelBundles.isEmpty();
+                    executor.shutdown();
                 }
             }
 
@@ -1633,6 +1672,210 @@ public class Felix extends BundleImpl implements Framework
         }
     }
 
+    /**
+     * Creates the executor used to start the bundles of a start level
+     * concurrently, or returns <tt>null</tt> if bundles are to be started
+     * sequentially, which is the default.
+     * @return The executor or <tt>null</tt>.
+    **/
+    private ExecutorService createStartLevelExecutor()
+    {
+        int parallelism = 1;
+        String s = _getProperty(FelixConstants.STARTLEVEL_PARALLELISM_PROP);
+        if (s != null)
+        {
+            try
+            {
+                parallelism = Integer.parseInt(s.trim());
+            }
+            catch (NumberFormatException ex)
+            {
+                // Ignore and start bundles sequentially.
+            }
+        }
+        if (parallelism <= 1)
+        {
+            return null;
+        }
+        return Executors.newFixedThreadPool(parallelism, new ThreadFactory()
+        {
+            private final AtomicInteger m_counter = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable r)
+            {
+                // Worker threads must be recognized as start level threads,
+                // see startBundle().
+                Thread thread = new Thread(r,
+                    FrameworkStartLevelImpl.THREAD_NAME + "-" + m_counter.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * Processes the specified start level tuples of the same start level
+     * concurrently and waits until all of them are processed.
+     * @param executor The executor to use.
+     * @param tuples The tuples to process.
+     * @return The tuples that can be removed from the start level queue.
+    **/
+    private List<StartLevelTuple> processStartLevelTuples(
+        ExecutorService executor, List<StartLevelTuple> tuples)
+    {
+        List<Future<Boolean>> futures = new ArrayList<Future<Boolean>>(tuples.size());
+        for (final StartLevelTuple tuple : tuples)
+        {
+            futures.add(executor.submit(new Callable<Boolean>()
+            {
+                @Override
+                public Boolean call()
+                {
+                    return processStartLevelTuple(tuple, false);
+                }
+            }));
+        }
+
+        List<StartLevelTuple> processed = new ArrayList<StartLevelTuple>(tuples.size());
+        boolean interrupted = false;
+        for (int i = 0; i < futures.size(); i++)
+        {
+            // Always wait for all bundles, since their locks are held by
+            // the worker threads until they are processed.
+            while (true)
+            {
+                try
+                {
+                    if (futures.get(i).get())
+                    {
+                        processed.add(tuples.get(i));
+                    }
+                    break;
+                }
+                catch (InterruptedException ex)
+                {
+                    interrupted = true;
+                }
+                catch (ExecutionException ex)
+                {
+                    m_logger.log(tuples.get(i).m_bundle, Logger.LOG_ERROR,
+                        "Error processing " + tuples.get(i).m_bundle._getLocation(),
+                        ex.getCause());
+                    processed.add(tuples.get(i));
+                    break;
+                }
+            }
+        }
+        if (interrupted)
+        {
+            Thread.currentThread().interrupt();
+        }
+        return processed;
+    }
+
+    /**
+     * Starts or stops the bundle of the specified start level tuple, if
+     * required by the active start level.
+     * @param tuple The tuple to process.
+     * @param isLowering Whether the active start level is being lowered.
+     * @return <tt>true</tt> if the tuple can be removed from the start level
+     *         queue, <tt>false</tt> if it must be processed again.
+    **/
+    private boolean processStartLevelTuple(StartLevelTuple tuple, boolean isLowering)
+    {
+        // Ignore the system bundle, since its start() and
+        // stop() methods get called explicitly in Felix.start()
+        // and Felix.stop(), respectively.
+        if (tuple.m_bundle.getBundleId() == 0)
+        {
+            return true;
+        }
+
+        // Lock the current bundle.
+        try
+        {
+            acquireBundleLock(tuple.m_bundle,
+                Bundle.INSTALLED | Bundle.RESOLVED | Bundle.ACTIVE
+                | Bundle.STARTING | Bundle.STOPPING);
+        }
+        catch (IllegalStateException ex)
+        {
+            // Ignore if the bundle has been uninstalled.
+            if (tuple.m_bundle.getState() != Bundle.UNINSTALLED)
+            {
+                fireFrameworkEvent(FrameworkEvent.ERROR, tuple.m_bundle, ex);
+                m_logger.log(tuple.m_bundle,
+                    Logger.LOG_ERROR,
+                    "Error locking " + tuple.m_bundle._getLocation(), ex);
+                return false;
+            }
+            return true;
+        }
+
+        try
+        {
+            // Start the bundle if necessary.
+            // Note that we only attempt to start the bundle if
+            // its start level is equal to the active start level,
+            // which means we assume lower bundles are in the state
+            // they should be in (i.e., we won't attempt to restart
+            // them if they previously failed to start).
+            if (!isLowering
+                && (((tuple.m_bundle.getPersistentState() == Bundle.ACTIVE)
+                    || (tuple.m_bundle.getPersistentState() == Bundle.STARTING))
+                    && (tuple.m_level == m_activeStartLevel)))
+            {
+                try
+                {
+// TODO: LAZY - Not sure if this is the best way...
+                    int options = Bundle.START_TRANSIENT;
+                    options = (tuple.m_bundle.getPersistentState() == Bundle.STARTING)
+                        ? options | Bundle.START_ACTIVATION_POLICY
+                        : options;
+                    long startTime = System.nanoTime();
+                    startBundle(tuple.m_bundle, options);
+                    m_logger.log(tuple.m_bundle,
+                        Logger.LOG_DEBUG,
+                        "Started " + tuple.m_bundle._getLocation() + " in "
+                        + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startTime)
+                        + " ms at start level " + tuple.m_level + ".");
+                }
+                catch (Throwable th)
+                {
+                    fireFrameworkEvent(FrameworkEvent.ERROR, tuple.m_bundle, th);
+                    m_logger.log(tuple.m_bundle,
+                        Logger.LOG_ERROR,
+                        "Error starting " + tuple.m_bundle._getLocation(), th);
+                }
+            }
+            // Stop the bundle if necessary.
+            else if (isLowering
+                && (((tuple.m_bundle.getState() == Bundle.ACTIVE)
+                    || (tuple.m_bundle.getState() == Bundle.STARTING))
+                    && (tuple.m_level == m_activeStartLevel)))
+            {
+                try
+                {
+                    stopBundle(tuple.m_bundle, false);
+                }
+                catch (Throwable th)
+                {
+                    fireFrameworkEvent(FrameworkEvent.ERROR, tuple.m_bundle, th);
+                    m_logger.log(tuple.m_bundle,
+                        Logger.LOG_ERROR,
+                        "Error stopping " + tuple.m_bundle._getLocation(), th);
+                }
+            }
+        }
+        finally
+        {
+            // Always release bundle lock.
+            releaseBundleLock(tuple.m_bundle);
+        }
+        return true;
+    }
+
     /**
      * Returns the start level into which newly installed bundles will
      * be placed by default; this method implements functionality for
@@ -2217,7 +2460,9 @@ public class Felix extends BundleImpl implements Framework
             // queued but processed synchronously.
             // Note: Don't queue starts from the start level thread, otherwise
             // we'd never get anything started.
-            if (!Thread.currentThread().getName().equals(FrameworkStartLevelImpl.THREAD_NAME))
+            // Note: Worker threads starting the bundles of a start level
+            // concurrently are named after the start level thread.
+            if (!Thread.currentThread().getName().startsWith(FrameworkStartLevelImpl.THREAD_NAME))
             {
                 synchronized (m_startLevelBundles)
                 {
@@ -2426,8 +2671,14 @@ public class Felix extends BundleImpl implements Framework
                 // Activate the bundle if it has an activator.
                 if (bundle.getActivator() != null)
                 {
+                    long profileStart = (m_profiler != null) ? m_profiler.begin() : 0;
                     m_secureAction.startActivator(
                         bundle.getActivator(), bundle._getBundleContext());
+                    if (m_profiler != null)
+                    {
+                        m_profiler.end(StartupProfiler.PHASE_ACTIVATOR,
+                            bundle.getBundleId(), bundle._getLocation(), profileStart);
+                    }
                 }
 
                 setBundleStateAndNotify(bundle, Bundle.ACTIVE);
@@ -5162,6 +5413,11 @@ public class Felix extends BundleImpl implements Framework
             m_fwkStartLevel.stop();
 
             m_resolver.stop();
+            if (m_profilerReg != null)
+            {
+                m_profilerReg.unregister();
+                m_profilerReg = null;
+            }
 
             // Shutdown event dispatching queue.
             m_dispatcher.stopDispatching();
@@ -5208,8 +5464,20 @@ public class Felix extends BundleImpl implements Framework
                 }
             }
 
-            // Dispose of the bundles to close their associated contents.
+            // Record the state of the remaining archives for a fast restart,
+            // if bundle cache snapshots are enabled.
             bundles = getBundles();
+            List<BundleArchive> archives = new ArrayList<BundleArchive>(bundles.length);
+            for (int i = 0; i < bundles.length; i++)
+            {
+                if (bundles[i].getBundleId() != 0)
+                {
+                    archives.add(((BundleImpl) bundles[i]).getArchive());
+                }
+            }
+            m_cache.saveSnapshot(archives.toArray(new BundleArchive[archives.size()]));
+
+            // Dispose of the bundles to close their associated contents.
             for (int i = 0; i < bundles.length; i++)
             {
                 ((BundleImpl) bundles[i]).close();
@@ -26,6 +26,7 @@ import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import org.apache.felix.framework.ServiceRegistrationImpl.ServiceReferenceImpl;
 import org.apache.felix.framework.capabilityset.CapabilitySet;
 import org.apache.felix.framework.capabilityset.SimpleFilter;
@@ -38,18 +39,40 @@ import org.osgi.framework.wiring.BundleRevision;
 
 public class FilterImpl implements Filter
 {
+    // Parsed filters shared by all filters created from the same string, so
+    // that trackers and listeners of different bundles using the same filter
+    // also share its evaluation state. Once the cache is full, filters of
+    // new strings are no longer cached.
+    private static final int MAX_CACHED_FILTERS = 1024;
+    private static final ConcurrentHashMap<String, SimpleFilter> m_filterCache =
+        new ConcurrentHashMap<String, SimpleFilter>();
+
     private final SimpleFilter m_filter;
+    private volatile String m_toString;
 
     public FilterImpl(String filterStr) throws InvalidSyntaxException
     {
-        try
-        {
-            m_filter = SimpleFilter.parse(filterStr);
-        }
-        catch (Throwable th)
+        SimpleFilter filter = (filterStr != null) ? m_filterCache.get(filterStr) : null;
+        if (filter == null)
         {
-            throw new InvalidSyntaxException(th.getMessage(), filterStr);
+            try
+            {
+                filter = SimpleFilter.parse(filterStr);
+            }
+            catch (Throwable th)
+            {
+                throw new InvalidSyntaxException(th.getMessage(), filterStr);
+            }
+            if ((filterStr != null) && (m_filterCache.size() < MAX_CACHED_FILTERS))
+            {
+                SimpleFilter cached = m_filterCache.putIfAbsent(filterStr, filter);
+                if (cached != null)
+                {
+                    filter = cached;
+                }
+            }
         }
+        m_filter = filter;
     }
 
     public boolean match(ServiceReference sr)
@@ -91,7 +114,13 @@ public class FilterImpl implements Filter
 
     public String toString()
     {
-        return m_filter.toString();
+        String s = m_toString;
+        if (s == null)
+        {
+            s = m_filter.toString();
+            m_toString = s;
+        }
+        return s;
     }
 
     static class WrapperCapability extends BundleCapabilityImpl
@@ -0,0 +1,435 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.felix.framework;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+
+import org.apache.felix.framework.capabilityset.SimpleFilter;
+import org.apache.felix.framework.util.SecureAction;
+import org.apache.felix.framework.util.StringMap;
+import org.apache.felix.framework.wiring.BundleCapabilityImpl;
+import org.apache.felix.framework.wiring.BundleRequirementImpl;
+import org.osgi.framework.Constants;
+import org.osgi.framework.Version;
+import org.osgi.framework.VersionRange;
+import org.osgi.framework.wiring.BundleCapability;
+import org.osgi.framework.wiring.BundleRequirement;
+import org.osgi.framework.wiring.BundleRevision;
+
+/**
+ * Persisted form of a parsed bundle manifest, used by {@link BundleImpl}
+ * when the <tt>felix.cache.manifest</tt> property is enabled.
+ * <p>
+ * The file is stored in the directory of the bundle archive revision and
+ * holds the manifest headers together with the capabilities, requirements
+ * and other metadata that the <tt>ManifestParser</tt> derived from them, so
+ * a restart neither reads nor parses the manifest. It is only used if its
+ * key, which covers the framework version, the Java version and the content
+ * stamp of the bundle archive revision, is unchanged. Bundles with
+ * native code are not cached, since the selected native libraries depend
+ * on the framework configuration.
+**/
+class ManifestCache
+{
+    static final String CACHE_FILE_NAME = "manifest.cache";
+
+    private static final int FORMAT_VERSION = 1;
+    private static final SecureAction m_secureAction = new SecureAction();
+
+    private static final byte NULL = 0;
+    private static final byte STRING = 1;
+    private static final byte VERSION = 2;
+    private static final byte LONG = 3;
+    private static final byte DOUBLE = 4;
+    private static final byte LIST = 5;
+    private static final byte VERSION_RANGE = 6;
+    private static final byte FILTER = 7;
+
+    private final Map<String, Object> m_headers;
+    private final String m_manifestVersion;
+    private final String m_symbolicName;
+    private final Version m_version;
+    private final boolean m_isExtension;
+    private final int m_activationPolicy;
+    private final List<String> m_activationIncludes;
+    private final List<String> m_activationExcludes;
+    private final List<Object[]> m_caps;
+    private final List<Object[]> m_reqs;
+
+    private ManifestCache(DataInputStream in) throws IOException
+    {
+        m_headers = new StringMap();
+        for (int i = in.readInt(); i > 0; i--)
+        {
+            m_headers.put(readString(in), readString(in));
+        }
+        m_manifestVersion = (String) readValue(in);
+        m_symbolicName = (String) readValue(in);
+        m_version = (Version) readValue(in);
+        m_isExtension = in.readBoolean();
+        m_activationPolicy = in.readInt();
+        m_activationIncludes = readStrings(in);
+        m_activationExcludes = readStrings(in);
+        m_caps = new ArrayList<Object[]>();
+        for (int i = in.readInt(); i > 0; i--)
+        {
+            m_caps.add(new Object[] { readString(in), readMap(in), readMap(in) });
+        }
+        m_reqs = new ArrayList<Object[]>();
+        for (int i = in.readInt(); i > 0; i--)
+        {
+            m_reqs.add(new Object[] { readString(in), readMap(in), readMap(in), readValue(in) });
+        }
+    }
+
+    /**
+     * Reads the cached manifest from the specified file.
+     * @param file the cache file.
+     * @param key the key the cache file must have been written with.
+     * @param logger the logger for problems reading the file.
+     * @return the cached manifest or <tt>null</tt> if there is no valid one.
+    **/
+    static ManifestCache read(File file, String key, Logger logger)
+    {
+        if (!m_secureAction.isFile(file))
+        {
+            return null;
+        }
+        DataInputStream in = null;
+        try
+        {
+            in = new DataInputStream(new BufferedInputStream(
+                m_secureAction.getInputStream(file)));
+            if ((in.readInt() != FORMAT_VERSION) || !key.equals(in.readUTF()))
+            {
+                return null;
+            }
+            return new ManifestCache(in);
+        }
+        catch (Exception ex)
+        {
+            logger.log(Logger.LOG_WARNING,
+                "Unable to read cached manifest " + file + ", ignoring it.", ex);
+            return null;
+        }
+        finally
+        {
+            close(in);
+        }
+    }
+
+    /**
+     * Writes the manifest headers and the metadata parsed from them for the
+     * specified revision to the specified file.
+     * @param file the cache file.
+     * @param key the key to validate the cache file with.
+     * @param headers the manifest headers of the revision.
+     * @param revision the revision created from the manifest headers.
+     * @param logger the logger for problems writing the file.
+    **/
+    static void write(File file, String key, Map<String, Object> headers,
+        BundleRevisionImpl revision, Logger logger)
+    {
+        if (headers.containsKey(Constants.BUNDLE_NATIVECODE))
+        {
+            return;
+        }
+        File tmp = new File(file.getParentFile(), file.getName() + ".tmp");
+        DataOutputStream out = null;
+        try
+        {
+            out = new DataOutputStream(new BufferedOutputStream(
+                m_secureAction.getOutputStream(tmp)));
+            out.writeInt(FORMAT_VERSION);
+            out.writeUTF(key);
+            out.writeInt(headers.size());
+            for (Entry<String, Object> entry : headers.entrySet())
+            {
+                writeString(out, entry.getKey());
+                writeString(out, (String) entry.getValue());
+            }
+            writeValue(out, revision.getManifestVersion());
+            writeValue(out, revision.getSymbolicName());
+            writeValue(out, revision.getVersion());
+            out.writeBoolean(revision.isExtension());
+            out.writeInt(revision.getDeclaredActivationPolicy());
+            writeValue(out, revision.getActivationIncludes());
+            writeValue(out, revision.getActivationExcludes());
+            List<BundleCapability> caps = revision.getDeclaredCapabilities(null);
+            out.writeInt(caps.size());
+            for (BundleCapability cap : caps)
+            {
+                writeString(out, cap.getNamespace());
+                writeMap(out, cap.getDirectives());
+                writeMap(out, cap.getAttributes());
+            }
+            List<BundleRequirement> reqs = revision.getDeclaredRequirements(null);
+            out.writeInt(reqs.size());
+            for (BundleRequirement req : reqs)
+            {
+                writeString(out, req.getNamespace());
+                writeMap(out, req.getDirectives());
+                writeMap(out, req.getAttributes());
+                writeValue(out, ((BundleRequirementImpl) req).getFilter());
+            }
+            out.close();
+            out = null;
+            m_secureAction.deleteFile(file);
+            if (!m_secureAction.renameFile(tmp, file))
+            {
+                throw new IOException("Unable to rename " + tmp + " to " + file);
+            }
+        }
+        catch (Exception ex)
+        {
+            // Values of unknown types end up here as well.
+            logger.log(Logger.LOG_DEBUG, "Unable to write cached manifest " + file, ex);
+            close(out);
+            m_secureAction.deleteFile(tmp);
+        }
+    }
+
+    Map<String, Object> getHeaders()
+    {
+        return m_headers;
+    }
+
+    String getManifestVersion()
+    {
+        return m_manifestVersion;
+    }
+
+    String getSymbolicName()
+    {
+        return m_symbolicName;
+    }
+
+    Version getVersion()
+    {
+        return m_version;
+    }
+
+    boolean isExtension()
+    {
+        return m_isExtension;
+    }
+
+    int getActivationPolicy()
+    {
+        return m_activationPolicy;
+    }
+
+    List<String> getActivationIncludes()
+    {
+        return m_activationIncludes;
+    }
+
+    List<String> getActivationExcludes()
+    {
+        return m_activationExcludes;
+    }
+
+    @SuppressWarnings("unchecked")
+    List<BundleCapability> getCapabilities(BundleRevision owner)
+    {
+        List<BundleCapability> caps = new ArrayList<BundleCapability>(m_caps.size());
+        for (Object[] cap : m_caps)
+        {
+            caps.add(new BundleCapabilityImpl(owner, (String) cap[0],
+                (Map<String, String>) cap[1], (Map<String, Object>) cap[2]));
+        }
+        return caps;
+    }
+
+    @SuppressWarnings("unchecked")
+    List<BundleRequirement> getRequirements(BundleRevision owner)
+    {
+        List<BundleRequirement> reqs = new ArrayList<BundleRequirement>(m_reqs.size());
+        for (Object[] req : m_reqs)
+        {
+            reqs.add(new BundleRequirementImpl(owner, (String) req[0],
+                (Map<String, String>) req[1], (Map<String, Object>) req[2],
+                (SimpleFilter) req[3]));
+        }
+        return reqs;
+    }
+
+    private static void writeString(DataOutputStream out, String s) throws IOException
+    {
+        // Headers can exceed the length supported by writeUTF().
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInputStream in) throws IOException
+    {
+        byte[] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8).intern();
+    }
+
+    private static void writeMap(DataOutputStream out, Map<String, ?> map) throws IOException
+    {
+        out.writeInt(map.size());
+        for (Entry<String, ?> entry : map.entrySet())
+        {
+            writeString(out, entry.getKey());
+            writeValue(out, entry.getValue());
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> Map<String, T> readMap(DataInputStream in) throws IOException
+    {
+        int size = in.readInt();
+        if (size == 0)
+        {
+            return Collections.emptyMap();
+        }
+        Map<String, T> map = new LinkedHashMap<String, T>(size * 2);
+        for (int i = 0; i < size; i++)
+        {
+            map.put(readString(in), (T) readValue(in));
+        }
+        return map;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static List<String> readStrings(DataInputStream in) throws IOException
+    {
+        return (List<String>) readValue(in);
+    }
+
+    private static void writeValue(DataOutputStream out, Object value) throws IOException
+    {
+        if (value == null)
+        {
+            out.writeByte(NULL);
+        }
+        else if (value instanceof String)
+        {
+            out.writeByte(STRING);
+            writeString(out, (String) value);
+        }
+        else if (value instanceof Version)
+        {
+            out.writeByte(VERSION);
+            writeString(out, value.toString());
+        }
+        else if (value instanceof Long)
+        {
+            out.writeByte(LONG);
+            out.writeLong((Long) value);
+        }
+        else if (value instanceof Double)
+        {
+            out.writeByte(DOUBLE);
+            out.writeDouble((Double) value);
+        }
+        else if (value instanceof List)
+        {
+            List<?> list = (List<?>) value;
+            out.writeByte(LIST);
+            out.writeInt(list.size());
+            for (Object o : list)
+            {
+                writeValue(out, o);
+            }
+        }
+        else if (value instanceof VersionRange)
+        {
+            out.writeByte(VERSION_RANGE);
+            writeString(out, value.toString());
+        }
+        else if (value instanceof SimpleFilter)
+        {
+            SimpleFilter sf = (SimpleFilter) value;
+            out.writeByte(FILTER);
+            out.writeInt(sf.getOperation());
+            writeValue(out, sf.getName());
+            writeValue(out, sf.getValue());
+        }
+        else
+        {
+            throw new IOException("Unsupported value type: " + value.getClass().getName());
+        }
+    }
+
+    private static Object readValue(DataInputStream in) throws IOException
+    {
+        byte type = in.readByte();
+        switch (type)
+        {
+            case NULL:
+                return null;
+            case STRING:
+                return readString(in);
+            case VERSION:
+                return Version.parseVersion(readString(in));
+            case LONG:
+                return in.readLong();
+            case DOUBLE:
+                return in.readDouble();
+            case LIST:
+                int size = in.readInt();
+                List<Object> list = new ArrayList<Object>(size);
+                for (int i = 0; i < size; i++)
+                {
+                    list.add(readValue(in));
+                }
+                return list;
+            case VERSION_RANGE:
+                return new VersionRange(readString(in));
+            case FILTER:
+                int op = in.readInt();
+                String name = (String) readValue(in);
+                return new SimpleFilter(name, readValue(in), op);
+            default:
+                throw new IOException("Unknown value type: " + type);
+        }
+    }
+
+    private static void close(java.io.Closeable c)
+    {
+        if (c != null)
+        {
+            try
+            {
+                c.close();
+            }
+            catch (IOException ex)
+            {
+                // Ignore.
+            }
+        }
+    }
+}
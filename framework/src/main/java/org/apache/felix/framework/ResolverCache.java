@@ -0,0 +1,580 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.felix.framework;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.Array;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.WeakHashMap;
+
+import org.apache.felix.framework.util.SecureAction;
+import org.apache.felix.framework.wiring.BundleWireImpl;
+import org.osgi.framework.Constants;
+import org.osgi.framework.wiring.BundleCapability;
+import org.osgi.framework.wiring.BundleRequirement;
+import org.osgi.framework.wiring.BundleRevision;
+import org.osgi.framework.wiring.BundleWire;
+import org.osgi.framework.wiring.BundleWiring;
+import org.osgi.resource.Resource;
+import org.osgi.resource.Wire;
+
+/**
+ * Persistent cache of resolver results, used by the {@link StatefulResolver}
+ * when the <tt>felix.resolver.cache</tt> property is enabled.
+ * <p>
+ * Each resolve operation is keyed by a digest of everything that influences
+ * its outcome: the declared capabilities and requirements of all revisions
+ * known to the resolver, the existing wirings, the mandatory and optional
+ * revisions, and the resolve-relevant framework properties. Wires are
+ * recorded by revision identifier and by the index of the requirement and
+ * capability in the declaring revision, so they can be mapped back onto the
+ * revisions of the next framework session. Since a framework restart
+ * without changes performs the same sequence of resolve operations, each
+ * of them finds its previous result in the cache.
+ * <p>
+ * Only entries that were used or added during the current session are
+ * written back, so entries for states that no longer occur are dropped.
+**/
+class ResolverCache
+{
+    static final String CACHE_FILE_NAME = "resolver.cache";
+
+    private static final int FORMAT_VERSION = 1;
+    private static final int MAX_ENTRIES = 4096;
+    private static final SecureAction m_secureAction = new SecureAction();
+
+    // Framework properties that influence resolving through means other
+    // than the capabilities of the system bundle revision.
+    private static final String[] RESOLVE_PROPERTIES = {
+        Constants.FRAMEWORK_SYSTEMPACKAGES,
+        Constants.FRAMEWORK_SYSTEMPACKAGES_EXTRA,
+        Constants.FRAMEWORK_SYSTEMCAPABILITIES,
+        Constants.FRAMEWORK_SYSTEMCAPABILITIES_EXTRA,
+        Constants.FRAMEWORK_BSNVERSION,
+        Constants.FRAMEWORK_BOOTDELEGATION
+    };
+
+    private final Logger m_logger;
+    private final String m_propertyDigest;
+
+    // Entries loaded from the previous session; moved to m_entries when used.
+    private final Map<String, CachedResult> m_stored = new HashMap<String, CachedResult>();
+    // Entries used or added during this session.
+    private final Map<String, CachedResult> m_entries =
+        new LinkedHashMap<String, CachedResult>(16, 0.75f, true)
+        {
+            @Override
+            protected boolean removeEldestEntry(Entry<String, CachedResult> eldest)
+            {
+                return size() > MAX_ENTRIES;
+            }
+        };
+
+    // Revision declarations are immutable and wirings only ever gain
+    // dynamic wires, so their digests are only recalculated if needed.
+    private final Map<BundleRevision, byte[]> m_revisionDigests =
+        new WeakHashMap<BundleRevision, byte[]>();
+    private final Map<BundleWiring, Object[]> m_wiringDigests =
+        new WeakHashMap<BundleWiring, Object[]>();
+
+    private long m_hits;
+    private long m_misses;
+    private long m_savedNanos;
+
+    ResolverCache(Logger logger, Felix felix)
+    {
+        m_logger = logger;
+        StringBuilder sb = new StringBuilder();
+        for (String key : RESOLVE_PROPERTIES)
+        {
+            sb.append(key).append('=').append(felix.getProperty(key)).append('\n');
+        }
+        m_propertyDigest = sb.toString();
+    }
+
+    synchronized long getHits()
+    {
+        return m_hits;
+    }
+
+    synchronized long getMisses()
+    {
+        return m_misses;
+    }
+
+    /**
+     * Returns the estimated time saved by cache hits, i.e., the sum of the
+     * original resolve times of the reused results minus the time it took
+     * to reconstruct them.
+     * @return the saved time in nanoseconds.
+    **/
+    synchronized long getSavedNanos()
+    {
+        return m_savedNanos;
+    }
+
+    synchronized String getKey(
+        Collection<BundleRevision> revisions,
+        Set<BundleRevision> mandatory, Set<BundleRevision> optional)
+    {
+        List<BundleRevision> sorted = new ArrayList<BundleRevision>(revisions);
+        Collections.sort(sorted, RevisionComparator.INSTANCE);
+
+        MessageDigest md = newDigest();
+        update(md, m_propertyDigest);
+        for (BundleRevision br : sorted)
+        {
+            md.update(getRevisionDigest(br));
+            BundleWiring wiring = br.getWiring();
+            if (wiring != null)
+            {
+                md.update(getWiringDigest(wiring));
+            }
+        }
+        update(md, "mandatory");
+        updateIds(md, mandatory);
+        update(md, "optional");
+        updateIds(md, optional);
+        return toHex(md.digest());
+    }
+
+    /**
+     * Returns the cached resolver result for the specified key mapped onto
+     * the current revisions, or <tt>null</tt> if there is no usable result.
+    **/
+    synchronized Map<Resource, List<Wire>> get(
+        String key, Collection<BundleRevision> revisions)
+    {
+        long start = System.nanoTime();
+        CachedResult result = m_entries.get(key);
+        if (result == null)
+        {
+            result = m_stored.remove(key);
+        }
+        Map<Resource, List<Wire>> wireMap = (result != null)
+            ? result.toWireMap(revisions)
+            : null;
+        if (wireMap == null)
+        {
+            m_misses++;
+            return null;
+        }
+        m_entries.put(key, result);
+        m_hits++;
+        long saved = result.m_resolveNanos - (System.nanoTime() - start);
+        if (saved > 0)
+        {
+            m_savedNanos += saved;
+        }
+        return wireMap;
+    }
+
+    synchronized void put(String key, Map<Resource, List<Wire>> wireMap, long resolveNanos)
+    {
+        CachedResult result = CachedResult.fromWireMap(wireMap, resolveNanos);
+        if (result != null)
+        {
+            m_entries.put(key, result);
+        }
+    }
+
+    synchronized void load(File file)
+    {
+        if ((file == null) || !m_secureAction.isFile(file))
+        {
+            return;
+        }
+        DataInputStream in = null;
+        try
+        {
+            in = new DataInputStream(new BufferedInputStream(
+                m_secureAction.getInputStream(file)));
+            if (in.readInt() != FORMAT_VERSION)
+            {
+                return;
+            }
+            for (int i = in.readInt(); i > 0; i--)
+            {
+                String key = in.readUTF();
+                m_stored.put(key, CachedResult.read(in));
+            }
+        }
+        catch (Exception ex)
+        {
+            m_stored.clear();
+            m_logger.log(Logger.LOG_WARNING,
+                "Unable to read resolver cache, ignoring it.", ex);
+        }
+        finally
+        {
+            close(in);
+        }
+    }
+
+    synchronized void save(File file)
+    {
+        if (file == null)
+        {
+            return;
+        }
+        File tmp = new File(file.getParentFile(), file.getName() + ".tmp");
+        DataOutputStream out = null;
+        try
+        {
+            out = new DataOutputStream(new BufferedOutputStream(
+                m_secureAction.getOutputStream(tmp)));
+            out.writeInt(FORMAT_VERSION);
+            out.writeInt(m_entries.size());
+            for (Entry<String, CachedResult> entry : m_entries.entrySet())
+            {
+                out.writeUTF(entry.getKey());
+                entry.getValue().write(out);
+            }
+            out.close();
+            out = null;
+            m_secureAction.deleteFile(file);
+            if (!m_secureAction.renameFile(tmp, file))
+            {
+                throw new IOException("Unable to rename " + tmp + " to " + file);
+            }
+        }
+        catch (Exception ex)
+        {
+            m_logger.log(Logger.LOG_WARNING, "Unable to write resolver cache.", ex);
+        }
+        finally
+        {
+            close(out);
+        }
+    }
+
+    private byte[] getRevisionDigest(BundleRevision br)
+    {
+        byte[] digest = m_revisionDigests.get(br);
+        if (digest == null)
+        {
+            MessageDigest md = newDigest();
+            update(md, getId(br));
+            update(md, br.getSymbolicName());
+            update(md, String.valueOf(br.getVersion()));
+            update(md, String.valueOf(br.getTypes()));
+            for (BundleCapability cap : br.getDeclaredCapabilities(null))
+            {
+                update(md, cap.getNamespace());
+                update(md, cap.getDirectives());
+                update(md, cap.getAttributes());
+            }
+            update(md, "requirements");
+            for (BundleRequirement req : br.getDeclaredRequirements(null))
+            {
+                update(md, req.getNamespace());
+                update(md, req.getDirectives());
+                update(md, req.getAttributes());
+            }
+            digest = md.digest();
+            m_revisionDigests.put(br, digest);
+        }
+        return digest;
+    }
+
+    private byte[] getWiringDigest(BundleWiring wiring)
+    {
+        List<BundleWire> wires = wiring.getRequiredWires(null);
+        int size = (wires == null) ? 0 : wires.size();
+        Object[] cached = m_wiringDigests.get(wiring);
+        if ((cached == null) || (((Integer) cached[0]).intValue() != size))
+        {
+            MessageDigest md = newDigest();
+            update(md, "wiring");
+            for (int i = 0; i < size; i++)
+            {
+                BundleWire wire = wires.get(i);
+                update(md, getId(wire.getProvider()));
+                update(md, wire.getCapability().getNamespace());
+                update(md, wire.getCapability().getAttributes());
+            }
+            cached = new Object[] { Integer.valueOf(size), md.digest() };
+            m_wiringDigests.put(wiring, cached);
+        }
+        return (byte[]) cached[1];
+    }
+
+    private static void updateIds(MessageDigest md, Set<BundleRevision> revisions)
+    {
+        List<BundleRevision> sorted = new ArrayList<BundleRevision>(revisions);
+        Collections.sort(sorted, RevisionComparator.INSTANCE);
+        for (BundleRevision br : sorted)
+        {
+            update(md, getId(br));
+        }
+    }
+
+    private static void update(MessageDigest md, Map<String, ?> map)
+    {
+        // Use a sorted copy to be independent of the map's iteration order.
+        for (Entry<String, ?> entry : new TreeMap<String, Object>(map).entrySet())
+        {
+            // The system bundle's native capability carries all framework
+            // properties, including the framework UUID, which is generated
+            // for each session and would otherwise defeat the cache.
+            if (Constants.FRAMEWORK_UUID.equals(entry.getKey()))
+            {
+                continue;
+            }
+            update(md, entry.getKey());
+            Object value = entry.getValue();
+            if ((value != null) && value.getClass().isArray())
+            {
+                for (int i = 0; i < Array.getLength(value); i++)
+                {
+                    update(md, String.valueOf(Array.get(value, i)));
+                }
+            }
+            else
+            {
+                update(md, String.valueOf(value));
+            }
+        }
+    }
+
+    private static void update(MessageDigest md, String s)
+    {
+        md.update(String.valueOf(s).getBytes(StandardCharsets.UTF_8));
+        md.update((byte) 0);
+    }
+
+    private static MessageDigest newDigest()
+    {
+        try
+        {
+            return MessageDigest.getInstance("SHA-256");
+        }
+        catch (NoSuchAlgorithmException ex)
+        {
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    private static String toHex(byte[] bytes)
+    {
+        StringBuilder sb = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes)
+        {
+            sb.append(Character.forDigit((b >> 4) & 0xF, 16));
+            sb.append(Character.forDigit(b & 0xF, 16));
+        }
+        return sb.toString();
+    }
+
+    static String getId(Resource resource)
+    {
+        return (resource instanceof BundleRevisionImpl)
+            ? ((BundleRevisionImpl) resource).getId()
+            : null;
+    }
+
+    private static void close(java.io.Closeable c)
+    {
+        try
+        {
+            if (c != null) c.close();
+        }
+        catch (IOException ex)
+        {
+            // Ignore.
+        }
+    }
+
+    private static class RevisionComparator implements Comparator<BundleRevision>
+    {
+        static final RevisionComparator INSTANCE = new RevisionComparator();
+
+        public int compare(BundleRevision br1, BundleRevision br2)
+        {
+            return String.valueOf(getId(br1)).compareTo(String.valueOf(getId(br2)));
+        }
+    }
+
+    /**
+     * A resolver result in a form that is independent of the revision
+     * objects of a particular framework session.
+    **/
+    private static class CachedResult
+    {
+        private final long m_resolveNanos;
+        private final String[] m_resources;
+        // For each resource, six values per wire: requirer, requirement
+        // revision, requirement index, provider, capability revision and
+        // capability index.
+        private final String[][] m_wires;
+
+        private CachedResult(long resolveNanos, String[] resources, String[][] wires)
+        {
+            m_resolveNanos = resolveNanos;
+            m_resources = resources;
+            m_wires = wires;
+        }
+
+        static CachedResult fromWireMap(Map<Resource, List<Wire>> wireMap, long resolveNanos)
+        {
+            String[] resources = new String[wireMap.size()];
+            String[][] wires = new String[wireMap.size()][];
+            int i = 0;
+            for (Entry<Resource, List<Wire>> entry : wireMap.entrySet())
+            {
+                resources[i] = getId(entry.getKey());
+                if (resources[i] == null)
+                {
+                    return null;
+                }
+                List<Wire> list = entry.getValue();
+                String[] encoded = new String[list.size() * 6];
+                int j = 0;
+                for (Wire w : list)
+                {
+                    if (!(w.getRequirement() instanceof BundleRequirement)
+                        || !(w.getCapability() instanceof BundleCapability))
+                    {
+                        return null;
+                    }
+                    BundleRequirement req = (BundleRequirement) w.getRequirement();
+                    BundleCapability cap = (BundleCapability) w.getCapability();
+                    int reqIdx = req.getRevision().getDeclaredRequirements(null).indexOf(req);
+                    int capIdx = cap.getRevision().getDeclaredCapabilities(null).indexOf(cap);
+                    encoded[j++] = getId(w.getRequirer());
+                    encoded[j++] = getId(req.getRevision());
+                    encoded[j++] = Integer.toString(reqIdx);
+                    encoded[j++] = getId(w.getProvider());
+                    encoded[j++] = getId(cap.getRevision());
+                    encoded[j++] = Integer.toString(capIdx);
+                    // Requirements or capabilities that are not declared, such
+                    // as those synthesized by the resolve context, cannot be
+                    // mapped back, so such results are not cached.
+                    if ((reqIdx < 0) || (capIdx < 0))
+                    {
+                        return null;
+                    }
+                    for (int k = j - 6; k < j; k++)
+                    {
+                        if (encoded[k] == null)
+                        {
+                            return null;
+                        }
+                    }
+                }
+                wires[i++] = encoded;
+            }
+            return new CachedResult(resolveNanos, resources, wires);
+        }
+
+        Map<Resource, List<Wire>> toWireMap(Collection<BundleRevision> revisions)
+        {
+            Map<String, BundleRevision> byId = new HashMap<String, BundleRevision>();
+            for (BundleRevision br : revisions)
+            {
+                byId.put(getId(br), br);
+            }
+            Map<Resource, List<Wire>> wireMap = new HashMap<Resource, List<Wire>>();
+            for (int i = 0; i < m_resources.length; i++)
+            {
+                BundleRevision resource = byId.get(m_resources[i]);
+                if (resource == null)
+                {
+                    return null;
+                }
+                String[] encoded = m_wires[i];
+                List<Wire> wires = new ArrayList<Wire>(encoded.length / 6);
+                for (int j = 0; j < encoded.length; j += 6)
+                {
+                    BundleRevision requirer = byId.get(encoded[j]);
+                    BundleRevision reqRevision = byId.get(encoded[j + 1]);
+                    BundleRevision provider = byId.get(encoded[j + 3]);
+                    BundleRevision capRevision = byId.get(encoded[j + 4]);
+                    if ((requirer == null) || (reqRevision == null)
+                        || (provider == null) || (capRevision == null))
+                    {
+                        return null;
+                    }
+                    List<BundleRequirement> reqs = reqRevision.getDeclaredRequirements(null);
+                    List<BundleCapability> caps = capRevision.getDeclaredCapabilities(null);
+                    int reqIdx = Integer.parseInt(encoded[j + 2]);
+                    int capIdx = Integer.parseInt(encoded[j + 5]);
+                    if ((reqIdx >= reqs.size()) || (capIdx >= caps.size()))
+                    {
+                        return null;
+                    }
+                    wires.add(new BundleWireImpl(
+                        requirer, reqs.get(reqIdx), provider, caps.get(capIdx)));
+                }
+                wireMap.put(resource, wires);
+            }
+            return wireMap;
+        }
+
+        void write(DataOutputStream out) throws IOException
+        {
+            out.writeLong(m_resolveNanos);
+            out.writeInt(m_resources.length);
+            for (int i = 0; i < m_resources.length; i++)
+            {
+                out.writeUTF(m_resources[i]);
+                out.writeInt(m_wires[i].length);
+                for (String s : m_wires[i])
+                {
+                    out.writeUTF(s);
+                }
+            }
+        }
+
+        static CachedResult read(DataInputStream in) throws IOException
+        {
+            long resolveNanos = in.readLong();
+            String[] resources = new String[in.readInt()];
+            String[][] wires = new String[resources.length][];
+            for (int i = 0; i < resources.length; i++)
+            {
+                resources[i] = in.readUTF();
+                wires[i] = new String[in.readInt()];
+                for (int j = 0; j < wires[i].length; j++)
+                {
+                    wires[i][j] = in.readUTF();
+                }
+            }
+            return new CachedResult(resolveNanos, resources, wires);
+        }
+    }
+}
@@ -0,0 +1,309 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.felix.framework;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+
+import org.apache.felix.framework.capabilityset.SimpleFilter;
+import org.apache.felix.framework.util.ListenerInfo;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.Constants;
+import org.osgi.framework.ServiceReference;
+import org.osgi.framework.UnfilteredServiceListener;
+
+/**
+ * An immutable index of service listeners keyed on the <tt>objectClass</tt>
+ * values their filters require. Only listeners whose filter can possibly
+ * match a service with a given set of object classes are returned as
+ * candidates, so that filter evaluation during event delivery is limited
+ * to them. Listeners whose filter does not constrain <tt>objectClass</tt>
+ * to a finite set of values are kept in a separate, always included,
+ * bucket.
+ * <p>
+ * Only <tt>objectClass</tt> is indexed, since it is the only service
+ * property that cannot change with <tt>ServiceEvent.MODIFIED</tt>; this
+ * keeps <tt>MODIFIED_ENDMATCH</tt> delivery correct, because a listener
+ * that matched the old properties is always a candidate for the new ones.
+ * <p>
+ * Like the listener maps of the {@link EventDispatcher}, the index is
+ * copy-on-write: all mutators return a new instance and never modify the
+ * maps or lists of an existing one, so a snapshot can be used without
+ * holding any lock.
+**/
+class ServiceListenerIndex
+{
+    static final ServiceListenerIndex EMPTY = new ServiceListenerIndex(
+        Collections.<String, Map<BundleContext, List<ListenerInfo>>>emptyMap(),
+        Collections.<BundleContext, List<ListenerInfo>>emptyMap());
+
+    private final Map<String, Map<BundleContext, List<ListenerInfo>>> m_indexed;
+    private final Map<BundleContext, List<ListenerInfo>> m_unindexed;
+
+    private ServiceListenerIndex(
+        Map<String, Map<BundleContext, List<ListenerInfo>>> indexed,
+        Map<BundleContext, List<ListenerInfo>> unindexed)
+    {
+        m_indexed = indexed;
+        m_unindexed = unindexed;
+    }
+
+    ServiceListenerIndex add(ListenerInfo info)
+    {
+        Set<String> keys = getIndexKeys(info);
+        if (keys == null)
+        {
+            return new ServiceListenerIndex(m_indexed, add(m_unindexed, info));
+        }
+        Map<String, Map<BundleContext, List<ListenerInfo>>> indexed =
+            new HashMap<String, Map<BundleContext, List<ListenerInfo>>>(m_indexed);
+        for (String key : keys)
+        {
+            Map<BundleContext, List<ListenerInfo>> bucket = indexed.get(key);
+            indexed.put(key, add((bucket == null)
+                ? Collections.<BundleContext, List<ListenerInfo>>emptyMap()
+                : bucket, info));
+        }
+        return new ServiceListenerIndex(indexed, m_unindexed);
+    }
+
+    ServiceListenerIndex remove(ListenerInfo info)
+    {
+        Set<String> keys = getIndexKeys(info);
+        if (keys == null)
+        {
+            return new ServiceListenerIndex(m_indexed, remove(m_unindexed, info));
+        }
+        Map<String, Map<BundleContext, List<ListenerInfo>>> indexed =
+            new HashMap<String, Map<BundleContext, List<ListenerInfo>>>(m_indexed);
+        for (String key : keys)
+        {
+            Map<BundleContext, List<ListenerInfo>> bucket = indexed.remove(key);
+            if (bucket != null)
+            {
+                bucket = remove(bucket, info);
+                if (!bucket.isEmpty())
+                {
+                    indexed.put(key, bucket);
+                }
+            }
+        }
+        return new ServiceListenerIndex(indexed, m_unindexed);
+    }
+
+    /**
+     * Returns the listeners that might be interested in an event for the
+     * specified service reference, grouped by bundle context. The returned
+     * map must not be modified.
+     * @param ref the service reference of the event.
+     * @return the candidate listeners or <tt>null</tt> if the reference does
+     *         not have a usable <tt>objectClass</tt> property, in which case
+     *         all listeners must be considered.
+    **/
+    Map<BundleContext, List<ListenerInfo>> getCandidates(ServiceReference ref)
+    {
+        if (m_indexed.isEmpty())
+        {
+            return m_unindexed;
+        }
+
+        Object objectClass = ref.getProperty(Constants.OBJECTCLASS);
+        if (!(objectClass instanceof String[]))
+        {
+            return null;
+        }
+
+        Map<BundleContext, List<ListenerInfo>> candidates = m_unindexed;
+        boolean copied = false;
+        String[] classes = (String[]) objectClass;
+        for (int i = 0; i < classes.length; i++)
+        {
+            Map<BundleContext, List<ListenerInfo>> bucket = m_indexed.get(classes[i]);
+            if (bucket == null)
+            {
+                continue;
+            }
+            if (candidates.isEmpty())
+            {
+                // Nothing to merge with, so the bucket can be used as is.
+                candidates = bucket;
+                continue;
+            }
+            if (!copied)
+            {
+                candidates = new HashMap<BundleContext, List<ListenerInfo>>(candidates);
+                copied = true;
+            }
+            for (Entry<BundleContext, List<ListenerInfo>> entry : bucket.entrySet())
+            {
+                List<ListenerInfo> infos = candidates.get(entry.getKey());
+                if (infos == null)
+                {
+                    candidates.put(entry.getKey(), entry.getValue());
+                }
+                else
+                {
+                    // A listener can be indexed under several of the service's
+                    // object classes, so make sure it is only included once.
+                    List<ListenerInfo> merged = new ArrayList<ListenerInfo>(infos);
+                    for (ListenerInfo info : entry.getValue())
+                    {
+                        if (!containsListener(merged, info))
+                        {
+                            merged.add(info);
+                        }
+                    }
+                    candidates.put(entry.getKey(), merged);
+                }
+            }
+        }
+        return candidates;
+    }
+
+    /**
+     * Determines the <tt>objectClass</tt> values under which the listener
+     * must be indexed, i.e., a set of values of which the service must have
+     * at least one for the listener's filter to match.
+     * @param info the listener to index.
+     * @return the index keys or <tt>null</tt> if the listener cannot be indexed.
+    **/
+    static Set<String> getIndexKeys(ListenerInfo info)
+    {
+        // Unfiltered listeners receive all events, regardless of their filter.
+        if ((info.getParsedFilter() == null)
+            || (info.getListener() instanceof UnfilteredServiceListener))
+        {
+            return null;
+        }
+        SimpleFilter sf;
+        try
+        {
+            sf = SimpleFilter.parse(info.getParsedFilter().toString());
+        }
+        catch (Exception ex)
+        {
+            return null;
+        }
+        return getIndexKeys(sf);
+    }
+
+    private static Set<String> getIndexKeys(SimpleFilter sf)
+    {
+        switch (sf.getOperation())
+        {
+            case SimpleFilter.EQ:
+                if (Constants.OBJECTCLASS.equalsIgnoreCase(sf.getName())
+                    && (sf.getValue() instanceof String))
+                {
+                    return Collections.singleton((String) sf.getValue());
+                }
+                return null;
+            case SimpleFilter.AND:
+                // Any indexable operand restricts the whole conjunction,
+                // so pick the most selective one.
+                Set<String> best = null;
+                for (Object o : (List) sf.getValue())
+                {
+                    Set<String> keys = getIndexKeys((SimpleFilter) o);
+                    if ((keys != null) && ((best == null) || (keys.size() < best.size())))
+                    {
+                        best = keys;
+                    }
+                }
+                return best;
+            case SimpleFilter.OR:
+                // A disjunction is only restricted if all of its operands are.
+                Set<String> union = new HashSet<String>();
+                for (Object o : (List) sf.getValue())
+                {
+                    Set<String> keys = getIndexKeys((SimpleFilter) o);
+                    if (keys == null)
+                    {
+                        return null;
+                    }
+                    union.addAll(keys);
+                }
+                return union.isEmpty() ? null : union;
+            default:
+                return null;
+        }
+    }
+
+    private static Map<BundleContext, List<ListenerInfo>> add(
+        Map<BundleContext, List<ListenerInfo>> listeners, ListenerInfo info)
+    {
+        Map<BundleContext, List<ListenerInfo>> copy =
+            new HashMap<BundleContext, List<ListenerInfo>>(listeners);
+        List<ListenerInfo> infos = copy.get(info.getBundleContext());
+        infos = (infos == null)
+            ? new ArrayList<ListenerInfo>(1)
+            : new ArrayList<ListenerInfo>(infos);
+        infos.add(info);
+        copy.put(info.getBundleContext(), infos);
+        return copy;
+    }
+
+    private static Map<BundleContext, List<ListenerInfo>> remove(
+        Map<BundleContext, List<ListenerInfo>> listeners, ListenerInfo info)
+    {
+        List<ListenerInfo> infos = listeners.get(info.getBundleContext());
+        if (infos == null)
+        {
+            return listeners;
+        }
+        Map<BundleContext, List<ListenerInfo>> copy =
+            new HashMap<BundleContext, List<ListenerInfo>>(listeners);
+        infos = new ArrayList<ListenerInfo>(infos);
+        for (int i = 0; i < infos.size(); i++)
+        {
+            if (infos.get(i).getListener() == info.getListener())
+            {
+                infos.remove(i);
+                break;
+            }
+        }
+        if (infos.isEmpty())
+        {
+            copy.remove(info.getBundleContext());
+        }
+        else
+        {
+            copy.put(info.getBundleContext(), infos);
+        }
+        return copy;
+    }
+
+    private static boolean containsListener(List<ListenerInfo> infos, ListenerInfo info)
+    {
+        for (int i = 0; i < infos.size(); i++)
+        {
+            if (infos.get(i).getListener() == info.getListener())
+            {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -30,8 +30,8 @@ import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
+import org.apache.felix.framework.util.ImmutableStringMap;
 import org.apache.felix.framework.util.MapToDictionary;
-import org.apache.felix.framework.util.StringMap;
 import org.apache.felix.framework.util.Util;
 import org.apache.felix.framework.wiring.BundleCapabilityImpl;
 import org.osgi.framework.Bundle;
@@ -46,6 +46,7 @@ import org.osgi.framework.dto.ServiceReferenceDTO;
 import org.osgi.framework.wiring.BundleCapability;
 import org.osgi.framework.wiring.BundleRevision;
 import org.osgi.framework.wiring.BundleWire;
+import org.osgi.framework.wiring.BundleWiring;
 
 class ServiceRegistrationImpl implements ServiceRegistration
 {
@@ -62,7 +63,9 @@ class ServiceRegistrationImpl implements ServiceRegistration
     // Service factory interface.
     private volatile ServiceFactory m_factory;
     // Associated property dictionary.
-    private volatile Map<String, Object> m_propMap = new StringMap();
+    private volatile ImmutableStringMap m_propMap;
+    // Service ranking cached from the properties, used for sorting.
+    private volatile int m_ranking;
     // Re-usable service reference.
     private final ServiceReferenceImpl m_ref;
     // Flag indicating that we are unregistering.
@@ -210,8 +213,7 @@ class ServiceRegistrationImpl implements ServiceRegistration
 
     private String[] getPropertyKeys()
     {
-        Set s = m_propMap.keySet();
-        return (String[]) s.toArray(new String[s.size()]);
+        return m_propMap.keys();
     }
 
     private Bundle[] getUsingBundles()
@@ -301,46 +303,88 @@ class ServiceRegistrationImpl implements ServiceRegistration
 
     private void initializeProperties(Dictionary<String, Object> dict)
     {
-        // Create a case-insensitive map for the properties.
-        Map<String, Object> props = new StringMap();
-
+        // Collect the properties, leaving room for the framework
+        // assigned ones.
+        int size = (dict != null) ? dict.size() : 0;
+        String[] keys = new String[size + 4];
+        Object[] values = new Object[size + 4];
+        size = 0;
         if (dict != null)
         {
-            // Make sure there are no duplicate keys.
-            Enumeration<String> keys = dict.keys();
-            while (keys.hasMoreElements())
+            Enumeration<String> e = dict.keys();
+            while (e.hasMoreElements())
             {
-                String key = keys.nextElement();
-                if (props.get(key) == null)
-                {
-                    props.put(key, dict.get(key));
-                }
-                else
-                {
-                    throw new IllegalArgumentException("Duplicate service property: " + key);
-                }
+                String key = e.nextElement();
+                keys[size] = key;
+                values[size++] = dict.get(key);
             }
         }
 
         // Add the framework assigned properties.
-        props.put(Constants.OBJECTCLASS, m_classes);
-        props.put(Constants.SERVICE_ID, m_serviceId);
-        props.put(Constants.SERVICE_BUNDLEID, m_bundle.getBundleId());
+        size = setProperty(keys, values, size, Constants.OBJECTCLASS, m_classes);
+        size = setProperty(keys, values, size, Constants.SERVICE_ID, m_serviceId);
+        size = setProperty(keys, values, size,
+            Constants.SERVICE_BUNDLEID, m_bundle.getBundleId());
         if ( m_factory != null )
         {
-            props.put(Constants.SERVICE_SCOPE,
+            size = setProperty(keys, values, size, Constants.SERVICE_SCOPE,
                       (m_factory instanceof PrototypeServiceFactory
                        ? Constants.SCOPE_PROTOTYPE : Constants.SCOPE_BUNDLE));
         }
         else
         {
-            props.put(Constants.SERVICE_SCOPE, Constants.SCOPE_SINGLETON);
+            size = setProperty(keys, values, size,
+                Constants.SERVICE_SCOPE, Constants.SCOPE_SINGLETON);
         }
 
-        // Update the service property map.
+        // Create the case-insensitive map for the properties, which
+        // throws an IllegalArgumentException for duplicate keys.
+        ImmutableStringMap props = new ImmutableStringMap(keys, values, size);
+
+        // Update the service property map and the cached ranking.
+        Object rankObj = props.get(Constants.SERVICE_RANKING);
+        m_ranking = (rankObj instanceof Integer) ? (Integer) rankObj : 0;
         m_propMap = props;
     }
 
+    private static int setProperty(
+        String[] keys, Object[] values, int size, String key, Object value)
+    {
+        // Framework assigned properties replace any supplied value,
+        // regardless of the case of its key.
+        for (int i = 0; i < size; i++)
+        {
+            if (key.equalsIgnoreCase(keys[i]))
+            {
+                keys[i] = key;
+                values[i] = value;
+                return size;
+            }
+        }
+        keys[size] = key;
+        values[size] = value;
+        return size + 1;
+    }
+
+    private static BundleWire getPackageWire(BundleRevision revision, String pkgName)
+    {
+        // Use the package index of our own wirings, which is discarded
+        // along with the wiring on refresh.
+        BundleWiring wiring = revision.getWiring();
+        return (wiring instanceof BundleWiringImpl)
+            ? ((BundleWiringImpl) wiring).getPackageWire(pkgName)
+            : Util.getWire(revision, pkgName);
+    }
+
+    private static BundleCapability getPackageCapability(
+        BundleRevision revision, String pkgName)
+    {
+        BundleWiring wiring = revision.getWiring();
+        return (wiring instanceof BundleWiringImpl)
+            ? ((BundleWiringImpl) wiring).getPackageCapability(pkgName)
+            : Util.getPackageCapability(revision, pkgName);
+    }
+
     private Object getFactoryUnchecked(Bundle bundle)
     {
         Object svcObj = null;
@@ -532,12 +576,12 @@ class ServiceRegistrationImpl implements ServiceRegistration
                 Util.getClassPackage(className);
             // Get package wiring from service requester.
             BundleRevision requesterRevision = requester.adapt(BundleRevision.class);
-            BundleWire requesterWire = Util.getWire(requesterRevision, pkgName);
-            BundleCapability requesterCap = Util.getPackageCapability(requesterRevision, pkgName);
+            BundleWire requesterWire = getPackageWire(requesterRevision, pkgName);
+            BundleCapability requesterCap = getPackageCapability(requesterRevision, pkgName);
             // Get package wiring from service provider.
             BundleRevision providerRevision = m_bundle.adapt(BundleRevision.class);
-            BundleWire providerWire = Util.getWire(providerRevision, pkgName);
-            BundleCapability providerCap = Util.getPackageCapability(providerRevision, pkgName);
+            BundleWire providerWire = getPackageWire(providerRevision, pkgName);
+            BundleCapability providerCap = getPackageCapability(providerRevision, pkgName);
 
             // There are four situations that may occur here:
             //   1. Neither the requester, nor provider have wires for the package.
@@ -662,41 +706,46 @@ class ServiceRegistrationImpl implements ServiceRegistration
 
         public int compareTo(Object reference)
         {
-            ServiceReference other = (ServiceReference) reference;
-
-            Long id = (Long) getProperty(Constants.SERVICE_ID);
-            Long otherId = (Long) other.getProperty(Constants.SERVICE_ID);
+            long id = m_serviceId.longValue();
+            int rank = m_ranking;
+            long otherId;
+            int otherRank;
+            if (reference instanceof ServiceReferenceImpl)
+            {
+                // Use the cached values to avoid property lookups.
+                ServiceRegistrationImpl otherReg =
+                    ((ServiceReferenceImpl) reference).getRegistration();
+                otherId = otherReg.m_serviceId.longValue();
+                otherRank = otherReg.m_ranking;
+            }
+            else
+            {
+                ServiceReference other = (ServiceReference) reference;
+                otherId = ((Long) other.getProperty(Constants.SERVICE_ID)).longValue();
+                // If rank is missing or not Integer, then spec says it
+                // defaults to zero.
+                Object otherRankObj = other.getProperty(Constants.SERVICE_RANKING);
+                otherRank = (otherRankObj instanceof Integer)
+                    ? ((Integer) otherRankObj).intValue() : 0;
+            }
 
-            if (id.equals(otherId))
+            if (id == otherId)
             {
                 return 0; // same service
             }
 
-            Object rankObj = getProperty(Constants.SERVICE_RANKING);
-            Object otherRankObj = other.getProperty(Constants.SERVICE_RANKING);
-
-            // If no rank, then spec says it defaults to zero.
-            rankObj = (rankObj == null) ? new Integer(0) : rankObj;
-            otherRankObj = (otherRankObj == null) ? new Integer(0) : otherRankObj;
-
-            // If rank is not Integer, then spec says it defaults to zero.
-            Integer rank = (rankObj instanceof Integer)
-                ? (Integer) rankObj : new Integer(0);
-            Integer otherRank = (otherRankObj instanceof Integer)
-                ? (Integer) otherRankObj : new Integer(0);
-
             // Sort by rank in ascending order.
-            if (rank.compareTo(otherRank) < 0)
+            if (rank < otherRank)
             {
                 return -1; // lower rank
             }
-            else if (rank.compareTo(otherRank) > 0)
+            else if (rank > otherRank)
             {
                 return 1; // higher rank
             }
 
             // If ranks are equal, then sort by service id in descending order.
-            return (id.compareTo(otherId) < 0) ? 1 : -1;
+            return (id < otherId) ? 1 : -1;
         }
 
         @Override
@@ -55,8 +55,11 @@ public class ServiceRegistry
     // Capability set for all service registrations.
     private final CapabilitySet m_regCapSet = new CapabilitySet(Collections.singletonList(Constants.OBJECTCLASS), false);
 
-    // Maps bundle to an array of usage counts.
-    private final ConcurrentMap<Bundle, UsageCount[]> m_inUseMap = new ConcurrentHashMap<Bundle, UsageCount[]>();
+    // Maps bundle to its usage table, which maps each service reference in
+    // use to its usage counts. There is one usage count per reference, except
+    // for prototype services which have one per service object.
+    private final ConcurrentMap<Bundle, ConcurrentMap<ServiceReference<?>, UsageCount[]>> m_inUseMap =
+        new ConcurrentHashMap<Bundle, ConcurrentMap<ServiceReference<?>, UsageCount[]>>();
 
     private final ServiceRegistryCallbacks m_callbacks;
 
@@ -194,13 +197,12 @@ public class ServiceRegistry
         final Bundle[] clients = getUsingBundles(ref);
         for (int i = 0; (clients != null) && (i < clients.length); i++)
         {
-            final UsageCount[] usages = m_inUseMap.get(clients[i]);
+            final ConcurrentMap<ServiceReference<?>, UsageCount[]> usageTable =
+                m_inUseMap.get(clients[i]);
+            final UsageCount[] usages = (usageTable != null) ? usageTable.get(ref) : null;
             for (int x = 0; (usages != null) && (x < usages.length); x++)
             {
-                if (usages[x].m_ref.equals(ref))
-                {
-                    ungetService(clients[i], ref, (usages[x].m_prototype ? usages[x].getService() : null));
-                }
+                ungetService(clients[i], ref, (usages[x].m_prototype ? usages[x].getService() : null));
             }
         }
     }
@@ -276,27 +278,24 @@ public class ServiceRegistry
 
     public ServiceReference<?>[] getServicesInUse(final Bundle bundle)
     {
-        final UsageCount[] usages = m_inUseMap.get(bundle);
-        if (usages != null)
+        final ConcurrentMap<ServiceReference<?>, UsageCount[]> usageTable =
+            m_inUseMap.get(bundle);
+        if (usageTable != null)
         {
-            final ServiceReference<?>[] refs = new ServiceReference[usages.length];
-            int count = 0;
-            for (int i = 0; i < usages.length; i++)
+            final List<ServiceReference<?>> refs = new ArrayList<ServiceReference<?>>();
+            for (UsageCount[] usages : usageTable.values())
             {
-                if (usages[i].m_count.get() > 0) {
-                    refs[count++] = usages[i].m_ref;
+                for (int i = 0; i < usages.length; i++)
+                {
+                    if (usages[i].m_count.get() > 0) {
+                        refs.add(usages[i].m_ref);
+                    }
                 }
             }
 
-            if (count == usages.length) {
-                return refs;
-            } else if (count == 0) {
-                return null;
+            if (!refs.isEmpty()) {
+                return refs.toArray(new ServiceReference[refs.size()]);
             }
-
-            ServiceReference<?>[] nrefs = new ServiceReference[count];
-            System.arraycopy(refs, 0, nrefs, 0, count);
-            return nrefs;
         }
         return null;
     }
@@ -354,45 +353,47 @@ public class ServiceRegistry
                     // why the below section is in a loop.
                     while (holder == null)
                     {
-                        ServiceHolder h = new ServiceHolder();
-                        if (usage.m_svcHolderRef.compareAndSet(null, h))
+                        // Only create a holder if there is none yet, so that
+                        // getting an already cached service does not allocate.
+                        holder = usage.m_svcHolderRef.get();
+                        if (holder == null)
                         {
-                            holder = h;
-                            try {
-                                svcObj = reg.getService(bundle);
-                                holder.m_service = svcObj;
-                            } finally {
-                                holder.m_latch.countDown();
+                            ServiceHolder h = new ServiceHolder();
+                            if (usage.m_svcHolderRef.compareAndSet(null, h))
+                            {
+                                holder = h;
+                                try {
+                                    svcObj = reg.getService(bundle);
+                                    holder.m_service = svcObj;
+                                } finally {
+                                    holder.m_latch.countDown();
+                                }
                             }
                         }
                         else
                         {
-                            holder = usage.m_svcHolderRef.get();
-                            if (holder != null)
+                            boolean interrupted = false;
+                            do
                             {
-                                boolean interrupted = false;
-                                do
+                                try
                                 {
-                                    try
-                                    {
-                                        // Need to ensure that the other thread has obtained
-                                        // the service.
-                                        holder.m_latch.await();
-                                        if (interrupted)
-                                        {
-                                            Thread.currentThread().interrupt();
-                                        }
-                                        interrupted = false;
-                                    }
-                                    catch (InterruptedException e)
+                                    // Need to ensure that the other thread has obtained
+                                    // the service.
+                                    holder.m_latch.await();
+                                    if (interrupted)
                                     {
-                                        interrupted = true;
-                                        Thread.interrupted();
+                                        Thread.currentThread().interrupt();
                                     }
+                                    interrupted = false;
+                                }
+                                catch (InterruptedException e)
+                                {
+                                    interrupted = true;
+                                    Thread.interrupted();
                                 }
-                                while (interrupted);
-                                svcObj = holder.m_service;
                             }
+                            while (interrupted);
+                            svcObj = holder.m_service;
                         }
 
                         // if someone concurrently changed the holder, loop again
@@ -559,8 +560,8 @@ public class ServiceRegistry
     **/
     public void ungetServices(final Bundle bundle)
     {
-        UsageCount[] usages = m_inUseMap.get(bundle);
-        if (usages == null)
+        ConcurrentMap<ServiceReference<?>, UsageCount[]> usageTable = m_inUseMap.get(bundle);
+        if (usageTable == null)
         {
             return;
         }
@@ -572,30 +573,41 @@ public class ServiceRegistry
 
         // Remove each service object from the
         // service cache.
-        for (int i = 0; i < usages.length; i++)
+        for (UsageCount[] usages : usageTable.values())
         {
-            if (usages[i].m_svcHolderRef.get() == null)
-                continue;
-
-            // Keep ungetting until all usage count is zero.
-            while (ungetService(bundle, usages[i].m_ref, usages[i].m_prototype ? usages[i].getService() : null))
+            for (int i = 0; i < usages.length; i++)
             {
-                // Empty loop body.
+                if (usages[i].m_svcHolderRef.get() == null)
+                    continue;
+
+                // Keep ungetting until all usage count is zero.
+                while (ungetService(bundle, usages[i].m_ref, usages[i].m_prototype ? usages[i].getService() : null))
+                {
+                    // Empty loop body.
+                }
             }
         }
+
+        // A get racing with the invalidation of the bundle context adds
+        // to a new table once this one is dropped.
+        synchronized (usageTable)
+        {
+            m_inUseMap.remove(bundle, usageTable);
+        }
     }
 
     public Bundle[] getUsingBundles(ServiceReference<?> ref)
     {
         Bundle[] bundles = null;
-        for (Iterator<Map.Entry<Bundle, UsageCount[]>> iter = m_inUseMap.entrySet().iterator(); iter.hasNext(); )
+        for (Iterator<Map.Entry<Bundle, ConcurrentMap<ServiceReference<?>, UsageCount[]>>> iter =
+            m_inUseMap.entrySet().iterator(); iter.hasNext(); )
         {
-            Map.Entry<Bundle, UsageCount[]> entry = iter.next();
+            Map.Entry<Bundle, ConcurrentMap<ServiceReference<?>, UsageCount[]>> entry = iter.next();
             Bundle bundle = entry.getKey();
-            UsageCount[] usages = entry.getValue();
-            for (int useIdx = 0; useIdx < usages.length; useIdx++)
+            UsageCount[] usages = entry.getValue().get(ref);
+            for (int useIdx = 0; (usages != null) && (useIdx < usages.length); useIdx++)
             {
-                if (usages[useIdx].m_ref.equals(ref) && usages[useIdx].m_count.get() > 0)
+                if (usages[useIdx].m_count.get() > 0)
                 {
                     // Add the bundle to the array to be returned.
                     if (bundles == null)
@@ -632,7 +644,9 @@ public class ServiceRegistry
 
     /**
      * Obtain a UsageCount object, by looking for an existing one or creating a new one (if possible).
-     * This method tries to find a UsageCount object in the {@code m_inUseMap}. If one is found then
+     * This method tries to find a UsageCount object in the usage table of the bundle, which is
+     * indexed by service reference, so the lookup does not depend on the number of services the
+     * bundle uses. If one is found then
      * this is returned, otherwise a UsageCount object will be created, but this can only be done if
      * the {@code isPrototype} parameter is not {@code null}. If {@code isPrototype} is {@code TRUE}
      * then a new UsageCount object will always be created.
@@ -646,22 +660,22 @@ public class ServiceRegistry
     UsageCount obtainUsageCount(Bundle bundle, ServiceReference<?> ref, Object svcObj, Boolean isPrototype)
     {
         UsageCount usage = null;
+        ConcurrentMap<ServiceReference<?>, UsageCount[]> usageTable = m_inUseMap.get(bundle);
 
         // This method uses an optimistic concurrency mechanism with a conditional put/replace
-        // on the m_inUseMap. If this fails (because another thread made changes) this thread
+        // on the usage table. If this fails (because another thread made changes) this thread
         // retries the operation. This is the purpose of the while loop.
         boolean success = false;
         while (!success)
         {
-            UsageCount[] usages = m_inUseMap.get(bundle);
+            UsageCount[] usages = (usageTable != null) ? usageTable.get(ref) : null;
 
             // If we know it's a prototype, then we always need to create a new usage count
             if (!Boolean.TRUE.equals(isPrototype))
             {
                 for (int i = 0; (usages != null) && (i < usages.length); i++)
                 {
-                    if (usages[i].m_ref.equals(ref)
-                       && ((svcObj == null && !usages[i].m_prototype) || usages[i].getService() == svcObj))
+                    if ((svcObj == null && !usages[i].m_prototype) || usages[i].getService() == svcObj)
                     {
                         return usages[i];
                     }
@@ -676,19 +690,41 @@ public class ServiceRegistry
                 return null;
             }
 
-            // Add a new Usage Count.
-            usage = new UsageCount(ref, isPrototype);
-            if (usages == null)
+            if (usageTable == null)
             {
-                UsageCount[] newUsages = new UsageCount[] { usage };
-                success = m_inUseMap.putIfAbsent(bundle, newUsages) == null;
+                ConcurrentMap<ServiceReference<?>, UsageCount[]> newTable =
+                    new ConcurrentHashMap<ServiceReference<?>, UsageCount[]>();
+                usageTable = m_inUseMap.putIfAbsent(bundle, newTable);
+                if (usageTable == null)
+                {
+                    usageTable = newTable;
+                }
             }
-            else
+
+            // Add a new Usage Count.
+            usage = new UsageCount(ref, isPrototype);
+            synchronized (usageTable)
             {
-                UsageCount[] newUsages = new UsageCount[usages.length + 1];
-                System.arraycopy(usages, 0, newUsages, 0, usages.length);
-                newUsages[usages.length] = usage;
-                success = m_inUseMap.replace(bundle, usages, newUsages);
+                // The table may have been dropped since we looked it up, either
+                // because its last usage count was flushed or because the bundle's
+                // services were released, in which case we retry with a new table.
+                if (m_inUseMap.get(bundle) != usageTable)
+                {
+                    usageTable = m_inUseMap.get(bundle);
+                    continue;
+                }
+                if (usages == null)
+                {
+                    UsageCount[] newUsages = new UsageCount[] { usage };
+                    success = usageTable.putIfAbsent(ref, newUsages) == null;
+                }
+                else
+                {
+                    UsageCount[] newUsages = new UsageCount[usages.length + 1];
+                    System.arraycopy(usages, 0, newUsages, 0, usages.length);
+                    newUsages[usages.length] = usage;
+                    success = usageTable.replace(ref, usages, newUsages);
+                }
             }
         }
         return usage;
@@ -700,25 +736,33 @@ public class ServiceRegistry
      * remove the associated usage count object for the specified service
      * reference. If the goal is to simply decrement the usage, then get
      * the usage count and decrement its counter. This method will also
-     * remove the specified bundle from the "in use" map if it has no more
-     * usage counts after removing the usage count for the specified service
-     * reference.
+     * remove the specified service reference from the bundle's usage table
+     * if it has no more usage counts for it, and the bundle's usage table if
+     * it has no more service references.
      * @param bundle The bundle whose usage count should be removed.
      * @param ref The service reference whose usage count should be removed.
     **/
     void flushUsageCount(Bundle bundle, ServiceReference<?> ref, UsageCount uc)
     {
+        // A given usage count is found under its own reference.
+        final ServiceReference<?> key = (uc != null) ? uc.m_ref : ref;
+        ConcurrentMap<ServiceReference<?>, UsageCount[]> usageTable = m_inUseMap.get(bundle);
+        if ((usageTable == null) || (key == null))
+        {
+            return;
+        }
+
         // This method uses an optimistic concurrency mechanism with conditional modifications
-        // on the m_inUseMap. If this fails (because another thread made changes) this thread
+        // on the usage table. If this fails (because another thread made changes) this thread
         // retries the operation. This is the purpose of the while loop.
         boolean success = false;
         while (!success)
         {
-            UsageCount[] usages = m_inUseMap.get(bundle);
+            UsageCount[] usages = usageTable.get(key);
             final UsageCount[] orgUsages = usages;
             for (int i = 0; (usages != null) && (i < usages.length); i++)
             {
-                if ((uc == null && usages[i].m_ref.equals(ref)) || (uc == usages[i]))
+                if ((uc == null) || (uc == usages[i]))
                 {
                     // If this is the only usage, then point to empty list.
                     if ((usages.length - 1) == 0)
@@ -747,9 +791,22 @@ public class ServiceRegistry
             if (orgUsages != null)
             {
                 if (usages != null)
-                    success = m_inUseMap.replace(bundle, orgUsages, usages);
+                    success = usageTable.replace(key, orgUsages, usages);
                 else
-                    success = m_inUseMap.remove(bundle, orgUsages);
+                    success = usageTable.remove(key, orgUsages);
+            }
+        }
+
+        // Drop the table once the bundle uses no more services; usage counts
+        // are only added to the table while holding its lock.
+        if (usageTable.isEmpty())
+        {
+            synchronized (usageTable)
+            {
+                if (usageTable.isEmpty())
+                {
+                    m_inUseMap.remove(bundle, usageTable);
+                }
             }
         }
     }
@@ -18,6 +18,7 @@
  */
 package org.apache.felix.framework;
 
+import java.io.File;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
@@ -43,9 +44,11 @@ import org.apache.felix.framework.resolver.CandidateComparator;
 import org.apache.felix.framework.resolver.ResolveException;
 import org.apache.felix.framework.util.FelixConstants;
 import org.apache.felix.framework.util.ShrinkableCollection;
+import org.apache.felix.framework.util.StartupProfiler;
 import org.apache.felix.framework.util.Util;
 import org.apache.felix.framework.wiring.BundleRequirementImpl;
 import org.apache.felix.framework.wiring.BundleWireImpl;
+import org.apache.felix.resolver.ResolveLimits;
 import org.apache.felix.resolver.ResolverImpl;
 import org.osgi.framework.Bundle;
 import org.osgi.framework.BundleEvent;
@@ -91,6 +94,8 @@ class StatefulResolver
     // Selected singleton bundle revisions.
     private final Set<BundleRevision> m_selectedSingletons;
     private volatile ServiceRegistration<?> m_serviceRegistration;
+    // Persistent cache of resolver results; null if not enabled.
+    private final ResolverCache m_resolverCache;
 
     StatefulResolver(Felix felix, ServiceRegistry registry)
     {
@@ -98,7 +103,14 @@ class StatefulResolver
         m_registry = registry;
         m_logger = m_felix.getLogger();
         m_executor = getExecutor();
-        m_resolver = new ResolverImpl(m_logger, m_executor);
+        m_resolver = new ResolverImpl(m_logger, m_executor,
+            "true".equalsIgnoreCase(
+                m_felix.getProperty(FelixConstants.RESOLVER_INCREMENTAL_PROP)),
+            getLimits());
+        m_resolverCache = Boolean.parseBoolean(
+            m_felix.getProperty(FelixConstants.RESOLVER_CACHE_PROP))
+            ? new ResolverCache(m_logger, m_felix)
+            : null;
 
         m_revisions = new HashSet<BundleRevision>();
         m_fragments = new HashSet<BundleRevision>();
@@ -119,6 +131,32 @@ class StatefulResolver
         m_capSets.put(BundleRevision.HOST_NAMESPACE,  new CapabilitySet(indices, true));
     }
 
+    private ResolveLimits getLimits()
+    {
+        return new ResolveLimits(
+            getLongProperty(FelixConstants.RESOLVER_TIMEOUT_PROP),
+            (int) getLongProperty(FelixConstants.RESOLVER_MAX_PERMUTATIONS_PROP),
+            (int) getLongProperty(FelixConstants.RESOLVER_MAX_PENDING_PERMUTATIONS_PROP),
+            Boolean.parseBoolean(m_felix.getProperty(FelixConstants.RESOLVER_BEST_EFFORT_PROP)));
+    }
+
+    private long getLongProperty(String name)
+    {
+        String str = m_felix.getProperty(name);
+        if (str != null)
+        {
+            try
+            {
+                return Math.max(0, Long.parseLong(str.trim()));
+            }
+            catch (NumberFormatException e)
+            {
+                m_logger.log(Logger.LOG_WARNING, "Ignoring invalid value of " + name + ": " + str);
+            }
+        }
+        return 0;
+    }
+
     private Executor getExecutor()
     {
         String str = m_felix.getProperty(FelixConstants.RESOLVER_PARALLELISM);
@@ -168,6 +206,10 @@ class StatefulResolver
 
     void start()
     {
+        if (m_resolverCache != null)
+        {
+            m_resolverCache.load(getResolverCacheFile());
+        }
         m_serviceRegistration = m_registry.registerService(m_felix,
                 new String[]{Resolver.class.getName()},
                 new ResolverImpl(m_logger, 1),
@@ -182,6 +224,32 @@ class StatefulResolver
             reg.unregister();
             m_serviceRegistration = null;
         }
+        if (m_resolverCache != null)
+        {
+            m_resolverCache.save(getResolverCacheFile());
+            m_logger.log(Logger.LOG_INFO,
+                "Resolver cache: " + m_resolverCache.getHits() + " hits, "
+                + m_resolverCache.getMisses() + " misses, "
+                + (m_resolverCache.getSavedNanos() / 1000000L) + " ms saved.");
+        }
+    }
+
+    ResolverCache getResolverCache()
+    {
+        return m_resolverCache;
+    }
+
+    private File getResolverCacheFile()
+    {
+        try
+        {
+            return m_felix.getDataFile(m_felix, ResolverCache.CACHE_FILE_NAME);
+        }
+        catch (Exception ex)
+        {
+            m_logger.log(Logger.LOG_WARNING, "Unable to access resolver cache file.", ex);
+            return null;
+        }
     }
 
     synchronized void addRevision(BundleRevision br)
@@ -482,22 +550,53 @@ class StatefulResolver
             // Catch any resolve exception to rethrow later because
             // we may need to call end() on resolver hooks.
             ResolutionException rethrow = null;
+            StartupProfiler profiler = m_felix.getStartupProfiler();
+            long profileStart = (profiler != null) ? profiler.begin() : 0;
             try
             {
-                // Resolve the revision.
-                wireMap = m_resolver.resolve(
-                    new ResolveContextImpl(
-                        this,
-                        getWirings(),
-                        record,
-                        mandatory,
-                        optional,
-                        getFragments()));
+                // Reuse a persisted result if nothing relevant changed. This
+                // is not possible with resolver hooks or a security manager,
+                // since they can influence the result in ways we cannot track.
+                String cacheKey = null;
+                if ((m_resolverCache != null)
+                    && record.getResolverHookRefs().isEmpty()
+                    && (System.getSecurityManager() == null))
+                {
+                    Set<BundleRevision> revisions = getRevisions();
+                    cacheKey = m_resolverCache.getKey(revisions, mandatory, optional);
+                    wireMap = m_resolverCache.get(cacheKey, revisions);
+                    if ((wireMap != null) && (m_logger.getLogLevel() >= Logger.LOG_DEBUG))
+                    {
+                        m_logger.log(Logger.LOG_DEBUG, "Resolver cache hit: " + cacheKey);
+                    }
+                }
+                if (wireMap == null)
+                {
+                    long start = System.nanoTime();
+                    // Resolve the revision.
+                    wireMap = m_resolver.resolve(
+                        new ResolveContextImpl(
+                            this,
+                            getWirings(),
+                            record,
+                            mandatory,
+                            optional,
+                            getFragments()));
+                    if (cacheKey != null)
+                    {
+                        m_resolverCache.put(cacheKey, wireMap, System.nanoTime() - start);
+                    }
+                }
             }
             catch (ResolutionException ex)
             {
                 rethrow = ex;
             }
+            if (profiler != null)
+            {
+                profiler.end(StartupProfiler.PHASE_RESOLVE, "resolve " + mandatory.size()
+                    + " mandatory, " + optional.size() + " optional", profileStart);
+            }
 
             // Release resolver hooks, if any.
             releaseResolverHooks(record);
@@ -1639,6 +1738,11 @@ class StatefulResolver
         }
     }
 
+    private synchronized Set<BundleRevision> getRevisions()
+    {
+        return new HashSet<BundleRevision>(m_revisions);
+    }
+
     private synchronized Set<BundleRevision> getFragments()
     {
         Set<BundleRevision> fragments = new HashSet(m_fragments);
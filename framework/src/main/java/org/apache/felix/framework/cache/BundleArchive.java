@@ -226,6 +226,66 @@ public class BundleArchive
         reviseInternal(true, currentRevNum, location, null);
     }
 
+    /**
+     * <p>
+     * This constructor is called when an archive for a bundle is restored
+     * from a bundle cache snapshot. It receives the state that would
+     * otherwise be read from the archive root directory, so the directory
+     * is only accessed to open the current revision.
+     * </p>
+     * @param logger the logger to be used by the archive.
+     * @param archiveRootDir the archive root directory for storing state.
+     * @param snapshot the recorded state of the archive.
+     * @throws Exception if any error occurs.
+    **/
+    /* package */ BundleArchive(Logger logger, Map configMap, WeakZipFileFactory zipFactory,
+        ModuleConnector connectFactory, File archiveRootDir, DataInput snapshot)
+        throws Exception
+    {
+        m_logger = logger;
+        m_configMap = configMap;
+        m_zipFactory = zipFactory;
+        m_archiveRootDir = archiveRootDir;
+
+        m_id = snapshot.readLong();
+        m_originalLocation = snapshot.readUTF();
+        m_persistentState = snapshot.readInt();
+        m_startLevel = snapshot.readInt();
+        m_lastModified = snapshot.readLong();
+        m_refreshCount = snapshot.readLong();
+        Long currentRevNum = snapshot.readLong();
+        String location = snapshot.readUTF();
+
+        m_connector = connectFactory;
+
+        reviseInternal(true, currentRevNum, location, null);
+    }
+
+    /**
+     * Records the state needed by the snapshot constructor. Only the current
+     * revision is recorded, so archives with pending removals must not be
+     * written.
+     * @param out the snapshot to write to.
+     * @throws Exception if any error occurs.
+    **/
+    /* package */ synchronized void writeSnapshot(DataOutput out) throws Exception
+    {
+        out.writeLong(m_id);
+        out.writeUTF((m_originalLocation == null) ? "" : m_originalLocation);
+        out.writeInt(m_persistentState);
+        out.writeInt(m_startLevel);
+        out.writeLong(m_lastModified);
+        out.writeLong(m_refreshCount);
+        Long currentRevNum = getCurrentRevisionNumber();
+        out.writeLong(currentRevNum);
+        out.writeUTF(getRevisionLocation(currentRevNum));
+    }
+
+    /* package */ File getArchiveRootDir()
+    {
+        return m_archiveRootDir;
+    }
+
     /**
      * <p>
      * Returns the bundle identifier associated with this archive.
@@ -128,6 +128,20 @@ public abstract class BundleArchiveRevision
 
     public abstract Content getContent() throws Exception;
 
+    /**
+     * <p>
+     * Returns a stamp that changes whenever the content of the revision
+     * changes, such as when a referenced JAR file is replaced. It is used
+     * to validate data derived from the content, like cached manifests.
+     * </p>
+     * @return the content stamp or <tt>null</tt> if the revision cannot
+     *         tell whether its content changed.
+    **/
+    public String getContentStamp()
+    {
+        return null;
+    }
+
     /**
      * <p>
      * This method is called when the revision is no longer needed. The directory
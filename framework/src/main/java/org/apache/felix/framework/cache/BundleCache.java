@@ -24,6 +24,10 @@ import org.apache.felix.framework.util.WeakZipFileFactory;
 import org.osgi.framework.Constants;
 import org.osgi.framework.connect.ModuleConnector;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
@@ -34,6 +38,7 @@ import java.nio.channels.FileLock;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
+import java.util.zip.CRC32;
 
 /**
  * <p>
@@ -50,6 +55,33 @@ import java.util.Map;
  *       sets an upper limit on how many files the cache will open. The default
  *       value is zero, which means there is no limit.
  *   </li>
+ *   <li><tt>felix.cache.idletime</tt> - The number of milliseconds after
+ *       which an unused bundle JAR file is closed again. If set, bundle JAR
+ *       files are not opened until their content is first needed and are
+ *       reopened on demand. The default value is zero, which means JAR files
+ *       are opened on install and stay open.
+ *   </li>
+ *   <li><tt>felix.cache.snapshot</tt> - Enables or disables the bundle cache
+ *       snapshot. If enabled, the state of all bundle archives is recorded in
+ *       a single checksummed file when the framework shuts down, and the next
+ *       start restores the archives from it instead of scanning the cache
+ *       directory and reading each archive's state files. The snapshot is
+ *       deleted once read, so a session that does not shut down cleanly
+ *       falls back to scanning. This is disabled by default.
+ *   </li>
+ *   <li><tt>felix.cache.mmap</tt> - Enables or disables memory mapping of
+ *       bundle JAR files. If enabled, each JAR file is mapped once per revision
+ *       and its entries are looked up in a sorted index instead of reopening
+ *       the JAR file; mapped files do not count against the file limit. This
+ *       is disabled by default, since on some platforms mapped files cannot be
+ *       deleted until they are garbage collected.
+ *   </li>
+ *   <li><tt>felix.cache.manifest</tt> - Enables or disables caching of
+ *       parsed bundle manifests. If enabled, the headers, capabilities and
+ *       requirements of each JAR bundle revision are stored in its revision
+ *       directory and reused on restart as long as the bundle JAR file is
+ *       unchanged. This is disabled by default.
+ *   </li>
  *   <li><tt>org.osgi.framework.storage</tt> - Sets the directory to use as
  *       the bundle cache; by default bundle cache directory is
  *       <tt>felix-cache</tt> in the current working directory. The value
@@ -87,12 +119,18 @@ public class BundleCache
     public static final String CACHE_ROOTDIR_PROP = "felix.cache.rootdir";
     public static final String CACHE_LOCKING_PROP = "felix.cache.locking";
     public static final String CACHE_FILELIMIT_PROP = "felix.cache.filelimit";
+    public static final String CACHE_IDLETIME_PROP = "felix.cache.idletime";
+    public static final String CACHE_MMAP_PROP = "felix.cache.mmap";
+    public static final String CACHE_MANIFEST_PROP = "felix.cache.manifest";
+    public static final String CACHE_SNAPSHOT_PROP = "felix.cache.snapshot";
     private static final ThreadLocal m_defaultBuffer = new ThreadLocal();
     private static volatile int DEFAULT_BUFFER = 1024 * 64;
 
     private static transient final String CACHE_DIR_NAME = "felix-cache";
     private static transient final String CACHE_ROOTDIR_DEFAULT = ".";
     private static transient final String CACHE_LOCK_NAME = "cache.lock";
+    private static transient final String CACHE_SNAPSHOT_NAME = "cache.snapshot";
+    private static transient final int SNAPSHOT_VERSION = 1;
     static transient final String BUNDLE_DIR_PREFIX = "bundle";
 
     private static final SecureAction m_secureAction = new SecureAction();
@@ -121,7 +159,20 @@ public class BundleCache
                 limit = 0;
             }
         }
-        m_zipFactory = new WeakZipFileFactory(limit);
+        long idleTime = 0;
+        String idleStr = (String) m_configMap.get(CACHE_IDLETIME_PROP);
+        if (idleStr != null)
+        {
+            try
+            {
+                idleTime = Math.max(0, Long.parseLong(idleStr));
+            }
+            catch (NumberFormatException ex)
+            {
+                idleTime = 0;
+            }
+        }
+        m_zipFactory = new WeakZipFileFactory(limit, idleTime);
 
         // Create the cache directory, if it does not exist.
         File cacheDir = determineCacheDir(m_configMap);
@@ -410,8 +461,16 @@ public class BundleCache
             // Use the default value.
         }
 
-        // Create the existing bundle archives in the directory, if any exist.
+        // Restore the archives from the snapshot of the previous session,
+        // if there is a valid one.
         File cacheDir = determineCacheDir(m_configMap);
+        BundleArchive[] archives = loadSnapshot(cacheDir, connectFactory);
+        if (archives != null)
+        {
+            return archives;
+        }
+
+        // Create the existing bundle archives in the directory, if any exist.
         List archiveList = new ArrayList();
         File[] children = getSecureAction().listDirectory(cacheDir);
         for (int i = 0; (children != null) && (i < children.length); i++)
@@ -442,6 +501,67 @@ public class BundleCache
             archiveList.toArray(new BundleArchive[archiveList.size()]);
     }
 
+    /**
+     * Records the state of the given archives in a snapshot of the bundle
+     * cache, if snapshots are enabled. The snapshot is used instead of the
+     * archive directories by the next call to <tt>getArchives()</tt>, so it
+     * must only be saved once no further changes are made to the archives,
+     * i.e., when the framework shuts down. Nothing is saved if any archive
+     * still has a pending removal.
+     * @param archives the archives of all installed bundles.
+    **/
+    public void saveSnapshot(BundleArchive[] archives)
+    {
+        if (!isSnapshotEnabled(m_configMap))
+        {
+            return;
+        }
+
+        File cacheDir = determineCacheDir(m_configMap);
+        File snapshot = new File(cacheDir, CACHE_SNAPSHOT_NAME);
+        File tmp = new File(cacheDir, CACHE_SNAPSHOT_NAME + ".tmp");
+        try
+        {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeInt(SNAPSHOT_VERSION);
+            out.writeInt(archives.length);
+            for (BundleArchive archive : archives)
+            {
+                if (archive.isRemovalPending())
+                {
+                    return;
+                }
+                out.writeUTF(archive.getArchiveRootDir().getName());
+                archive.writeSnapshot(out);
+            }
+            CRC32 crc = new CRC32();
+            crc.update(bytes.toByteArray(), 0, bytes.size());
+            out.writeLong(crc.getValue());
+            out.close();
+
+            OutputStream os = getSecureAction().getOutputStream(tmp);
+            try
+            {
+                bytes.writeTo(os);
+            }
+            finally
+            {
+                os.close();
+            }
+            getSecureAction().deleteFile(snapshot);
+            if (!getSecureAction().renameFile(tmp, snapshot))
+            {
+                throw new IOException("Unable to rename " + tmp + " to " + snapshot);
+            }
+        }
+        catch (Exception ex)
+        {
+            getSecureAction().deleteFile(tmp);
+            m_logger.log(Logger.LOG_WARNING, "Unable to write bundle cache snapshot.", ex);
+        }
+    }
+
     public BundleArchive create(long id, int startLevel, String location, InputStream is, ModuleConnector connectFactory)
         throws Exception
     {
@@ -582,6 +702,95 @@ public class BundleCache
     // Private methods.
     //
 
+    private static boolean isSnapshotEnabled(Map configMap)
+    {
+        Object snapshot = configMap.get(CACHE_SNAPSHOT_PROP);
+        return (snapshot != null)
+            && Boolean.TRUE.toString().equalsIgnoreCase(snapshot.toString());
+    }
+
+    /**
+     * Restores the archives recorded by <tt>saveSnapshot()</tt>. The snapshot
+     * is deleted once it is read, since the archives may change during this
+     * session; if the framework does not shut down cleanly, the next session
+     * falls back to reading the archive directories. A snapshot left over by
+     * a session with snapshots enabled is also deleted if they are disabled
+     * now, since it may become stale.
+     * @return the restored archives or <tt>null</tt> if there is no valid
+     *         snapshot.
+    **/
+    private BundleArchive[] loadSnapshot(File cacheDir, ModuleConnector connectFactory)
+    {
+        File snapshot = new File(cacheDir, CACHE_SNAPSHOT_NAME);
+        if (!getSecureAction().isFile(snapshot))
+        {
+            return null;
+        }
+
+        byte[] bytes = null;
+        try
+        {
+            if (isSnapshotEnabled(m_configMap))
+            {
+                bytes = read(getSecureAction().getInputStream(snapshot), snapshot.length());
+            }
+        }
+        catch (Exception ex)
+        {
+            m_logger.log(Logger.LOG_WARNING, "Unable to read bundle cache snapshot.", ex);
+        }
+        finally
+        {
+            getSecureAction().deleteFile(snapshot);
+        }
+        if ((bytes == null) || (bytes.length < 8))
+        {
+            return null;
+        }
+
+        CRC32 crc = new CRC32();
+        crc.update(bytes, 0, bytes.length - 8);
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes));
+        List<BundleArchive> archiveList = new ArrayList<BundleArchive>();
+        try
+        {
+            in.skipBytes(bytes.length - 8);
+            if (in.readLong() != crc.getValue())
+            {
+                m_logger.log(Logger.LOG_WARNING,
+                    "Bundle cache snapshot is corrupt, ignoring it.");
+                return null;
+            }
+            in = new DataInputStream(new ByteArrayInputStream(bytes, 0, bytes.length - 8));
+            if (in.readInt() != SNAPSHOT_VERSION)
+            {
+                return null;
+            }
+            for (int i = in.readInt(); i > 0; i--)
+            {
+                File archiveRootDir = new File(cacheDir, in.readUTF());
+                archiveList.add(
+                    new BundleArchive(
+                        m_logger, m_configMap, m_zipFactory, connectFactory,
+                        archiveRootDir, in));
+            }
+        }
+        catch (Exception ex)
+        {
+            // The caller recreates the archives from their directories and
+            // removes any that cannot be reloaded.
+            for (BundleArchive archive : archiveList)
+            {
+                archive.close();
+            }
+            m_logger.log(Logger.LOG_WARNING,
+                "Unable to restore bundle cache snapshot, ignoring it.", ex);
+            return null;
+        }
+
+        return archiveList.toArray(new BundleArchive[archiveList.size()]);
+    }
+
     private static File determineCacheDir(Map configMap)
     {
         File cacheDir;
@@ -41,11 +41,11 @@ public class JarContent implements Content
     private static final transient String EMBEDDED_DIRECTORY = "-embedded";
     private static final transient String LIBRARY_DIRECTORY = "-lib";
 
-    private final Logger m_logger;
-    private final Map m_configMap;
-    private final WeakZipFileFactory m_zipFactory;
-    private final Object m_revisionLock;
-    private final File m_rootDir;
+    protected final Logger m_logger;
+    protected final Map m_configMap;
+    protected final WeakZipFileFactory m_zipFactory;
+    protected final Object m_revisionLock;
+    protected final File m_rootDir;
     private final File m_file;
     private final WeakZipFile m_zipFile;
     private final boolean m_isZipFileOwner;
@@ -79,6 +79,24 @@ public class JarContent implements Content
         m_isZipFileOwner = (zipFile == null);
     }
 
+    /**
+     * Constructor for subclasses that access the JAR file by other means
+     * than a <tt>WeakZipFile</tt>. Such subclasses must override all
+     * methods that access the JAR file directly.
+    **/
+    protected JarContent(Logger logger, Map configMap, WeakZipFileFactory zipFactory,
+        Object revisionLock, File rootDir, File file)
+    {
+        m_logger = logger;
+        m_configMap = configMap;
+        m_zipFactory = zipFactory;
+        m_revisionLock = revisionLock;
+        m_rootDir = rootDir;
+        m_file = file;
+        m_zipFile = null;
+        m_isZipFileOwner = false;
+    }
+
     protected void finalize()
     {
         close();
@@ -168,12 +186,12 @@ public class JarContent implements Content
 
         try
         {
-            ZipEntry ze = m_zipFile.getEntry(name);
+            ZipEntry ze = getZipEntry(name);
             if (ze == null)
             {
                 return null;
             }
-            is = m_zipFile.getInputStream(ze);
+            is = getInputStream(ze);
             if (is == null)
             {
                 return null;
@@ -211,7 +229,7 @@ public class JarContent implements Content
     {
         try
         {
-            ZipEntry ze = m_zipFile.getEntry(urlPath);
+            ZipEntry ze = getZipEntry(urlPath);
             return ze.getTime();
         }
         catch (Exception ex)
@@ -226,8 +244,7 @@ public class JarContent implements Content
         // just return it immediately.
         if (entryName.equals(FelixConstants.CLASS_PATH_DOT))
         {
-            return new JarContent(m_logger, m_configMap, m_zipFactory, m_revisionLock,
-                m_rootDir, m_file, m_zipFile);
+            return copy();
         }
 
         // Remove any leading slash.
@@ -251,7 +268,7 @@ public class JarContent implements Content
         // Determine if the entry is an emdedded JAR file or
         // directory in the bundle JAR file. Ignore any entries
         // that do not exist per the spec.
-        ZipEntry ze = m_zipFile.getEntry(entryName);
+        ZipEntry ze = getZipEntry(entryName);
 
         if ((ze != null) && ze.isDirectory())
         {
@@ -282,13 +299,11 @@ public class JarContent implements Content
                             }
 
                             // Extract embedded JAR into its directory.
-                            BundleCache.copyStreamToFile(m_zipFile.getInputStream(ze), extractJar);
+                            BundleCache.copyStreamToFile(getInputStream(ze), extractJar);
                         }
                     }
                 }
-                return new JarContent(
-                    m_logger, m_configMap, m_zipFactory, m_revisionLock,
-                    extractJar.getParentFile(), extractJar, null);
+                return createEmbeddedContent(extractJar.getParentFile(), extractJar);
             }
             catch (Exception ex)
             {
@@ -326,7 +341,7 @@ public class JarContent implements Content
 
         // The entry name must refer to a file type, since it is
         // a native library, not a directory.
-        ZipEntry ze = m_zipFile.getEntry(entryName);
+        ZipEntry ze = getZipEntry(entryName);
         if ((ze != null) && !ze.isDirectory())
         {
             // Extracting the embedded native library file impacts all other
@@ -363,7 +378,7 @@ public class JarContent implements Content
                         try
                         {
                             // Create the file.
-                            BundleCache.copyStreamToFile(m_zipFile.getInputStream(ze), libFile);
+                            BundleCache.copyStreamToFile(getInputStream(ze), libFile);
 
                             // Perform exec permission command on extracted library
                             // if one is configured.
@@ -423,6 +438,44 @@ public class JarContent implements Content
         return m_file;
     }
 
+    /**
+     * Returns the specified entry of the JAR file or <tt>null</tt> if it
+     * does not exist.
+    **/
+    protected ZipEntry getZipEntry(String name)
+    {
+        return m_zipFile.getEntry(name);
+    }
+
+    /**
+     * Returns an input stream for an entry returned by
+     * {@link #getZipEntry(String)}.
+    **/
+    protected InputStream getInputStream(ZipEntry ze) throws IOException
+    {
+        return m_zipFile.getInputStream(ze);
+    }
+
+    /**
+     * Returns a content sharing the JAR file with this content, which is
+     * used for the "." bundle class path entry.
+    **/
+    protected Content copy()
+    {
+        return new JarContent(m_logger, m_configMap, m_zipFactory, m_revisionLock,
+            m_rootDir, m_file, m_zipFile);
+    }
+
+    /**
+     * Returns a content for an embedded JAR file that has been extracted
+     * to the specified file.
+    **/
+    protected Content createEmbeddedContent(File rootDir, File file)
+    {
+        return new JarContent(
+            m_logger, m_configMap, m_zipFactory, m_revisionLock, rootDir, file, null);
+    }
+
     static class DevNullRunnable implements Runnable
     {
         private final InputStream m_in;
@@ -19,6 +19,7 @@
 package org.apache.felix.framework.cache;
 
 import org.apache.felix.framework.Logger;
+import org.apache.felix.framework.util.MappedZipFile;
 import org.apache.felix.framework.util.StringMap;
 import org.apache.felix.framework.util.Util;
 import org.apache.felix.framework.util.WeakZipFileFactory;
@@ -51,6 +52,7 @@ class JarRevision extends BundleArchiveRevision
     private final WeakZipFileFactory m_zipFactory;
     private final File m_bundleFile;
     private final WeakZipFile m_zipFile;
+    private final MappedZipFile m_mappedFile;
 
     public JarRevision(
         Logger logger, Map configMap, WeakZipFileFactory zipFactory,
@@ -75,6 +77,15 @@ class JarRevision extends BundleArchiveRevision
         // Save and process the bundle JAR.
         initialize(byReference, is);
 
+        // If enabled, map the JAR file into memory; fall back to opening
+        // it as a zip file if that is not possible.
+        m_mappedFile = isMappingEnabled(configMap) ? map(m_bundleFile) : null;
+        if (m_mappedFile != null)
+        {
+            m_zipFile = null;
+            return;
+        }
+
         // Open shared copy of the JAR file.
         WeakZipFile zipFile = null;
         try
@@ -98,6 +109,12 @@ class JarRevision extends BundleArchiveRevision
     public Map<String, Object> getManifestHeader() throws Exception
     {
         // Read and parse headers into a case insensitive map of manifest attributes and return it.
+        if (m_mappedFile != null)
+        {
+            int idx = m_mappedFile.indexOf("META-INF/MANIFEST.MF");
+            return (idx >= 0) ? BundleCache.getMainAttributes(new StringMap(),
+                m_mappedFile.getInputStream(idx), m_mappedFile.getSize(idx)) : null;
+        }
         ZipEntry manifestEntry = m_zipFile.getEntry("META-INF/MANIFEST.MF");
 
         Map<String, Object> manifest = manifestEntry != null ? BundleCache.getMainAttributes(new StringMap(), m_zipFile.getInputStream(manifestEntry), manifestEntry.getSize()) : null;
@@ -105,21 +122,60 @@ class JarRevision extends BundleArchiveRevision
         return manifest;
     }
 
+    @Override
+    public String getContentStamp()
+    {
+        return Long.toString(BundleCache.getSecureAction().getLastModified(m_bundleFile));
+    }
+
     public Content getContent() throws Exception
     {
+        if (m_mappedFile != null)
+        {
+            return new MappedJarContent(getLogger(), getConfig(), m_zipFactory,
+                this, getRevisionRootDir(), m_mappedFile);
+        }
         return new JarContent(getLogger(), getConfig(), m_zipFactory,
             this, getRevisionRootDir(), m_bundleFile, m_zipFile);
     }
 
     protected void close() throws Exception
     {
-        m_zipFile.close();
+        if (m_mappedFile != null)
+        {
+            m_mappedFile.close();
+        }
+        else
+        {
+            m_zipFile.close();
+        }
     }
 
     //
     // Private methods.
     //
 
+    private static boolean isMappingEnabled(Map configMap)
+    {
+        Object mmap = configMap.get(BundleCache.CACHE_MMAP_PROP);
+        return (mmap != null) && Boolean.TRUE.toString().equalsIgnoreCase(mmap.toString());
+    }
+
+    private MappedZipFile map(File file)
+    {
+        try
+        {
+            return MappedZipFile.open(file);
+        }
+        catch (IOException ex)
+        {
+            getLogger().log(
+                Logger.LOG_DEBUG,
+                "Unable to map JAR file " + file + ", opening it instead.", ex);
+            return null;
+        }
+    }
+
     private void initialize(boolean byReference, InputStream is)
         throws Exception
     {
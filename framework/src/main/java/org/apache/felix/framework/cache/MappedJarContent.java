@@ -0,0 +1,149 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.felix.framework.cache;
+
+import org.apache.felix.framework.Logger;
+import org.apache.felix.framework.util.MappedZipFile;
+import org.apache.felix.framework.util.WeakZipFileFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Enumeration;
+import java.util.Map;
+import java.util.zip.ZipEntry;
+
+/**
+ * <p>
+ * A JAR content that reads its entries from a memory mapped JAR file. The
+ * entry index is built once per revision and shared by all contents of the
+ * revision, so entry lookups and reads do not need any locking and never
+ * have to reopen the JAR file.
+ * </p>
+**/
+class MappedJarContent extends JarContent
+{
+    private final MappedZipFile m_mappedFile;
+    private final boolean m_isMappedFileOwner;
+
+    MappedJarContent(Logger logger, Map configMap, WeakZipFileFactory zipFactory,
+        Object revisionLock, File rootDir, MappedZipFile mappedFile)
+    {
+        this(logger, configMap, zipFactory, revisionLock, rootDir, mappedFile, false);
+    }
+
+    private MappedJarContent(Logger logger, Map configMap, WeakZipFileFactory zipFactory,
+        Object revisionLock, File rootDir, MappedZipFile mappedFile, boolean isMappedFileOwner)
+    {
+        super(logger, configMap, zipFactory, revisionLock, rootDir, mappedFile.getFile());
+        m_mappedFile = mappedFile;
+        m_isMappedFileOwner = isMappedFileOwner;
+    }
+
+    public void close()
+    {
+        // The mapped file of the revision is shared with it and released
+        // with it, only those of embedded JAR files are owned.
+        if (m_isMappedFileOwner)
+        {
+            m_mappedFile.close();
+        }
+    }
+
+    public boolean hasEntry(String name)
+    {
+        return m_mappedFile.indexOf(name) >= 0;
+    }
+
+    @Override
+    public boolean isDirectory(String name)
+    {
+        int idx = m_mappedFile.indexOf(name);
+        return (idx >= 0) && m_mappedFile.isDirectory(idx);
+    }
+
+    public Enumeration<String> getEntries()
+    {
+        // Spec says to return null if there are no entries.
+        return (m_mappedFile.size() > 0) ? m_mappedFile.names() : null;
+    }
+
+    public byte[] getEntryAsBytes(String name) throws IllegalStateException
+    {
+        int idx = m_mappedFile.indexOf(name);
+        if (idx < 0)
+        {
+            return null;
+        }
+        try
+        {
+            return m_mappedFile.getBytes(idx);
+        }
+        catch (Exception ex)
+        {
+            m_logger.log(
+                Logger.LOG_ERROR,
+                "JarContent: Unable to read bytes for file " + name + " in ZIP file "
+                    + getFile().getAbsolutePath(), ex);
+            return null;
+        }
+    }
+
+    @Override
+    public long getContentTime(String urlPath)
+    {
+        int idx = m_mappedFile.indexOf(urlPath);
+        return (idx >= 0) ? m_mappedFile.getTime(idx) : -1L;
+    }
+
+    protected ZipEntry getZipEntry(String name)
+    {
+        return m_mappedFile.getEntry(name);
+    }
+
+    protected InputStream getInputStream(ZipEntry ze) throws IOException
+    {
+        int idx = m_mappedFile.indexOf(ze.getName());
+        if (idx < 0)
+        {
+            throw new IOException("No such entry: " + ze.getName());
+        }
+        return m_mappedFile.getInputStream(idx);
+    }
+
+    protected Content copy()
+    {
+        return new MappedJarContent(m_logger, m_configMap, m_zipFactory, m_revisionLock,
+            m_rootDir, m_mappedFile);
+    }
+
+    protected Content createEmbeddedContent(File rootDir, File file)
+    {
+        try
+        {
+            return new MappedJarContent(m_logger, m_configMap, m_zipFactory, m_revisionLock,
+                rootDir, MappedZipFile.open(file), true);
+        }
+        catch (IOException ex)
+        {
+            // Fall back to a regular JAR content, e.g. for ZIP64 files.
+            return super.createEmbeddedContent(rootDir, file);
+        }
+    }
+}
@@ -25,14 +25,16 @@ import java.lang.reflect.Modifier;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.RandomAccess;
 import java.util.Set;
-import java.util.SortedMap;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentNavigableMap;
 import java.util.concurrent.ConcurrentSkipListMap;
 
 import org.apache.felix.framework.util.SecureAction;
@@ -45,13 +47,17 @@ import org.osgi.resource.Capability;
 
 public class CapabilitySet
 {
-    private final SortedMap<String, Map<Object, Set<BundleCapability>>> m_indices; // Should also be concurrent!
+    // The indices map the indexed attribute values to a concurrent set of
+    // capabilities, so readers never need to lock or copy them. A set is
+    // only added to or removed from its index while holding the lock of its
+    // index entry, so an empty set is never left behind nor written to.
+    private final ConcurrentNavigableMap<String, ConcurrentMap<Object, Set<BundleCapability>>> m_indices;
     private final Set<Capability> m_capSet = Collections.newSetFromMap(new ConcurrentHashMap<Capability, Boolean>());
     private final static SecureAction m_secureAction = new SecureAction();
 
     public void dump()
     {
-        for (Entry<String, Map<Object, Set<BundleCapability>>> entry : m_indices.entrySet())
+        for (Entry<String, ConcurrentMap<Object, Set<BundleCapability>>> entry : m_indices.entrySet())
         {
             boolean header1 = false;
             for (Entry<Object, Set<BundleCapability>> entry2 : entry.getValue().entrySet())
@@ -81,8 +87,8 @@ public class CapabilitySet
     public CapabilitySet(final List<String> indexProps, final boolean caseSensitive)
     {
         m_indices = (caseSensitive)
-            ? new ConcurrentSkipListMap<String, Map<Object, Set<BundleCapability>>>()
-            : new ConcurrentSkipListMap<String, Map<Object, Set<BundleCapability>>>(
+            ? new ConcurrentSkipListMap<String, ConcurrentMap<Object, Set<BundleCapability>>>()
+            : new ConcurrentSkipListMap<String, ConcurrentMap<Object, Set<BundleCapability>>>(
                 StringComparator.COMPARATOR);
         for (int i = 0; (indexProps != null) && (i < indexProps.size()); i++)
         {
@@ -96,7 +102,7 @@ public class CapabilitySet
         m_capSet.add(cap);
 
         // Index capability.
-        for (Entry<String, Map<Object, Set<BundleCapability>>> entry : m_indices.entrySet())
+        for (Entry<String, ConcurrentMap<Object, Set<BundleCapability>>> entry : m_indices.entrySet())
         {
             Object value = cap.getAttributes().get(entry.getKey());
             if (value != null)
@@ -106,8 +112,7 @@ public class CapabilitySet
                     value = convertArrayToList(value);
                 }
 
-                ConcurrentMap<Object, Set<BundleCapability>> index =
-                        (ConcurrentMap<Object, Set<BundleCapability>>) entry.getValue();
+                ConcurrentMap<Object, Set<BundleCapability>> index = entry.getValue();
 
                 if (value instanceof Collection)
                 {
@@ -126,20 +131,27 @@ public class CapabilitySet
     }
 
     private void indexCapability(
-        ConcurrentMap<Object, Set<BundleCapability>> index, BundleCapability cap, Object capValue)
+        ConcurrentMap<Object, Set<BundleCapability>> index, final BundleCapability cap, Object capValue)
     {
-        Set<BundleCapability> caps = Collections.newSetFromMap(new ConcurrentHashMap<BundleCapability, Boolean>());
-        Set<BundleCapability> prevval = index.putIfAbsent(capValue, caps);
-        if (prevval != null)
-            caps = prevval;
-        caps.add(cap);
+        // Compute is atomic per key, so the capability cannot be added to
+        // a set that a concurrent removal is dropping from the index.
+        index.compute(capValue, (key, caps) ->
+        {
+            if (caps == null)
+            {
+                caps = Collections.newSetFromMap(
+                    new ConcurrentHashMap<BundleCapability, Boolean>(2));
+            }
+            caps.add(cap);
+            return caps;
+        });
     }
 
     public void removeCapability(final BundleCapability cap)
     {
         if (m_capSet.remove(cap))
         {
-            for (Entry<String, Map<Object, Set<BundleCapability>>> entry : m_indices.entrySet())
+            for (Entry<String, ConcurrentMap<Object, Set<BundleCapability>>> entry : m_indices.entrySet())
             {
                 Object value = cap.getAttributes().get(entry.getKey());
                 if (value != null)
@@ -149,7 +161,7 @@ public class CapabilitySet
                         value = convertArrayToList(value);
                     }
 
-                    Map<Object, Set<BundleCapability>> index = entry.getValue();
+                    ConcurrentMap<Object, Set<BundleCapability>> index = entry.getValue();
 
                     if (value instanceof Collection)
                     {
@@ -169,17 +181,14 @@ public class CapabilitySet
     }
 
     private void deindexCapability(
-        Map<Object, Set<BundleCapability>> index, BundleCapability cap, Object value)
+        ConcurrentMap<Object, Set<BundleCapability>> index, final BundleCapability cap, Object value)
     {
-        Set<BundleCapability> caps = index.get(value);
-        if (caps != null)
+        // Returning null from compute removes the entry.
+        index.computeIfPresent(value, (key, caps) ->
         {
             caps.remove(cap);
-            if (caps.isEmpty())
-            {
-                index.remove(value);
-            }
-        }
+            return caps.isEmpty() ? null : caps;
+        });
     }
 
     public Set<Capability> match(final SimpleFilter sf, final boolean obeyMandatory)
@@ -192,29 +201,63 @@ public class CapabilitySet
 
     private Set<Capability> match(Set<Capability> caps, final SimpleFilter sf)
     {
-        Set<Capability> matches = Collections.newSetFromMap(new ConcurrentHashMap<Capability, Boolean>());
+        // The result is owned by the caller, which may modify it, but it
+        // is never shared between threads so a plain set is sufficient.
+        Set<Capability> matches;
 
         if (sf.getOperation() == SimpleFilter.MATCH_ALL)
         {
-            matches.addAll(caps);
+            matches = new HashSet<Capability>(caps);
         }
         else if (sf.getOperation() == SimpleFilter.AND)
         {
-            // Evaluate each subfilter against the remaining capabilities.
-            // For AND we calculate the intersection of each subfilter.
-            // We can short-circuit the AND operation if there are no
-            // remaining capabilities.
             final List<SimpleFilter> sfs = (List<SimpleFilter>) sf.getValue();
-            for (int i = 0; (caps.size() > 0) && (i < sfs.size()); i++)
+
+            // If one of the subfilters can be answered from an index, start
+            // from the smallest such index entry and check the remaining
+            // subfilters per capability instead of intersecting sets.
+            int seedIdx = -1;
+            Set<BundleCapability> seed = null;
+            for (int i = 0; i < sfs.size(); i++)
+            {
+                Set<BundleCapability> indexed = getIndexedCapabilities(sfs.get(i));
+                if ((indexed != null) && ((seed == null) || (indexed.size() < seed.size())))
+                {
+                    seedIdx = i;
+                    seed = indexed;
+                }
+            }
+
+            if (seedIdx >= 0)
+            {
+                matches = new HashSet<Capability>();
+                for (BundleCapability cap : seed)
+                {
+                    if (((caps == m_capSet) || caps.contains(cap))
+                        && matchesAll(cap, sfs, seedIdx))
+                    {
+                        matches.add(cap);
+                    }
+                }
+            }
+            else
             {
-                matches = match(caps, sfs.get(i));
-                caps = matches;
+                // Evaluate each subfilter against the remaining capabilities.
+                // For AND we calculate the intersection of each subfilter.
+                // We can short-circuit the AND operation if there are no
+                // remaining capabilities.
+                matches = new HashSet<Capability>(caps);
+                for (int i = 0; (matches.size() > 0) && (i < sfs.size()); i++)
+                {
+                    matches = match(matches, sfs.get(i));
+                }
             }
         }
         else if (sf.getOperation() == SimpleFilter.OR)
         {
             // Evaluate each subfilter against the remaining capabilities.
             // For OR we calculate the union of each subfilter.
+            matches = new HashSet<Capability>();
             List<SimpleFilter> sfs = (List<SimpleFilter>) sf.getValue();
             for (int i = 0; i < sfs.size(); i++)
             {
@@ -225,7 +268,7 @@ public class CapabilitySet
         {
             // Evaluate each subfilter against the remaining capabilities.
             // For OR we calculate the union of each subfilter.
-            matches.addAll(caps);
+            matches = new HashSet<Capability>(caps);
             List<SimpleFilter> sfs = (List<SimpleFilter>) sf.getValue();
             for (int i = 0; i < sfs.size(); i++)
             {
@@ -234,16 +277,26 @@ public class CapabilitySet
         }
         else
         {
+            matches = new HashSet<Capability>();
             Map<Object, Set<BundleCapability>> index = m_indices.get(sf.getName());
             if ((sf.getOperation() == SimpleFilter.EQ) && (index != null))
             {
                 Set<BundleCapability> existingCaps = index.get(sf.getValue());
                 if (existingCaps != null)
                 {
-                    matches.addAll(existingCaps);
-                    if (caps != m_capSet)
+                    if (caps == m_capSet)
                     {
-                        matches.retainAll(caps);
+                        matches.addAll(existingCaps);
+                    }
+                    else
+                    {
+                        for (BundleCapability cap : existingCaps)
+                        {
+                            if (caps.contains(cap))
+                            {
+                                matches.add(cap);
+                            }
+                        }
                     }
                 }
             }
@@ -255,7 +308,7 @@ public class CapabilitySet
                     Object lhs = cap.getAttributes().get(sf.getName());
                     if (lhs != null)
                     {
-                        if (compare(lhs, sf.getValue(), sf.getOperation()))
+                        if (compare(lhs, sf))
                         {
                             matches.add(cap);
                         }
@@ -267,6 +320,86 @@ public class CapabilitySet
         return matches;
     }
 
+    /**
+     * Returns the current index entry for an equality filter on an indexed
+     * attribute. The returned set is immutable.
+     * @return the indexed capabilities, an empty set if there are none, or
+     *         <tt>null</tt> if the filter cannot be answered from an index.
+    **/
+    private Set<BundleCapability> getIndexedCapabilities(SimpleFilter sf)
+    {
+        if (sf.getOperation() == SimpleFilter.EQ)
+        {
+            Map<Object, Set<BundleCapability>> index = m_indices.get(sf.getName());
+            if (index != null)
+            {
+                Set<BundleCapability> caps = index.get(sf.getValue());
+                return (caps == null) ? Collections.<BundleCapability>emptySet() : caps;
+            }
+        }
+        return null;
+    }
+
+    private boolean matchesAll(Capability cap, List<SimpleFilter> sfs, int skipIdx)
+    {
+        for (int i = 0; i < sfs.size(); i++)
+        {
+            if (i == skipIdx)
+            {
+                continue;
+            }
+            if (!matchesIndexed(cap, sfs.get(i)))
+            {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Evaluates the filter against a single capability the same way
+     * {@link #match(Set, SimpleFilter)} would, i.e., equality filters on
+     * indexed attributes are answered from the index.
+    **/
+    private boolean matchesIndexed(Capability cap, SimpleFilter sf)
+    {
+        switch (sf.getOperation())
+        {
+            case SimpleFilter.AND:
+                for (SimpleFilter child : (List<SimpleFilter>) sf.getValue())
+                {
+                    if (!matchesIndexed(cap, child))
+                    {
+                        return false;
+                    }
+                }
+                return true;
+            case SimpleFilter.OR:
+                for (SimpleFilter child : (List<SimpleFilter>) sf.getValue())
+                {
+                    if (matchesIndexed(cap, child))
+                    {
+                        return true;
+                    }
+                }
+                return false;
+            case SimpleFilter.NOT:
+                for (SimpleFilter child : (List<SimpleFilter>) sf.getValue())
+                {
+                    if (matchesIndexed(cap, child))
+                    {
+                        return false;
+                    }
+                }
+                return true;
+            default:
+                Set<BundleCapability> indexed = getIndexedCapabilities(sf);
+                return (indexed != null)
+                    ? indexed.contains(cap)
+                    : matchesInternal(cap, sf);
+        }
+    }
+
     public static boolean matches(Capability cap, SimpleFilter sf)
     {
         return matchesInternal(cap, sf) && matchMandatory(cap, sf);
@@ -286,10 +419,10 @@ public class CapabilitySet
             // For AND we calculate the intersection of each subfilter.
             // We can short-circuit the AND operation if there are no
             // remaining capabilities.
-            List<SimpleFilter> sfs = (List<SimpleFilter>) sf.getValue();
-            for (int i = 0; matched && (i < sfs.size()); i++)
+            SimpleFilter[] sfs = sf.getEvaluationOrder();
+            for (int i = 0; matched && (i < sfs.length); i++)
             {
-                matched = matchesInternal(cap, sfs.get(i));
+                matched = matchesInternal(cap, sfs[i]);
             }
         }
         else if (sf.getOperation() == SimpleFilter.OR)
@@ -297,20 +430,20 @@ public class CapabilitySet
             // Evaluate each subfilter against the remaining capabilities.
             // For OR we calculate the union of each subfilter.
             matched = false;
-            List<SimpleFilter> sfs = (List<SimpleFilter>) sf.getValue();
-            for (int i = 0; !matched && (i < sfs.size()); i++)
+            SimpleFilter[] sfs = sf.getEvaluationOrder();
+            for (int i = 0; !matched && (i < sfs.length); i++)
             {
-                matched = matchesInternal(cap, sfs.get(i));
+                matched = matchesInternal(cap, sfs[i]);
             }
         }
         else if (sf.getOperation() == SimpleFilter.NOT)
         {
             // Evaluate each subfilter against the remaining capabilities.
             // For OR we calculate the union of each subfilter.
-            List<SimpleFilter> sfs = (List<SimpleFilter>) sf.getValue();
-            for (int i = 0; i < sfs.size(); i++)
+            SimpleFilter[] sfs = sf.getEvaluationOrder();
+            for (int i = 0; i < sfs.length; i++)
             {
-                matched = !(matchesInternal(cap, sfs.get(i)));
+                matched = !(matchesInternal(cap, sfs[i]));
             }
         }
         else
@@ -319,7 +452,7 @@ public class CapabilitySet
             Object lhs = cap.getAttributes().get(sf.getName());
             if (lhs != null)
             {
-                matched = compare(lhs, sf.getValue(), sf.getOperation());
+                matched = compare(lhs, sf);
             }
         }
 
@@ -342,6 +475,11 @@ public class CapabilitySet
 
     private static boolean matchMandatory(Capability cap, SimpleFilter sf)
     {
+        if (!(cap instanceof BundleCapabilityImpl)
+            || !((BundleCapabilityImpl) cap).hasMandatoryAttributes())
+        {
+            return true;
+        }
         Map<String, Object> attrs = cap.getAttributes();
         for (Entry<String, Object> entry : attrs.entrySet())
         {
@@ -379,13 +517,15 @@ public class CapabilitySet
     private static final Class<?>[] STRING_CLASS = new Class[] { String.class };
     private static final String VALUE_OF_METHOD_NAME = "valueOf";
 
-    private static boolean compare(Object lhs, Object rhsUnknown, int op)
+    private static boolean compare(Object lhs, SimpleFilter sf)
     {
         if (lhs == null)
         {
             return false;
         }
 
+        int op = sf.getOperation();
+
         // If this is a PRESENT operation, then just return true immediately
         // since we wouldn't be here if the attribute wasn't present.
         if (op == SimpleFilter.PRESENT)
@@ -397,16 +537,7 @@ public class CapabilitySet
         //Version is comparable so we need to check this first
         if(lhs instanceof Version && op == SimpleFilter.EQ)
         {
-            Object rhs = null;
-            try
-            {
-                rhs = coerceType(lhs, (String) rhsUnknown);
-            }
-            catch (Exception ex)
-            {
-                //Do nothing will check later if rhs is null
-            }
-
+            Object rhs = coerceOperand(lhs, sf);
             if(rhs != null && rhs instanceof VersionRange)
             {
                 return ((VersionRange)rhs).includes((Version)lhs);
@@ -426,15 +557,12 @@ public class CapabilitySet
             Object rhs;
             if (op == SimpleFilter.SUBSTRING)
             {
-                rhs = rhsUnknown;
+                rhs = sf.getValue();
             }
             else
             {
-                try
-                {
-                    rhs = coerceType(lhs, (String) rhsUnknown);
-                }
-                catch (Exception ex)
+                rhs = coerceOperand(lhs, sf);
+                if (rhs == null)
                 {
                     return false;
                 }
@@ -481,12 +609,8 @@ public class CapabilitySet
         // Booleans do not implement comparable, so special case them.
         else if (lhs instanceof Boolean)
         {
-            Object rhs;
-            try
-            {
-                rhs = coerceType(lhs, (String) rhsUnknown);
-            }
-            catch (Exception ex)
+            Object rhs = coerceOperand(lhs, sf);
+            if (rhs == null)
             {
                 return false;
             }
@@ -505,20 +629,52 @@ public class CapabilitySet
         }
 
         // If the LHS is not a comparable or boolean, check if it is an
-        // array. If so, convert it to a list so we can treat it as a
-        // collection.
-        if (lhs.getClass().isArray())
+        // array. If so, call compare() on each element of the array
+        // until a match is found.
+        if (lhs instanceof Object[])
         {
-            lhs = convertArrayToList(lhs);
+            Object[] array = (Object[]) lhs;
+            for (int i = 0; i < array.length; i++)
+            {
+                if (compare(array[i], sf))
+                {
+                    return true;
+                }
+            }
+            return false;
+        }
+        else if (lhs.getClass().isArray())
+        {
+            for (int i = 0, len = Array.getLength(lhs); i < len; i++)
+            {
+                if (compare(Array.get(lhs, i), sf))
+                {
+                    return true;
+                }
+            }
+            return false;
         }
 
         // If LHS is a collection, then call compare() on each element
         // of the collection until a match is found.
-        if (lhs instanceof Collection)
+        if ((lhs instanceof List) && (lhs instanceof RandomAccess))
+        {
+            List list = (List) lhs;
+            for (int i = 0, size = list.size(); i < size; i++)
+            {
+                if (compare(list.get(i), sf))
+                {
+                    return true;
+                }
+            }
+
+            return false;
+        }
+        else if (lhs instanceof Collection)
         {
             for (Iterator iter = ((Collection) lhs).iterator(); iter.hasNext(); )
             {
-                if (compare(iter.next(), rhsUnknown, op))
+                if (compare(iter.next(), sf))
                 {
                     return true;
                 }
@@ -535,22 +691,52 @@ public class CapabilitySet
 
         // Since we cannot identify the LHS type, then we can only perform
         // equality comparison.
-        try
+        return lhs.equals(coerceOperand(lhs, sf));
+    }
+
+    /**
+     * Returns the operand of the filter coerced to the type of the given
+     * attribute value, or <tt>null</tt> if it cannot be coerced. Coercion
+     * uses reflection, so the result is kept on the filter for the next
+     * value of the same type. Filters are shared by all bundles, so this is
+     * only done for types of the boot class path, like <tt>java.lang.Long</tt>,
+     * which do not keep the class loader of a bundle reachable.
+     */
+    private static Object coerceOperand(Object lhs, SimpleFilter sf)
+    {
+        if (lhs instanceof String)
         {
-            return lhs.equals(coerceType(lhs, (String) rhsUnknown));
+            return (sf.getValue() instanceof String) ? sf.getValue() : null;
         }
-        catch (Exception ex)
+
+        Class<?> type = lhs.getClass();
+        SimpleFilter.Operand operand = sf.getOperand();
+        if ((operand == null) || (operand.m_type != type))
         {
-            return false;
+            Object rhs;
+            try
+            {
+                rhs = coerceType(lhs, (String) sf.getValue());
+            }
+            catch (Exception ex)
+            {
+                rhs = null;
+            }
+            if (type.getClassLoader() != null)
+            {
+                return rhs;
+            }
+            operand = new SimpleFilter.Operand(type, rhs);
+            sf.setOperand(operand);
         }
+        return operand.m_value;
     }
 
     private static boolean compareApproximate(Object lhs, Object rhs)
     {
         if (rhs instanceof String)
         {
-            return removeWhitespace((String) lhs)
-                .equalsIgnoreCase(removeWhitespace((String) rhs));
+            return equalsIgnoreWhitespaceAndCase((String) lhs, (String) rhs);
         }
         else if (rhs instanceof Character)
         {
@@ -560,17 +746,41 @@ public class CapabilitySet
         return lhs.equals(rhs);
     }
 
-    private static String removeWhitespace(String s)
+    private static boolean equalsIgnoreWhitespaceAndCase(String s1, String s2)
     {
-        StringBuilder sb = new StringBuilder(s.length());
-        for (int i = 0; i < s.length(); i++)
-        {
-            if (!Character.isWhitespace(s.charAt(i)))
+        // Same as comparing with equalsIgnoreCase() after removing all
+        // whitespace, without creating the intermediate strings.
+        int i1 = 0;
+        int i2 = 0;
+        int n1 = s1.length();
+        int n2 = s2.length();
+        while (true)
+        {
+            while ((i1 < n1) && Character.isWhitespace(s1.charAt(i1)))
             {
-                sb.append(s.charAt(i));
+                i1++;
+            }
+            while ((i2 < n2) && Character.isWhitespace(s2.charAt(i2)))
+            {
+                i2++;
+            }
+            if ((i1 == n1) || (i2 == n2))
+            {
+                return (i1 == n1) && (i2 == n2);
+            }
+            char c1 = s1.charAt(i1++);
+            char c2 = s2.charAt(i2++);
+            if (c1 != c2)
+            {
+                c1 = Character.toUpperCase(c1);
+                c2 = Character.toUpperCase(c2);
+                if ((c1 != c2)
+                    && (Character.toLowerCase(c1) != Character.toLowerCase(c2)))
+                {
+                    return false;
+                }
             }
         }
-        return sb.toString();
     }
 
     private static Object coerceType(Object lhs, String rhsString) throws Exception
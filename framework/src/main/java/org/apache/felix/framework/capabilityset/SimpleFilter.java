@@ -43,6 +43,13 @@ public class SimpleFilter
     private final Object m_value;
     private final int m_op;
 
+    // Evaluation state, built on first use. The sub-filters of an AND or OR
+    // are kept cheapest first and the operand of a comparison is kept
+    // coerced to the type of the attribute value it was last compared with,
+    // if that is a type of the boot class path.
+    private volatile SimpleFilter[] m_evaluationOrder;
+    private volatile Operand m_operand;
+
     public SimpleFilter(String attr, Object value, int op)
     {
         m_name = attr;
@@ -82,6 +89,91 @@ public class SimpleFilter
         return m_op;
     }
 
+    /**
+     * Returns the sub-filters of an AND, OR, or NOT filter in the order they
+     * should be evaluated. Sub-filters have no side effects, so for AND and
+     * OR the cheapest ones come first to reach the short-circuit with the
+     * least work.
+     * @return the sub-filters in evaluation order.
+     */
+    SimpleFilter[] getEvaluationOrder()
+    {
+        SimpleFilter[] order = m_evaluationOrder;
+        if (order == null)
+        {
+            List list = (List) m_value;
+            order = new SimpleFilter[list.size()];
+            int[] costs = new int[order.length];
+            for (int i = 0; i < order.length; i++)
+            {
+                SimpleFilter sf = (SimpleFilter) list.get(i);
+                int cost = (m_op == NOT) ? 0 : sf.getCost();
+                // Stable insertion sort, the lists are short.
+                int j = i;
+                for (; (j > 0) && (costs[j - 1] > cost); j--)
+                {
+                    order[j] = order[j - 1];
+                    costs[j] = costs[j - 1];
+                }
+                order[j] = sf;
+                costs[j] = cost;
+            }
+            m_evaluationOrder = order;
+        }
+        return order;
+    }
+
+    private int getCost()
+    {
+        switch (m_op)
+        {
+            case MATCH_ALL:
+            case PRESENT:
+                return 0;
+            case EQ:
+                return 1;
+            case LTE:
+            case GTE:
+            case APPROX:
+                return 2;
+            case SUBSTRING:
+                return 3;
+            default:
+                int cost = 4;
+                for (Object sf : (List) m_value)
+                {
+                    cost += ((SimpleFilter) sf).getCost();
+                }
+                return cost;
+        }
+    }
+
+    Operand getOperand()
+    {
+        return m_operand;
+    }
+
+    void setOperand(Operand operand)
+    {
+        m_operand = operand;
+    }
+
+    /**
+     * The operand of a comparison coerced to the type of an attribute value,
+     * or <tt>null</tt> if it could not be coerced to that type.
+     */
+    static final class Operand
+    {
+        final Class<?> m_type;
+        final Object m_value;
+
+        Operand(Class<?> type, Object value)
+        {
+            m_type = type;
+            m_value = value;
+        }
+    }
+
     public String toString()
     {
         String s = null;
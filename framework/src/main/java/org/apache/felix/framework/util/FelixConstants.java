@@ -47,6 +47,7 @@ public interface FelixConstants extends org.osgi.framework.Constants
     String LOG_LOGGER_PROP = "felix.log.logger";
     String SYSTEMBUNDLE_ACTIVATORS_PROP = "felix.systembundle.activators";
     String BUNDLE_STARTLEVEL_PROP = "felix.startlevel.bundle";
+    String STARTLEVEL_PARALLELISM_PROP = "felix.startlevel.parallelism";
     String SERVICE_URLHANDLERS_PROP = "felix.service.urlhandlers";
     String IMPLICIT_BOOT_DELEGATION_PROP = "felix.bootdelegation.implicit";
     String BOOT_CLASSLOADERS_PROP = "felix.bootdelegation.classloaders";
@@ -55,6 +56,15 @@ public interface FelixConstants extends org.osgi.framework.Constants
     String NATIVE_PROC_NAME_ALIAS_PREFIX = "felix.native.processor.alias";
     String USE_CACHEDURLS_PROPS = "felix.bundlecodesource.usecachedurls";
     String RESOLVER_PARALLELISM = "felix.resolver.parallelism";
+    String RESOLVER_CACHE_PROP = "felix.resolver.cache";
+    String RESOLVER_INCREMENTAL_PROP = "felix.resolver.incremental";
+    String RESOLVER_TIMEOUT_PROP = "felix.resolver.timeout";
+    String RESOLVER_MAX_PERMUTATIONS_PROP = "felix.resolver.maxpermutations";
+    String RESOLVER_MAX_PENDING_PERMUTATIONS_PROP = "felix.resolver.maxpendingpermutations";
+    String RESOLVER_BEST_EFFORT_PROP = "felix.resolver.besteffort";
+    String PROFILER_PROP = "felix.profiler";
+    String PROFILER_FILE_PROP = "felix.profiler.file";
+    String EVENT_DISPATCH_THREADS_PROP = "felix.event.dispatch.threads";
     String USE_PROPERTY_SUBSTITUTION_IN_SYSTEMPACKAGES = "felix.systempackages.substitution";
 
     // Missing OSGi constant for resolution directive.
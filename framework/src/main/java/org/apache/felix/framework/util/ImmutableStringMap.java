@@ -0,0 +1,219 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.felix.framework.util;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * An immutable map with case-insensitive string keys, iterated in the same
+ * order as {@link StringMap}. Keys and values are stored in sorted parallel
+ * arrays and found through an open addressing index keyed on a case-folded
+ * hash, so lookups neither allocate nor walk a tree.
+ **/
+public final class ImmutableStringMap extends AbstractMap<String, Object>
+{
+    private final String[] m_keys;
+    private final Object[] m_values;
+    // Each slot holds an index into m_keys plus one, zero means empty.
+    private final int[] m_index;
+
+    /**
+     * Creates a map from the first <tt>size</tt> elements of the given key
+     * and value arrays. The arrays are not retained.
+     * @param keys the keys.
+     * @param values the values, in the same order as the keys.
+     * @param size the number of entries.
+     * @throws IllegalArgumentException if two keys differ only in case.
+     **/
+    public ImmutableStringMap(final String[] keys, Object[] values, int size)
+    {
+        Integer[] order = new Integer[size];
+        for (int i = 0; i < size; i++)
+        {
+            order[i] = i;
+        }
+        Arrays.sort(order, new Comparator<Integer>()
+        {
+            public int compare(Integer i1, Integer i2)
+            {
+                return StringComparator.COMPARATOR.compare(keys[i1], keys[i2]);
+            }
+        });
+
+        m_keys = new String[size];
+        m_values = new Object[size];
+        for (int i = 0; i < size; i++)
+        {
+            m_keys[i] = keys[order[i]];
+            m_values[i] = values[order[i]];
+            if ((i > 0)
+                && (StringComparator.COMPARATOR.compare(m_keys[i - 1], m_keys[i]) == 0))
+            {
+                throw new IllegalArgumentException("Duplicate key: " + m_keys[i]);
+            }
+        }
+
+        // Keep the index at most half full so probe sequences stay short.
+        int capacity = 2;
+        while (capacity < size * 2)
+        {
+            capacity <<= 1;
+        }
+        m_index = new int[capacity];
+        int mask = capacity - 1;
+        for (int i = 0; i < size; i++)
+        {
+            int slot = hash(m_keys[i]) & mask;
+            while (m_index[slot] != 0)
+            {
+                slot = (slot + 1) & mask;
+            }
+            m_index[slot] = i + 1;
+        }
+    }
+
+    @Override
+    public Object get(Object key)
+    {
+        int i = indexOf(key);
+        return (i < 0) ? null : m_values[i];
+    }
+
+    @Override
+    public boolean containsKey(Object key)
+    {
+        return indexOf(key) >= 0;
+    }
+
+    @Override
+    public int size()
+    {
+        return m_keys.length;
+    }
+
+    @Override
+    public boolean isEmpty()
+    {
+        return m_keys.length == 0;
+    }
+
+    @Override
+    public Set<Map.Entry<String, Object>> entrySet()
+    {
+        return new AbstractSet<Map.Entry<String, Object>>()
+        {
+            @Override
+            public Iterator<Map.Entry<String, Object>> iterator()
+            {
+                return new Iterator<Map.Entry<String, Object>>()
+                {
+                    private int m_next = 0;
+
+                    public boolean hasNext()
+                    {
+                        return m_next < m_keys.length;
+                    }
+
+                    public Map.Entry<String, Object> next()
+                    {
+                        if (m_next >= m_keys.length)
+                        {
+                            throw new NoSuchElementException();
+                        }
+                        Map.Entry<String, Object> entry =
+                            new SimpleImmutableEntry<String, Object>(
+                                m_keys[m_next], m_values[m_next]);
+                        m_next++;
+                        return entry;
+                    }
+
+                    public void remove()
+                    {
+                        throw new UnsupportedOperationException();
+                    }
+                };
+            }
+
+            @Override
+            public int size()
+            {
+                return m_keys.length;
+            }
+        };
+    }
+
+    /**
+     * Returns the keys of this map in iteration order.
+     * @return a new array of the keys.
+     **/
+    public String[] keys()
+    {
+        return m_keys.clone();
+    }
+
+    private int indexOf(Object key)
+    {
+        if (!(key instanceof String))
+        {
+            return -1;
+        }
+        String s = (String) key;
+        int mask = m_index.length - 1;
+        for (int slot = hash(s) & mask; ; slot = (slot + 1) & mask)
+        {
+            int i = m_index[slot];
+            if (i == 0)
+            {
+                return -1;
+            }
+            if (StringComparator.COMPARATOR.compare(m_keys[i - 1], s) == 0)
+            {
+                return i - 1;
+            }
+        }
+    }
+
+    // Keys that StringComparator considers equal fold to the same chars,
+    // so they hash the same.
+    private static int hash(String s)
+    {
+        int h = 0;
+        for (int i = 0, n = s.length(); i < n; i++)
+        {
+            char c = s.charAt(i);
+            if (c < 128)
+            {
+                c = ((c >= 'A') && (c <= 'Z')) ? (char) (c + ('a' - 'A')) : c;
+            }
+            else
+            {
+                c = Character.toLowerCase(Character.toUpperCase(c));
+            }
+            h = 31 * h + c;
+        }
+        return h ^ (h >>> 16);
+    }
+}
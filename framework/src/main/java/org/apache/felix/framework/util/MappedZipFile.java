@@ -0,0 +1,592 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.felix.framework.util;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.attribute.FileTime;
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+
+/**
+ * A read-only view of a zip file that is memory mapped once and indexed by
+ * entry name. Unlike a <tt>ZipFile</tt> obtained from the
+ * {@link WeakZipFileFactory}, it never has to be reopened and it does not
+ * count against the open file limit, since the mapping does not hold on to
+ * a file descriptor. The index is immutable and all reads use absolute
+ * positions or private views of the mapped buffer, so lookups and reads
+ * do not need any locking.
+ * <p>
+ * Only single-disk archives without ZIP64 extensions are supported and only
+ * the stored and deflated compression methods; {@link #open(File)} fails for
+ * all other archives, which must then be accessed by other means.
+ */
+public class MappedZipFile
+{
+    private static final SecureAction m_secureAction = new SecureAction();
+
+    private static final int LOCSIG = 0x04034b50;
+    private static final int CENSIG = 0x02014b50;
+    private static final int ENDSIG = 0x06054b50;
+    private static final int LOCHDR = 30;
+    private static final int CENHDR = 46;
+    private static final int ENDHDR = 22;
+    private static final int EXTT_ID = 0x5455;
+
+    private final File m_file;
+    // Null once the zip file has been closed.
+    private volatile ByteBuffer m_buffer;
+    // Offset of the archive within the file.
+    private final int m_base;
+    // Entry names and offsets of their central directory headers, in the
+    // order of the central directory.
+    private final String[] m_names;
+    private final int[] m_cen;
+    // Indices into the above arrays, sorted by entry name.
+    private final int[] m_sorted;
+
+    private MappedZipFile(
+        File file, ByteBuffer buffer, int base, String[] names, int[] cen, int[] sorted)
+    {
+        m_file = file;
+        m_buffer = buffer;
+        m_base = base;
+        m_names = names;
+        m_cen = cen;
+        m_sorted = sorted;
+    }
+
+    /**
+     * Maps the specified zip file into memory and indexes its entries.
+     * @param file the zip file to open.
+     * @return the mapped zip file.
+     * @throws IOException if the file cannot be mapped or is not a supported
+     *         zip file.
+     */
+    public static MappedZipFile open(File file) throws IOException
+    {
+        MappedByteBuffer buffer;
+        FileInputStream fis = m_secureAction.getFileInputStream(file);
+        try
+        {
+            FileChannel channel = fis.getChannel();
+            long size = channel.size();
+            if (size > Integer.MAX_VALUE)
+            {
+                throw new ZipException("Zip file too large to be mapped: " + file);
+            }
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+        }
+        finally
+        {
+            // The mapping remains valid after the channel is closed.
+            fis.close();
+        }
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+        return index(file, buffer);
+    }
+
+    private static MappedZipFile index(File file, ByteBuffer buffer) throws IOException
+    {
+        int end = findEnd(buffer);
+        if ((buffer.getShort(end + 4) != 0) || (buffer.getShort(end + 6) != 0))
+        {
+            throw new ZipException("Multi-disk zip files are not supported: " + file);
+        }
+        int total = buffer.getShort(end + 10) & 0xffff;
+        long cenSize = buffer.getInt(end + 12) & 0xffffffffL;
+        long cenOffset = buffer.getInt(end + 16) & 0xffffffffL;
+        if ((total == 0xffff) || (cenSize == 0xffffffffL) || (cenOffset == 0xffffffffL))
+        {
+            throw new ZipException("ZIP64 files are not supported: " + file);
+        }
+        // Data may precede the archive, such as with self-extracting files,
+        // in which case all offsets are relative to the start of the archive.
+        long base = end - cenSize - cenOffset;
+        if (base < 0)
+        {
+            throw new ZipException("Invalid central directory: " + file);
+        }
+
+        String[] names = new String[total];
+        int[] cen = new int[total];
+        int pos = (int) (base + cenOffset);
+        for (int i = 0; i < total; i++)
+        {
+            if ((pos + CENHDR > end) || (buffer.getInt(pos) != CENSIG))
+            {
+                throw new ZipException("Invalid central directory header: " + file);
+            }
+            int method = buffer.getShort(pos + 10) & 0xffff;
+            if ((method != ZipEntry.STORED) && (method != ZipEntry.DEFLATED))
+            {
+                throw new ZipException("Unsupported compression method " + method + ": " + file);
+            }
+            if ((buffer.getInt(pos + 20) == 0xffffffff) || (buffer.getInt(pos + 24) == 0xffffffff)
+                || (buffer.getInt(pos + 42) == 0xffffffff))
+            {
+                throw new ZipException("ZIP64 files are not supported: " + file);
+            }
+            int nameLen = buffer.getShort(pos + 28) & 0xffff;
+            int extraLen = buffer.getShort(pos + 30) & 0xffff;
+            int commentLen = buffer.getShort(pos + 32) & 0xffff;
+            names[i] = getString(buffer, pos + CENHDR, nameLen);
+            cen[i] = pos;
+            pos += CENHDR + nameLen + extraLen + commentLen;
+        }
+
+        Integer[] order = new Integer[total];
+        for (int i = 0; i < total; i++)
+        {
+            order[i] = Integer.valueOf(i);
+        }
+        final String[] sortNames = names;
+        // The sort is stable, so of duplicate names the first one is used,
+        // like the zip file implementation does.
+        Arrays.sort(order, new Comparator<Integer>()
+        {
+            public int compare(Integer i1, Integer i2)
+            {
+                return sortNames[i1.intValue()].compareTo(sortNames[i2.intValue()]);
+            }
+        });
+        int[] sorted = new int[total];
+        int count = 0;
+        for (int i = 0; i < total; i++)
+        {
+            int idx = order[i].intValue();
+            if ((count == 0) || !names[sorted[count - 1]].equals(names[idx]))
+            {
+                sorted[count++] = idx;
+            }
+        }
+        if (count < total)
+        {
+            // Remove duplicates from the central directory order as well.
+            boolean[] keep = new boolean[total];
+            for (int i = 0; i < count; i++)
+            {
+                keep[sorted[i]] = true;
+            }
+            String[] uniqueNames = new String[count];
+            int[] uniqueCen = new int[count];
+            int[] remap = new int[total];
+            for (int i = 0, j = 0; i < total; i++)
+            {
+                if (keep[i])
+                {
+                    remap[i] = j;
+                    uniqueNames[j] = names[i];
+                    uniqueCen[j++] = cen[i];
+                }
+            }
+            for (int i = 0; i < count; i++)
+            {
+                sorted[i] = remap[sorted[i]];
+            }
+            names = uniqueNames;
+            cen = uniqueCen;
+            sorted = Arrays.copyOf(sorted, count);
+        }
+        return new MappedZipFile(file, buffer, (int) base, names, cen, sorted);
+    }
+
+    private static int findEnd(ByteBuffer buffer) throws ZipException
+    {
+        int limit = buffer.limit();
+        // The end record is followed by a comment of at most 64k.
+        int min = Math.max(0, limit - ENDHDR - 0xffff);
+        for (int pos = limit - ENDHDR; pos >= min; pos--)
+        {
+            if ((buffer.getInt(pos) == ENDSIG)
+                && (pos + ENDHDR + (buffer.getShort(pos + 20) & 0xffff) == limit))
+            {
+                return pos;
+            }
+        }
+        throw new ZipException("Not a zip file, no end of central directory record.");
+    }
+
+    private static String getString(ByteBuffer buffer, int pos, int len)
+    {
+        byte[] bytes = new byte[len];
+        ByteBuffer view = buffer.duplicate();
+        view.position(pos);
+        view.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    public File getFile()
+    {
+        return m_file;
+    }
+
+    /**
+     * Returns the number of entries.
+     */
+    public int size()
+    {
+        return m_names.length;
+    }
+
+    /**
+     * Returns the index of the specified entry. Like a <tt>ZipFile</tt>,
+     * this finds a directory entry also if its name is given without the
+     * trailing slash.
+     * @param name the name of the entry.
+     * @return the index of the entry or <tt>-1</tt> if it does not exist.
+     */
+    public int indexOf(String name)
+    {
+        int idx = search(name);
+        if ((idx < 0) && !name.endsWith("/"))
+        {
+            idx = search(name + "/");
+        }
+        return idx;
+    }
+
+    private int search(String name)
+    {
+        int low = 0;
+        int high = m_sorted.length - 1;
+        while (low <= high)
+        {
+            int mid = (low + high) >>> 1;
+            int cmp = m_names[m_sorted[mid]].compareTo(name);
+            if (cmp < 0)
+            {
+                low = mid + 1;
+            }
+            else if (cmp > 0)
+            {
+                high = mid - 1;
+            }
+            else
+            {
+                return m_sorted[mid];
+            }
+        }
+        return -1;
+    }
+
+    public String getName(int idx)
+    {
+        return m_names[idx];
+    }
+
+    public boolean isDirectory(int idx)
+    {
+        return m_names[idx].endsWith("/");
+    }
+
+    public long getSize(int idx)
+    {
+        ByteBuffer buffer = getBuffer();
+        return buffer.getInt(m_cen[idx] + 24) & 0xffffffffL;
+    }
+
+    /**
+     * Returns the last modification time of the specified entry, as
+     * returned by <tt>ZipEntry.getTime()</tt>.
+     */
+    public long getTime(int idx)
+    {
+        ByteBuffer buffer = getBuffer();
+        int pos = m_cen[idx];
+        int nameLen = buffer.getShort(pos + 28) & 0xffff;
+        int extraLen = buffer.getShort(pos + 30) & 0xffff;
+        // Prefer the extended timestamp, if any, like ZipEntry does.
+        int extra = pos + CENHDR + nameLen;
+        int extraEnd = extra + extraLen;
+        while (extra + 4 <= extraEnd)
+        {
+            int id = buffer.getShort(extra) & 0xffff;
+            int len = buffer.getShort(extra + 2) & 0xffff;
+            if ((id == EXTT_ID) && (len >= 5) && ((buffer.get(extra + 4) & 0x1) != 0)
+                && (extra + 9 <= extraEnd))
+            {
+                return (buffer.getInt(extra + 5) & 0xffffffffL) * 1000L;
+            }
+            extra += 4 + len;
+        }
+        return dosToJavaTime(buffer.getInt(pos + 12));
+    }
+
+    private static long dosToJavaTime(int dtime)
+    {
+        Calendar cal = Calendar.getInstance();
+        cal.clear();
+        cal.set(((dtime >> 25) & 0x7f) + 1980, ((dtime >> 21) & 0x0f) - 1,
+            (dtime >> 16) & 0x1f, (dtime >> 11) & 0x1f, (dtime >> 5) & 0x3f,
+            (dtime << 1) & 0x3e);
+        return cal.getTimeInMillis();
+    }
+
+    /**
+     * Returns a <tt>ZipEntry</tt> describing the specified entry.
+     * @param name the name of the entry.
+     * @return the entry or <tt>null</tt> if it does not exist.
+     */
+    public ZipEntry getEntry(String name)
+    {
+        ByteBuffer buffer = getBuffer();
+        int idx = indexOf(name);
+        if (idx < 0)
+        {
+            return null;
+        }
+        int pos = m_cen[idx];
+        ZipEntry ze = new ZipEntry(m_names[idx]);
+        ze.setMethod(buffer.getShort(pos + 10) & 0xffff);
+        ze.setCrc(buffer.getInt(pos + 16) & 0xffffffffL);
+        ze.setCompressedSize(buffer.getInt(pos + 20) & 0xffffffffL);
+        ze.setSize(getSize(idx));
+        ze.setLastModifiedTime(FileTime.from(getTime(idx), TimeUnit.MILLISECONDS));
+        return ze;
+    }
+
+    /**
+     * Returns the entry names in the order of the central directory.
+     */
+    public Enumeration<String> names()
+    {
+        return Collections.enumeration(Collections.unmodifiableList(Arrays.asList(m_names)));
+    }
+
+    /**
+     * Returns the entry names in sorted order.
+     */
+    public List<String> sortedNames()
+    {
+        return new AbstractList<String>()
+        {
+            @Override
+            public String get(int index)
+            {
+                return m_names[m_sorted[index]];
+            }
+
+            @Override
+            public int size()
+            {
+                return m_sorted.length;
+            }
+        };
+    }
+
+    /**
+     * Reads the uncompressed contents of the specified entry.
+     */
+    public byte[] getBytes(int idx) throws IOException
+    {
+        ByteBuffer buffer = getBuffer();
+        int pos = m_cen[idx];
+        int method = buffer.getShort(pos + 10) & 0xffff;
+        int compressedSize = buffer.getInt(pos + 20);
+        long size = getSize(idx);
+        if ((compressedSize < 0) || (size > Integer.MAX_VALUE))
+        {
+            throw new ZipException("Entry too large: " + m_names[idx]);
+        }
+        ByteBuffer data = getData(buffer, idx, compressedSize);
+        byte[] bytes = new byte[(int) size];
+        if (method == ZipEntry.STORED)
+        {
+            data.get(bytes);
+            return bytes;
+        }
+        byte[] input = new byte[compressedSize];
+        data.get(input);
+        Inflater inflater = new Inflater(true);
+        try
+        {
+            inflater.setInput(input);
+            int off = 0;
+            while (off < bytes.length)
+            {
+                int n = inflater.inflate(bytes, off, bytes.length - off);
+                if (n == 0)
+                {
+                    if (inflater.finished() || inflater.needsDictionary() || inflater.needsInput())
+                    {
+                        throw new ZipException("Truncated entry: " + m_names[idx]);
+                    }
+                }
+                off += n;
+            }
+            return bytes;
+        }
+        catch (DataFormatException ex)
+        {
+            throw new ZipException("Invalid entry " + m_names[idx] + ": " + ex.getMessage());
+        }
+        finally
+        {
+            inflater.end();
+        }
+    }
+
+    /**
+     * Returns an input stream for the uncompressed contents of the specified
+     * entry. Closing the stream does not affect this zip file.
+     */
+    public InputStream getInputStream(int idx) throws IOException
+    {
+        ByteBuffer buffer = getBuffer();
+        int pos = m_cen[idx];
+        int method = buffer.getShort(pos + 10) & 0xffff;
+        int compressedSize = buffer.getInt(pos + 20);
+        if (compressedSize < 0)
+        {
+            throw new ZipException("Entry too large: " + m_names[idx]);
+        }
+        InputStream in = new ByteBufferInputStream(getData(buffer, idx, compressedSize));
+        if (method == ZipEntry.STORED)
+        {
+            return in;
+        }
+        if (compressedSize == 0)
+        {
+            return new ByteArrayInputStream(new byte[0]);
+        }
+        final Inflater inflater = new Inflater(true);
+        return new InflaterInputStream(in, inflater, Math.min(8192, compressedSize))
+        {
+            private boolean m_closed;
+
+            @Override
+            public void close() throws IOException
+            {
+                if (!m_closed)
+                {
+                    m_closed = true;
+                    inflater.end();
+                    super.close();
+                }
+            }
+        };
+    }
+
+    private ByteBuffer getData(ByteBuffer buffer, int idx, int compressedSize) throws ZipException
+    {
+        int loc = m_base + buffer.getInt(m_cen[idx] + 42);
+        if ((loc < 0) || (loc + LOCHDR > buffer.limit()) || (buffer.getInt(loc) != LOCSIG))
+        {
+            throw new ZipException("Invalid local header: " + m_names[idx]);
+        }
+        int start = loc + LOCHDR
+            + (buffer.getShort(loc + 26) & 0xffff)
+            + (buffer.getShort(loc + 28) & 0xffff);
+        if ((start < 0) || (start + compressedSize > buffer.limit()))
+        {
+            throw new ZipException("Invalid entry size: " + m_names[idx]);
+        }
+        ByteBuffer data = buffer.duplicate();
+        data.position(start);
+        data.limit(start + compressedSize);
+        return data.slice();
+    }
+
+    /**
+     * Releases this zip file. The mapping itself is released once it is no
+     * longer referenced, since it cannot be unmapped explicitly, so this
+     * drops the reference to it. Streams that are still open keep reading
+     * from the mapping, all other reads fail afterwards.
+     */
+    public void close()
+    {
+        m_buffer = null;
+    }
+
+    private ByteBuffer getBuffer()
+    {
+        ByteBuffer buffer = m_buffer;
+        if (buffer == null)
+        {
+            throw new IllegalStateException("Zip file closed: " + m_file);
+        }
+        return buffer;
+    }
+
+    private static class ByteBufferInputStream extends InputStream
+    {
+        private final ByteBuffer m_data;
+
+        ByteBufferInputStream(ByteBuffer data)
+        {
+            m_data = data;
+        }
+
+        @Override
+        public int read()
+        {
+            return m_data.hasRemaining() ? (m_data.get() & 0xff) : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len)
+        {
+            if (len == 0)
+            {
+                return 0;
+            }
+            if (!m_data.hasRemaining())
+            {
+                return -1;
+            }
+            len = Math.min(len, m_data.remaining());
+            m_data.get(b, off, len);
+            return len;
+        }
+
+        @Override
+        public long skip(long n)
+        {
+            int skip = (int) Math.max(0, Math.min(n, m_data.remaining()));
+            m_data.position(m_data.position() + skip);
+            return skip;
+        }
+
+        @Override
+        public int available()
+        {
+            return m_data.remaining();
+        }
+    }
+}
@@ -0,0 +1,356 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.felix.framework.util;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Records timed spans of the framework's startup phases, such as reloading
+ * bundles from the cache, parsing manifests, resolving and calling bundle
+ * activators. The framework only creates a profiler if profiling is enabled,
+ * so callers guard all calls with a <tt>null</tt> check and there is no
+ * overhead otherwise.
+ * <p>
+ * The profiler is registered as a service that provides the
+ * <tt>felix:profile</tt> shell command. Since this class is not exported,
+ * the service is registered as <tt>java.lang.Object</tt>. The recorded
+ * spans can be exported
+ * as a timeline in the Chrome trace event format, which can be viewed with
+ * <tt>chrome://tracing</tt> or similar tools.
+ */
+public class StartupProfiler
+{
+    public static final String PHASE_CACHE = "cache";
+    public static final String PHASE_MANIFEST = "manifest";
+    public static final String PHASE_RESOLVE = "resolve";
+    public static final String PHASE_ACTIVATOR = "activator";
+
+    // Upper limit of recorded spans, to bound memory use if profiling is
+    // left enabled for a long running framework.
+    private static final int MAX_SPANS = 100000;
+
+    private final long m_origin = System.nanoTime();
+    private final Queue<Span> m_spans = new ConcurrentLinkedQueue<Span>();
+    private final AtomicInteger m_count = new AtomicInteger();
+
+    /**
+     * Returns the start time of a span that is ended by one of the
+     * <tt>end()</tt> methods.
+     * @return the current time in nanoseconds.
+     */
+    public long begin()
+    {
+        return System.nanoTime();
+    }
+
+    /**
+     * Records a span that is not specific to a bundle.
+     * @param phase the phase of the span.
+     * @param name the name of the span.
+     * @param start the start time returned by {@link #begin()}.
+     */
+    public void end(String phase, String name, long start)
+    {
+        end(phase, -1, name, start);
+    }
+
+    /**
+     * Records a span of the specified bundle.
+     * @param phase the phase of the span.
+     * @param bundleId the bundle identifier or <tt>-1</tt>.
+     * @param name the name of the span, usually the bundle location.
+     * @param start the start time returned by {@link #begin()}.
+     */
+    public void end(String phase, long bundleId, String name, long start)
+    {
+        long end = System.nanoTime();
+        if (m_count.incrementAndGet() <= MAX_SPANS)
+        {
+            Thread thread = Thread.currentThread();
+            m_spans.add(new Span(phase, bundleId, name,
+                thread.getId(), thread.getName(), start - m_origin, end - start));
+        }
+    }
+
+    /**
+     * Returns the recorded spans, ordered by their start time.
+     * @return the recorded spans.
+     */
+    public List<Span> getSpans()
+    {
+        List<Span> spans = new ArrayList<Span>(m_spans);
+        Collections.sort(spans, new Comparator<Span>()
+        {
+            @Override
+            public int compare(Span s1, Span s2)
+            {
+                return Long.compare(s1.m_start, s2.m_start);
+            }
+        });
+        return spans;
+    }
+
+    /**
+     * Shell command that lists the total time spent per bundle and phase,
+     * starting with the most expensive bundles.
+     * @return the summary.
+     */
+    public String profile()
+    {
+        Map<String, Map<String, Long>> totals = new HashMap<String, Map<String, Long>>();
+        final Map<String, Long> bundleTotals = new HashMap<String, Long>();
+        for (Span span : m_spans)
+        {
+            String key = (span.m_bundleId >= 0)
+                ? "[" + span.m_bundleId + "] " + span.m_name : span.m_name;
+            Map<String, Long> phases = totals.get(key);
+            if (phases == null)
+            {
+                phases = new LinkedHashMap<String, Long>();
+                totals.put(key, phases);
+            }
+            Long total = phases.get(span.m_phase);
+            phases.put(span.m_phase, (total == null)
+                ? span.m_duration : total.longValue() + span.m_duration);
+            total = bundleTotals.get(key);
+            bundleTotals.put(key, (total == null)
+                ? span.m_duration : total.longValue() + span.m_duration);
+        }
+
+        List<String> keys = new ArrayList<String>(totals.keySet());
+        Collections.sort(keys, new Comparator<String>()
+        {
+            @Override
+            public int compare(String k1, String k2)
+            {
+                return bundleTotals.get(k2).compareTo(bundleTotals.get(k1));
+            }
+        });
+
+        StringBuilder sb = new StringBuilder();
+        for (String key : keys)
+        {
+            sb.append(String.format("%10.3f ms  %s", toMillis(bundleTotals.get(key)), key));
+            for (Map.Entry<String, Long> entry : totals.get(key).entrySet())
+            {
+                sb.append(String.format("%n%10.3f ms    %s", toMillis(entry.getValue()), entry.getKey()));
+            }
+            sb.append(String.format("%n"));
+        }
+        int dropped = m_count.get() - MAX_SPANS;
+        if (dropped > 0)
+        {
+            sb.append(String.format("%d spans were not recorded.%n", dropped));
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Shell command that exports the recorded spans as a Chrome trace file.
+     * @param file the path of the file to write.
+     * @return a message describing the exported file.
+     * @throws IOException if the file cannot be written.
+     */
+    public String profile(String file) throws IOException
+    {
+        File f = new File(file);
+        writeTrace(f);
+        return "Wrote " + m_spans.size() + " spans to " + f.getAbsolutePath();
+    }
+
+    /**
+     * Writes the recorded spans to the specified file in the Chrome trace
+     * event format.
+     * @param file the file to write.
+     * @throws IOException if the file cannot be written.
+     */
+    public void writeTrace(File file) throws IOException
+    {
+        Writer writer = new BufferedWriter(new OutputStreamWriter(
+            new SecureAction().getFileOutputStream(file), StandardCharsets.UTF_8));
+        try
+        {
+            writeTrace(writer);
+        }
+        finally
+        {
+            writer.close();
+        }
+    }
+
+    /**
+     * Writes the recorded spans in the Chrome trace event format.
+     * @param writer the writer to write to.
+     * @throws IOException if writing fails.
+     */
+    public void writeTrace(Writer writer) throws IOException
+    {
+        List<Span> spans = getSpans();
+        Map<Long, String> threads = new LinkedHashMap<Long, String>();
+        writer.write("{\"displayTimeUnit\":\"ms\",\"traceEvents\":[");
+        boolean first = true;
+        for (Span span : spans)
+        {
+            threads.put(span.m_threadId, span.m_threadName);
+            writer.write(first ? "\n" : ",\n");
+            first = false;
+            writer.write("{\"name\":");
+            writeString(writer, span.m_name);
+            writer.write(",\"cat\":");
+            writeString(writer, span.m_phase);
+            writer.write(",\"ph\":\"X\",\"pid\":1,\"tid\":");
+            writer.write(Long.toString(span.m_threadId));
+            writer.write(",\"ts\":");
+            writer.write(toMicros(span.m_start));
+            writer.write(",\"dur\":");
+            writer.write(toMicros(span.m_duration));
+            if (span.m_bundleId >= 0)
+            {
+                writer.write(",\"args\":{\"bundle\":");
+                writer.write(Long.toString(span.m_bundleId));
+                writer.write("}");
+            }
+            writer.write("}");
+        }
+        for (Map.Entry<Long, String> entry : threads.entrySet())
+        {
+            writer.write(first ? "\n" : ",\n");
+            first = false;
+            writer.write("{\"name\":\"thread_name\",\"ph\":\"M\",\"pid\":1,\"tid\":");
+            writer.write(entry.getKey().toString());
+            writer.write(",\"args\":{\"name\":");
+            writeString(writer, entry.getValue());
+            writer.write("}}");
+        }
+        writer.write("\n]}\n");
+    }
+
+    private static double toMillis(long nanos)
+    {
+        return nanos / (double) TimeUnit.MILLISECONDS.toNanos(1);
+    }
+
+    private static String toMicros(long nanos)
+    {
+        return String.format(Locale.ROOT, "%.3f", nanos / 1000.0);
+    }
+
+    private static void writeString(Writer writer, String s) throws IOException
+    {
+        writer.write('"');
+        for (int i = 0; i < s.length(); i++)
+        {
+            char c = s.charAt(i);
+            if ((c == '"') || (c == '\\'))
+            {
+                writer.write('\\');
+                writer.write(c);
+            }
+            else if (c < 0x20)
+            {
+                writer.write(String.format("\\u%04x", (int) c));
+            }
+            else
+            {
+                writer.write(c);
+            }
+        }
+        writer.write('"');
+    }
+
+    /**
+     * A recorded span. Times are in nanoseconds relative to the creation
+     * of the profiler.
+     */
+    public static final class Span
+    {
+        private final String m_phase;
+        private final long m_bundleId;
+        private final String m_name;
+        private final long m_threadId;
+        private final String m_threadName;
+        private final long m_start;
+        private final long m_duration;
+
+        Span(String phase, long bundleId, String name,
+            long threadId, String threadName, long start, long duration)
+        {
+            m_phase = phase;
+            m_bundleId = bundleId;
+            m_name = name;
+            m_threadId = threadId;
+            m_threadName = threadName;
+            m_start = start;
+            m_duration = duration;
+        }
+
+        public String getPhase()
+        {
+            return m_phase;
+        }
+
+        public long getBundleId()
+        {
+            return m_bundleId;
+        }
+
+        public String getName()
+        {
+            return m_name;
+        }
+
+        public String getThreadName()
+        {
+            return m_threadName;
+        }
+
+        public long getStart()
+        {
+            return m_start;
+        }
+
+        public long getDuration()
+        {
+            return m_duration;
+        }
+
+        @Override
+        public String toString()
+        {
+            return m_phase + " " + m_name + " " + m_duration + "ns";
+        }
+    }
+}
@@ -19,6 +19,7 @@
 package org.apache.felix.framework.util;
 
 import java.io.File;
+import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.lang.ref.SoftReference;
@@ -52,6 +53,9 @@ public class WeakZipFileFactory
     private final List<WeakZipFile> m_openFiles = new ArrayList<WeakZipFile>();
     private final Lock m_globalMutex = new ReentrantLock();
     private final int m_limit;
+    private final long m_idleTime;
+    private final boolean m_weak;
+    private volatile long m_nextSweep;
 
     /**
      * Constructs a weak zip file factory with the specified file limit. A limit
@@ -59,12 +63,32 @@ public class WeakZipFileFactory
      * @param limit maximum number of open zip files at any given time.
      */
     public WeakZipFileFactory(int limit)
+    {
+        this(limit, 0);
+    }
+
+    /**
+     * Constructs a weak zip file factory with the specified file limit and
+     * idle time. If an idle time is given, zip files are not opened until
+     * they are first used and are weakly closed once they have not been used
+     * for that long. Idle files are only looked for when some zip file of
+     * this factory is used. Zero signifies no limit and no idle time.
+     * @param limit maximum number of open zip files at any given time.
+     * @param idleTime milliseconds after which an unused zip file is closed.
+     */
+    public WeakZipFileFactory(int limit, long idleTime)
     {
         if (limit < 0)
         {
             throw new IllegalArgumentException("Limit must be non-negative.");
         }
+        if (idleTime < 0)
+        {
+            throw new IllegalArgumentException("Idle time must be non-negative.");
+        }
         m_limit = limit;
+        m_idleTime = idleTime;
+        m_weak = (limit > 0) || (idleTime > 0);
     }
 
     /**
@@ -75,27 +99,35 @@ public class WeakZipFileFactory
      */
     public WeakZipFile create(File file) throws IOException
     {
-        WeakZipFile wzf = new WeakZipFile(file);
+        // With an idle time, the file is only opened on first use.
+        if ((m_idleTime > 0) && !m_secureAction.fileExists(file))
+        {
+            throw new FileNotFoundException(file.getPath());
+        }
+        WeakZipFile wzf = new WeakZipFile(file, m_idleTime == 0);
 
-        if (m_limit > 0)
+        if (m_weak)
         {
             m_globalMutex.lock();
 
             try
             {
                 m_zipFiles.add(wzf);
-                m_openFiles.add(wzf);
-                if (m_openFiles.size() > m_limit)
+                if (wzf.m_status == OPEN)
                 {
-                    WeakZipFile candidate = m_openFiles.get(0);
-                    for (WeakZipFile tmp : m_openFiles)
+                    m_openFiles.add(wzf);
+                    if ((m_limit > 0) && (m_openFiles.size() > m_limit))
                     {
-                        if (candidate.m_timestamp > tmp.m_timestamp)
+                        WeakZipFile candidate = m_openFiles.get(0);
+                        for (WeakZipFile tmp : m_openFiles)
                         {
-                            candidate = tmp;
+                            if (candidate.m_timestamp > tmp.m_timestamp)
+                            {
+                                candidate = tmp;
+                            }
                         }
+                        candidate._closeWeakly();
                     }
-                    candidate._closeWeakly();
                 }
             }
             finally
@@ -107,6 +139,36 @@ public class WeakZipFileFactory
         return wzf;
     }
 
+    /**
+     * Weakly closes all open zip files that have not been used within the
+     * idle time. Skipped if another thread holds the global mutex, since
+     * that thread may be sweeping already.
+     * @param now the current time in milliseconds.
+     */
+    private void closeIdle(long now)
+    {
+        if (!m_globalMutex.tryLock())
+        {
+            return;
+        }
+
+        try
+        {
+            m_nextSweep = now + (m_idleTime / 2);
+            for (WeakZipFile wzf : new ArrayList<WeakZipFile>(m_openFiles))
+            {
+                if ((now - wzf.m_timestamp) >= m_idleTime)
+                {
+                    wzf._closeWeakly();
+                }
+            }
+        }
+        finally
+        {
+            m_globalMutex.unlock();
+        }
+    }
+
     /**
      * Only used for testing.
      * @return unclosed weak zip files.
@@ -161,12 +223,20 @@ public class WeakZipFileFactory
          * Constructor is private since instances need to be centrally
          * managed.
          * @param file the target zip file.
+         * @param open whether to open the zip file now or on first use.
          * @throws IOException if the zip file could not be opened.
          */
-        private WeakZipFile(File file) throws IOException
+        private WeakZipFile(File file, boolean open) throws IOException
         {
             m_file = file;
-            m_zipFile = m_secureAction.openZipFile(m_file);
+            if (open)
+            {
+                m_zipFile = m_secureAction.openZipFile(m_file);
+            }
+            else
+            {
+                m_status = WEAKLY_CLOSED;
+            }
             m_timestamp = System.currentTimeMillis();
         }
 
@@ -212,7 +282,7 @@ public class WeakZipFileFactory
             }
             finally
             {
-                if (m_limit > 0)
+                if (m_weak)
                 {
                     m_localMutex.unlock();
                 }
@@ -234,7 +304,7 @@ public class WeakZipFileFactory
             }
             finally
             {
-                if (m_limit > 0)
+                if (m_weak)
                 {
                     m_localMutex.unlock();
                 }
@@ -252,7 +322,7 @@ public class WeakZipFileFactory
             }
             finally
             {
-                if (m_limit > 0)
+                if (m_weak)
                 {
                     m_localMutex.unlock();
                 }
@@ -309,11 +379,11 @@ public class WeakZipFileFactory
             try
             {
                 InputStream is = m_zipFile.getInputStream(ze);
-                return m_limit == 0 ? is : new WeakZipInputStream(ze.getName(), is);
+                return !m_weak ? is : new WeakZipInputStream(ze.getName(), is);
             }
             finally
             {
-                if (m_limit > 0)
+                if (m_weak)
                 {
                     m_localMutex.unlock();
                 }
@@ -380,7 +450,7 @@ public class WeakZipFileFactory
          */
         public void close() throws IOException
         {
-            if (m_limit > 0)
+            if (m_weak)
             {
                 m_globalMutex.lock();
                 m_localMutex.lock();
@@ -397,7 +467,7 @@ public class WeakZipFileFactory
             }
             finally
             {
-                if (m_limit > 0)
+                if (m_weak)
                 {
                     m_localMutex.unlock();
                     m_globalMutex.unlock();
@@ -431,11 +501,20 @@ public class WeakZipFileFactory
          */
         private void ensureZipFileIsOpen()
         {
-            if (m_limit == 0)
+            if (!m_weak)
             {
                 return;
             }
 
+            // Close files that have been idle for too long, before acquiring
+            // our own mutex to keep the global mutex first in lock order.
+            long now = System.currentTimeMillis();
+            m_timestamp = now;
+            if ((m_idleTime > 0) && (now >= m_nextSweep))
+            {
+                closeIdle(now);
+            }
+
             // Get mutex for zip file.
             m_localMutex.lock();
 
@@ -524,7 +603,7 @@ public class WeakZipFileFactory
                 if (m_zipFile != null)
                 {
                     m_openFiles.add(this);
-                    if (m_openFiles.size() > m_limit)
+                    if ((m_limit > 0) && (m_openFiles.size() > m_limit))
                     {
                         WeakZipFile candidate = m_openFiles.get(0);
                         for (WeakZipFile tmp : m_openFiles)
@@ -567,7 +646,7 @@ public class WeakZipFileFactory
              */
             private void ensureInputStreamIsValid() throws IOException
             {
-                if (m_limit == 0)
+                if (!m_weak)
                 {
                     return;
                 }
@@ -598,7 +677,7 @@ public class WeakZipFileFactory
                     }
                     catch (IOException ex)
                     {
-                        if (m_limit > 0)
+                        if (m_weak)
                         {
                             m_localMutex.unlock();
                         }
@@ -617,7 +696,7 @@ public class WeakZipFileFactory
                 }
                 finally
                 {
-                    if (m_limit > 0)
+                    if (m_weak)
                     {
                         m_localMutex.unlock();
                     }
@@ -639,7 +718,7 @@ public class WeakZipFileFactory
                 }
                 finally
                 {
-                    if (m_limit > 0)
+                    if (m_weak)
                     {
                         m_localMutex.unlock();
                     }
@@ -660,7 +739,7 @@ public class WeakZipFileFactory
                 }
                 finally
                 {
-                    if (m_limit > 0)
+                    if (m_weak)
                     {
                         m_localMutex.unlock();
                     }
@@ -682,7 +761,7 @@ public class WeakZipFileFactory
                 }
                 finally
                 {
-                    if (m_limit > 0)
+                    if (m_weak)
                     {
                         m_localMutex.unlock();
                     }
@@ -704,7 +783,7 @@ public class WeakZipFileFactory
                 }
                 finally
                 {
-                    if (m_limit > 0)
+                    if (m_weak)
                     {
                         m_localMutex.unlock();
                     }
@@ -726,7 +805,7 @@ public class WeakZipFileFactory
                 }
                 finally
                 {
-                    if (m_limit > 0)
+                    if (m_weak)
                     {
                         m_localMutex.unlock();
                     }
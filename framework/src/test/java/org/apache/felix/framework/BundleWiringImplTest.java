@@ -20,6 +20,7 @@ package org.apache.felix.framework;
 
 import org.apache.felix.framework.BundleWiringImpl.BundleClassLoader;
 import org.apache.felix.framework.cache.Content;
+import org.apache.felix.framework.util.Util;
 import org.junit.Assert;
 import org.junit.Test;
 import org.mockito.Mockito;
@@ -35,6 +36,8 @@ import org.osgi.framework.hooks.weaving.WeavingException;
 import org.osgi.framework.hooks.weaving.WeavingHook;
 import org.osgi.framework.hooks.weaving.WovenClass;
 import org.osgi.framework.hooks.weaving.WovenClassListener;
+import org.osgi.framework.wiring.BundleCapability;
+import org.osgi.framework.wiring.BundleRequirement;
 import org.osgi.framework.wiring.BundleRevision;
 import org.osgi.framework.wiring.BundleWire;
 import org.osgi.framework.wiring.BundleWiring;
@@ -44,6 +47,7 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.lang.reflect.Constructor;
 import java.lang.reflect.Field;
+import java.net.URL;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
@@ -65,6 +69,7 @@ import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 import static org.mockito.Mockito.mock;
@@ -665,6 +670,156 @@ public class BundleWiringImplTest
         verify(requiredPkgs, never()).values();
     }
 
+    @Test
+    public void testDelegationAfterDynamicWire() throws Exception
+    {
+        initializeSimpleBundleWiring();
+
+        Felix mockFramework = mock(Felix.class);
+        when(mockFramework.getBootPackages()).thenReturn(new String[0]);
+        when(mockBundle.getFramework()).thenReturn(mockFramework);
+
+        Field field = BundleWiringImpl.class.getDeclaredField("m_classLoader");
+        field.setAccessible(true);
+        field.set(bundleWiring, mock(BundleClassLoader.class));
+
+        // Record that the package has no source.
+        String resource = "org/foo/dynamic/resource.txt";
+        assertNull(bundleWiring.getResourceByDelegation(resource));
+
+        URL url = new URL("file:/resource.txt");
+        BundleWiringImpl providerWiring = mock(BundleWiringImpl.class);
+        BundleRevision providerRevision = mock(BundleRevision.class);
+        when(providerWiring.getResourceByDelegation(resource)).thenReturn(url);
+        when(providerWiring.getRevision()).thenReturn(providerRevision);
+        when(providerRevision.getWiring()).thenReturn(providerWiring);
+        BundleCapability cap = mock(BundleCapability.class);
+        when(cap.getAttributes()).thenReturn(Collections.<String, Object>singletonMap(
+                BundleRevision.PACKAGE_NAMESPACE, "org.foo.dynamic"));
+        BundleWire wire = mock(BundleWire.class);
+        when(wire.getCapability()).thenReturn(cap);
+        when(wire.getProviderWiring()).thenReturn(providerWiring);
+
+        // The dynamic wire must replace the recorded decision.
+        bundleWiring.addDynamicWire(wire);
+        assertEquals(url, bundleWiring.getResourceByDelegation(resource));
+    }
+
+    @Test
+    public void testPackageIndex() throws Exception
+    {
+        mockResolver = mock(StatefulResolver.class);
+        mockRevisionImpl = mock(BundleRevisionImpl.class);
+        mockBundle = mock(BundleImpl.class);
+        when(mockRevisionImpl.getBundle()).thenReturn(mockBundle);
+        when(mockBundle.getBundleId()).thenReturn(Long.valueOf(1));
+
+        // org.foo.b is exported twice, org.foo.sub is also imported, so
+        // its export is substituted.
+        BundleCapability capA = createPackageCapability("org.foo.a");
+        BundleCapability capB1 = createPackageCapability("org.foo.b");
+        BundleCapability capB2 = createPackageCapability("org.foo.b");
+        BundleCapability capSub = createPackageCapability("org.foo.sub");
+        BundleCapability capOther = mock(BundleCapability.class);
+        when(capOther.getNamespace()).thenReturn("foo");
+        when(capOther.getAttributes()).thenReturn(Collections.<String, Object>singletonMap(
+                BundleRevision.PACKAGE_NAMESPACE, "org.foo.other"));
+        List<BundleCapability> caps = new ArrayList<BundleCapability>();
+        caps.add(capA);
+        caps.add(capB1);
+        caps.add(capB2);
+        caps.add(capSub);
+        caps.add(capOther);
+        when(mockRevisionImpl.getDeclaredCapabilities(null)).thenReturn(caps);
+
+        // org.foo.c is imported twice.
+        BundleWire wireSub = createPackageWire(createPackageCapability("org.foo.sub"));
+        BundleWire wireC1 = createPackageWire(createPackageCapability("org.foo.c"));
+        BundleWire wireC2 = createPackageWire(createPackageCapability("org.foo.c"));
+        BundleCapability bundleCap = mock(BundleCapability.class);
+        when(bundleCap.getNamespace()).thenReturn(BundleRevision.BUNDLE_NAMESPACE);
+        BundleRequirement bundleReq = mock(BundleRequirement.class);
+        when(bundleReq.getNamespace()).thenReturn(BundleRevision.BUNDLE_NAMESPACE);
+        BundleWire bundleWire = mock(BundleWire.class);
+        when(bundleWire.getCapability()).thenReturn(bundleCap);
+        when(bundleWire.getRequirement()).thenReturn(bundleReq);
+        List<BundleWire> wires = new ArrayList<BundleWire>();
+        wires.add(bundleWire);
+        wires.add(wireSub);
+        wires.add(wireC1);
+        wires.add(wireC2);
+
+        bundleWiring = new BundleWiringImpl(new Logger(), new HashMap(), mockResolver,
+                mockRevisionImpl, new ArrayList<BundleRevision>(), wires,
+                new HashMap<String, BundleRevision>(),
+                new HashMap<String, List<BundleRevision>>());
+        when(mockRevisionImpl.getWiring()).thenReturn(bundleWiring);
+
+        String[] pkgNames = { "org.foo.a", "org.foo.b", "org.foo.c", "org.foo.d",
+            "org.foo.sub", "org.foo.other", "org.foo.none" };
+        assertPackageIndex(pkgNames);
+        assertSame(capA, bundleWiring.getPackageCapability("org.foo.a"));
+        assertSame(capB1, bundleWiring.getPackageCapability("org.foo.b"));
+        assertNull(bundleWiring.getPackageCapability("org.foo.sub"));
+        assertNull(bundleWiring.getPackageCapability("org.foo.other"));
+        assertSame(wireSub, bundleWiring.getPackageWire("org.foo.sub"));
+        assertSame(wireC1, bundleWiring.getPackageWire("org.foo.c"));
+        assertNull(bundleWiring.getPackageWire("org.foo.d"));
+
+        // The index must pick up dynamic wires, also for already wired packages.
+        BundleWiringImpl providerWiring = mock(BundleWiringImpl.class);
+        when(providerWiring.getRevision()).thenReturn(mock(BundleRevision.class));
+        BundleWire wireD = createPackageWire(createPackageCapability("org.foo.d"));
+        when(wireD.getProviderWiring()).thenReturn(providerWiring);
+        bundleWiring.addDynamicWire(wireD);
+        assertPackageIndex(pkgNames);
+        assertSame(wireD, bundleWiring.getPackageWire("org.foo.d"));
+        BundleWire wireC3 = createPackageWire(createPackageCapability("org.foo.c"));
+        when(wireC3.getProviderWiring()).thenReturn(providerWiring);
+        bundleWiring.addDynamicWire(wireC3);
+        assertPackageIndex(pkgNames);
+        assertSame(wireC1, bundleWiring.getPackageWire("org.foo.c"));
+
+        // A wiring no longer in use has neither wires nor capabilities.
+        bundleWiring.dispose();
+        assertPackageIndex(pkgNames);
+        for (String pkgName : pkgNames)
+        {
+            assertNull(bundleWiring.getPackageWire(pkgName));
+            assertNull(bundleWiring.getPackageCapability(pkgName));
+        }
+    }
+
+    private void assertPackageIndex(String[] pkgNames)
+    {
+        for (String pkgName : pkgNames)
+        {
+            assertSame(pkgName, Util.getWire(mockRevisionImpl, pkgName),
+                    bundleWiring.getPackageWire(pkgName));
+            assertSame(pkgName, Util.getPackageCapability(mockRevisionImpl, pkgName),
+                    bundleWiring.getPackageCapability(pkgName));
+        }
+    }
+
+    private static BundleCapability createPackageCapability(String pkgName)
+    {
+        BundleCapability cap = mock(BundleCapability.class);
+        when(cap.getNamespace()).thenReturn(BundleRevision.PACKAGE_NAMESPACE);
+        when(cap.getAttributes()).thenReturn(Collections.<String, Object>singletonMap(
+                BundleRevision.PACKAGE_NAMESPACE, pkgName));
+        return cap;
+    }
+
+    private static BundleWire createPackageWire(BundleCapability cap)
+    {
+        BundleRequirement req = mock(BundleRequirement.class);
+        when(req.getNamespace()).thenReturn(BundleRevision.PACKAGE_NAMESPACE);
+        BundleWire wire = mock(BundleWire.class);
+        when(wire.getCapability()).thenReturn(cap);
+        when(wire.getRequirement()).thenReturn(req);
+        return wire;
+    }
+
     @Test
     public void testParallelClassload() throws Exception
     {
@@ -0,0 +1,227 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.felix.framework;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.jar.JarOutputStream;
+import java.util.jar.Manifest;
+
+import junit.framework.TestCase;
+
+import org.apache.felix.framework.util.FelixConstants;
+import org.osgi.framework.BundleEvent;
+import org.osgi.framework.BundleListener;
+import org.osgi.framework.Constants;
+import org.osgi.framework.launch.Framework;
+
+public class EventDispatchLanesTest extends TestCase
+{
+    private static final int LISTENERS = 16;
+    private static final int BUNDLES = 20;
+
+    private File cacheDir;
+
+    @Override
+    protected void setUp() throws Exception
+    {
+        super.setUp();
+        cacheDir = File.createTempFile("felix-cache", ".dir");
+        assertTrue("precondition", cacheDir.delete());
+        assertTrue("precondition", cacheDir.mkdirs());
+    }
+
+    @Override
+    protected void tearDown() throws Exception
+    {
+        super.tearDown();
+        deleteDir(cacheDir);
+    }
+
+    public void testListenersReceiveEventsInOrder() throws Exception
+    {
+        Map<String, String> params = new HashMap<String, String>();
+        String cache = cacheDir.getPath();
+        params.put("felix.cache.profiledir", cache);
+        params.put("felix.cache.dir", cache);
+        params.put(Constants.FRAMEWORK_STORAGE, cache);
+        params.put(FelixConstants.EVENT_DISPATCH_THREADS_PROP, "4");
+
+        Framework f = new Felix(params);
+        f.init();
+        f.start();
+        try
+        {
+            long delivered = EventDispatcher.getDeliveredEventCount();
+            final CountDownLatch done = new CountDownLatch(LISTENERS);
+            final Set<String> threads = Collections.synchronizedSet(new HashSet<String>());
+            List<RecordingListener> listeners = new ArrayList<RecordingListener>();
+            for (int i = 0; i < LISTENERS; i++)
+            {
+                RecordingListener l = new RecordingListener(done, threads);
+                listeners.add(l);
+                f.getBundleContext().addBundleListener(l);
+            }
+
+            List<Long> installed = new ArrayList<Long>();
+            for (int i = 0; i < BUNDLES; i++)
+            {
+                String mf = "Bundle-SymbolicName: lanes.test" + i + "\n"
+                    + "Bundle-Version: 1.0.0\n"
+                    + "Bundle-ManifestVersion: 2\n";
+                installed.add(f.getBundleContext().installBundle(
+                    createBundle(mf, cacheDir).toURI().toString()).getBundleId());
+            }
+
+            assertTrue(done.await(30, TimeUnit.SECONDS));
+            for (RecordingListener l : listeners)
+            {
+                assertEquals(installed, l.m_installed);
+            }
+            assertTrue(threads.size() > 1);
+            assertTrue(EventDispatcher.getDeliveredEventCount() - delivered >= BUNDLES);
+            assertTrue(EventDispatcher.getMaxQueueDepth() > 0);
+        }
+        finally
+        {
+            f.stop();
+            f.waitForStop(10000);
+        }
+    }
+
+    public void testIgnoredLaneCount() throws Exception
+    {
+        Framework f1 = new Felix(createConfig(new File(cacheDir, "f1"), "4"));
+        f1.init();
+        f1.start();
+        try
+        {
+            final List<String> warnings =
+                Collections.synchronizedList(new ArrayList<String>());
+            Map<String, Object> params = createConfig(new File(cacheDir, "f2"), "2");
+            params.put(FelixConstants.LOG_LEVEL_PROP, "2");
+            params.put(FelixConstants.LOG_LOGGER_PROP, new Logger()
+            {
+                @Override
+                protected void doLog(int level, String msg, Throwable throwable)
+                {
+                    if (level == LOG_WARNING)
+                    {
+                        warnings.add(msg);
+                    }
+                }
+            });
+            Framework f2 = new Felix(params);
+            f2.init();
+            f2.start();
+            f2.stop();
+            f2.waitForStop(10000);
+
+            boolean logged = false;
+            for (String warning : warnings)
+            {
+                logged |= warning.contains("Ignoring 2 event dispatch threads")
+                    && warning.contains("by the 4 threads");
+            }
+            assertTrue(warnings.toString(), logged);
+        }
+        finally
+        {
+            f1.stop();
+            f1.waitForStop(10000);
+        }
+
+        // The metrics are reset with the last lane.
+        assertEquals(0, EventDispatcher.getDeliveredEventCount());
+        assertEquals(0, EventDispatcher.getMaxQueueDepth());
+        assertEquals(0, EventDispatcher.getMaxDeliveryLatency());
+    }
+
+    private static Map<String, Object> createConfig(File cacheDir, String dispatchThreads)
+    {
+        Map<String, Object> params = new HashMap<String, Object>();
+        String cache = cacheDir.getPath();
+        params.put("felix.cache.profiledir", cache);
+        params.put("felix.cache.dir", cache);
+        params.put(Constants.FRAMEWORK_STORAGE, cache);
+        params.put(FelixConstants.EVENT_DISPATCH_THREADS_PROP, dispatchThreads);
+        return params;
+    }
+
+    private static File createBundle(String manifest, File tempDir) throws IOException
+    {
+        File f = File.createTempFile("felix-bundle", ".jar", tempDir);
+
+        Manifest mf = new Manifest(new ByteArrayInputStream(manifest.getBytes("utf-8")));
+        mf.getMainAttributes().putValue("Manifest-Version", "1.0");
+        JarOutputStream os = new JarOutputStream(new FileOutputStream(f), mf);
+        os.close();
+        return f;
+    }
+
+    private static void deleteDir(File root) throws IOException
+    {
+        if (root.isDirectory())
+        {
+            for (File file : root.listFiles())
+            {
+                deleteDir(file);
+            }
+        }
+        root.delete();
+    }
+
+    private static class RecordingListener implements BundleListener
+    {
+        private final CountDownLatch m_done;
+        private final Set<String> m_threads;
+        private final List<Long> m_installed = new ArrayList<Long>();
+
+        RecordingListener(CountDownLatch done, Set<String> threads)
+        {
+            m_done = done;
+            m_threads = threads;
+        }
+
+        @Override
+        public void bundleChanged(BundleEvent event)
+        {
+            if (event.getType() == BundleEvent.INSTALLED)
+            {
+                m_threads.add(Thread.currentThread().getName());
+                m_installed.add(event.getBundle().getBundleId());
+                if (m_installed.size() == BUNDLES)
+                {
+                    m_done.countDown();
+                }
+            }
+        }
+    }
+}
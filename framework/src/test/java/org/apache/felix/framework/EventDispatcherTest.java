@@ -23,9 +23,11 @@ import java.util.*;
 import junit.framework.TestCase;
 
 import org.easymock.EasyMock;
+import org.osgi.framework.AllServiceListener;
 import org.osgi.framework.Bundle;
 import org.osgi.framework.BundleContext;
 import org.osgi.framework.Constants;
+import org.osgi.framework.FrameworkUtil;
 import org.osgi.framework.ServiceEvent;
 import org.osgi.framework.ServiceListener;
 import org.osgi.framework.ServiceReference;
@@ -137,6 +139,102 @@ public class EventDispatcherTest extends TestCase
         assertTrue(calledHooks.contains(eh2));
     }
 
+    public void testFireServiceEventIndexed() throws Exception
+    {
+        final Bundle b1 = getMockBundle();
+        final Bundle b2 = getMockBundle();
+
+        Logger logger = new Logger();
+        ServiceRegistry registry = new ServiceRegistry(logger, null);
+        EventDispatcher ed = new EventDispatcher(logger, registry);
+
+        final List fired = Collections.synchronizedList(new ArrayList());
+        AllServiceListener slString = new RecordingListener(fired);
+        ed.addListener(b1.getBundleContext(), ServiceListener.class, slString,
+            FrameworkUtil.createFilter("(objectClass=java.lang.String)"));
+        AllServiceListener slInteger = new RecordingListener(fired);
+        ed.addListener(b1.getBundleContext(), ServiceListener.class, slInteger,
+            FrameworkUtil.createFilter("(&(objectClass=java.lang.Integer)(foo=bar))"));
+        AllServiceListener slEither = new RecordingListener(fired);
+        ed.addListener(b2.getBundleContext(), ServiceListener.class, slEither,
+            FrameworkUtil.createFilter("(|(objectClass=java.lang.String)(objectClass=java.lang.Integer))"));
+        AllServiceListener slAll = new RecordingListener(fired);
+        ed.addListener(b2.getBundleContext(), ServiceListener.class, slAll, null);
+        AllServiceListener slFoo = new RecordingListener(fired);
+        ed.addListener(b2.getBundleContext(), ServiceListener.class, slFoo,
+            FrameworkUtil.createFilter("(foo=bar)"));
+
+        Felix framework = new Felix(new HashMap());
+
+        ServiceReference sr = getMockServiceReference(
+            new String[] { "java.lang.String", "java.lang.Integer" }, null);
+        ed.fireServiceEvent(new ServiceEvent(ServiceEvent.REGISTERED, sr), null, framework);
+        assertEquals(3, fired.size());
+        assertTrue(fired.contains(slString));
+        assertTrue(fired.contains(slEither));
+        assertTrue(fired.contains(slAll));
+
+        fired.clear();
+        sr = getMockServiceReference(new String[] { "java.lang.Integer" }, "bar");
+        ed.fireServiceEvent(new ServiceEvent(ServiceEvent.REGISTERED, sr), null, framework);
+        assertEquals(4, fired.size());
+        assertTrue(fired.contains(slInteger));
+        assertTrue(fired.contains(slEither));
+        assertTrue(fired.contains(slAll));
+        assertTrue(fired.contains(slFoo));
+
+        // A listener that matched the old properties gets MODIFIED_ENDMATCH.
+        fired.clear();
+        sr = getMockServiceReference(new String[] { "java.lang.Integer" }, "baz");
+        Hashtable oldProps = new Hashtable();
+        oldProps.put(Constants.OBJECTCLASS, new String[] { "java.lang.Integer" });
+        oldProps.put("foo", "bar");
+        ed.fireServiceEvent(new ServiceEvent(ServiceEvent.MODIFIED, sr), oldProps, framework);
+        assertEquals(4, fired.size());
+        assertTrue(fired.contains(slInteger));
+        assertTrue(fired.contains(slFoo));
+
+        // Updating the filter must move the listener in the index.
+        fired.clear();
+        ed.addListener(b1.getBundleContext(), ServiceListener.class, slString,
+            FrameworkUtil.createFilter("(objectClass=java.lang.Long)"));
+        ed.removeListener(b2.getBundleContext(), ServiceListener.class, slEither);
+        ed.removeListeners(b2.getBundleContext());
+        sr = getMockServiceReference(new String[] { "java.lang.String" }, null);
+        ed.fireServiceEvent(new ServiceEvent(ServiceEvent.REGISTERED, sr), null, framework);
+        assertEquals(0, fired.size());
+        sr = getMockServiceReference(new String[] { "java.lang.Long" }, null);
+        ed.fireServiceEvent(new ServiceEvent(ServiceEvent.REGISTERED, sr), null, framework);
+        assertEquals(1, fired.size());
+        assertSame(slString, fired.get(0));
+    }
+
+    private ServiceReference getMockServiceReference(String[] objectClass, String foo)
+    {
+        ServiceReference sr = EasyMock.createNiceMock(ServiceReference.class);
+        EasyMock.expect(sr.getProperty(Constants.OBJECTCLASS)).andReturn(objectClass).anyTimes();
+        EasyMock.expect(sr.getProperty("foo")).andReturn(foo).anyTimes();
+        EasyMock.expect(sr.getPropertyKeys()).andReturn(
+            new String[] { Constants.OBJECTCLASS, "foo" }).anyTimes();
+        EasyMock.replay(new Object[] { sr });
+        return sr;
+    }
+
+    private static class RecordingListener implements AllServiceListener
+    {
+        private final List m_fired;
+
+        RecordingListener(List fired)
+        {
+            m_fired = fired;
+        }
+
+        public void serviceChanged(ServiceEvent event)
+        {
+            m_fired.add(this);
+        }
+    }
+
     private Bundle getMockBundle()
     {
         BundleContext bc = EasyMock.createNiceMock(BundleContext.class);
@@ -92,6 +92,73 @@ public class FilterTest extends TestCase
         assertTrue(filter.match(createTestDict(linkedList)));
     }
 
+    public void testOperandCoercedPerType() throws InvalidSyntaxException
+    {
+        // The same filter is compared with values of different types, each
+        // of which needs its own coerced operand.
+        Filter filter = new FilterImpl("(value>=10)");
+        assertTrue(filter.matches(Collections.singletonMap("value", 11)));
+        assertTrue(filter.matches(Collections.singletonMap("value", 10L)));
+        assertFalse(filter.matches(Collections.singletonMap("value", 9)));
+        assertFalse(filter.matches(Collections.singletonMap("value", "09")));
+        assertTrue(filter.matches(Collections.singletonMap("value", 10.5d)));
+        assertTrue(filter.matches(Collections.singletonMap("value", new int[] { 3, 12 })));
+        assertFalse(filter.matches(Collections.singletonMap("value", new long[] { 3L, 4L })));
+        assertTrue(filter.matches(Collections.singletonMap("value", Arrays.asList("x", 11))));
+        assertFalse(filter.matches(Collections.singletonMap("value", '0')));
+        assertTrue(filter.matches(Collections.singletonMap("value", 12)));
+    }
+
+    public void testEvaluationOrder() throws InvalidSyntaxException
+    {
+        // Sub-filters are evaluated cheapest first, which must not change
+        // the result.
+        Filter filter = new FilterImpl(
+            "(|(&(name=a*c)(!(size<=3))(size=*))(&(name~=X Y)(size=5)))");
+        Dictionary<String, Object> dict = new Hashtable<String, Object>();
+        dict.put("name", "abc");
+        dict.put("size", 4);
+        assertTrue(filter.match(dict));
+        dict.put("size", 3);
+        assertFalse(filter.match(dict));
+        dict.put("name", " x  y");
+        assertFalse(filter.match(dict));
+        dict.put("size", 5);
+        assertTrue(filter.match(dict));
+        dict.put("name", "xy z");
+        assertFalse(filter.match(dict));
+        assertEquals("(|(&(name=a*c)(!(size<=3))(size=*))(&(name~=X Y)(size=5)))",
+            filter.toString());
+    }
+
+    public void testSharedFilters() throws InvalidSyntaxException
+    {
+        Filter filter1 = new FilterImpl("(&(a=1)(b>=2))");
+        Filter filter2 = new FilterImpl("(&(a=1)(b>=2))");
+        assertEquals(filter1, filter2);
+        assertEquals(filter1.hashCode(), filter2.hashCode());
+
+        Dictionary<String, Object> dict = new Hashtable<String, Object>();
+        dict.put("a", 1);
+        dict.put("b", 2L);
+        assertTrue(filter1.match(dict));
+        dict.put("b", "1");
+        assertFalse(filter2.match(dict));
+    }
+
+    public void testOperandNotKeptForBundleTypes() throws InvalidSyntaxException
+    {
+        // Filters are shared, so an operand coerced to a type that may come
+        // from a bundle must not be kept on the filter.
+        Filter filter = new FilterImpl("(value=abc)");
+        Value value = new Value("abc");
+        Value.s_created = 0;
+        assertTrue(filter.matches(Collections.singletonMap("value", value)));
+        assertTrue(filter.matches(Collections.singletonMap("value", value)));
+        assertFalse(filter.matches(Collections.singletonMap("value", new Value("abd"))));
+        assertEquals(4, Value.s_created);
+    }
+
     private static Dictionary<String, Object> createTestDict(Object o)
     {
         Hashtable<String, Object> dictionary = new Hashtable<String, Object>();
@@ -100,4 +167,26 @@ public class FilterTest extends TestCase
         return dictionary;
     }
 
+    public static class Value
+    {
+        static int s_created;
+
+        private final String m_value;
+
+        public Value(String value)
+        {
+            m_value = value;
+            s_created++;
+        }
+
+        public boolean equals(Object o)
+        {
+            return (o instanceof Value) && m_value.equals(((Value) o).m_value);
+        }
+
+        public int hashCode()
+        {
+            return m_value.hashCode();
+        }
+    }
 }
@@ -0,0 +1,237 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.felix.framework;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.jar.JarOutputStream;
+import java.util.jar.Manifest;
+
+import junit.framework.TestCase;
+
+import org.apache.felix.framework.cache.BundleCache;
+import org.apache.felix.framework.wiring.BundleRequirementImpl;
+import org.osgi.framework.Bundle;
+import org.osgi.framework.Constants;
+import org.osgi.framework.wiring.BundleCapability;
+import org.osgi.framework.wiring.BundleRequirement;
+import org.osgi.framework.wiring.BundleRevision;
+
+public class ManifestCacheTest extends TestCase
+{
+    private static final String MANIFEST = "Bundle-SymbolicName: cache.test;singleton:=true\n"
+        + "Bundle-Version: 1.2.3\n"
+        + "Bundle-ManifestVersion: 2\n"
+        + "Bundle-ActivationPolicy: lazy;include:=\"cache.test.a\"\n"
+        + "Export-Package: cache.test.a;version=\"1.1\";uses:=\"org.osgi.framework\","
+        + "cache.test.b;mandatory:=vendor;vendor=felix\n"
+        + "Import-Package: org.osgi.framework;version=\"[1.5,2)\","
+        + "org.foo;resolution:=optional\n"
+        + "Require-Capability: osgi.ee;filter:=\"(|(&(osgi.ee=JavaSE)(version>=1.8))(x=a*b*c))\"\n"
+        + "Provide-Capability: cache.test;cache.test=x;count:Long=5;ratio:Double=0.5;"
+        + "names:List<String>=\"a,b\";v:Version=2.0\n";
+
+    private File tempDir;
+    private File cacheDir;
+
+    @Override
+    protected void setUp() throws Exception
+    {
+        super.setUp();
+        tempDir = File.createTempFile("felix-temp", ".dir");
+        assertTrue("precondition", tempDir.delete());
+        assertTrue("precondition", tempDir.mkdirs());
+
+        cacheDir = new File(tempDir, "felix-cache");
+        assertTrue("precondition", cacheDir.mkdir());
+    }
+
+    @Override
+    protected void tearDown() throws Exception
+    {
+        super.tearDown();
+        deleteDir(tempDir);
+    }
+
+    public void testRestartUsesCachedManifest() throws Exception
+    {
+        Felix felix = new Felix(getParams());
+        felix.init();
+        felix.start();
+        List<String> caps;
+        List<String> reqs;
+        File cacheFile;
+        try
+        {
+            Bundle bundle = felix.getBundleContext().installBundle(
+                createBundle(MANIFEST, "bundle.jar").toURI().toString());
+            BundleRevisionImpl revision = (BundleRevisionImpl) bundle.adapt(BundleRevision.class);
+            caps = describeCapabilities(revision);
+            reqs = describeRequirements(revision);
+            cacheFile = new File(((BundleImpl) bundle).getArchive().getCurrentRevision()
+                .getRevisionRootDir(), ManifestCache.CACHE_FILE_NAME);
+        }
+        finally
+        {
+            felix.stop();
+            felix.waitForStop(10000);
+        }
+        assertTrue(cacheFile.isFile());
+        // A cache miss would rewrite the file.
+        assertTrue(cacheFile.setLastModified(1000));
+
+        felix = new Felix(getParams());
+        felix.init();
+        felix.start();
+        try
+        {
+            Bundle bundle = felix.getBundleContext().getBundle(1);
+            BundleRevisionImpl revision = (BundleRevisionImpl) bundle.adapt(BundleRevision.class);
+            assertEquals("cache.test", revision.getSymbolicName());
+            assertEquals("1.2.3", revision.getVersion().toString());
+            assertEquals("2", revision.getManifestVersion());
+            assertEquals(BundleRevisionImpl.LAZY_ACTIVATION, revision.getDeclaredActivationPolicy());
+            assertTrue(revision.isActivationTrigger("cache.test.a"));
+            assertFalse(revision.isActivationTrigger("cache.test.b"));
+            assertEquals("1.2.3", bundle.getHeaders().get(Constants.BUNDLE_VERSION));
+            assertEquals(caps, describeCapabilities(revision));
+            assertEquals(reqs, describeRequirements(revision));
+
+            for (BundleCapability cap : revision.getDeclaredCapabilities(null))
+            {
+                assertSame(revision, cap.getRevision());
+            }
+            bundle.start(Bundle.START_ACTIVATION_POLICY);
+            assertEquals(Bundle.STARTING, bundle.getState());
+            assertEquals(1000, cacheFile.lastModified());
+        }
+        finally
+        {
+            felix.stop();
+            felix.waitForStop(10000);
+        }
+    }
+
+    public void testChangedJarInvalidatesCache() throws Exception
+    {
+        File jar = createBundle(MANIFEST, "bundle.jar");
+        Felix felix = new Felix(getParams());
+        felix.init();
+        felix.start();
+        try
+        {
+            felix.getBundleContext().installBundle("reference:" + jar.toURI().toString());
+        }
+        finally
+        {
+            felix.stop();
+            felix.waitForStop(10000);
+        }
+
+        createBundle(MANIFEST.replace("1.2.3", "1.2.4"), "bundle.jar");
+        assertTrue(jar.setLastModified(jar.lastModified() + 10000));
+
+        felix = new Felix(getParams());
+        felix.init();
+        felix.start();
+        try
+        {
+            Bundle bundle = felix.getBundleContext().getBundle(1);
+            assertEquals("1.2.4", bundle.getVersion().toString());
+            assertEquals("1.2.4", bundle.getHeaders().get(Constants.BUNDLE_VERSION));
+        }
+        finally
+        {
+            felix.stop();
+            felix.waitForStop(10000);
+        }
+    }
+
+    private static List<String> describeCapabilities(BundleRevision revision)
+    {
+        List<String> result = new ArrayList<String>();
+        for (BundleCapability cap : revision.getDeclaredCapabilities(null))
+        {
+            result.add(cap.getNamespace() + cap.getDirectives() + cap.getAttributes()
+                + typesOf(cap.getAttributes()));
+        }
+        return result;
+    }
+
+    private static List<String> describeRequirements(BundleRevision revision)
+    {
+        List<String> result = new ArrayList<String>();
+        for (BundleRequirement req : revision.getDeclaredRequirements(null))
+        {
+            result.add(req.getNamespace() + req.getDirectives() + req.getAttributes()
+                + ((BundleRequirementImpl) req).getFilter());
+        }
+        return result;
+    }
+
+    private static List<String> typesOf(Map<String, Object> attrs)
+    {
+        List<String> types = new ArrayList<String>();
+        for (Object value : attrs.values())
+        {
+            types.add(value.getClass().getName());
+        }
+        return types;
+    }
+
+    private Map<String, String> getParams()
+    {
+        String cache = cacheDir.getPath();
+        Map<String, String> params = new HashMap<String, String>();
+        params.put("felix.cache.profiledir", cache);
+        params.put("felix.cache.dir", cache);
+        params.put(Constants.FRAMEWORK_STORAGE, cache);
+        params.put(BundleCache.CACHE_MANIFEST_PROP, "true");
+        return params;
+    }
+
+    private File createBundle(String manifest, String name) throws IOException
+    {
+        File f = new File(tempDir, name);
+
+        Manifest mf = new Manifest(new ByteArrayInputStream(manifest.getBytes("utf-8")));
+        mf.getMainAttributes().putValue("Manifest-Version", "1.0");
+        JarOutputStream os = new JarOutputStream(new FileOutputStream(f), mf);
+        os.close();
+        return f;
+    }
+
+    private static void deleteDir(File root) throws IOException
+    {
+        if (root.isDirectory())
+        {
+            for (File file : root.listFiles())
+            {
+                deleteDir(file);
+            }
+        }
+        root.delete();
+    }
+}
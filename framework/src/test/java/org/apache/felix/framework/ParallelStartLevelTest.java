@@ -0,0 +1,179 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.felix.framework;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.jar.JarOutputStream;
+import java.util.jar.Manifest;
+import java.util.zip.ZipEntry;
+
+import junit.framework.TestCase;
+
+import org.apache.felix.framework.util.FelixConstants;
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleActivator;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.Constants;
+import org.osgi.framework.FrameworkEvent;
+import org.osgi.framework.FrameworkListener;
+import org.osgi.framework.launch.Framework;
+import org.osgi.framework.startlevel.BundleStartLevel;
+import org.osgi.framework.startlevel.FrameworkStartLevel;
+
+public class ParallelStartLevelTest extends TestCase
+{
+    private static final String LATCH_KEY = ParallelStartLevelTest.class.getName() + ".latch";
+    private static final int BUNDLES = 4;
+
+    private File cacheDir;
+
+    @Override
+    protected void setUp() throws Exception
+    {
+        super.setUp();
+        cacheDir = File.createTempFile("felix-cache", ".dir");
+        assertTrue("precondition", cacheDir.delete());
+        assertTrue("precondition", cacheDir.mkdirs());
+    }
+
+    @Override
+    protected void tearDown() throws Exception
+    {
+        super.tearDown();
+        System.getProperties().remove(LATCH_KEY);
+        deleteDir(cacheDir);
+    }
+
+    public void testBundlesOfStartLevelStartConcurrently() throws Exception
+    {
+        // Each activator waits until all bundles of the start level are
+        // being started, which only succeeds if they are started concurrently.
+        System.getProperties().put(LATCH_KEY, new CountDownLatch(BUNDLES));
+
+        Map<String, String> params = new HashMap<String, String>();
+        String cache = cacheDir.getPath();
+        params.put("felix.cache.profiledir", cache);
+        params.put("felix.cache.dir", cache);
+        params.put(Constants.FRAMEWORK_STORAGE, cache);
+        params.put(FelixConstants.STARTLEVEL_PARALLELISM_PROP, Integer.toString(BUNDLES));
+
+        Framework f = new Felix(params);
+        f.init();
+        f.start();
+        try
+        {
+            List<Bundle> bundles = new ArrayList<Bundle>();
+            for (int i = 0; i < BUNDLES; i++)
+            {
+                String mf = "Bundle-SymbolicName: parallel.test" + i + "\n"
+                    + "Bundle-Version: 1.0.0\n"
+                    + "Bundle-ManifestVersion: 2\n"
+                    + "Import-Package: org.osgi.framework\n";
+                Bundle bundle = f.getBundleContext().installBundle(
+                    createBundle(mf, cacheDir).toURI().toString());
+                bundle.adapt(BundleStartLevel.class).setStartLevel(2);
+                bundle.start();
+                assertTrue(bundle.getState() != Bundle.ACTIVE);
+                bundles.add(bundle);
+            }
+
+            final CountDownLatch changed = new CountDownLatch(1);
+            f.adapt(FrameworkStartLevel.class).setStartLevel(2, new FrameworkListener()
+            {
+                public void frameworkEvent(FrameworkEvent event)
+                {
+                    changed.countDown();
+                }
+            });
+            assertTrue(changed.await(30, TimeUnit.SECONDS));
+
+            for (Bundle bundle : bundles)
+            {
+                assertEquals(Bundle.ACTIVE, bundle.getState());
+            }
+        }
+        finally
+        {
+            f.stop();
+            f.waitForStop(10000);
+        }
+    }
+
+    private static File createBundle(String manifest, File tempDir) throws IOException
+    {
+        File f = File.createTempFile("felix-bundle", ".jar", tempDir);
+
+        Manifest mf = new Manifest(new ByteArrayInputStream(manifest.getBytes("utf-8")));
+        mf.getMainAttributes().putValue("Manifest-Version", "1.0");
+        mf.getMainAttributes().putValue(Constants.BUNDLE_ACTIVATOR, TestBundleActivator.class.getName());
+        JarOutputStream os = new JarOutputStream(new FileOutputStream(f), mf);
+
+        String path = TestBundleActivator.class.getName().replace('.', '/') + ".class";
+        os.putNextEntry(new ZipEntry(path));
+
+        InputStream is = TestBundleActivator.class.getClassLoader().getResourceAsStream(path);
+        byte[] b = new byte[is.available()];
+        is.read(b);
+        is.close();
+        os.write(b);
+
+        os.close();
+        return f;
+    }
+
+    private static void deleteDir(File root) throws IOException
+    {
+        if (root.isDirectory())
+        {
+            for (File file : root.listFiles())
+            {
+                deleteDir(file);
+            }
+        }
+        root.delete();
+    }
+
+    public static class TestBundleActivator implements BundleActivator
+    {
+        public void start(BundleContext context) throws Exception
+        {
+            CountDownLatch latch = (CountDownLatch) System.getProperties().get(
+                "org.apache.felix.framework.ParallelStartLevelTest.latch");
+            latch.countDown();
+            if (!latch.await(10, TimeUnit.SECONDS))
+            {
+                throw new IllegalStateException("Bundles not started concurrently.");
+            }
+        }
+
+        public void stop(BundleContext context) throws Exception
+        {
+        }
+    }
+}
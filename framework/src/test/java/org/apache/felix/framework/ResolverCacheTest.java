@@ -0,0 +1,193 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.felix.framework;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.jar.JarOutputStream;
+import java.util.jar.Manifest;
+
+import junit.framework.TestCase;
+
+import org.apache.felix.framework.util.FelixConstants;
+import org.osgi.framework.Bundle;
+import org.osgi.framework.Constants;
+import org.osgi.framework.wiring.BundleRevision;
+import org.osgi.framework.wiring.BundleWire;
+import org.osgi.framework.wiring.BundleWiring;
+import org.osgi.framework.wiring.FrameworkWiring;
+
+public class ResolverCacheTest extends TestCase
+{
+    private File tempDir;
+    private File cacheDir;
+
+    @Override
+    protected void setUp() throws Exception
+    {
+        super.setUp();
+        tempDir = File.createTempFile("felix-temp", ".dir");
+        assertTrue("precondition", tempDir.delete());
+        assertTrue("precondition", tempDir.mkdirs());
+
+        cacheDir = new File(tempDir, "felix-cache");
+        assertTrue("precondition", cacheDir.mkdir());
+    }
+
+    @Override
+    protected void tearDown() throws Exception
+    {
+        super.tearDown();
+        deleteDir(tempDir);
+    }
+
+    public void testRestartReusesWiring() throws Exception
+    {
+        String emf = "Bundle-SymbolicName: cache.exporter\n"
+            + "Bundle-Version: 1.0.0\n"
+            + "Bundle-ManifestVersion: 2\n"
+            + "Export-Package: org.foo.bar;version=\"1.0.0\"\n";
+        String imf = "Bundle-SymbolicName: cache.importer\n"
+            + "Bundle-Version: 1.0.0\n"
+            + "Bundle-ManifestVersion: 2\n"
+            + "Import-Package: org.foo.bar\n";
+
+        Felix felix = createFramework();
+        try
+        {
+            felix.getBundleContext().installBundle(createBundle(emf).toURI().toASCIIString());
+            felix.getBundleContext().installBundle(createBundle(imf).toURI().toASCIIString());
+            assertTrue(felix.adapt(FrameworkWiring.class).resolveBundles(null));
+            assertEquals(0, felix.getResolver().getResolverCache().getHits());
+        }
+        finally
+        {
+            felix.stop();
+            felix.waitForStop(10000);
+        }
+        assertTrue(new File(new File(cacheDir, "bundle0"), ResolverCache.CACHE_FILE_NAME).isFile());
+
+        felix = createFramework();
+        try
+        {
+            assertTrue(felix.adapt(FrameworkWiring.class).resolveBundles(null));
+            assertEquals(1, felix.getResolver().getResolverCache().getHits());
+
+            Bundle exporter = null;
+            Bundle importer = null;
+            for (Bundle b : felix.getBundleContext().getBundles())
+            {
+                if ("cache.exporter".equals(b.getSymbolicName()))
+                {
+                    exporter = b;
+                }
+                else if ("cache.importer".equals(b.getSymbolicName()))
+                {
+                    importer = b;
+                }
+            }
+            assertEquals(Bundle.RESOLVED, exporter.getState());
+            assertEquals(Bundle.RESOLVED, importer.getState());
+
+            List<BundleWire> wires = importer.adapt(BundleWiring.class)
+                .getRequiredWires(BundleRevision.PACKAGE_NAMESPACE);
+            assertEquals(1, wires.size());
+            boolean found = false;
+            for (BundleWire wire : wires)
+            {
+                if ("org.foo.bar".equals(wire.getCapability().getAttributes()
+                    .get(BundleRevision.PACKAGE_NAMESPACE)))
+                {
+                    assertSame(exporter, wire.getProvider().getBundle());
+                    found = true;
+                }
+            }
+            assertTrue(found);
+        }
+        finally
+        {
+            felix.stop();
+            felix.waitForStop(10000);
+        }
+
+        // A changed configuration must not reuse the stored wiring.
+        Map<String, String> params = getParams();
+        params.put(Constants.FRAMEWORK_SYSTEMPACKAGES_EXTRA, "org.foo.extra");
+        felix = new Felix(params);
+        felix.init();
+        felix.start();
+        try
+        {
+            assertTrue(felix.adapt(FrameworkWiring.class).resolveBundles(null));
+            assertEquals(0, felix.getResolver().getResolverCache().getHits());
+        }
+        finally
+        {
+            felix.stop();
+            felix.waitForStop(10000);
+        }
+    }
+
+    private Felix createFramework() throws Exception
+    {
+        Felix felix = new Felix(getParams());
+        felix.init();
+        felix.start();
+        return felix;
+    }
+
+    private Map<String, String> getParams()
+    {
+        String cache = cacheDir.getPath();
+        Map<String, String> params = new HashMap<String, String>();
+        params.put("felix.cache.profiledir", cache);
+        params.put("felix.cache.dir", cache);
+        params.put(Constants.FRAMEWORK_STORAGE, cache);
+        params.put(FelixConstants.RESOLVER_CACHE_PROP, "true");
+        return params;
+    }
+
+    private File createBundle(String manifest) throws IOException
+    {
+        File f = File.createTempFile("felix-bundle", ".jar", tempDir);
+
+        Manifest mf = new Manifest(new ByteArrayInputStream(manifest.getBytes("utf-8")));
+        mf.getMainAttributes().putValue("Manifest-Version", "1.0");
+        JarOutputStream os = new JarOutputStream(new FileOutputStream(f), mf);
+        os.close();
+        return f;
+    }
+
+    private static void deleteDir(File root) throws IOException
+    {
+        if (root.isDirectory())
+        {
+            for (File file : root.listFiles())
+            {
+                deleteDir(file);
+            }
+        }
+        root.delete();
+    }
+}
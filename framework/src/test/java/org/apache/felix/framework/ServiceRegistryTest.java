@@ -31,6 +31,7 @@ import java.util.Hashtable;
 import java.util.List;
 import java.util.Observable;
 import java.util.Observer;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.atomic.AtomicBoolean;
@@ -450,9 +451,9 @@ public class ServiceRegistryTest extends TestCase
 
         assertSame(svc, sr.getService(b, ref, true));
 
-        final ConcurrentMap<Bundle, UsageCount[]> inUseMap =
-                (ConcurrentMap<Bundle, UsageCount[]>) getPrivateField(sr, "m_inUseMap");
-        UsageCount[] uca = inUseMap.get(b);
+        final ConcurrentMap<Bundle, ConcurrentMap<ServiceReference<?>, UsageCount[]>> inUseMap =
+                (ConcurrentMap<Bundle, ConcurrentMap<ServiceReference<?>, UsageCount[]>>) getPrivateField(sr, "m_inUseMap");
+        UsageCount[] uca = inUseMap.get(b).get(ref);
         assertEquals(1, uca.length);
         assertEquals(1, uca[0].m_serviceObjectsCount.get());
 
@@ -517,13 +518,13 @@ public class ServiceRegistryTest extends TestCase
         ServiceReferenceImpl ref = Mockito.mock(ServiceReferenceImpl.class);
         Mockito.when(ref.getRegistration()).thenReturn(reg);
 
-        final ConcurrentMap<Bundle, UsageCount[]> inUseMap =
-                (ConcurrentMap<Bundle, UsageCount[]>) getPrivateField(sr, "m_inUseMap");
+        final ConcurrentMap<Bundle, ConcurrentMap<ServiceReference<?>, UsageCount[]>> inUseMap =
+                (ConcurrentMap<Bundle, ConcurrentMap<ServiceReference<?>, UsageCount[]>>) getPrivateField(sr, "m_inUseMap");
 
         UsageCount uc = new UsageCount(ref, false);
         uc.m_svcHolderRef.set(new ServiceHolder());
 
-        inUseMap.put(b, new UsageCount[] {uc});
+        putUsages(inUseMap, b, uc);
 
         assertFalse(sr.ungetService(b, ref, null));
         assertNull(uc.m_svcHolderRef.get());
@@ -540,8 +541,8 @@ public class ServiceRegistryTest extends TestCase
         ServiceReferenceImpl ref = Mockito.mock(ServiceReferenceImpl.class);
         Mockito.when(ref.getRegistration()).thenReturn(reg);
 
-        final ConcurrentMap<Bundle, UsageCount[]> inUseMap =
-                (ConcurrentMap<Bundle, UsageCount[]>) getPrivateField(sr, "m_inUseMap");
+        final ConcurrentMap<Bundle, ConcurrentMap<ServiceReference<?>, UsageCount[]>> inUseMap =
+                (ConcurrentMap<Bundle, ConcurrentMap<ServiceReference<?>, UsageCount[]>>) getPrivateField(sr, "m_inUseMap");
 
         UsageCount uc = new UsageCount(ref, false);
         ServiceHolder sh = new ServiceHolder();
@@ -552,7 +553,7 @@ public class ServiceRegistryTest extends TestCase
 
         Mockito.verify(reg, Mockito.never()).
             ungetService(Mockito.isA(Bundle.class), Mockito.any());
-        inUseMap.put(b, new UsageCount[] {uc});
+        putUsages(inUseMap, b, uc);
 
         assertTrue(sr.ungetService(b, ref, null));
         assertNull(uc.m_svcHolderRef.get());
@@ -573,18 +574,18 @@ public class ServiceRegistryTest extends TestCase
         ServiceReferenceImpl ref = Mockito.mock(ServiceReferenceImpl.class);
         Mockito.when(ref.getRegistration()).thenReturn(reg);
 
-        final ConcurrentMap<Bundle, UsageCount[]> inUseMap =
-                (ConcurrentMap<Bundle, UsageCount[]>) getPrivateField(sr, "m_inUseMap");
+        final ConcurrentMap<Bundle, ConcurrentMap<ServiceReference<?>, UsageCount[]>> inUseMap =
+                (ConcurrentMap<Bundle, ConcurrentMap<ServiceReference<?>, UsageCount[]>>) getPrivateField(sr, "m_inUseMap");
 
         UsageCount uc = new UsageCount(ref, false);
         uc.m_svcHolderRef.set(new ServiceHolder());
         uc.m_count.set(2);
 
-        inUseMap.put(b, new UsageCount[] {uc});
+        putUsages(inUseMap, b, uc);
 
         assertTrue(sr.ungetService(b, ref, null));
         assertNotNull(uc.m_svcHolderRef.get());
-        assertNotNull(inUseMap.get(b));
+        assertNotNull(inUseMap.get(b).get(ref));
 
         Mockito.verify(reg, Mockito.never()).
             ungetService(Mockito.isA(Bundle.class), Mockito.any());
@@ -602,14 +603,14 @@ public class ServiceRegistryTest extends TestCase
         ServiceReferenceImpl ref = Mockito.mock(ServiceReferenceImpl.class);
         Mockito.when(ref.getRegistration()).thenReturn(reg);
 
-        final ConcurrentMap<Bundle, UsageCount[]> inUseMap =
-                (ConcurrentMap<Bundle, UsageCount[]>) getPrivateField(sr, "m_inUseMap");
+        final ConcurrentMap<Bundle, ConcurrentMap<ServiceReference<?>, UsageCount[]>> inUseMap =
+                (ConcurrentMap<Bundle, ConcurrentMap<ServiceReference<?>, UsageCount[]>>) getPrivateField(sr, "m_inUseMap");
 
         UsageCount uc = new UsageCount(ref, false);
         uc.m_svcHolderRef.set(new ServiceHolder());
         uc.m_count.set(2);
 
-        inUseMap.put(b, new UsageCount[] {uc});
+        putUsages(inUseMap, b, uc);
 
         assertTrue(sr.ungetService(b, ref, null));
         assertNull(uc.m_svcHolderRef.get());
@@ -631,8 +632,8 @@ public class ServiceRegistryTest extends TestCase
         ServiceReferenceImpl ref = Mockito.mock(ServiceReferenceImpl.class);
         Mockito.when(ref.getRegistration()).thenReturn(reg);
 
-        final ConcurrentMap<Bundle, UsageCount[]> inUseMap =
-                (ConcurrentMap<Bundle, UsageCount[]>) getPrivateField(sr, "m_inUseMap");
+        final ConcurrentMap<Bundle, ConcurrentMap<ServiceReference<?>, UsageCount[]>> inUseMap =
+                (ConcurrentMap<Bundle, ConcurrentMap<ServiceReference<?>, UsageCount[]>>) getPrivateField(sr, "m_inUseMap");
 
         String svc = "myService";
         UsageCount uc = new UsageCount(ref, false);
@@ -642,7 +643,7 @@ public class ServiceRegistryTest extends TestCase
         uc.m_svcHolderRef.set(sh);
         uc.m_count.set(1);
 
-        inUseMap.put(b, new UsageCount[] {uc});
+        putUsages(inUseMap, b, uc);
 
         try
         {
@@ -704,7 +705,7 @@ public class ServiceRegistryTest extends TestCase
         ServiceRegistry sr = new ServiceRegistry(null, null);
 
         @SuppressWarnings("unchecked")
-        ConcurrentMap<Bundle, UsageCount[]> inUseMap = (ConcurrentMap<Bundle, UsageCount[]>) getPrivateField(sr, "m_inUseMap");
+        ConcurrentMap<Bundle, ConcurrentMap<ServiceReference<?>, UsageCount[]>> inUseMap = (ConcurrentMap<Bundle, ConcurrentMap<ServiceReference<?>, UsageCount[]>>) getPrivateField(sr, "m_inUseMap");
 
         assertEquals("Precondition", 0, inUseMap.size());
 
@@ -712,8 +713,8 @@ public class ServiceRegistryTest extends TestCase
         ServiceReference<?> ref = Mockito.mock(ServiceReference.class);
         UsageCount uc = sr.obtainUsageCount(b, ref, null, false);
         assertEquals(1, inUseMap.size());
-        assertEquals(1, inUseMap.get(b).length);
-        assertSame(uc, inUseMap.get(b)[0]);
+        assertEquals(1, getUsages(inUseMap, b).length);
+        assertSame(uc, getUsages(inUseMap, b)[0]);
         assertSame(ref, uc.m_ref);
         assertFalse(uc.m_prototype);
 
@@ -731,19 +732,19 @@ public class ServiceRegistryTest extends TestCase
         ServiceRegistry sr = new ServiceRegistry(null, null);
 
         @SuppressWarnings("unchecked")
-        ConcurrentMap<Bundle, UsageCount[]> inUseMap = (ConcurrentMap<Bundle, UsageCount[]>) getPrivateField(sr, "m_inUseMap");
+        ConcurrentMap<Bundle, ConcurrentMap<ServiceReference<?>, UsageCount[]>> inUseMap = (ConcurrentMap<Bundle, ConcurrentMap<ServiceReference<?>, UsageCount[]>>) getPrivateField(sr, "m_inUseMap");
 
         Bundle b = Mockito.mock(Bundle.class);
         ServiceReference<?> ref = Mockito.mock(ServiceReference.class);
         UsageCount uc = sr.obtainUsageCount(b, ref, null, true);
         assertEquals(1, inUseMap.size());
-        assertEquals(1, inUseMap.values().iterator().next().length);
+        assertEquals(1, getUsages(inUseMap, b).length);
 
         ServiceReference<?> ref2 = Mockito.mock(ServiceReference.class);
         UsageCount uc2 = sr.obtainUsageCount(b, ref2, null, true);
         assertEquals(1, inUseMap.size());
-        assertEquals(2, inUseMap.values().iterator().next().length);
-        List<UsageCount> ucl = Arrays.asList(inUseMap.get(b));
+        assertEquals(2, getUsages(inUseMap, b).length);
+        List<UsageCount> ucl = Arrays.asList(getUsages(inUseMap, b));
         assertTrue(ucl.contains(uc));
         assertTrue(ucl.contains(uc2));
     }
@@ -753,7 +754,7 @@ public class ServiceRegistryTest extends TestCase
         ServiceRegistry sr = new ServiceRegistry(null, null);
 
         @SuppressWarnings("unchecked")
-        ConcurrentMap<Bundle, UsageCount[]> inUseMap = (ConcurrentMap<Bundle, UsageCount[]>) getPrivateField(sr, "m_inUseMap");
+        ConcurrentMap<Bundle, ConcurrentMap<ServiceReference<?>, UsageCount[]>> inUseMap = (ConcurrentMap<Bundle, ConcurrentMap<ServiceReference<?>, UsageCount[]>>) getPrivateField(sr, "m_inUseMap");
 
         Bundle b = Mockito.mock(Bundle.class);
         ServiceReference<?> ref = Mockito.mock(ServiceReference.class);
@@ -763,7 +764,7 @@ public class ServiceRegistryTest extends TestCase
         String svc = "foobar";
         sh.m_service = svc;
         uc.m_svcHolderRef.set(sh);
-        inUseMap.put(b, new UsageCount[] {uc});
+        putUsages(inUseMap, b, uc);
 
         assertNull(sr.obtainUsageCount(b, Mockito.mock(ServiceReference.class), null, null));
 
@@ -776,13 +777,13 @@ public class ServiceRegistryTest extends TestCase
         ServiceRegistry sr = new ServiceRegistry(null, null);
 
         @SuppressWarnings("unchecked")
-        ConcurrentMap<Bundle, UsageCount[]> inUseMap = (ConcurrentMap<Bundle, UsageCount[]>) getPrivateField(sr, "m_inUseMap");
+        ConcurrentMap<Bundle, ConcurrentMap<ServiceReference<?>, UsageCount[]>> inUseMap = (ConcurrentMap<Bundle, ConcurrentMap<ServiceReference<?>, UsageCount[]>>) getPrivateField(sr, "m_inUseMap");
 
         Bundle b = Mockito.mock(Bundle.class);
         ServiceReference<?> ref = Mockito.mock(ServiceReference.class);
 
         UsageCount uc = new UsageCount(ref, false);
-        inUseMap.put(b, new UsageCount[] {uc});
+        putUsages(inUseMap, b, uc);
 
         assertNull(sr.obtainUsageCount(b, Mockito.mock(ServiceReference.class), null, null));
 
@@ -797,24 +798,23 @@ public class ServiceRegistryTest extends TestCase
 
         final Bundle b = Mockito.mock(Bundle.class);
 
-        final ConcurrentMap<Bundle, UsageCount[]> orgInUseMap =
-            (ConcurrentMap<Bundle, UsageCount[]>) getPrivateField(sr, "m_inUseMap");
+        final ConcurrentMap<Bundle, ConcurrentMap<ServiceReference<?>, UsageCount[]>> orgInUseMap =
+            (ConcurrentMap<Bundle, ConcurrentMap<ServiceReference<?>, UsageCount[]>>) getPrivateField(sr, "m_inUseMap");
 
-        ConcurrentMap<Bundle, UsageCount[]> inUseMap =
+        ConcurrentMap<Bundle, ConcurrentMap<ServiceReference<?>, UsageCount[]>> inUseMap =
             Mockito.mock(ConcurrentMap.class, AdditionalAnswers.delegatesTo(orgInUseMap));
-        Mockito.doAnswer(new Answer<UsageCount[]>()
+        Mockito.doAnswer(new Answer<ConcurrentMap<ServiceReference<?>, UsageCount[]>>()
             {
                 @Override
-                public UsageCount[] answer(InvocationOnMock invocation) throws Throwable
+                public ConcurrentMap<ServiceReference<?>, UsageCount[]> answer(InvocationOnMock invocation) throws Throwable
                 {
                     // This mimicks another thread putting another UsageCount in concurrently
-                    // The putIfAbsent() will fail and it has to retry
+                    // The putIfAbsent() will fail and it has to use the other usage table
                     UsageCount uc = new UsageCount(Mockito.mock(ServiceReference.class), false);
-                    UsageCount[] uca = new UsageCount[] {uc};
-                    orgInUseMap.put(b, uca);
-                    return uca;
+                    putUsages(orgInUseMap, b, uc);
+                    return orgInUseMap.get(b);
                 }
-            }).when(inUseMap).putIfAbsent(Mockito.any(Bundle.class), Mockito.any(UsageCount[].class));
+            }).when(inUseMap).putIfAbsent(Mockito.any(Bundle.class), Mockito.any(ConcurrentMap.class));
         setPrivateField(sr, "m_inUseMap", inUseMap);
 
         ServiceReference<?> ref = Mockito.mock(ServiceReference.class);
@@ -822,10 +822,10 @@ public class ServiceRegistryTest extends TestCase
         assertEquals(0, orgInUseMap.size());
         UsageCount uc = sr.obtainUsageCount(b, ref, null, false);
         assertEquals(1, orgInUseMap.size());
-        assertEquals(2, orgInUseMap.get(b).length);
+        assertEquals(2, getUsages(orgInUseMap, b).length);
         assertSame(ref, uc.m_ref);
         assertFalse(uc.m_prototype);
-        List<UsageCount> l = new ArrayList<UsageCount>(Arrays.asList(orgInUseMap.get(b)));
+        List<UsageCount> l = new ArrayList<UsageCount>(Arrays.asList(getUsages(orgInUseMap, b)));
         l.remove(uc);
         assertEquals("There should be one UsageCount left", 1, l.size());
         assertNotSame(ref, l.get(0).m_ref);
@@ -837,35 +837,70 @@ public class ServiceRegistryTest extends TestCase
         ServiceRegistry sr = new ServiceRegistry(null, null);
 
         final Bundle b = Mockito.mock(Bundle.class);
+        final ServiceReference<?> ref = Mockito.mock(ServiceReference.class);
 
-        final ConcurrentMap<Bundle, UsageCount[]> orgInUseMap =
-            (ConcurrentMap<Bundle, UsageCount[]>) getPrivateField(sr, "m_inUseMap");
-        orgInUseMap.put(b, new UsageCount[] {new UsageCount(Mockito.mock(ServiceReference.class), false)});
+        final ConcurrentMap<ServiceReference<?>, UsageCount[]> orgUsageTable =
+            new ConcurrentHashMap<ServiceReference<?>, UsageCount[]>();
+        orgUsageTable.put(ref, new UsageCount[] {new UsageCount(ref, true)});
 
-        ConcurrentMap<Bundle, UsageCount[]> inUseMap =
-            Mockito.mock(ConcurrentMap.class, AdditionalAnswers.delegatesTo(orgInUseMap));
+        ConcurrentMap<ServiceReference<?>, UsageCount[]> usageTable =
+            Mockito.mock(ConcurrentMap.class, AdditionalAnswers.delegatesTo(orgUsageTable));
         Mockito.doAnswer(new Answer<Boolean>()
             {
                 @Override
                 public Boolean answer(InvocationOnMock invocation) throws Throwable
                 {
-                    orgInUseMap.remove(b);
+                    orgUsageTable.remove(ref);
                     return false;
                 }
-            }).when(inUseMap).replace(Mockito.any(Bundle.class),
+            }).when(usageTable).replace(Mockito.any(ServiceReference.class),
                     Mockito.any(UsageCount[].class), Mockito.any(UsageCount[].class));
-        setPrivateField(sr, "m_inUseMap", inUseMap);
 
-        ServiceReference<?> ref = Mockito.mock(ServiceReference.class);
+        final ConcurrentMap<Bundle, ConcurrentMap<ServiceReference<?>, UsageCount[]>> inUseMap =
+            (ConcurrentMap<Bundle, ConcurrentMap<ServiceReference<?>, UsageCount[]>>) getPrivateField(sr, "m_inUseMap");
+        inUseMap.put(b, usageTable);
 
-        assertEquals("Precondition", 1, inUseMap.size());
-        assertEquals("Precondition", 1, inUseMap.values().iterator().next().length);
-        assertNotSame("Precondition", ref, inUseMap.get(b)[0].m_ref);
-        sr.obtainUsageCount(b, ref, null, false);
-        assertEquals(1, inUseMap.size());
-        assertEquals(1, inUseMap.values().iterator().next().length);
+        assertEquals("Precondition", 1, getUsages(inUseMap, b).length);
+        UsageCount uc = sr.obtainUsageCount(b, ref, null, true);
+        assertEquals(1, getUsages(inUseMap, b).length);
         assertSame("The old usage count should have been removed by the mock and this one should have been added",
-                ref, inUseMap.get(b)[0].m_ref);
+                uc, getUsages(inUseMap, b)[0]);
+    }
+
+    @SuppressWarnings("unchecked")
+    public void testObtainUsageCountRetry3() throws Exception
+    {
+        ServiceRegistry sr = new ServiceRegistry(null, null);
+
+        final Bundle b = Mockito.mock(Bundle.class);
+        final ServiceReference<?> ref = Mockito.mock(ServiceReference.class);
+
+        final ConcurrentMap<Bundle, ConcurrentMap<ServiceReference<?>, UsageCount[]>> inUseMap =
+            (ConcurrentMap<Bundle, ConcurrentMap<ServiceReference<?>, UsageCount[]>>) getPrivateField(sr, "m_inUseMap");
+
+        final ConcurrentMap<ServiceReference<?>, UsageCount[]> orgUsageTable =
+            new ConcurrentHashMap<ServiceReference<?>, UsageCount[]>();
+        final ConcurrentMap<ServiceReference<?>, UsageCount[]> usageTable =
+            Mockito.mock(ConcurrentMap.class, AdditionalAnswers.delegatesTo(orgUsageTable));
+        Mockito.doAnswer(new Answer<UsageCount[]>()
+            {
+                @Override
+                public UsageCount[] answer(InvocationOnMock invocation) throws Throwable
+                {
+                    // This mimicks the services of the bundle being released concurrently,
+                    // which drops the usage table the get has already looked up
+                    inUseMap.remove(b, usageTable);
+                    return null;
+                }
+            }).when(usageTable).get(ref);
+        inUseMap.put(b, usageTable);
+
+        UsageCount uc = sr.obtainUsageCount(b, ref, null, false);
+        assertNotSame("The usage count should have been added to a new usage table",
+                usageTable, inUseMap.get(b));
+        assertTrue(orgUsageTable.isEmpty());
+        assertEquals(1, getUsages(inUseMap, b).length);
+        assertSame(uc, getUsages(inUseMap, b)[0]);
     }
 
     public void testFlushUsageCount() throws Exception
@@ -873,7 +908,7 @@ public class ServiceRegistryTest extends TestCase
         ServiceRegistry sr = new ServiceRegistry(null, null);
 
         @SuppressWarnings("unchecked")
-        ConcurrentMap<Bundle, UsageCount[]> inUseMap = (ConcurrentMap<Bundle, UsageCount[]>) getPrivateField(sr, "m_inUseMap");
+        ConcurrentMap<Bundle, ConcurrentMap<ServiceReference<?>, UsageCount[]>> inUseMap = (ConcurrentMap<Bundle, ConcurrentMap<ServiceReference<?>, UsageCount[]>>) getPrivateField(sr, "m_inUseMap");
 
         Bundle b = Mockito.mock(Bundle.class);
 
@@ -882,18 +917,17 @@ public class ServiceRegistryTest extends TestCase
         ServiceReference<?> ref2 = Mockito.mock(ServiceReference.class);
         UsageCount uc2 = new UsageCount(ref2, true);
 
-        inUseMap.put(b, new UsageCount[] {uc, uc2});
+        putUsages(inUseMap, b, uc, uc2);
 
         assertEquals("Precondition", 1, inUseMap.size());
-        assertEquals("Precondition", 2, inUseMap.values().iterator().next().length);
+        assertEquals("Precondition", 2, getUsages(inUseMap, b).length);
 
         sr.flushUsageCount(b, ref, uc);
-        assertEquals(1, inUseMap.size());
-        assertEquals(1, inUseMap.values().iterator().next().length);
-        assertSame(uc2, inUseMap.values().iterator().next()[0]);
+        assertEquals(1, getUsages(inUseMap, b).length);
+        assertSame(uc2, getUsages(inUseMap, b)[0]);
 
         sr.flushUsageCount(b, ref2, uc2);
-        assertEquals(0, inUseMap.size());
+        assertNull(getUsages(inUseMap, b));
     }
 
     public void testFlushUsageCountNullRef() throws Exception
@@ -901,7 +935,7 @@ public class ServiceRegistryTest extends TestCase
         ServiceRegistry sr = new ServiceRegistry(null, null);
 
         @SuppressWarnings("unchecked")
-        ConcurrentMap<Bundle, UsageCount[]> inUseMap = (ConcurrentMap<Bundle, UsageCount[]>) getPrivateField(sr, "m_inUseMap");
+        ConcurrentMap<Bundle, ConcurrentMap<ServiceReference<?>, UsageCount[]>> inUseMap = (ConcurrentMap<Bundle, ConcurrentMap<ServiceReference<?>, UsageCount[]>>) getPrivateField(sr, "m_inUseMap");
 
         Bundle b = Mockito.mock(Bundle.class);
         Bundle b2 = Mockito.mock(Bundle.class);
@@ -913,16 +947,18 @@ public class ServiceRegistryTest extends TestCase
         ServiceReference<?> ref3 = Mockito.mock(ServiceReference.class);
         UsageCount uc3 = new UsageCount(ref3, true);
 
-        inUseMap.put(b, new UsageCount[] {uc2, uc});
-        inUseMap.put(b2, new UsageCount[] {uc3});
+        putUsages(inUseMap, b, uc2, uc);
+        putUsages(inUseMap, b2, uc3);
 
         assertEquals("Precondition", 2, inUseMap.size());
 
         sr.flushUsageCount(b, null, uc);
-        assertEquals(2, inUseMap.size());
+        assertEquals(1, getUsages(inUseMap, b).length);
+        assertEquals(1, getUsages(inUseMap, b2).length);
 
         sr.flushUsageCount(b, null, uc2);
-        assertEquals(1, inUseMap.size());
+        assertNull(getUsages(inUseMap, b));
+        assertEquals(1, getUsages(inUseMap, b2).length);
     }
 
     public void testFlushUsageCountAlienObject() throws Exception
@@ -930,21 +966,21 @@ public class ServiceRegistryTest extends TestCase
         ServiceRegistry sr = new ServiceRegistry(null, null);
 
         @SuppressWarnings("unchecked")
-        ConcurrentMap<Bundle, UsageCount[]> inUseMap = (ConcurrentMap<Bundle, UsageCount[]>) getPrivateField(sr, "m_inUseMap");
+        ConcurrentMap<Bundle, ConcurrentMap<ServiceReference<?>, UsageCount[]>> inUseMap = (ConcurrentMap<Bundle, ConcurrentMap<ServiceReference<?>, UsageCount[]>>) getPrivateField(sr, "m_inUseMap");
 
         Bundle b = Mockito.mock(Bundle.class);
 
         ServiceReference<?> ref = Mockito.mock(ServiceReference.class);
         UsageCount uc = new UsageCount(ref, false);
 
-        inUseMap.put(b, new UsageCount[] {uc});
+        putUsages(inUseMap, b, uc);
         assertEquals("Precondition", 1, inUseMap.size());
-        assertEquals("Precondition", 1, inUseMap.values().iterator().next().length);
+        assertEquals("Precondition", 1, getUsages(inUseMap, b).length);
 
         UsageCount uc2 = new UsageCount(Mockito.mock(ServiceReference.class), false);
         sr.flushUsageCount(b, ref, uc2);
         assertEquals("Should be no changes", 1, inUseMap.size());
-        assertEquals("Should be no changes", 1, inUseMap.values().iterator().next().length);
+        assertEquals("Should be no changes", 1, getUsages(inUseMap, b).length);
     }
 
     public void testFlushUsageCountNull() throws Exception
@@ -952,7 +988,7 @@ public class ServiceRegistryTest extends TestCase
         ServiceRegistry sr = new ServiceRegistry(null, null);
 
         @SuppressWarnings("unchecked")
-        ConcurrentMap<Bundle, UsageCount[]> inUseMap = (ConcurrentMap<Bundle, UsageCount[]>) getPrivateField(sr, "m_inUseMap");
+        ConcurrentMap<Bundle, ConcurrentMap<ServiceReference<?>, UsageCount[]>> inUseMap = (ConcurrentMap<Bundle, ConcurrentMap<ServiceReference<?>, UsageCount[]>>) getPrivateField(sr, "m_inUseMap");
 
         Bundle b = Mockito.mock(Bundle.class);
         Bundle b2 = Mockito.mock(Bundle.class);
@@ -964,16 +1000,18 @@ public class ServiceRegistryTest extends TestCase
         ServiceReference<?> ref3 = Mockito.mock(ServiceReference.class);
         UsageCount uc3 = new UsageCount(ref3, true);
 
-        inUseMap.put(b, new UsageCount[] {uc2, uc});
-        inUseMap.put(b2, new UsageCount[] {uc3});
+        putUsages(inUseMap, b, uc2, uc);
+        putUsages(inUseMap, b2, uc3);
 
         assertEquals("Precondition", 2, inUseMap.size());
 
         sr.flushUsageCount(b, ref, null);
-        assertEquals(2, inUseMap.size());
+        assertEquals(1, getUsages(inUseMap, b).length);
+        assertEquals(1, getUsages(inUseMap, b2).length);
 
         sr.flushUsageCount(b, ref2, null);
-        assertEquals(1, inUseMap.size());
+        assertNull(getUsages(inUseMap, b));
+        assertEquals(1, getUsages(inUseMap, b2).length);
 
     }
 
@@ -984,68 +1022,71 @@ public class ServiceRegistryTest extends TestCase
 
         final Bundle b = Mockito.mock(Bundle.class);
         final ServiceReference<?> ref = Mockito.mock(ServiceReference.class);
-        final UsageCount uc = new UsageCount(ref, false);
-        final ServiceReference<?> ref2 = Mockito.mock(ServiceReference.class);
-        final UsageCount uc2 = new UsageCount(ref2, false);
+        final UsageCount uc = new UsageCount(ref, true);
+        final UsageCount uc2 = new UsageCount(ref, true);
 
-        final ConcurrentMap<Bundle, UsageCount[]> orgInUseMap =
-            (ConcurrentMap<Bundle, UsageCount[]>) getPrivateField(sr, "m_inUseMap");
+        final ConcurrentMap<ServiceReference<?>, UsageCount[]> orgUsageTable =
+            new ConcurrentHashMap<ServiceReference<?>, UsageCount[]>();
 
-        final ConcurrentMap<Bundle, UsageCount[]> inUseMap =
-            Mockito.mock(ConcurrentMap.class, AdditionalAnswers.delegatesTo(orgInUseMap));
+        final ConcurrentMap<ServiceReference<?>, UsageCount[]> usageTable =
+            Mockito.mock(ConcurrentMap.class, AdditionalAnswers.delegatesTo(orgUsageTable));
         Mockito.doAnswer(new Answer<Boolean>()
             {
                 @Override
                 public Boolean answer(InvocationOnMock invocation) throws Throwable
                 {
-                    inUseMap.put(b, new UsageCount[] {uc});
+                    orgUsageTable.put(ref, new UsageCount[] {uc});
                     return false;
                 }
-            }).when(inUseMap).replace(Mockito.isA(Bundle.class),
+            }).when(usageTable).replace(Mockito.isA(ServiceReference.class),
                     Mockito.isA(UsageCount[].class), Mockito.isA(UsageCount[].class));
-        setPrivateField(sr, "m_inUseMap", inUseMap);
 
-        inUseMap.put(b, new UsageCount[] {uc, uc2});
+        final ConcurrentMap<Bundle, ConcurrentMap<ServiceReference<?>, UsageCount[]>> inUseMap =
+            (ConcurrentMap<Bundle, ConcurrentMap<ServiceReference<?>, UsageCount[]>>) getPrivateField(sr, "m_inUseMap");
+        inUseMap.put(b, usageTable);
+        orgUsageTable.put(ref, new UsageCount[] {uc, uc2});
 
         sr.flushUsageCount(b, null, uc);
 
         assertNull("A 'concurrent' process has removed uc2 as well, "
-                + "so the entry for 'b' should have been removed",
-                inUseMap.get(b));
+                + "so the entry for 'ref' should have been removed",
+                orgUsageTable.get(ref));
     }
 
+    @SuppressWarnings("unchecked")
     public void testFlushUsageCountRetry2() throws Exception
     {
         ServiceRegistry sr = new ServiceRegistry(null, null);
 
         final Bundle b = Mockito.mock(Bundle.class);
         final ServiceReference<?> ref = Mockito.mock(ServiceReference.class);
-        final UsageCount uc = new UsageCount(ref, false);
-        final ServiceReference<?> ref2 = Mockito.mock(ServiceReference.class);
-        final UsageCount uc2 = new UsageCount(ref2, false);
+        final UsageCount uc = new UsageCount(ref, true);
+        final UsageCount uc2 = new UsageCount(ref, true);
 
-        final ConcurrentMap<Bundle, UsageCount[]> orgInUseMap =
-            (ConcurrentMap<Bundle, UsageCount[]>) getPrivateField(sr, "m_inUseMap");
+        final ConcurrentMap<ServiceReference<?>, UsageCount[]> orgUsageTable =
+            new ConcurrentHashMap<ServiceReference<?>, UsageCount[]>();
 
-        final ConcurrentMap<Bundle, UsageCount[]> inUseMap =
-            Mockito.mock(ConcurrentMap.class, AdditionalAnswers.delegatesTo(orgInUseMap));
+        final ConcurrentMap<ServiceReference<?>, UsageCount[]> usageTable =
+            Mockito.mock(ConcurrentMap.class, AdditionalAnswers.delegatesTo(orgUsageTable));
         Mockito.doAnswer(new Answer<Boolean>()
             {
                 @Override
                 public Boolean answer(InvocationOnMock invocation) throws Throwable
                 {
-                    inUseMap.put(b, new UsageCount[] {uc, uc2});
+                    orgUsageTable.put(ref, new UsageCount[] {uc, uc2});
                     return false;
                 }
-            }).when(inUseMap).remove(Mockito.isA(Bundle.class), Mockito.isA(UsageCount[].class));
-        setPrivateField(sr, "m_inUseMap", inUseMap);
+            }).when(usageTable).remove(Mockito.isA(ServiceReference.class), Mockito.isA(UsageCount[].class));
 
-        inUseMap.put(b, new UsageCount[] {uc});
+        final ConcurrentMap<Bundle, ConcurrentMap<ServiceReference<?>, UsageCount[]>> inUseMap =
+            (ConcurrentMap<Bundle, ConcurrentMap<ServiceReference<?>, UsageCount[]>>) getPrivateField(sr, "m_inUseMap");
+        inUseMap.put(b, usageTable);
+        orgUsageTable.put(ref, new UsageCount[] {uc});
 
         sr.flushUsageCount(b, null, uc);
 
-        assertEquals(1, inUseMap.get(b).length);
-        assertSame(uc2, inUseMap.get(b)[0]);
+        assertEquals(1, orgUsageTable.get(ref).length);
+        assertSame(uc2, orgUsageTable.get(ref)[0]);
     }
 
     public void testGetUngetServiceFactory() throws Exception
@@ -1173,10 +1214,13 @@ public class ServiceRegistryTest extends TestCase
         assertEquals("hi", sr.getService(clientBundle, reg.getReference(), false));
         sr.ungetService(clientBundle, reg.getReference(), null);
 
-        ConcurrentMap<Bundle, UsageCount[]> inUseMap =
-                (ConcurrentMap<Bundle, UsageCount[]>) getPrivateField(sr, "m_inUseMap");
+        ConcurrentMap<Bundle, ConcurrentMap<ServiceReference<?>, UsageCount[]>> inUseMap =
+                (ConcurrentMap<Bundle, ConcurrentMap<ServiceReference<?>, UsageCount[]>>) getPrivateField(sr, "m_inUseMap");
 
         sr.unregisterService(regBundle, reg);
+        assertNull(getUsages(inUseMap, clientBundle));
+
+        // The usage table goes with its last usage count
         assertEquals(0, inUseMap.size());
     }
 
@@ -1323,6 +1367,43 @@ public class ServiceRegistryTest extends TestCase
         return ref;
     }
 
+    private static UsageCount[] getUsages(
+        ConcurrentMap<Bundle, ConcurrentMap<ServiceReference<?>, UsageCount[]>> inUseMap, Bundle b)
+    {
+        ConcurrentMap<ServiceReference<?>, UsageCount[]> usageTable = inUseMap.get(b);
+        List<UsageCount> usages = new ArrayList<UsageCount>();
+        if (usageTable != null)
+        {
+            for (UsageCount[] ucs : usageTable.values())
+            {
+                usages.addAll(Arrays.asList(ucs));
+            }
+        }
+        return usages.isEmpty() ? null : usages.toArray(new UsageCount[usages.size()]);
+    }
+
+    private static void putUsages(
+        ConcurrentMap<Bundle, ConcurrentMap<ServiceReference<?>, UsageCount[]>> inUseMap, Bundle b, UsageCount... ucs)
+    {
+        ConcurrentMap<ServiceReference<?>, UsageCount[]> usageTable =
+            new ConcurrentHashMap<ServiceReference<?>, UsageCount[]>();
+        for (UsageCount uc : ucs)
+        {
+            UsageCount[] usages = usageTable.get(uc.m_ref);
+            if (usages == null)
+            {
+                usages = new UsageCount[] {uc};
+            }
+            else
+            {
+                usages = Arrays.copyOf(usages, usages.length + 1);
+                usages[usages.length - 1] = uc;
+            }
+            usageTable.put(uc.m_ref, usages);
+        }
+        inUseMap.put(b, usageTable);
+    }
+
     private Object getPrivateField(Object obj, String fieldName) throws NoSuchFieldException,
             IllegalAccessException
     {
@@ -0,0 +1,214 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.felix.framework;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.jar.JarOutputStream;
+import java.util.jar.Manifest;
+import java.util.zip.ZipEntry;
+
+import junit.framework.TestCase;
+
+import org.apache.felix.framework.util.FelixConstants;
+import org.apache.felix.framework.util.StartupProfiler;
+import org.osgi.framework.BundleActivator;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.Constants;
+import org.osgi.framework.ServiceReference;
+
+public class StartupProfilerTest extends TestCase
+{
+    private File tempDir;
+    private File cacheDir;
+
+    @Override
+    protected void setUp() throws Exception
+    {
+        super.setUp();
+        tempDir = File.createTempFile("felix-temp", ".dir");
+        assertTrue("precondition", tempDir.delete());
+        assertTrue("precondition", tempDir.mkdirs());
+
+        cacheDir = new File(tempDir, "felix-cache");
+        assertTrue("precondition", cacheDir.mkdir());
+    }
+
+    @Override
+    protected void tearDown() throws Exception
+    {
+        super.tearDown();
+        deleteDir(tempDir);
+    }
+
+    public void testDisabledByDefault() throws Exception
+    {
+        Felix felix = new Felix(getParams());
+        felix.init();
+        felix.start();
+        try
+        {
+            assertNull(felix.getStartupProfiler());
+            assertNull(felix.getBundleContext().getServiceReference(
+                StartupProfiler.class.getName()));
+        }
+        finally
+        {
+            felix.stop();
+            felix.waitForStop(10000);
+        }
+    }
+
+    public void testProfileRestart() throws Exception
+    {
+        String mf = "Bundle-SymbolicName: profiler.test\n"
+            + "Bundle-Version: 1.0.0\n"
+            + "Bundle-ManifestVersion: 2\n"
+            + "Import-Package: org.osgi.framework\n";
+
+        Felix felix = new Felix(getParams());
+        felix.init();
+        felix.start();
+        try
+        {
+            felix.getBundleContext().installBundle(
+                createBundle(mf).toURI().toString()).start();
+        }
+        finally
+        {
+            felix.stop();
+            felix.waitForStop(10000);
+        }
+
+        File trace = new File(tempDir, "trace.json");
+        Map<String, String> params = getParams();
+        params.put(FelixConstants.PROFILER_FILE_PROP, trace.getPath());
+        felix = new Felix(params);
+        felix.init();
+        felix.start();
+        try
+        {
+            StartupProfiler profiler = felix.getStartupProfiler();
+            assertNotNull(profiler);
+
+            Set<String> phases = new HashSet<String>();
+            for (StartupProfiler.Span span : profiler.getSpans())
+            {
+                if (span.getBundleId() == 1)
+                {
+                    phases.add(span.getPhase());
+                }
+                else if (StartupProfiler.PHASE_RESOLVE.equals(span.getPhase()))
+                {
+                    phases.add(span.getPhase());
+                }
+            }
+            assertTrue(phases.contains(StartupProfiler.PHASE_CACHE));
+            assertTrue(phases.contains(StartupProfiler.PHASE_MANIFEST));
+            assertTrue(phases.contains(StartupProfiler.PHASE_RESOLVE));
+            assertTrue(phases.contains(StartupProfiler.PHASE_ACTIVATOR));
+
+            ServiceReference<?>[] refs = felix.getBundleContext().getServiceReferences(
+                (String) null, "(&(osgi.command.scope=felix)(osgi.command.function=profile))");
+            assertNotNull(refs);
+            assertEquals(1, refs.length);
+            ServiceReference<?> ref = refs[0];
+            assertTrue(Arrays.asList((String[]) ref.getProperty(Constants.OBJECTCLASS))
+                .contains(Object.class.getName()));
+            assertSame(profiler, felix.getBundleContext().getService(ref));
+            assertTrue(profiler.profile().contains("[1] "));
+
+            assertTrue(trace.isFile());
+            String json = new String(Files.readAllBytes(trace.toPath()), StandardCharsets.UTF_8);
+            assertTrue(json.startsWith("{\"displayTimeUnit\":\"ms\",\"traceEvents\":["));
+            assertTrue(json.contains("\"cat\":\"activator\""));
+            assertTrue(json.contains("\"ph\":\"X\""));
+        }
+        finally
+        {
+            felix.stop();
+            felix.waitForStop(10000);
+        }
+    }
+
+    private Map<String, String> getParams()
+    {
+        String cache = cacheDir.getPath();
+        Map<String, String> params = new HashMap<String, String>();
+        params.put("felix.cache.profiledir", cache);
+        params.put("felix.cache.dir", cache);
+        params.put(Constants.FRAMEWORK_STORAGE, cache);
+        return params;
+    }
+
+    private File createBundle(String manifest) throws IOException
+    {
+        File f = File.createTempFile("felix-bundle", ".jar", tempDir);
+
+        Manifest mf = new Manifest(new ByteArrayInputStream(manifest.getBytes("utf-8")));
+        mf.getMainAttributes().putValue("Manifest-Version", "1.0");
+        mf.getMainAttributes().putValue(Constants.BUNDLE_ACTIVATOR, TestBundleActivator.class.getName());
+        JarOutputStream os = new JarOutputStream(new FileOutputStream(f), mf);
+
+        String path = TestBundleActivator.class.getName().replace('.', '/') + ".class";
+        os.putNextEntry(new ZipEntry(path));
+
+        InputStream is = TestBundleActivator.class.getClassLoader().getResourceAsStream(path);
+        byte[] b = new byte[is.available()];
+        is.read(b);
+        is.close();
+        os.write(b);
+
+        os.close();
+        return f;
+    }
+
+    private static void deleteDir(File root) throws IOException
+    {
+        if (root.isDirectory())
+        {
+            for (File file : root.listFiles())
+            {
+                deleteDir(file);
+            }
+        }
+        root.delete();
+    }
+
+    public static class TestBundleActivator implements BundleActivator
+    {
+        public void start(BundleContext context) throws Exception
+        {
+        }
+
+        public void stop(BundleContext context) throws Exception
+        {
+        }
+    }
+}
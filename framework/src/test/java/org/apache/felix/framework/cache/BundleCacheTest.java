@@ -20,6 +20,7 @@ package org.apache.felix.framework.cache;
 
 import junit.framework.TestCase;
 import org.apache.felix.framework.Logger;
+import org.osgi.framework.Bundle;
 import org.osgi.framework.Constants;
 
 import java.io.File;
@@ -27,8 +28,10 @@ import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.RandomAccessFile;
 import java.net.URL;
 import java.util.Arrays;
+import java.util.Comparator;
 import java.util.Enumeration;
 import java.util.HashMap;
 import java.util.Map;
@@ -177,6 +180,115 @@ public class BundleCacheTest extends TestCase
         testBundle("bla", jarFile);
     }
 
+    public void testMappedJar() throws Exception
+    {
+        // Use a separate cache, since the default one is locked.
+        Map<String, String> params = new HashMap<String, String>();
+        params.put(Constants.FRAMEWORK_STORAGE, new File(tempDir, "felix-cache-mmap").getPath());
+        params.put(BundleCache.CACHE_MMAP_PROP, "true");
+        BundleCache defaultCache = cache;
+        cache = new BundleCache(new Logger(){
+            @Override
+            protected void doLog(int level, String msg, Throwable throwable) {
+            }
+        }, params);
+        try
+        {
+            BundleArchive archive = testBundle(jarFile.toURI().toURL().toString(), null);
+            assertTrue(archive.getCurrentRevision().getContent() instanceof MappedJarContent);
+            assertTrue(archive.getCurrentRevision().getContent().getEntryAsContent("inner/")
+                .getEntryAsContent("i+?äö \\§$%nner.jar") instanceof MappedJarContent);
+        }
+        finally
+        {
+            cache.delete();
+            cache = defaultCache;
+        }
+    }
+
+    public void testSnapshot() throws Exception
+    {
+        // Use a separate cache, since the default one is locked.
+        File snapshotCacheDir = new File(tempDir, "felix-cache-snapshot");
+        Map<String, String> params = new HashMap<String, String>();
+        params.put(Constants.FRAMEWORK_STORAGE, snapshotCacheDir.getPath());
+        params.put(BundleCache.CACHE_SNAPSHOT_PROP, "true");
+        BundleCache defaultCache = cache;
+        cache = new BundleCache(new Logger(){
+            @Override
+            protected void doLog(int level, String msg, Throwable throwable) {
+            }
+        }, params);
+        try
+        {
+            BundleArchive archive1 = testBundle("bla", jarFile);
+            archive1.setStartLevel(3);
+            archive1.setPersistentState(Bundle.ACTIVE);
+            BundleArchive archive2 = cache.create(2, 1,
+                "reference:" + archiveFile.toURI().toURL().toString(), null, null);
+            cache.saveSnapshot(new BundleArchive[] { archive1, archive2 });
+            archive1.close();
+            archive2.close();
+
+            File snapshot = new File(snapshotCacheDir, "cache.snapshot");
+            assertTrue(snapshot.isFile());
+            BundleArchive[] archives = sort(cache.getArchives(null));
+            assertFalse("Snapshot must only be used once.", snapshot.exists());
+            assertEquals(2, archives.length);
+            assertEquals(1, archives[0].getId());
+            assertEquals("bla", archives[0].getLocation());
+            assertEquals(3, archives[0].getStartLevel());
+            assertEquals(Bundle.ACTIVE, archives[0].getPersistentState());
+            assertEquals(archive1.getLastModified(), archives[0].getLastModified());
+            assertEquals(Long.valueOf(1), archives[0].getCurrentRevisionNumber());
+            testRevision(archives[0]);
+            assertEquals(2, archives[1].getId());
+            assertTrue(archives[1].getCurrentRevision() instanceof DirectoryRevision);
+            testRevision(archives[1]);
+
+            // A corrupt snapshot is ignored in favor of the archive directories.
+            cache.saveSnapshot(archives);
+            archives[0].close();
+            archives[1].close();
+            RandomAccessFile raf = new RandomAccessFile(snapshot, "rw");
+            raf.seek(12);
+            raf.write(raf.read() + 1);
+            raf.close();
+            archives = sort(cache.getArchives(null));
+            assertFalse(snapshot.exists());
+            assertEquals(2, archives.length);
+            assertEquals(3, archives[0].getStartLevel());
+            assertEquals(Long.valueOf(1), archives[0].getCurrentRevisionNumber());
+            testRevision(archives[0]);
+            archives[0].close();
+            archives[1].close();
+        }
+        finally
+        {
+            cache.delete();
+            cache = defaultCache;
+        }
+    }
+
+    private static BundleArchive[] sort(BundleArchive[] archives)
+    {
+        Arrays.sort(archives, new Comparator<BundleArchive>()
+        {
+            public int compare(BundleArchive a1, BundleArchive a2)
+            {
+                try
+                {
+                    return Long.compare(a1.getId(), a2.getId());
+                }
+                catch (Exception ex)
+                {
+                    throw new RuntimeException(ex);
+                }
+            }
+        });
+        return archives;
+    }
+
     private BundleArchive testBundle(String location, File file) throws Exception
     {
         BundleArchive archive = cache.create(1, 1, location, file != null ? new FileInputStream(file) : null, null);
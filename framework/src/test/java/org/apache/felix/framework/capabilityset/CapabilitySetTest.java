@@ -0,0 +1,210 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.felix.framework.capabilityset;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicReference;
+
+import junit.framework.TestCase;
+
+import org.apache.felix.framework.wiring.BundleCapabilityImpl;
+import org.osgi.framework.Constants;
+import org.osgi.resource.Capability;
+import org.osgi.resource.Resource;
+
+public class CapabilitySetTest extends TestCase
+{
+    public void testIndexedMatch()
+    {
+        CapabilitySet capSet = new CapabilitySet(
+            Collections.singletonList(Constants.OBJECTCLASS), false);
+        BundleCapabilityImpl c1 = createCapability(new String[] { "foo.A" }, "1");
+        BundleCapabilityImpl c2 = createCapability(new String[] { "foo.A", "foo.B" }, "2");
+        BundleCapabilityImpl c3 = createCapability(new String[] { "foo.B" }, "1");
+        capSet.addCapability(c1);
+        capSet.addCapability(c2);
+        capSet.addCapability(c3);
+
+        assertMatches(capSet, "(objectClass=foo.A)", c1, c2);
+        assertMatches(capSet, "(objectclass=foo.B)", c2, c3);
+        assertMatches(capSet, "(objectClass=foo.C)");
+        assertMatches(capSet, "(&(objectClass=foo.A)(objectClass=foo.B))", c2);
+        assertMatches(capSet, "(&(objectClass=foo.A)(rank=1))", c1);
+        assertMatches(capSet, "(&(rank=1)(!(objectClass=foo.A)))", c3);
+        assertMatches(capSet, "(&(objectClass=foo.B)(|(rank=2)(objectClass=foo.A)))", c2);
+        assertMatches(capSet, "(|(objectClass=foo.A)(rank=1))", c1, c2, c3);
+        assertMatches(capSet, "(rank>=2)", c2);
+
+        // The result must be modifiable and must not affect the index.
+        Set<Capability> result = capSet.match(SimpleFilter.parse("(objectClass=foo.A)"), false);
+        result.clear();
+        assertMatches(capSet, "(objectClass=foo.A)", c1, c2);
+
+        capSet.removeCapability(c2);
+        assertMatches(capSet, "(objectClass=foo.A)", c1);
+        assertMatches(capSet, "(&(objectClass=foo.A)(objectClass=foo.B))");
+        capSet.removeCapability(c1);
+        assertMatches(capSet, "(objectClass=foo.A)");
+        assertMatches(capSet, "(objectClass=foo.B)", c3);
+    }
+
+    public void testConcurrentIndexing() throws Exception
+    {
+        final CapabilitySet capSet = new CapabilitySet(
+            Collections.singletonList(Constants.OBJECTCLASS), false);
+        final int threads = 8;
+        final int caps = 500;
+        final CountDownLatch start = new CountDownLatch(1);
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        List<Thread> workers = new ArrayList<Thread>();
+        for (int t = 0; t < threads; t++)
+        {
+            final int id = t;
+            Thread worker = new Thread()
+            {
+                public void run()
+                {
+                    try
+                    {
+                        start.await();
+                        List<BundleCapabilityImpl> mine = new ArrayList<BundleCapabilityImpl>();
+                        for (int i = 0; i < caps; i++)
+                        {
+                            BundleCapabilityImpl cap = createCapability(
+                                new String[] { "foo.Shared", "foo.Own" + id }, "1");
+                            capSet.addCapability(cap);
+                            mine.add(cap);
+                        }
+                        for (int i = 0; i < caps; i += 2)
+                        {
+                            capSet.removeCapability(mine.get(i));
+                        }
+                    }
+                    catch (Throwable th)
+                    {
+                        failure.set(th);
+                    }
+                }
+            };
+            worker.start();
+            workers.add(worker);
+        }
+        start.countDown();
+        for (Thread worker : workers)
+        {
+            worker.join();
+        }
+        assertNull(failure.get());
+
+        assertEquals(threads * caps / 2,
+            capSet.match(SimpleFilter.parse("(objectClass=foo.Shared)"), false).size());
+        for (int t = 0; t < threads; t++)
+        {
+            assertEquals(caps / 2,
+                capSet.match(SimpleFilter.parse("(objectClass=foo.Own" + t + ")"), false).size());
+        }
+    }
+
+    public void testManyCapabilitiesWithSameValue()
+    {
+        // Like the services registered under the same interface, all
+        // capabilities go into the same index entry, which must not be
+        // copied for every capability added or removed.
+        CapabilitySet capSet = new CapabilitySet(
+            Collections.singletonList(Constants.OBJECTCLASS), false);
+        int caps = 50000;
+        List<BundleCapabilityImpl> added = new ArrayList<BundleCapabilityImpl>(caps);
+        for (int i = 0; i < caps; i++)
+        {
+            BundleCapabilityImpl cap = createCapability(new String[] { "foo.Shared" }, Integer.toString(i));
+            capSet.addCapability(cap);
+            added.add(cap);
+        }
+        assertEquals(caps,
+            capSet.match(SimpleFilter.parse("(objectClass=foo.Shared)"), false).size());
+        assertMatches(capSet, "(&(objectClass=foo.Shared)(rank=42))", added.get(42));
+
+        for (int i = 0; i < caps; i += 2)
+        {
+            capSet.removeCapability(added.get(i));
+        }
+        assertEquals(caps / 2,
+            capSet.match(SimpleFilter.parse("(objectClass=foo.Shared)"), false).size());
+        assertMatches(capSet, "(&(objectClass=foo.Shared)(rank=42))");
+
+        for (int i = 1; i < caps; i += 2)
+        {
+            capSet.removeCapability(added.get(i));
+        }
+        assertMatches(capSet, "(objectClass=foo.Shared)");
+    }
+
+    public void testMatchesOtherCapability()
+    {
+        // Only bundle capabilities can have mandatory attributes.
+        Capability cap = new Capability()
+        {
+            public String getNamespace()
+            {
+                return "test";
+            }
+
+            public Map<String, String> getDirectives()
+            {
+                return Collections.emptyMap();
+            }
+
+            public Map<String, Object> getAttributes()
+            {
+                return Collections.<String, Object>singletonMap("rank", "1");
+            }
+
+            public Resource getResource()
+            {
+                return null;
+            }
+        };
+        assertTrue(CapabilitySet.matches(cap, SimpleFilter.parse("(rank=1)")));
+        assertFalse(CapabilitySet.matches(cap, SimpleFilter.parse("(rank=2)")));
+    }
+
+    private static BundleCapabilityImpl createCapability(String[] objectClass, String rank)
+    {
+        Map<String, Object> attrs = new HashMap<String, Object>();
+        attrs.put(Constants.OBJECTCLASS, objectClass);
+        attrs.put("rank", rank);
+        return new BundleCapabilityImpl(null, "test", Collections.<String, String>emptyMap(), attrs);
+    }
+
+    private static void assertMatches(CapabilitySet capSet, String filter, Capability... expected)
+    {
+        Set<Capability> matches = capSet.match(SimpleFilter.parse(filter), false);
+        assertEquals(filter, expected.length, matches.size());
+        for (Capability cap : expected)
+        {
+            assertTrue(filter, matches.contains(cap));
+        }
+    }
+}
@@ -0,0 +1,97 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.felix.framework.util;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import junit.framework.TestCase;
+
+public class ImmutableStringMapTest extends TestCase
+{
+    public void testMatchesStringMap()
+    {
+        Random random = new Random(42);
+        char[] chars = { 'a', 'B', 'c', 'A', 'b', '.', '\u00e9', '\u00c9', '\u0131', 'I' };
+        for (int round = 0; round < 200; round++)
+        {
+            StringMap expected = new StringMap();
+            List<String> keys = new ArrayList<String>();
+            List<Object> values = new ArrayList<Object>();
+            for (int i = random.nextInt(20); i > 0; i--)
+            {
+                String key = randomKey(random, chars);
+                if (!expected.containsKey(key))
+                {
+                    expected.put(key, i);
+                    keys.add(key);
+                    values.add(i);
+                }
+            }
+            ImmutableStringMap map = new ImmutableStringMap(
+                keys.toArray(new String[keys.size()]), values.toArray(), keys.size());
+
+            assertEquals(expected.size(), map.size());
+            assertEquals(new ArrayList<String>(expected.keySet()), Arrays.asList(map.keys()));
+            assertEquals(new ArrayList<Map.Entry<String, Object>>(expected.entrySet()),
+                new ArrayList<Map.Entry<String, Object>>(map.entrySet()));
+            for (int i = 0; i < 50; i++)
+            {
+                String key = randomKey(random, chars);
+                assertEquals(expected.get(key), map.get(key));
+                assertEquals(expected.containsKey(key), map.containsKey(key));
+            }
+        }
+    }
+
+    public void testDuplicateKeys()
+    {
+        try
+        {
+            new ImmutableStringMap(new String[] { "a", "objectClass", "OBJECTCLASS" },
+                new Object[] { 1, 2, 3 }, 3);
+            fail("Keys differing only in case should be rejected");
+        }
+        catch (IllegalArgumentException ex)
+        {
+            // Expected
+        }
+    }
+
+    public void testUnknownKeyTypes()
+    {
+        ImmutableStringMap map = new ImmutableStringMap(
+            new String[] { "a" }, new Object[] { 1 }, 1);
+        assertNull(map.get(null));
+        assertNull(map.get(Integer.valueOf(1)));
+        assertFalse(map.containsKey(null));
+    }
+
+    private static String randomKey(Random random, char[] chars)
+    {
+        StringBuilder sb = new StringBuilder();
+        for (int i = random.nextInt(4); i >= 0; i--)
+        {
+            sb.append(chars[random.nextInt(chars.length)]);
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,197 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.felix.framework.util;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+import junit.framework.TestCase;
+
+public class MappedZipFileTest extends TestCase
+{
+    private File m_zip;
+
+    @Override
+    protected void setUp() throws Exception
+    {
+        super.setUp();
+        m_zip = File.createTempFile("felix.test", ".zip");
+
+        byte[] big = new byte[100000];
+        for (int i = 0; i < big.length; i++)
+        {
+            big[i] = (byte) ((i % 65) + 65);
+        }
+        ZipOutputStream zos = new ZipOutputStream(new FileOutputStream(m_zip));
+        try
+        {
+            zos.putNextEntry(new ZipEntry("org/"));
+            zos.putNextEntry(new ZipEntry("org/foo/"));
+            zos.putNextEntry(new ZipEntry("org/foo/deflated.txt"));
+            zos.write(big);
+            zos.putNextEntry(new ZipEntry("org/foo/empty.txt"));
+
+            byte[] small = "stored content".getBytes("UTF-8");
+            ZipEntry stored = new ZipEntry("org/foo/stored.txt");
+            stored.setMethod(ZipEntry.STORED);
+            stored.setSize(small.length);
+            CRC32 crc = new CRC32();
+            crc.update(small);
+            stored.setCrc(crc.getValue());
+            zos.putNextEntry(stored);
+            zos.write(small);
+
+            zos.putNextEntry(new ZipEntry("a.txt"));
+            zos.write("first".getBytes("UTF-8"));
+        }
+        finally
+        {
+            zos.close();
+        }
+    }
+
+    @Override
+    protected void tearDown() throws Exception
+    {
+        super.tearDown();
+        m_zip.delete();
+    }
+
+    public void testMatchesZipFile() throws Exception
+    {
+        MappedZipFile mapped = MappedZipFile.open(m_zip);
+        ZipFile zipFile = new ZipFile(m_zip);
+        try
+        {
+            List<String> expected = new ArrayList<String>();
+            for (Enumeration<? extends ZipEntry> e = zipFile.entries(); e.hasMoreElements();)
+            {
+                expected.add(e.nextElement().getName());
+            }
+            assertEquals(expected, Collections.list(mapped.names()));
+            assertEquals(expected.size(), mapped.size());
+
+            List<String> sorted = new ArrayList<String>(expected);
+            Collections.sort(sorted);
+            assertEquals(sorted, new ArrayList<String>(mapped.sortedNames()));
+
+            for (String name : expected)
+            {
+                ZipEntry ze = zipFile.getEntry(name);
+                ZipEntry mze = mapped.getEntry(name);
+                assertNotNull(name, mze);
+                assertEquals(name, ze.getName(), mze.getName());
+                assertEquals(name, ze.isDirectory(), mze.isDirectory());
+                assertEquals(name, ze.getSize(), mze.getSize());
+                assertEquals(name, ze.getCompressedSize(), mze.getCompressedSize());
+                assertEquals(name, ze.getCrc(), mze.getCrc());
+                assertEquals(name, ze.getTime(), mze.getTime());
+
+                int idx = mapped.indexOf(name);
+                byte[] bytes = read(zipFile.getInputStream(ze));
+                assertTrue(name, Arrays.equals(bytes, mapped.getBytes(idx)));
+                assertTrue(name, Arrays.equals(bytes, read(mapped.getInputStream(idx))));
+            }
+
+            // Directories are found without the trailing slash, like ZipFile does.
+            assertEquals("org/foo/", mapped.getEntry("org/foo").getName());
+            assertTrue(mapped.isDirectory(mapped.indexOf("org")));
+            assertEquals(-1, mapped.indexOf("org/bar"));
+            assertNull(mapped.getEntry("org/foo/missing.txt"));
+        }
+        finally
+        {
+            zipFile.close();
+            mapped.close();
+        }
+    }
+
+    public void testClose() throws Exception
+    {
+        MappedZipFile mapped = MappedZipFile.open(m_zip);
+        int idx = mapped.indexOf("org/foo/stored.txt");
+        InputStream is = mapped.getInputStream(idx);
+        mapped.close();
+
+        // Open streams keep reading from the mapping.
+        assertEquals("stored content", new String(read(is), "UTF-8"));
+        try
+        {
+            mapped.getBytes(idx);
+            fail("Read from a closed zip file.");
+        }
+        catch (IllegalStateException ex)
+        {
+            // Expected.
+        }
+    }
+
+    public void testNotAZipFile() throws Exception
+    {
+        File file = File.createTempFile("felix.test", ".txt");
+        try
+        {
+            FileOutputStream fos = new FileOutputStream(file);
+            fos.write("not a zip file".getBytes("UTF-8"));
+            fos.close();
+            try
+            {
+                MappedZipFile.open(file);
+                fail("Opened an invalid zip file.");
+            }
+            catch (IOException ex)
+            {
+                // Expected.
+            }
+        }
+        finally
+        {
+            file.delete();
+        }
+    }
+
+    private static byte[] read(InputStream is) throws IOException
+    {
+        try
+        {
+            ByteArrayOutputStream baos = new ByteArrayOutputStream();
+            byte[] buf = new byte[4096];
+            for (int n = is.read(buf); n != -1; n = is.read(buf))
+            {
+                baos.write(buf, 0, n);
+            }
+            return baos.toByteArray();
+        }
+        finally
+        {
+            is.close();
+        }
+    }
+}
@@ -94,4 +94,54 @@ public class WeakZipFileTest extends TestCase
             fail("Unable to read zip file entry: " + ex);
         }
     }
+
+    public void testIdleClose() throws Exception
+    {
+        File tmpZip = File.createTempFile("felix.test", ".zip");
+        tmpZip.deleteOnExit();
+        ZipOutputStream zos = new ZipOutputStream(new FileOutputStream(tmpZip));
+        zos.putNextEntry(new ZipEntry(ENTRY_NAME));
+        zos.write(new byte[] { 1, 2, 3 });
+        zos.close();
+
+        WeakZipFileFactory factory = new WeakZipFileFactory(0, 50);
+        WeakZipFile zipFile1 = factory.create(tmpZip);
+        WeakZipFile zipFile2 = factory.create(tmpZip);
+        assertTrue("Zip file not recorded.",
+            factory.getZipZiles().contains(zipFile1));
+        assertFalse("Zip file opened before use.",
+            factory.getOpenZipZiles().contains(zipFile1));
+
+        assertNotNull("Zip entry not found", zipFile1.getEntry(ENTRY_NAME));
+        assertTrue("Open zip file not recorded.",
+            factory.getOpenZipZiles().contains(zipFile1));
+
+        // Using another file closes the first one once it has been idle.
+        Thread.sleep(100);
+        assertNotNull("Zip entry not found", zipFile2.getEntry(ENTRY_NAME));
+        assertFalse("Idle zip file still open.",
+            factory.getOpenZipZiles().contains(zipFile1));
+        assertTrue("Open zip file not recorded.",
+            factory.getOpenZipZiles().contains(zipFile2));
+
+        // The idle file is reopened on demand.
+        InputStream is = zipFile1.getInputStream(zipFile1.getEntry(ENTRY_NAME));
+        assertEquals(2, is.skip(2));
+        assertEquals(3, is.read());
+        is.close();
+
+        zipFile1.close();
+        zipFile2.close();
+        assertTrue(factory.getZipZiles().isEmpty());
+
+        try
+        {
+            factory.create(new File(tmpZip.getPath() + ".missing"));
+            fail("Missing zip file should not be accepted.");
+        }
+        catch (IOException ex)
+        {
+            // Expected.
+        }
+    }
 }
\ No newline at end of file
@@ -50,8 +50,10 @@ class Candidates
     private final ResolveSession m_session;
     // Maps a capability to requirements that match it.
     private final OpenHashMapSet<Capability, Requirement> m_dependentMap;
-    // Maps a requirement to the capability it matches.
-    private final OpenHashMapList m_candidateMap;
+    // Maps a requirement to the capability it matches. The map is shared
+    // with permutations and copied on write, so selectors must be replaced
+    // rather than modified.
+    private final HashTrieMap<Requirement, CandidateSelector> m_candidateMap;
     // Maps a bundle revision to its associated wrapped revision; this only happens
     // when a revision being resolved has fragments to attach to it.
     private final Map<Resource, WrappedResource> m_allWrappedHosts;
@@ -70,7 +72,7 @@ class Candidates
         ResolveSession session,
         AtomicBoolean candidateSelectorsUnmodifiable,
         OpenHashMapSet<Capability, Requirement> dependentMap,
-        OpenHashMapList candidateMap,
+        HashTrieMap<Requirement, CandidateSelector> candidateMap,
         Map<Resource, WrappedResource> wrappedHosts,
         OpenHashMap<Resource, PopulateResult> populateResultCache,
         Map<Capability, Requirement> substitutableMap,
@@ -94,7 +96,7 @@ class Candidates
         m_session = session;
         m_candidateSelectorsUnmodifiable = new AtomicBoolean(false);
         m_dependentMap = new OpenHashMapSet<Capability, Requirement>();
-        m_candidateMap = new OpenHashMapList();
+        m_candidateMap = new HashTrieMap<Requirement, CandidateSelector>();
         m_allWrappedHosts = new HashMap<Resource, WrappedResource>();
         m_populateResultCache = new OpenHashMap<Resource, PopulateResult>();
         m_subtitutableMap = new OpenHashMap<Capability, Requirement>();
@@ -351,6 +353,9 @@ class Candidates
                     CandidateSelector candidates = m_candidateMap.get(dependent);
                     if (candidates != null)
                     {
+                        // The selector may be shared with permutations.
+                        candidates = candidates.copy();
+                        m_candidateMap.put(dependent, candidates);
                         candidates:
                         while (!candidates.isEmpty())
                         {
@@ -712,13 +717,18 @@ class Candidates
 
     public void removeFirstCandidate(Requirement req)
     {
-        CandidateSelector candidates = m_candidateMap.get(req);
-        // Remove the conflicting candidate.
+        // Remove the conflicting candidate from a copy of the selector,
+        // since the selector may be shared with other permutations.
+        CandidateSelector candidates = m_candidateMap.get(req).copy();
         Capability cap = candidates.removeCurrentCandidate();
         if (candidates.isEmpty())
         {
             m_candidateMap.remove(req);
         }
+        else
+        {
+            m_candidateMap.put(req, candidates);
+        }
         // Update the delta with the removed capability
         CopyOnWriteSet<Capability> capPath = m_delta.getOrCompute(req);
         capPath.add(cap);
@@ -957,7 +967,6 @@ class Candidates
 
         populateSubstitutables();
 
-        m_candidateMap.trim();
         m_dependentMap.trim();
 
         // mark the selectors as unmodifiable now
@@ -973,7 +982,7 @@ class Candidates
     {
         Map<Capability, Map<String, Map<Version, List<Requirement>>>> hostFragments =
             new HashMap<Capability, Map<String, Map<Version, List<Requirement>>>>();
-        for (Entry<Requirement, CandidateSelector> entry : m_candidateMap.fast())
+        for (Entry<Requirement, CandidateSelector> entry : m_candidateMap)
         {
             Requirement req = entry.getKey();
             CandidateSelector caps = entry.getValue();
@@ -1130,7 +1139,9 @@ class Candidates
 
     /**
      * Creates a copy of the Candidates object. This is used for creating
-     * permutations when package space conflicts are discovered.
+     * permutations when package space conflicts are discovered. The copy
+     * shares the candidate map with this object, so it only stores the
+     * candidates that are changed afterwards.
      *
      * @return copy of this Candidates object.
      */
@@ -1140,7 +1151,7 @@ class Candidates
                 m_session,
                 m_candidateSelectorsUnmodifiable,
                 m_dependentMap,
-                m_candidateMap.deepClone(),
+                m_candidateMap.copy(),
                 m_allWrappedHosts,
                 m_populateResultCache,
                 m_subtitutableMap,
@@ -1151,8 +1162,7 @@ class Candidates
     {
         // Create set of all revisions from requirements.
         Set<Resource> resources = new CopyOnWriteSet<Resource>();
-        for (Entry<Requirement, CandidateSelector> entry
-            : m_candidateMap.entrySet())
+        for (Entry<Requirement, CandidateSelector> entry : m_candidateMap)
         {
             resources.add(entry.getKey().getResource());
         }
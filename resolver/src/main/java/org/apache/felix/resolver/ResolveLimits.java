@@ -0,0 +1,93 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.felix.resolver;
+
+/**
+ * Limits on the work a single resolve operation may do to find a consistent
+ * set of candidates. The limits are checked before each candidate
+ * permutation is checked, so the first permutation is always checked.
+ * <p>
+ * When a limit is exceeded, the resolve operation fails with a
+ * {@link org.apache.felix.resolver.reason.ReasonException} whose reason is
+ * {@link org.apache.felix.resolver.reason.ReasonException.Reason#LimitExceeded
+ * LimitExceeded}. In best effort mode, the optional resources that were
+ * faulty in the best permutation found so far are removed instead, and the
+ * remaining resources are resolved with a fresh budget.
+ */
+public class ResolveLimits
+{
+    /**
+     * No limits, which is the default.
+     */
+    public static final ResolveLimits UNLIMITED = new ResolveLimits(0, 0, 0, false);
+
+    private final long m_timeout;
+    private final int m_maxPermutations;
+    private final int m_maxPendingPermutations;
+    private final boolean m_bestEffort;
+
+    /**
+     * @param timeout the maximum time in milliseconds spent on checking
+     *        permutations, or <tt>0</tt> for no limit.
+     * @param maxPermutations the maximum number of permutations checked,
+     *        or <tt>0</tt> for no limit.
+     * @param maxPendingPermutations the maximum number of permutations
+     *        waiting to be checked, which bounds the memory they retain,
+     *        or <tt>0</tt> for no limit.
+     * @param bestEffort whether to drop faulty optional resources rather
+     *        than failing when a limit is exceeded.
+     */
+    public ResolveLimits(long timeout, int maxPermutations,
+        int maxPendingPermutations, boolean bestEffort)
+    {
+        m_timeout = timeout;
+        m_maxPermutations = maxPermutations;
+        m_maxPendingPermutations = maxPendingPermutations;
+        m_bestEffort = bestEffort;
+    }
+
+    public long getTimeout()
+    {
+        return m_timeout;
+    }
+
+    public int getMaxPermutations()
+    {
+        return m_maxPermutations;
+    }
+
+    public int getMaxPendingPermutations()
+    {
+        return m_maxPendingPermutations;
+    }
+
+    public boolean isBestEffort()
+    {
+        return m_bestEffort;
+    }
+
+    @Override
+    public String toString()
+    {
+        return "ResolveLimits[timeout=" + m_timeout
+            + ", maxPermutations=" + m_maxPermutations
+            + ", maxPendingPermutations=" + m_maxPendingPermutations
+            + ", bestEffort=" + m_bestEffort + "]";
+    }
+}
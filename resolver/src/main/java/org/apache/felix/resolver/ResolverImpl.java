@@ -22,6 +22,8 @@ import java.security.*;
 import java.util.*;
 import java.util.Map.Entry;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.atomic.AtomicReference;
 
 import org.apache.felix.resolver.reason.ReasonException;
@@ -45,6 +47,25 @@ public class ResolverImpl implements Resolver
 
     private final Executor m_executor;
 
+    // Thread pool used by resolve operations if the parallelism is greater
+    // than one, created on first use.
+    private ThreadPoolExecutor m_sharedExecutor;
+
+    // Package spaces of wired resources, which are reused across resolve
+    // operations in incremental mode; null if incremental mode is disabled.
+    private final ConcurrentMap<Resource, WiredPackages> m_wiredPackages;
+
+    private final ResolveLimits m_limits;
+
+    // Permutation counters over all resolve operations of this resolver
+    private final AtomicLong m_createdPermutations = new AtomicLong();
+    private final AtomicLong m_checkedPermutations = new AtomicLong();
+    private final AtomicLong m_discardedPermutations = new AtomicLong();
+
+    // Marks a resource in the consistency check results whose package
+    // space has no uses conflict, but whose dependencies are not checked yet.
+    private static final Object NO_USES_CONFLICT = new Object();
+
     enum PermutationType {
         USES,
         IMPORT,
@@ -89,12 +110,27 @@ public class ResolverImpl implements Resolver
         private final Set<Requirement> m_mutated = new HashSet<Requirement>();
         private final Set<Requirement> m_sub_mutated = new HashSet<Requirement>();
         private final ConcurrentMap<String, List<String>> m_usesCache = new ConcurrentHashMap<String, List<String>>();
+        // Package spaces calculated for previous permutations, they are reused
+        // for resources whose candidates and dependencies have not changed
+        private final Map<Resource, CachedPackages> m_packageSpaces = new HashMap<Resource, CachedPackages>();
         private ResolutionError m_currentError;
         volatile private CancellationException m_isCancelled = null;
-
-        static ResolveSession createSession(ResolveContext resolveContext, Executor executor, Resource dynamicHost, Requirement dynamicReq, List<Capability> dynamicCandidates)
-        {
-            ResolveSession session = new ResolveSession(resolveContext, executor, dynamicHost, dynamicReq, dynamicCandidates);
+        // Limits on checking permutations, which apply to each attempt
+        private final ResolveLimits m_limits;
+        private long m_attemptStart = System.nanoTime();
+        private int m_attemptChecked = 0;
+        // Permutation counters for the whole session
+        private int m_createdPermutations = 0;
+        private int m_checkedPermutations = 0;
+        private int m_discardedPermutations = 0;
+        // Number of uses constraint violations per package name, and a
+        // requirement blamed for one of them
+        private final Map<String, Integer> m_conflictCounts = new HashMap<String, Integer>();
+        private final Map<String, Requirement> m_conflictReqs = new HashMap<String, Requirement>();
+
+        static ResolveSession createSession(ResolveContext resolveContext, Executor executor, ResolveLimits limits, Resource dynamicHost, Requirement dynamicReq, List<Capability> dynamicCandidates)
+        {
+            ResolveSession session = new ResolveSession(resolveContext, executor, limits, dynamicHost, dynamicReq, dynamicCandidates);
             // call onCancel first
             session.getContext().onCancel(session);
             // now gather the mandatory and optional resources
@@ -102,10 +138,11 @@ public class ResolverImpl implements Resolver
             return session;
         }
 
-        private ResolveSession(ResolveContext resolveContext, Executor executor, Resource dynamicHost, Requirement dynamicReq, List<Capability> dynamicCandidates)
+        private ResolveSession(ResolveContext resolveContext, Executor executor, ResolveLimits limits, Resource dynamicHost, Requirement dynamicReq, List<Capability> dynamicCandidates)
         {
             m_resolveContext = resolveContext;
             m_executor = executor;
+            m_limits = limits;
             m_dynamicHost = dynamicHost;
             m_dynamicReq = dynamicReq;
             m_dynamicCandidates = dynamicCandidates;
@@ -139,6 +176,10 @@ public class ResolverImpl implements Resolver
             return m_usesCache;
         }
 
+        Map<Resource, CachedPackages> getPackageSpaces() {
+            return m_packageSpaces;
+        }
+
         void permutateIfNeeded(PermutationType type, Requirement req, Candidates permutation) {
             List<Capability> candidates = permutation.getCandidates(req);
             if ((candidates != null) && (candidates.size() > 1))
@@ -170,6 +211,7 @@ public class ResolverImpl implements Resolver
         void addPermutation(PermutationType type, Candidates permutation) {
             if (permutation != null)
             {
+                m_createdPermutations++;
                 List<Candidates> typeToAddTo = null;
                 try {
                     switch (type) {
@@ -196,8 +238,8 @@ public class ResolverImpl implements Resolver
         }
 
         Candidates getNextPermutation() {
-            Candidates next = null;
-            do {
+            Candidates next;
+            while (true) {
                 if (!m_usesPermutations.isEmpty())
                 {
                     next = m_usesPermutations.remove(0);
@@ -213,8 +255,13 @@ public class ResolverImpl implements Resolver
                 else {
                     return null;
                 }
+                if (m_processedDeltas.add(next.getDelta())) {
+                    break;
+                }
+                m_discardedPermutations++;
             }
-            while(!m_processedDeltas.add(next.getDelta()));
+            m_checkedPermutations++;
+            m_attemptChecked++;
             // Null out each time a new permutation is attempted.
             // We only use this to store a valid permutation which is a
             // delta of the current permutation.
@@ -226,11 +273,15 @@ public class ResolverImpl implements Resolver
         }
 
         void clearPermutations() {
+            m_discardedPermutations += getPermutationCount();
+            m_attemptStart = System.nanoTime();
+            m_attemptChecked = 0;
             m_usesPermutations.clear();
             m_importPermutations.clear();
             m_substPermutations.clear();
             m_multipleCardCandidates = null;
             m_processedDeltas.clear();
+            m_packageSpaces.clear();
             m_currentError = null;
         }
 
@@ -264,6 +315,68 @@ public class ResolverImpl implements Resolver
             return m_usesPermutations.size() + m_importPermutations.size() + m_substPermutations.size(); 
         }
 
+        ResolveLimits getLimits() {
+            return m_limits;
+        }
+
+        int getCreatedPermutations() {
+            return m_createdPermutations;
+        }
+
+        int getCheckedPermutations() {
+            return m_checkedPermutations;
+        }
+
+        int getDiscardedPermutations() {
+            return m_discardedPermutations;
+        }
+
+        void recordConflict(ResolutionError error) {
+            if (error instanceof UseConstraintError) {
+                String pkgName = ((UseConstraintError) error).getPackageName();
+                Integer count = m_conflictCounts.get(pkgName);
+                m_conflictCounts.put(pkgName, (count == null) ? 1 : count + 1);
+                if (!m_conflictReqs.containsKey(pkgName)) {
+                    m_conflictReqs.put(pkgName, error.getUnresolvedRequirements().iterator().next());
+                }
+            }
+        }
+
+        /**
+         * Returns an error if the limits of the current attempt are exceeded,
+         * or <tt>null</tt> if more permutations may be checked.
+         */
+        ResolutionError checkLimits() {
+            long elapsed = (System.nanoTime() - m_attemptStart) / 1000000L;
+            String limit = null;
+            if (m_limits.getTimeout() > 0 && elapsed >= m_limits.getTimeout()) {
+                limit = "time limit of " + m_limits.getTimeout() + " ms";
+            } else if (m_limits.getMaxPermutations() > 0 && m_attemptChecked >= m_limits.getMaxPermutations()) {
+                limit = "limit of " + m_limits.getMaxPermutations() + " checked permutations";
+            } else if (m_limits.getMaxPendingPermutations() > 0 && getPermutationCount() > m_limits.getMaxPendingPermutations()) {
+                limit = "limit of " + m_limits.getMaxPendingPermutations() + " pending permutations";
+            }
+            if (limit == null) {
+                return null;
+            }
+            List<String> pkgNames = new ArrayList<String>(m_conflictCounts.keySet());
+            Collections.sort(pkgNames, new Comparator<String>() {
+                public int compare(String s1, String s2) {
+                    return m_conflictCounts.get(s2).compareTo(m_conflictCounts.get(s1));
+                }
+            });
+            if (pkgNames.size() > LimitExceededError.MAX_PACKAGES) {
+                pkgNames = pkgNames.subList(0, LimitExceededError.MAX_PACKAGES);
+            }
+            Map<String, Integer> contended = new LinkedHashMap<String, Integer>();
+            List<Requirement> reqs = new ArrayList<Requirement>();
+            for (String pkgName : pkgNames) {
+                contended.put(pkgName, m_conflictCounts.get(pkgName));
+                reqs.add(m_conflictReqs.get(pkgName));
+            }
+            return new LimitExceededError(limit, m_attemptChecked, elapsed, contended, reqs);
+        }
+
         Executor getExecutor() {
             return m_executor;
         }
@@ -358,13 +471,69 @@ public class ResolverImpl implements Resolver
         this.m_logger = logger;
         this.m_parallelism = parallelism;
         this.m_executor = null;
+        this.m_wiredPackages = null;
+        this.m_limits = ResolveLimits.UNLIMITED;
     }
 
     public ResolverImpl(Logger logger, Executor executor)
+    {
+        this(logger, executor, false);
+    }
+
+    /**
+     * Creates a resolver which, if <tt>incremental</tt> is <tt>true</tt>,
+     * keeps the package spaces of wired resources across resolve operations.
+     * Wired resources are fixed, so their package spaces only have to be
+     * calculated once per wiring; subsequent resolve operations then only
+     * calculate the package spaces and check the uses constraints of the
+     * resources being resolved. This is meant for a resolver that is used
+     * with a single, evolving set of wirings, like the one of a framework.
+     */
+    public ResolverImpl(Logger logger, Executor executor, boolean incremental)
+    {
+        this(logger, executor, incremental, ResolveLimits.UNLIMITED);
+    }
+
+    /**
+     * Creates a resolver like {@link #ResolverImpl(Logger, Executor, boolean)}
+     * whose resolve operations are bounded by the given limits.
+     */
+    public ResolverImpl(Logger logger, Executor executor, boolean incremental, ResolveLimits limits)
     {
         this.m_logger = logger;
         this.m_parallelism = -1;
         this.m_executor = executor;
+        this.m_wiredPackages = incremental
+            ? new ConcurrentHashMap<Resource, WiredPackages>()
+            : null;
+        this.m_limits = limits;
+    }
+
+    /**
+     * Returns the number of candidate permutations created by all resolve
+     * operations of this resolver.
+     */
+    public long getCreatedPermutations()
+    {
+        return m_createdPermutations.get();
+    }
+
+    /**
+     * Returns the number of candidate permutations whose consistency was
+     * checked by all resolve operations of this resolver.
+     */
+    public long getCheckedPermutations()
+    {
+        return m_checkedPermutations.get();
+    }
+
+    /**
+     * Returns the number of candidate permutations that were created but
+     * never checked, because they were duplicates or no longer needed.
+     */
+    public long getDiscardedPermutations()
+    {
+        return m_discardedPermutations.get();
     }
 
     public Map<Resource, List<Wire>> resolve(ResolveContext rc) throws ResolutionException
@@ -375,38 +544,7 @@ public class ResolverImpl implements Resolver
         }
         else if (m_parallelism > 1)
         {
-            final ExecutorService executor =
-                System.getSecurityManager() != null ?
-                    AccessController.doPrivileged(
-                        new PrivilegedAction<ExecutorService>()
-                        {
-                            public ExecutorService run()
-                            {
-                                return Executors.newFixedThreadPool(m_parallelism);
-                            }
-                        }, m_acc)
-                :
-                    Executors.newFixedThreadPool(m_parallelism);
-            try
-            {
-                return resolve(rc, executor);
-            }
-            finally
-            {
-                if (System.getSecurityManager() != null)
-                {
-                    AccessController.doPrivileged(new PrivilegedAction<Void>(){
-                        public Void run() {
-                            executor.shutdownNow();
-                            return null;
-                        }
-                    }, m_acc);
-                }
-                else
-                {
-                    executor.shutdownNow();
-                }
-            }
+            return resolve(rc, getSharedExecutor());
         }
         else
         {
@@ -414,14 +552,80 @@ public class ResolverImpl implements Resolver
         }
     }
 
+    /**
+     * Returns the thread pool shared by the resolve operations of this
+     * resolver. Its threads are created on demand and terminate when they
+     * have been idle for a while, so the pool needs no shutdown.
+     */
+    private synchronized Executor getSharedExecutor()
+    {
+        if (m_sharedExecutor == null)
+        {
+            m_sharedExecutor = System.getSecurityManager() != null ?
+                AccessController.doPrivileged(
+                    new PrivilegedAction<ThreadPoolExecutor>()
+                    {
+                        public ThreadPoolExecutor run()
+                        {
+                            return createSharedExecutor(m_parallelism);
+                        }
+                    }, m_acc)
+            :
+                createSharedExecutor(m_parallelism);
+        }
+        return m_sharedExecutor;
+    }
+
+    private static ThreadPoolExecutor createSharedExecutor(int parallelism)
+    {
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(
+            parallelism, parallelism, 60, TimeUnit.SECONDS,
+            new LinkedBlockingQueue<Runnable>(),
+            new ThreadFactory()
+            {
+                private final AtomicInteger m_counter = new AtomicInteger();
+
+                public Thread newThread(Runnable r)
+                {
+                    Thread thread = new Thread(r, "FelixResolver-" + m_counter.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
     public Map<Resource, List<Wire>> resolve(ResolveContext rc, Executor executor) throws ResolutionException
     {
-        ResolveSession session = ResolveSession.createSession(rc, executor, null, null, null);
+        ResolveSession session = ResolveSession.createSession(rc, executor, m_limits, null, null, null);
         return doResolve(session);
     }
 
     private Map<Resource, List<Wire>> doResolve(ResolveSession session) throws ResolutionException {
+        long start = System.nanoTime();
+        try
+        {
+            return doResolveAttempts(session);
+        }
+        finally
+        {
+            m_createdPermutations.addAndGet(session.getCreatedPermutations());
+            m_checkedPermutations.addAndGet(session.getCheckedPermutations());
+            m_discardedPermutations.addAndGet(session.getDiscardedPermutations());
+            if (m_logger.isDebugEnabled())
+            {
+                m_logger.debug("Resolve took " + ((System.nanoTime() - start) / 1000000L)
+                    + " ms; permutations created: " + session.getCreatedPermutations()
+                    + ", checked: " + session.getCheckedPermutations()
+                    + ", discarded: " + session.getDiscardedPermutations());
+            }
+        }
+    }
+
+    private Map<Resource, List<Wire>> doResolveAttempts(ResolveSession session) throws ResolutionException {
         Map<Resource, List<Wire>> wireMap = new HashMap<Resource, List<Wire>>();
+        pruneWiredPackages(session);
         boolean retry;
         do
         {
@@ -443,6 +647,16 @@ public class ResolverImpl implements Resolver
                 // again; otherwise, m_currentError the resolve exception.
                 if (session.getCurrentError() != null)
                 {
+                    if (session.getCurrentError() instanceof LimitExceededError)
+                    {
+                        if (!session.getLimits().isBestEffort())
+                        {
+                            throw session.getCurrentError().toException();
+                        }
+                        m_logger.log(Logger.LOG_WARNING, session.getCurrentError().getMessage()
+                            + " Continuing without the faulty optional resources: "
+                            + faultyResources.keySet());
+                    }
                     Set<Resource> resourceKeys = faultyResources.keySet();
                     retry = (session.getOptionalResources().removeAll(resourceKeys));
                     for (Resource faultyResource : resourceKeys)
@@ -578,6 +792,18 @@ public class ResolverImpl implements Resolver
                     )
             );
 
+            if (session.getCurrentError() != null)
+            {
+                if (currentFaultyResources.isEmpty())
+                {
+                    session.recordConflict(session.getCurrentError());
+                }
+                for (ResolutionError error : currentFaultyResources.values())
+                {
+                    session.recordConflict(error);
+                }
+            }
+
             if (!currentFaultyResources.isEmpty())
             {
                 if (!foundFaultyResources)
@@ -592,6 +818,17 @@ public class ResolverImpl implements Resolver
                     faultyResources.putAll(currentFaultyResources);
                 }
             }
+
+            // Give up if there are permutations left but a limit is exceeded
+            if ((session.getCurrentError() != null) && (session.getPermutationCount() > 0))
+            {
+                ResolutionError limitError = session.checkLimits();
+                if (limitError != null)
+                {
+                    session.setCurrentError(limitError);
+                    break;
+                }
+            }
         }
         while (!session.isCancelled() && session.getCurrentError() != null);
 
@@ -615,7 +852,7 @@ public class ResolverImpl implements Resolver
         ResolutionError error = null;
         // Check package consistency
         Map<Resource, Object> resultCache =
-                new OpenHashMap<Resource, Object>(resourcePkgMap.size());
+                findConflictFreeResources(session, resourcePkgMap);
         for (Entry<Resource, Resource> entry : allhosts.entrySet())
         {
             rethrow = checkPackageSpaceConsistency(
@@ -667,7 +904,7 @@ public class ResolverImpl implements Resolver
                         "Matching candidate does not provide a package name.");
                 }
             }
-            ResolveSession session = ResolveSession.createSession(context,  new DumbExecutor(), host, dynamicRequirement, matches);
+            ResolveSession session = ResolveSession.createSession(context,  new DumbExecutor(), m_limits, host, dynamicRequirement, matches);
             return doResolve(session);
         }
 
@@ -1129,6 +1366,9 @@ public class ResolverImpl implements Resolver
     {
         final EnhancedExecutor executor = new EnhancedExecutor(session.getExecutor());
 
+        // Package spaces of wired resources reused from previous calculations
+        final Map<Resource, WiredPackages> reused = new ConcurrentHashMap<Resource, WiredPackages>();
+
         // Parallel compute wire candidates
         final Map<Resource, List<WireCandidate>> allWireCandidates = new ConcurrentHashMap<Resource, List<WireCandidate>>();
         {
@@ -1142,7 +1382,17 @@ public class ResolverImpl implements Resolver
                 }
                 public void run()
                 {
-                    List<WireCandidate> wireCandidates = getWireCandidates(session, allCandidates, resource);
+                    List<WireCandidate> wireCandidates;
+                    WiredPackages wired = getWiredPackages(session, resource);
+                    if (wired != null)
+                    {
+                        reused.put(resource, wired);
+                        wireCandidates = wired.m_wireCandidates;
+                    }
+                    else
+                    {
+                        wireCandidates = getWireCandidates(session, allCandidates, resource);
+                    }
                     allWireCandidates.put(resource, wireCandidates);
                     for (WireCandidate w : wireCandidates)
                     {
@@ -1165,10 +1415,30 @@ public class ResolverImpl implements Resolver
             executor.await();
         }
 
+        // Package spaces of a previous permutation that are still valid
+        final Map<Resource, Packages> memoized =
+            getMemoizedPackages(session, allWireCandidates, reused);
+        // Resources whose package spaces were read while calculating
+        // the package space of each resource
+        final Map<Resource, Set<Resource>> dependencies = new HashMap<Resource, Set<Resource>>();
+
         // Parallel get all exported packages
         final OpenHashMap<Resource, Packages> allPackages = new OpenHashMap<Resource, Packages>(allCandidates.getNbResources());
         for (final Resource resource : allWireCandidates.keySet())
         {
+            WiredPackages wired = reused.get(resource);
+            if (wired != null)
+            {
+                allPackages.put(resource, wired.m_packages);
+                continue;
+            }
+            Packages previous = memoized.get(resource);
+            if (previous != null)
+            {
+                allPackages.put(resource, previous);
+                continue;
+            }
+            dependencies.put(resource, new HashSet<Resource>());
             final Packages packages = new Packages(resource);
             allPackages.put(resource, packages);
             executor.execute(new Runnable()
@@ -1183,13 +1453,15 @@ public class ResolverImpl implements Resolver
         executor.await();
 
         // Parallel compute package lists
-        for (final Resource resource : allWireCandidates.keySet())
+        for (final Resource resource : dependencies.keySet())
         {
             executor.execute(new Runnable()
             {
                 public void run()
                 {
-                    getPackages(session, allCandidates, allWireCandidates, allPackages, resource, allPackages.get(resource));
+                    getPackages(session, allCandidates, allWireCandidates,
+                        new DependencyRecorder(allPackages, dependencies, resource),
+                        resource, allPackages.get(resource));
                 }
             });
         }
@@ -1203,9 +1475,11 @@ public class ResolverImpl implements Resolver
         {
             final Resource resource = entry.getKey();
             final Packages packages = entry.getValue();
-            if (!packages.m_requiredPkgs.isEmpty())
+            if (!packages.m_requiredPkgs.isEmpty() && dependencies.containsKey(resource))
             {
-                getPackageSourcesInternal(session, allPackages, resource, packages);
+                getPackageSourcesInternal(session,
+                    new DependencyRecorder(allPackages, dependencies, resource),
+                    resource, packages);
             }
         }
         // Next, for all remaining resources, we can compute them
@@ -1214,13 +1488,15 @@ public class ResolverImpl implements Resolver
         {
             final Resource resource = entry.getKey();
             final Packages packages = entry.getValue();
-            if (packages.m_sources.isEmpty())
+            if (packages.m_sources.isEmpty() && dependencies.containsKey(resource))
             {
                 executor.execute(new Runnable()
                 {
                     public void run()
                     {
-                        getPackageSourcesInternal(session, allPackages, resource, packages);
+                        getPackageSourcesInternal(session,
+                            new DependencyRecorder(allPackages, dependencies, resource),
+                            resource, packages);
                     }
                 });
             }
@@ -1228,21 +1504,215 @@ public class ResolverImpl implements Resolver
         executor.await();
 
         // Parallel compute uses
-        for (final Resource resource : allWireCandidates.keySet())
+        for (final Resource resource : dependencies.keySet())
         {
             executor.execute(new Runnable()
             {
                 public void run()
                 {
-                    computeUses(session, allWireCandidates, allPackages, resource);
+                    computeUses(session, allWireCandidates,
+                        new DependencyRecorder(allPackages, dependencies, resource),
+                        resource);
                 }
             });
         }
         executor.await();
 
+        // Remember the new package spaces, so that the next permutations
+        // only recalculate those affected by a changed candidate
+        Map<Resource, CachedPackages> packageSpaces = session.getPackageSpaces();
+        for (Map.Entry<Resource, Set<Resource>> entry : dependencies.entrySet())
+        {
+            Resource resource = entry.getKey();
+            packageSpaces.put(resource, new CachedPackages(
+                allWireCandidates.get(resource), allPackages.get(resource),
+                entry.getValue(), allPackages));
+        }
+
+        // Keep the newly calculated package spaces of wired resources, they
+        // are complete and remain valid as long as the wiring does not change
+        if (m_wiredPackages != null)
+        {
+            for (Map.Entry<Resource, Packages> entry : allPackages.fast())
+            {
+                Resource resource = entry.getKey();
+                if (!reused.containsKey(resource) && !resource.equals(session.getDynamicHost()))
+                {
+                    Wiring wiring = session.getContext().getWirings().get(resource);
+                    if (wiring != null)
+                    {
+                        m_wiredPackages.put(resource, new WiredPackages(
+                            wiring, getWireCount(wiring),
+                            allWireCandidates.get(resource), entry.getValue()));
+                    }
+                }
+            }
+        }
+
         return allPackages;
     }
 
+    /**
+     * Returns the previously calculated package space of a wired resource,
+     * or <tt>null</tt> if there is none or if it is no longer valid.
+     */
+    private WiredPackages getWiredPackages(ResolveSession session, Resource resource)
+    {
+        if ((m_wiredPackages == null) || resource.equals(session.getDynamicHost()))
+        {
+            // The package space of a dynamically importing resource is
+            // extended with the dynamic import, so it cannot be reused.
+            return null;
+        }
+        WiredPackages wired = m_wiredPackages.get(resource);
+        if (wired != null)
+        {
+            Wiring wiring = session.getContext().getWirings().get(resource);
+            // Wirings only change by gaining dynamic wires, so the number of
+            // wires tells whether the package space is still up to date.
+            if ((wiring == wired.m_wiring) && (getWireCount(wiring) == wired.m_wireCount))
+            {
+                return wired;
+            }
+        }
+        return null;
+    }
+
+    private void pruneWiredPackages(ResolveSession session)
+    {
+        if (m_wiredPackages != null)
+        {
+            Map<Resource, Wiring> wirings = session.getContext().getWirings();
+            for (Iterator<Map.Entry<Resource, WiredPackages>> it =
+                m_wiredPackages.entrySet().iterator(); it.hasNext();)
+            {
+                Map.Entry<Resource, WiredPackages> entry = it.next();
+                if (wirings.get(entry.getKey()) != entry.getValue().m_wiring)
+                {
+                    it.remove();
+                }
+            }
+        }
+    }
+
+    private static int getWireCount(Wiring wiring)
+    {
+        List<Wire> wires = wiring.getRequiredResourceWires(null);
+        return (wires == null) ? 0 : wires.size();
+    }
+
+    /**
+     * Returns the package spaces calculated for a previous permutation of
+     * the session that are still valid for the given wire candidates. A
+     * package space is valid if the resource has the same wire candidates
+     * and all the package spaces it was calculated from are reused as well.
+     */
+    private static Map<Resource, Packages> getMemoizedPackages(
+        ResolveSession session,
+        Map<Resource, List<WireCandidate>> allWireCandidates,
+        Map<Resource, WiredPackages> reused)
+    {
+        Map<Resource, CachedPackages> packageSpaces = session.getPackageSpaces();
+        if (packageSpaces.isEmpty())
+        {
+            return Collections.emptyMap();
+        }
+
+        Map<Resource, CachedPackages> valid = new HashMap<Resource, CachedPackages>();
+        for (Map.Entry<Resource, List<WireCandidate>> entry : allWireCandidates.entrySet())
+        {
+            Resource resource = entry.getKey();
+            CachedPackages cached = packageSpaces.get(resource);
+            if ((cached != null) && !reused.containsKey(resource)
+                && equalWireCandidates(cached.m_wireCandidates, entry.getValue()))
+            {
+                valid.put(resource, cached);
+            }
+        }
+
+        // Invalidate the package spaces that depend on a package space which
+        // has to be recalculated, until only valid ones remain
+        Map<Resource, List<Resource>> dependents = new HashMap<Resource, List<Resource>>();
+        List<Resource> invalid = new ArrayList<Resource>();
+        for (Map.Entry<Resource, CachedPackages> entry : valid.entrySet())
+        {
+            Resource resource = entry.getKey();
+            CachedPackages cached = entry.getValue();
+            boolean changed = false;
+            for (int i = 0; i < cached.m_dependencies.length; i++)
+            {
+                Resource dependency = cached.m_dependencies[i];
+                WiredPackages wired = reused.get(dependency);
+                CachedPackages other = valid.get(dependency);
+                Packages current = (wired != null) ? wired.m_packages
+                    : (other != null) ? other.m_packages : null;
+                if ((current == null) || (current != cached.m_dependencyPackages[i]))
+                {
+                    changed = true;
+                }
+                List<Resource> list = dependents.get(dependency);
+                if (list == null)
+                {
+                    list = new ArrayList<Resource>();
+                    dependents.put(dependency, list);
+                }
+                list.add(resource);
+            }
+            if (changed)
+            {
+                invalid.add(resource);
+            }
+        }
+        for (Resource resource : invalid)
+        {
+            valid.remove(resource);
+        }
+        while (!invalid.isEmpty())
+        {
+            List<Resource> list = dependents.get(invalid.remove(invalid.size() - 1));
+            if (list != null)
+            {
+                for (Resource dependent : list)
+                {
+                    if (valid.remove(dependent) != null)
+                    {
+                        invalid.add(dependent);
+                    }
+                }
+            }
+        }
+
+        Map<Resource, Packages> memoized = new HashMap<Resource, Packages>(valid.size());
+        for (Map.Entry<Resource, CachedPackages> entry : valid.entrySet())
+        {
+            Packages packages = entry.getValue().m_packages;
+            // The uses check also reads the package spaces of the providers,
+            // which are not recorded as dependencies, so check it again
+            packages.m_usesConflict = null;
+            memoized.put(entry.getKey(), packages);
+        }
+        return memoized;
+    }
+
+    private static boolean equalWireCandidates(List<WireCandidate> l1, List<WireCandidate> l2)
+    {
+        if (l1.size() != l2.size())
+        {
+            return false;
+        }
+        for (int i = 0; i < l1.size(); i++)
+        {
+            WireCandidate w1 = l1.get(i);
+            WireCandidate w2 = l2.get(i);
+            if (!w1.requirement.equals(w2.requirement)
+                || !w1.capability.equals(w2.capability))
+            {
+                return false;
+            }
+        }
+        return true;
+    }
+
     private static List<String> parseUses(String s) {
         int nb = 1;
         int l = s.length();
@@ -1327,65 +1797,155 @@ public class ResolverImpl implements Resolver
             return null;
         }
         Object cache = resultCache.get(resource);
+        if (cache == NO_USES_CONFLICT)
+        {
+            // The resource itself has no conflicts, so only the
+            // resources on which it depends remain to be checked.
+            resultCache.put(resource, Boolean.TRUE);
+            return checkDependencyConsistency(
+                session, resource, allCandidates, resourcePkgMap, resultCache);
+        }
         if (cache != null)
         {
             return cache instanceof ResolutionError ? (ResolutionError) cache : null;
         }
 
-        Packages pkgs = resourcePkgMap.get(resource);
+        UsesConflictPermuter permuter = new UsesConflictPermuter(session, allCandidates, resource);
+        if (checkUsesConflicts(resourcePkgMap.get(resource), resourcePkgMap, permuter))
+        {
+            return permuter.m_rethrow;
+        }
 
-        ResolutionError rethrow = null;
+        resultCache.put(resource, Boolean.TRUE);
 
+        return checkDependencyConsistency(
+            session, resource, allCandidates, resourcePkgMap, resultCache);
+    }
+
+    private ResolutionError checkDependencyConsistency(
+        ResolveSession session,
+        Resource resource,
+        Candidates allCandidates,
+        Map<Resource, Packages> resourcePkgMap,
+        Map<Resource, Object> resultCache)
+    {
+        ResolutionError rethrow;
+        // Now check the consistency of all resources on which the
+        // current resource depends. Keep track of the current number
+        // of permutations so we know if the lower level check was
+        // able to create a permutation or not in the case of failure.
+        long permCount = session.getPermutationCount();
+        for (Requirement req : resource.getRequirements(null))
+        {
+            Capability cap = allCandidates.getFirstCandidate(req);
+            if (cap != null)
+            {
+                if (!resource.equals(cap.getResource()))
+                {
+                    rethrow = checkPackageSpaceConsistency(
+                            session, cap.getResource(),
+                            allCandidates, false, resourcePkgMap, resultCache);
+                    if (session.isCancelled()) {
+                        return null;
+                    }
+                    if (rethrow != null)
+                    {
+                        // If the lower level check didn't create any permutations,
+                        // then we should create an import permutation for the
+                        // requirement with the dependency on the failing resource
+                        // to backtrack on our current candidate selection.
+                        if (permCount == session.getPermutationCount())
+                        {
+                            session.addPermutation(PermutationType.IMPORT, allCandidates.permutate(req));
+                        }
+                        return rethrow;
+                    }
+                }
+            }
+        }
+        return null;
+    }
+    
+    /**
+     * Returns a result cache for checking the package space consistency in
+     * which all unresolved resources without any uses conflict of their own
+     * are marked with {@link #NO_USES_CONFLICT}. These checks are read-only,
+     * so they are done in parallel; only the resources with conflicts are
+     * checked again sequentially to create the permutations resolving them.
+     */
+    private static Map<Resource, Object> findConflictFreeResources(
+        final ResolveSession session, final Map<Resource, Packages> resourcePkgMap)
+    {
+        Map<Resource, Wiring> wirings = session.getContext().getWirings();
+        List<Resource> resources = new ArrayList<Resource>(resourcePkgMap.size());
+        EnhancedExecutor executor = new EnhancedExecutor(session.getExecutor());
+        for (Resource resource : resourcePkgMap.keySet())
+        {
+            final Packages pkgs = resourcePkgMap.get(resource);
+            if (wirings.containsKey(resource))
+            {
+                continue;
+            }
+            resources.add(resource);
+            if (pkgs.m_usesConflict == null)
+            {
+                executor.execute(new Runnable()
+                {
+                    public void run()
+                    {
+                        if (!session.isCancelled())
+                        {
+                            pkgs.m_usesConflict = checkUsesConflicts(pkgs, resourcePkgMap, null);
+                        }
+                    }
+                });
+            }
+        }
+        executor.await();
+
+        Map<Resource, Object> resultCache = new OpenHashMap<Resource, Object>(resourcePkgMap.size());
+        for (Resource resource : resources)
+        {
+            if (Boolean.FALSE.equals(resourcePkgMap.get(resource).m_usesConflict))
+            {
+                resultCache.put(resource, NO_USES_CONFLICT);
+            }
+        }
+        return resultCache;
+    }
+
+    /**
+     * Checks the package space of a resource for uses conflicts and passes
+     * them to the given handler, which decides whether the check stops at a
+     * conflict. Without a handler the check stops at the first conflict;
+     * it then only reads the package spaces, so it is safe to do in parallel.
+     *
+     * @return whether the check stopped at a conflict.
+     */
+    private static boolean checkUsesConflicts(
+        Packages pkgs, Map<Resource, Packages> resourcePkgMap, UsesConflictHandler handler)
+    {
         // Check for conflicting imports from fragments.
         // TODO: Is this only needed for imports or are generic and bundle requirements also needed?
         //       I think this is only a special case for fragment imports because they can overlap
         //       host imports, which is not allowed in normal metadata.
         for (Entry<String, List<Blame>> entry : pkgs.m_importedPkgs.fast())
         {
-            String pkgName = entry.getKey();
             List<Blame> blames = entry.getValue();
-            if (blames.size() > 1)
+            for (int i = 1; i < blames.size(); i++)
             {
-                Blame sourceBlame = null;
-                for (Blame blame : blames)
+                Blame sourceBlame = blames.get(0);
+                Blame blame = blames.get(i);
+                if (!sourceBlame.m_cap.getResource().equals(blame.m_cap.getResource()))
                 {
-                    if (sourceBlame == null)
-                    {
-                        sourceBlame = blame;
-                    }
-                    else if (!sourceBlame.m_cap.getResource().equals(blame.m_cap.getResource()))
+                    if (handler != null)
                     {
-                        // Try to permutate the conflicting requirement.
-                        session.addPermutation(PermutationType.IMPORT, allCandidates.permutate(blame.m_reqs.get(0)));
-                        // Try to permutate the source requirement.
-                        session.addPermutation(PermutationType.IMPORT, allCandidates.permutate(sourceBlame.m_reqs.get(0)));
-                        // Report conflict.
-                        rethrow = new UseConstraintError(
-                                session.getContext(), allCandidates,
-                                resource, pkgName,
-                                sourceBlame, blame);
-                        if (m_logger.isDebugEnabled())
-                        {
-                            m_logger.debug(
-                                    "Candidate permutation failed due to a conflict with a "
-                                            + "fragment import; will try another if possible."
-                                            + " (" + rethrow.getMessage() + ")");
-                        }
-                        return rethrow;
+                        handler.fragmentImportConflict(entry.getKey(), sourceBlame, blame);
                     }
+                    return true;
                 }
             }
         }
-        // IMPLEMENTATION NOTE:
-        // Below we track the mutated reqs that have been permuted
-        // in a single candidates permutation.  This permutation may contain a
-        // delta of several reqs which conflict with a directly imported/required candidates.
-        // When several reqs are permuted at the same time this reduces the number of solutions tried.
-        // See the method Candidates::canRemoveCandidate for a case where substitutions must be checked
-        // because of this code that may permute multiple reqs in on candidates permutation.
-        AtomicReference<Candidates> permRef1 = new AtomicReference<Candidates>();
-        AtomicReference<Candidates> permRef2 = new AtomicReference<Candidates>();
-        Set<Requirement> mutated = null;
 
         // Check if there are any uses conflicts with exported packages.
         for (Entry<String, Blame> entry : pkgs.m_exportedPkgs.fast())
@@ -1397,32 +1957,24 @@ public class ResolverImpl implements Resolver
             {
                 continue;
             }
+            List<UsedBlames> conflicts = null;
             for (UsedBlames usedBlames : pkgBlames.values())
             {
                 if (!isCompatible(exportBlame, usedBlames.m_caps, resourcePkgMap))
                 {
-                    mutated = (mutated != null)
-                            ? mutated
-                            : new HashSet<Requirement>();
-                    rethrow = permuteUsedBlames(session, rethrow, allCandidates, resource,
-                            pkgName, null, usedBlames, permRef1, permRef2, mutated);
+                    if (handler == null)
+                    {
+                        return true;
+                    }
+                    conflicts = (conflicts != null)
+                            ? conflicts
+                            : new ArrayList<UsedBlames>();
+                    conflicts.add(usedBlames);
                 }
             }
-
-            if (rethrow != null)
+            if ((conflicts != null) && handler.exportConflict(pkgName, exportBlame, conflicts))
             {
-                if (!mutated.isEmpty())
-                {
-                    session.addPermutation(PermutationType.USES, permRef1.get());
-                    session.addPermutation(PermutationType.USES, permRef2.get());
-                }
-                if (m_logger.isDebugEnabled())
-                {
-                    m_logger.debug("Candidate permutation failed due to a conflict between "
-                            + "an export and import; will try another if possible."
-                            + " (" + rethrow.getMessage() + ")");
-                }
-                return rethrow;
+                return true;
             }
         }
 
@@ -1454,97 +2006,17 @@ public class ResolverImpl implements Resolver
 
             for (UsedBlames usedBlames : pkgBlames.values())
             {
-                if (!isCompatible(requirementBlames, usedBlames.m_caps, resourcePkgMap))
+                if (!isCompatible(requirementBlames, usedBlames.m_caps, resourcePkgMap)
+                    && ((handler == null)
+                        || handler.importConflict(pkgName, requirementBlames, usedBlames)))
                 {
-                    mutated = (mutated != null)
-                            ? mutated
-                            : new HashSet<Requirement>();// Split packages, need to think how to get a good message for split packages (sigh)
-                    // For now we just use the first requirement that brings in the package that conflicts
-                    Blame requirementBlame = requirementBlames.get(0);
-                    rethrow = permuteUsedBlames(session, rethrow, allCandidates, resource, pkgName, requirementBlame, usedBlames, permRef1, permRef2, mutated);
-                }
-
-                // If there was a uses conflict, then we should add a uses
-                // permutation if we were able to permutate any candidates.
-                // Additionally, we should try to push an import permutation
-                // for the original import to force a backtracking on the
-                // original candidate decision if no viable candidate is found
-                // for the conflicting uses constraint.
-                if (rethrow != null)
-                {
-                    // Add uses permutation if we m_mutated any candidates.
-                    if (!mutated.isEmpty())
-                    {
-                        session.addPermutation(PermutationType.USES, permRef1.get());
-                        session.addPermutation(PermutationType.USES, permRef2.get());
-                    }
-
-                    // Try to permutate the candidate for the original
-                    // import requirement; only permutate it if we haven't
-                    // done so already.
-                    for (Blame requirementBlame : requirementBlames)
-                    {
-                        Requirement req = requirementBlame.m_reqs.get(0);
-                        if (!mutated.contains(req))
-                        {
-                            // Since there may be lots of uses constraint violations
-                            // with existing import decisions, we may end up trying
-                            // to permutate the same import a lot of times, so we should
-                            // try to check if that the case and only permutate it once.
-                            session.permutateIfNeeded(PermutationType.IMPORT, req, allCandidates);
-                        }
-                    }
-
-                    if (m_logger.isDebugEnabled())
-                    {
-                        m_logger.debug("Candidate permutation failed due to a conflict between "
-                                        + "imports; will try another if possible."
-                                        + " (" + rethrow.getMessage() + ")"
-                        );
-                    }
-                    return rethrow;
+                    return true;
                 }
             }
         }
-
-        resultCache.put(resource, Boolean.TRUE);
-
-        // Now check the consistency of all resources on which the
-        // current resource depends. Keep track of the current number
-        // of permutations so we know if the lower level check was
-        // able to create a permutation or not in the case of failure.
-        long permCount = session.getPermutationCount();
-        for (Requirement req : resource.getRequirements(null))
-        {
-            Capability cap = allCandidates.getFirstCandidate(req);
-            if (cap != null)
-            {
-                if (!resource.equals(cap.getResource()))
-                {
-                    rethrow = checkPackageSpaceConsistency(
-                            session, cap.getResource(),
-                            allCandidates, false, resourcePkgMap, resultCache);
-                    if (session.isCancelled()) {
-                        return null;
-                    }
-                    if (rethrow != null)
-                    {
-                        // If the lower level check didn't create any permutations,
-                        // then we should create an import permutation for the
-                        // requirement with the dependency on the failing resource
-                        // to backtrack on our current candidate selection.
-                        if (permCount == session.getPermutationCount())
-                        {
-                            session.addPermutation(PermutationType.IMPORT, allCandidates.permutate(req));
-                        }
-                        return rethrow;
-                    }
-                }
-            }
-        }
-        return null;
+        return false;
     }
-    
+
     private ResolutionError permuteUsedBlames(ResolveSession session,
           ResolutionError rethrow, Candidates allCandidates, Resource resource,
           String pkgName, Blame requirementBlame, UsedBlames usedBlames,
@@ -1832,7 +2304,9 @@ public class ResolverImpl implements Resolver
                         Set<Capability> additional = capPackages.m_sources.get(bcap);
                         if (additional == null)
                         {
-                            getPackageSourcesInternal(session, resourcePkgMap, capResource, capPackages);
+                            getPackageSourcesInternal(session,
+                                DependencyRecorder.forResource(resourcePkgMap, capResource),
+                                capResource, capPackages);
                             additional = capPackages.m_sources.get(bcap);
                         }
                         srcs.addAll(additional);
@@ -2113,6 +2587,102 @@ public class ResolverImpl implements Resolver
         }
     }
 
+    /**
+     * The package space of a wired resource together with the wiring state
+     * it was calculated for.
+     */
+    private static final class WiredPackages
+    {
+        final Wiring m_wiring;
+        final int m_wireCount;
+        final List<WireCandidate> m_wireCandidates;
+        final Packages m_packages;
+
+        WiredPackages(Wiring wiring, int wireCount,
+            List<WireCandidate> wireCandidates, Packages packages)
+        {
+            m_wiring = wiring;
+            m_wireCount = wireCount;
+            m_wireCandidates = wireCandidates;
+            m_packages = packages;
+        }
+    }
+
+    /**
+     * The package space of a resource calculated for a permutation, together
+     * with the wire candidates and the package spaces it was calculated from.
+     */
+    private static final class CachedPackages
+    {
+        final List<WireCandidate> m_wireCandidates;
+        final Packages m_packages;
+        final Resource[] m_dependencies;
+        final Packages[] m_dependencyPackages;
+
+        CachedPackages(List<WireCandidate> wireCandidates, Packages packages,
+            Set<Resource> dependencies, Map<Resource, Packages> allPackages)
+        {
+            m_wireCandidates = wireCandidates;
+            m_packages = packages;
+            m_dependencies = dependencies.toArray(new Resource[dependencies.size()]);
+            m_dependencyPackages = new Packages[m_dependencies.length];
+            for (int i = 0; i < m_dependencies.length; i++)
+            {
+                m_dependencyPackages[i] = allPackages.get(m_dependencies[i]);
+            }
+        }
+    }
+
+    /**
+     * A view of the package spaces that records which of them are read
+     * while calculating the package space of a given resource.
+     */
+    private static final class DependencyRecorder extends AbstractMap<Resource, Packages>
+    {
+        private final Map<Resource, Packages> m_packages;
+        private final Map<Resource, Set<Resource>> m_dependencies;
+        private final Set<Resource> m_recorded;
+
+        DependencyRecorder(Map<Resource, Packages> packages,
+            Map<Resource, Set<Resource>> dependencies, Resource resource)
+        {
+            m_packages = packages;
+            m_dependencies = dependencies;
+            m_recorded = dependencies.get(resource);
+        }
+
+        /**
+         * Returns a view recording the reads for another resource, whose
+         * package space is calculated on behalf of the current one.
+         */
+        static Map<Resource, Packages> forResource(
+            Map<Resource, Packages> resourcePkgMap, Resource resource)
+        {
+            if (resourcePkgMap instanceof DependencyRecorder)
+            {
+                DependencyRecorder recorder = (DependencyRecorder) resourcePkgMap;
+                return new DependencyRecorder(recorder.m_packages, recorder.m_dependencies, resource);
+            }
+            return resourcePkgMap;
+        }
+
+        @Override
+        public Packages get(Object key)
+        {
+            if (m_recorded != null)
+            {
+                m_recorded.add((Resource) key);
+            }
+            return m_packages.get(key);
+        }
+
+        @Override
+        public Set<Map.Entry<Resource, Packages>> entrySet()
+        {
+            return m_packages.entrySet();
+        }
+    }
+
     public static class Packages
     {
         public final OpenHashMap<String, Blame> m_exportedPkgs;
@@ -2121,6 +2691,9 @@ public class ResolverImpl implements Resolver
         public final OpenHashMap<String, List<Blame>> m_requiredPkgs;
         public final OpenHashMap<String, ArrayMap<Set<Capability>, UsedBlames>> m_usedPkgs;
         public final OpenHashMap<Capability, Set<Capability>> m_sources;
+        // Whether the package space has a uses conflict, null if not known
+        // yet; reset when the package space is reused for another permutation.
+        volatile Boolean m_usesConflict;
 
         @SuppressWarnings("serial")
         public Packages(Resource resource)
@@ -2260,6 +2833,156 @@ public class ResolverImpl implements Resolver
         }
     }
 
+    /**
+     * Receives the uses conflicts found by {@link #checkUsesConflicts}.
+     */
+    private interface UsesConflictHandler
+    {
+        /**
+         * Handles a package imported from different resources by a host and
+         * its fragments; the check always stops at such a conflict.
+         */
+        void fragmentImportConflict(String pkgName, Blame sourceBlame, Blame blame);
+
+        /**
+         * Handles the used packages conflicting with an exported package and
+         * returns whether the check stops.
+         */
+        boolean exportConflict(String pkgName, Blame exportBlame, List<UsedBlames> conflicts);
+
+        /**
+         * Handles a used package conflicting with an imported or required
+         * package and returns whether the check stops.
+         */
+        boolean importConflict(String pkgName, List<Blame> requirementBlames, UsedBlames usedBlames);
+    }
+
+    /**
+     * Creates the permutations resolving the uses conflicts of a resource
+     * and records the error reported for them.
+     */
+    private final class UsesConflictPermuter implements UsesConflictHandler
+    {
+        private final ResolveSession m_session;
+        private final Candidates m_allCandidates;
+        private final Resource m_resource;
+        // IMPLEMENTATION NOTE:
+        // Below we track the mutated reqs that have been permuted
+        // in a single candidates permutation.  This permutation may contain a
+        // delta of several reqs which conflict with a directly imported/required candidates.
+        // When several reqs are permuted at the same time this reduces the number of solutions tried.
+        // See the method Candidates::canRemoveCandidate for a case where substitutions must be checked
+        // because of this code that may permute multiple reqs in on candidates permutation.
+        private final AtomicReference<Candidates> m_permRef1 = new AtomicReference<Candidates>();
+        private final AtomicReference<Candidates> m_permRef2 = new AtomicReference<Candidates>();
+        private final Set<Requirement> m_mutated = new HashSet<Requirement>();
+        ResolutionError m_rethrow;
+
+        UsesConflictPermuter(ResolveSession session, Candidates allCandidates, Resource resource)
+        {
+            m_session = session;
+            m_allCandidates = allCandidates;
+            m_resource = resource;
+        }
+
+        public void fragmentImportConflict(String pkgName, Blame sourceBlame, Blame blame)
+        {
+            // Try to permutate the conflicting requirement.
+            m_session.addPermutation(PermutationType.IMPORT, m_allCandidates.permutate(blame.m_reqs.get(0)));
+            // Try to permutate the source requirement.
+            m_session.addPermutation(PermutationType.IMPORT, m_allCandidates.permutate(sourceBlame.m_reqs.get(0)));
+            // Report conflict.
+            m_rethrow = new UseConstraintError(
+                    m_session.getContext(), m_allCandidates,
+                    m_resource, pkgName,
+                    sourceBlame, blame);
+            if (m_logger.isDebugEnabled())
+            {
+                m_logger.debug(
+                        "Candidate permutation failed due to a conflict with a "
+                                + "fragment import; will try another if possible."
+                                + " (" + m_rethrow.getMessage() + ")");
+            }
+        }
+
+        public boolean exportConflict(String pkgName, Blame exportBlame, List<UsedBlames> conflicts)
+        {
+            for (UsedBlames usedBlames : conflicts)
+            {
+                m_rethrow = permuteUsedBlames(m_session, m_rethrow, m_allCandidates, m_resource,
+                        pkgName, null, usedBlames, m_permRef1, m_permRef2, m_mutated);
+            }
+
+            if (m_rethrow != null)
+            {
+                if (!m_mutated.isEmpty())
+                {
+                    m_session.addPermutation(PermutationType.USES, m_permRef1.get());
+                    m_session.addPermutation(PermutationType.USES, m_permRef2.get());
+                }
+                if (m_logger.isDebugEnabled())
+                {
+                    m_logger.debug("Candidate permutation failed due to a conflict between "
+                            + "an export and import; will try another if possible."
+                            + " (" + m_rethrow.getMessage() + ")");
+                }
+                return true;
+            }
+            return false;
+        }
+
+        public boolean importConflict(String pkgName, List<Blame> requirementBlames, UsedBlames usedBlames)
+        {
+            // Split packages, need to think how to get a good message for split packages (sigh)
+            // For now we just use the first requirement that brings in the package that conflicts
+            Blame requirementBlame = requirementBlames.get(0);
+            m_rethrow = permuteUsedBlames(m_session, m_rethrow, m_allCandidates, m_resource,
+                    pkgName, requirementBlame, usedBlames, m_permRef1, m_permRef2, m_mutated);
+
+            // If there was a uses conflict, then we should add a uses
+            // permutation if we were able to permutate any candidates.
+            // Additionally, we should try to push an import permutation
+            // for the original import to force a backtracking on the
+            // original candidate decision if no viable candidate is found
+            // for the conflicting uses constraint.
+            if (m_rethrow != null)
+            {
+                // Add uses permutation if we m_mutated any candidates.
+                if (!m_mutated.isEmpty())
+                {
+                    m_session.addPermutation(PermutationType.USES, m_permRef1.get());
+                    m_session.addPermutation(PermutationType.USES, m_permRef2.get());
+                }
+
+                // Try to permutate the candidate for the original
+                // import requirement; only permutate it if we haven't
+                // done so already.
+                for (Blame blame : requirementBlames)
+                {
+                    Requirement req = blame.m_reqs.get(0);
+                    if (!m_mutated.contains(req))
+                    {
+                        // Since there may be lots of uses constraint violations
+                        // with existing import decisions, we may end up trying
+                        // to permutate the same import a lot of times, so we should
+                        // try to check if that the case and only permutate it once.
+                        m_session.permutateIfNeeded(PermutationType.IMPORT, req, m_allCandidates);
+                    }
+                }
+
+                if (m_logger.isDebugEnabled())
+                {
+                    m_logger.debug("Candidate permutation failed due to a conflict between "
+                                    + "imports; will try another if possible."
+                                    + " (" + m_rethrow.getMessage() + ")"
+                    );
+                }
+                return true;
+            }
+            return false;
+        }
+    }
+
     private static final class UseConstraintError extends ResolutionError {
 
         private final ResolveContext m_context;
@@ -2286,6 +3009,10 @@ public class ResolverImpl implements Resolver
             this.m_blame2 = blame2;
         }
 
+        String getPackageName() {
+            return m_pkgName;
+        }
+
         public String getMessage() {
             if (m_blame2 == null)
             {
@@ -2468,6 +3195,55 @@ public class ResolverImpl implements Resolver
         }
     }
 
+    private static final class LimitExceededError extends ResolutionError {
+
+        // Number of most contended packages that are reported
+        static final int MAX_PACKAGES = 10;
+
+        private final String m_limit;
+        private final int m_checked;
+        private final long m_elapsed;
+        private final Map<String, Integer> m_contended;
+        private final List<Requirement> m_requirements;
+
+        public LimitExceededError(String limit, int checked, long elapsed, Map<String, Integer> contended, List<Requirement> requirements) {
+            this.m_limit = limit;
+            this.m_checked = checked;
+            this.m_elapsed = elapsed;
+            this.m_contended = contended;
+            this.m_requirements = requirements;
+        }
+
+        public String getMessage() {
+            StringBuilder sb = new StringBuilder();
+            sb.append("Resolver exceeded the ").append(m_limit)
+                .append(" after checking ").append(m_checked)
+                .append(" permutations in ").append(m_elapsed).append(" ms.");
+            if (!m_contended.isEmpty())
+            {
+                sb.append(" Most contended packages:");
+                String sep = " ";
+                for (Map.Entry<String, Integer> entry : m_contended.entrySet())
+                {
+                    sb.append(sep).append(entry.getKey())
+                        .append(" (").append(entry.getValue()).append(" conflicts)");
+                    sep = ", ";
+                }
+            }
+            return sb.toString();
+        }
+
+        public Collection<Requirement> getUnresolvedRequirements() {
+            return m_requirements;
+        }
+
+        @Override
+        public ResolutionException toException()
+        {
+            return new ReasonException(ReasonException.Reason.LimitExceeded, getMessage(), null, getUnresolvedRequirements());
+        }
+    }
+
     private static class EnhancedExecutor
     {
         private final Executor executor;
@@ -77,7 +77,19 @@ public class ReasonException extends ResolutionException {
          * <p>
          * This reason has no a transitive cause.
          */
-        UseConstraint
+        UseConstraint,
+
+        /**
+         * Represents the scenario where the resolver exceeded one of its
+         * configured limits before finding a consistent set of candidates.
+         * <p>
+         * {@link ReasonException#getUnresolvedRequirements()} will return
+         * a collection containing the requirements most often blamed for
+         * use constraint violations, starting with the most contended package.
+         * <p>
+         * This reason has no a transitive cause.
+         */
+        LimitExceeded
     }
 
     private static final long serialVersionUID = -5276675175114379539L;
@@ -0,0 +1,389 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.felix.resolver.util;
+
+import java.util.AbstractMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+/**
+ * A hash array mapped trie whose copies share their structure.
+ * <p>
+ * {@link #copy()} takes constant time: both maps keep referring to the same
+ * trie and a later update copies only the nodes on the path to the changed
+ * entry. Nodes created by a map since its last copy are owned by it and are
+ * updated in place, so filling a map costs about the same as filling a hash
+ * table. Values are shared between copies as well, so mutable values must be
+ * replaced rather than modified once a map has been copied.
+ * <p>
+ * Null keys are not supported. This class is not thread safe, but copies
+ * may be created concurrently as long as the map is not modified meanwhile.
+ */
+public class HashTrieMap<K, V> implements Iterable<Map.Entry<K, V>> {
+
+    private static final int BITS = 5;
+    private static final int MASK = (1 << BITS) - 1;
+
+    private Node root;
+    private int size;
+    // Nodes created with this token since the last copy are owned by this map.
+    private volatile Object edit = new Object();
+
+    public HashTrieMap() {
+    }
+
+    private HashTrieMap(Node root, int size) {
+        this.root = root;
+        this.size = size;
+    }
+
+    /**
+     * Returns a copy of this map that shares all nodes with this map.
+     *
+     * @return the copy.
+     */
+    public HashTrieMap<K, V> copy() {
+        // The nodes are shared from now on, so neither map may update them in place.
+        edit = new Object();
+        return new HashTrieMap<K, V>(root, size);
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    @SuppressWarnings("unchecked")
+    public V get(Object key) {
+        if (key == null || root == null) {
+            return null;
+        }
+        return (V) root.get(0, hash(key), key);
+    }
+
+    public void put(K key, V value) {
+        if (key == null) {
+            throw new NullPointerException();
+        }
+        Object e = edit;
+        Node r = root != null ? root : new BitmapNode(e, 0, new Object[0]);
+        root = r.put(this, e, 0, hash(key), key, value);
+    }
+
+    @SuppressWarnings("unchecked")
+    public V remove(Object key) {
+        if (key == null || root == null) {
+            return null;
+        }
+        Object[] removed = new Object[1];
+        root = root.remove(this, edit, 0, hash(key), key, removed);
+        return (V) removed[0];
+    }
+
+    public Iterator<Map.Entry<K, V>> iterator() {
+        return new EntryIterator<K, V>(root);
+    }
+
+    static int hash(Object key) {
+        int h = key.hashCode();
+        return h ^ (h >>> 16);
+    }
+
+    private static int bitpos(int hash, int shift) {
+        return 1 << ((hash >>> shift) & MASK);
+    }
+
+    private static Node createNode(Object edit, int shift, Object k1, Object v1, int h2, Object k2, Object v2) {
+        int h1 = hash(k1);
+        if (h1 == h2) {
+            return new CollisionNode(edit, h1, new Object[] {k1, v1, k2, v2});
+        }
+        int p1 = (h1 >>> shift) & MASK;
+        int p2 = (h2 >>> shift) & MASK;
+        if (p1 == p2) {
+            return new BitmapNode(edit, 1 << p1,
+                    new Object[] {null, createNode(edit, shift + BITS, k1, v1, h2, k2, v2)});
+        }
+        return new BitmapNode(edit, (1 << p1) | (1 << p2), p1 < p2
+                ? new Object[] {k1, v1, k2, v2}
+                : new Object[] {k2, v2, k1, v1});
+    }
+
+    private static abstract class Node {
+        abstract Object get(int shift, int hash, Object key);
+
+        abstract Node put(HashTrieMap<?, ?> map, Object edit, int shift, int hash, Object key, Object value);
+
+        abstract Node remove(HashTrieMap<?, ?> map, Object edit, int shift, int hash, Object key, Object[] removed);
+    }
+
+    /**
+     * A node whose bitmap tells which of the 32 slots are used; for each
+     * used slot the array holds a key and its value, or <tt>null</tt> and
+     * a child node.
+     */
+    private static final class BitmapNode extends Node {
+        final Object edit;
+        int bitmap;
+        Object[] array;
+
+        BitmapNode(Object edit, int bitmap, Object[] array) {
+            this.edit = edit;
+            this.bitmap = bitmap;
+            this.array = array;
+        }
+
+        private int index(int bit) {
+            return Integer.bitCount(bitmap & (bit - 1));
+        }
+
+        Object get(int shift, int hash, Object key) {
+            int bit = bitpos(hash, shift);
+            if ((bitmap & bit) == 0) {
+                return null;
+            }
+            int idx = 2 * index(bit);
+            Object k = array[idx];
+            Object v = array[idx + 1];
+            if (k == null) {
+                return ((Node) v).get(shift + BITS, hash, key);
+            }
+            return key.equals(k) ? v : null;
+        }
+
+        Node put(HashTrieMap<?, ?> map, Object edit, int shift, int hash, Object key, Object value) {
+            int bit = bitpos(hash, shift);
+            int idx = 2 * index(bit);
+            if ((bitmap & bit) != 0) {
+                Object k = array[idx];
+                Object v = array[idx + 1];
+                if (k == null) {
+                    Node n = ((Node) v).put(map, edit, shift + BITS, hash, key, value);
+                    return n == v ? this : set(edit, idx + 1, n);
+                }
+                if (key.equals(k)) {
+                    return v == value ? this : set(edit, idx + 1, value);
+                }
+                map.size++;
+                Node n = createNode(edit, shift + BITS, k, v, hash, key, value);
+                BitmapNode node = (BitmapNode) set(edit, idx, null);
+                node.array[idx + 1] = n;
+                return node;
+            }
+            map.size++;
+            Object[] a = new Object[array.length + 2];
+            System.arraycopy(array, 0, a, 0, idx);
+            a[idx] = key;
+            a[idx + 1] = value;
+            System.arraycopy(array, idx, a, idx + 2, array.length - idx);
+            if (this.edit == edit) {
+                bitmap |= bit;
+                array = a;
+                return this;
+            }
+            return new BitmapNode(edit, bitmap | bit, a);
+        }
+
+        Node remove(HashTrieMap<?, ?> map, Object edit, int shift, int hash, Object key, Object[] removed) {
+            int bit = bitpos(hash, shift);
+            if ((bitmap & bit) == 0) {
+                return this;
+            }
+            int idx = 2 * index(bit);
+            Object k = array[idx];
+            Object v = array[idx + 1];
+            if (k == null) {
+                Node n = ((Node) v).remove(map, edit, shift + BITS, hash, key, removed);
+                if (n == v) {
+                    return this;
+                }
+                if (n != null) {
+                    return set(edit, idx + 1, n);
+                }
+            } else if (key.equals(k)) {
+                removed[0] = v;
+                map.size--;
+            } else {
+                return this;
+            }
+            if (bitmap == bit) {
+                return null;
+            }
+            Object[] a = new Object[array.length - 2];
+            System.arraycopy(array, 0, a, 0, idx);
+            System.arraycopy(array, idx + 2, a, idx, array.length - idx - 2);
+            if (this.edit == edit) {
+                bitmap ^= bit;
+                array = a;
+                return this;
+            }
+            return new BitmapNode(edit, bitmap ^ bit, a);
+        }
+
+        private Node set(Object edit, int i, Object o) {
+            if (this.edit == edit) {
+                array[i] = o;
+                return this;
+            }
+            Object[] a = array.clone();
+            a[i] = o;
+            return new BitmapNode(edit, bitmap, a);
+        }
+    }
+
+    /**
+     * A node holding the keys and values of keys with the same hash.
+     */
+    private static final class CollisionNode extends Node {
+        final Object edit;
+        final int hash;
+        Object[] array;
+
+        CollisionNode(Object edit, int hash, Object[] array) {
+            this.edit = edit;
+            this.hash = hash;
+            this.array = array;
+        }
+
+        private int indexOf(Object key) {
+            for (int i = 0; i < array.length; i += 2) {
+                if (key.equals(array[i])) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        Object get(int shift, int hash, Object key) {
+            int idx = indexOf(key);
+            return idx >= 0 ? array[idx + 1] : null;
+        }
+
+        Node put(HashTrieMap<?, ?> map, Object edit, int shift, int hash, Object key, Object value) {
+            if (hash != this.hash) {
+                // Nest this node into a bitmap node that can hold both hashes.
+                return new BitmapNode(edit, bitpos(this.hash, shift), new Object[] {null, this})
+                        .put(map, edit, shift, hash, key, value);
+            }
+            int idx = indexOf(key);
+            Object[] a;
+            if (idx >= 0) {
+                if (array[idx + 1] == value) {
+                    return this;
+                }
+                a = this.edit == edit ? array : array.clone();
+                a[idx + 1] = value;
+            } else {
+                map.size++;
+                a = new Object[array.length + 2];
+                System.arraycopy(array, 0, a, 0, array.length);
+                a[array.length] = key;
+                a[array.length + 1] = value;
+            }
+            if (this.edit == edit) {
+                array = a;
+                return this;
+            }
+            return new CollisionNode(edit, hash, a);
+        }
+
+        Node remove(HashTrieMap<?, ?> map, Object edit, int shift, int hash, Object key, Object[] removed) {
+            int idx = indexOf(key);
+            if (idx < 0) {
+                return this;
+            }
+            removed[0] = array[idx + 1];
+            map.size--;
+            if (array.length == 2) {
+                return null;
+            }
+            Object[] a = new Object[array.length - 2];
+            System.arraycopy(array, 0, a, 0, idx);
+            System.arraycopy(array, idx + 2, a, idx, array.length - idx - 2);
+            if (this.edit == edit) {
+                array = a;
+                return this;
+            }
+            return new CollisionNode(edit, this.hash, a);
+        }
+    }
+
+    private static final class EntryIterator<K, V> implements Iterator<Map.Entry<K, V>> {
+        // Tries have at most seven levels of bitmap nodes and a collision node.
+        private final Object[][] arrays = new Object[8][];
+        private final int[] indexes = new int[8];
+        private int depth = -1;
+        private Map.Entry<K, V> next;
+
+        EntryIterator(Node root) {
+            if (root != null) {
+                push(root);
+                advance();
+            }
+        }
+
+        private void push(Node node) {
+            depth++;
+            arrays[depth] = node instanceof BitmapNode
+                    ? ((BitmapNode) node).array : ((CollisionNode) node).array;
+            indexes[depth] = 0;
+        }
+
+        @SuppressWarnings("unchecked")
+        private void advance() {
+            next = null;
+            while (depth >= 0) {
+                Object[] a = arrays[depth];
+                int i = indexes[depth];
+                if (i >= a.length) {
+                    arrays[depth--] = null;
+                    continue;
+                }
+                indexes[depth] = i + 2;
+                if (a[i] == null) {
+                    push((Node) a[i + 1]);
+                } else {
+                    next = new AbstractMap.SimpleImmutableEntry<K, V>((K) a[i], (V) a[i + 1]);
+                    return;
+                }
+            }
+        }
+
+        public boolean hasNext() {
+            return next != null;
+        }
+
+        public Map.Entry<K, V> next() {
+            if (next == null) {
+                throw new NoSuchElementException();
+            }
+            Map.Entry<K, V> e = next;
+            advance();
+            return e;
+        }
+
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+    }
+}
@@ -0,0 +1,93 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.felix.resolver.test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.apache.felix.resolver.util.HashTrieMap;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class HashTrieMapTest {
+
+    @Test
+    public void testCopiesAreIndependent() throws Exception {
+        Random random = new Random(42);
+        List<HashTrieMap<Key, Integer>> maps = new ArrayList<HashTrieMap<Key, Integer>>();
+        List<Map<Key, Integer>> expected = new ArrayList<Map<Key, Integer>>();
+        maps.add(new HashTrieMap<Key, Integer>());
+        expected.add(new HashMap<Key, Integer>());
+
+        for (int i = 0; i < 20000; i++) {
+            int m = random.nextInt(maps.size());
+            HashTrieMap<Key, Integer> map = maps.get(m);
+            Map<Key, Integer> exp = expected.get(m);
+            // Few distinct hash codes, so that there are collisions at all levels.
+            Key key = new Key(random.nextInt(2000), random.nextInt(600) * 0x01010101);
+            int op = random.nextInt(10);
+            if (op < 6) {
+                map.put(key, i);
+                exp.put(key, i);
+            } else if (op < 9) {
+                assertEquals(exp.remove(key), map.remove(key));
+            } else if (maps.size() < 16) {
+                maps.add(map.copy());
+                expected.add(new HashMap<Key, Integer>(exp));
+            }
+            assertEquals(exp.get(key), map.get(key));
+        }
+
+        for (int m = 0; m < maps.size(); m++) {
+            HashTrieMap<Key, Integer> map = maps.get(m);
+            Map<Key, Integer> exp = expected.get(m);
+            assertEquals(exp.size(), map.size());
+            Map<Key, Integer> entries = new HashMap<Key, Integer>();
+            for (Map.Entry<Key, Integer> entry : map) {
+                assertNull(entries.put(entry.getKey(), entry.getValue()));
+            }
+            assertEquals(exp, entries);
+        }
+    }
+
+    private static class Key {
+        private final int id;
+        private final int hash;
+
+        Key(int id, int hash) {
+            this.id = id;
+            this.hash = hash;
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof Key && ((Key) o).id == id && ((Key) o).hash == hash;
+        }
+    }
+}
@@ -32,9 +32,12 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Executor;
 
 import org.apache.felix.resolver.Logger;
+import org.apache.felix.resolver.ResolveLimits;
 import org.apache.felix.resolver.ResolverImpl;
+import org.apache.felix.resolver.reason.ReasonException;
 import org.apache.felix.resolver.test.util.BundleCapability;
 import org.apache.felix.resolver.test.util.BundleRequirement;
 import org.apache.felix.resolver.test.util.GenericCapability;
@@ -226,6 +229,93 @@ public class ResolverTest
         assertTrue(foundD);
     }
 
+    @Test
+    public void testScenario3Parallel() throws Exception
+    {
+        ResolverImpl resolver = new ResolverImpl(new Logger(Logger.LOG_DEBUG), 4);
+
+        // Consecutive resolve operations share the thread pool of the resolver.
+        for (int i = 0; i < 2; i++)
+        {
+            Map<Resource, Wiring> wirings = new HashMap<Resource, Wiring>();
+            Map<Requirement, List<Capability>> candMap = new HashMap<Requirement, List<Capability>>();
+            List<Resource> mandatory = populateScenario3(wirings, candMap);
+            ResolveContextImpl rci = new ResolveContextImpl(wirings, candMap, mandatory, Collections.<Resource> emptyList());
+
+            Map<Resource, List<Wire>> wireMap = resolver.resolve(rci);
+            assertEquals(3, wireMap.size());
+
+            Resource cRes = findResource("C", wireMap.keySet());
+            for (Wire w : wireMap.get(findResource("E", wireMap.keySet())))
+            {
+                if (w.getCapability().getNamespace().equals(PackageNamespace.PACKAGE_NAMESPACE))
+                {
+                    assertEquals(cRes, w.getProvider());
+                }
+            }
+        }
+        assertEquals(4, resolver.getCheckedPermutations());
+    }
+
+    @Test
+    public void testScenario3PermutationLimit() throws Exception
+    {
+        ResolverImpl resolver = new ResolverImpl(new Logger(Logger.LOG_DEBUG), new Executor()
+        {
+            public void execute(Runnable command)
+            {
+                command.run();
+            }
+        }, false, new ResolveLimits(0, 1, 0, false));
+
+        Map<Resource, Wiring> wirings = new HashMap<Resource, Wiring>();
+        Map<Requirement, List<Capability>> candMap = new HashMap<Requirement, List<Capability>>();
+        List<Resource> mandatory = populateScenario3(wirings, candMap);
+        ResolveContextImpl rci = new ResolveContextImpl(wirings, candMap, mandatory, Collections.<Resource> emptyList());
+
+        // The first permutation has a uses conflict on package resources,
+        // which another permutation would resolve.
+        try
+        {
+            resolver.resolve(rci);
+            fail("Expected the permutation limit to be exceeded");
+        }
+        catch (ReasonException e)
+        {
+            assertEquals(ReasonException.Reason.LimitExceeded, e.getReason());
+            assertTrue(e.getMessage(), e.getMessage().contains("resources (1 conflicts)"));
+            assertEquals(1, e.getUnresolvedRequirements().size());
+        }
+        assertEquals(1, resolver.getCheckedPermutations());
+        assertTrue(resolver.getCreatedPermutations() > 1);
+        assertEquals(resolver.getCreatedPermutations() - 1, resolver.getDiscardedPermutations());
+    }
+
+    @Test
+    public void testScenario3PermutationLimitBestEffort() throws Exception
+    {
+        ResolverImpl resolver = new ResolverImpl(new Logger(Logger.LOG_DEBUG), new Executor()
+        {
+            public void execute(Runnable command)
+            {
+                command.run();
+            }
+        }, false, new ResolveLimits(0, 1, 0, true));
+
+        Map<Resource, Wiring> wirings = new HashMap<Resource, Wiring>();
+        Map<Requirement, List<Capability>> candMap = new HashMap<Requirement, List<Capability>>();
+        List<Resource> optional = populateScenario3(wirings, candMap);
+        ResourceImpl f = new ResourceImpl("F");
+        ResolveContextImpl rci = new ResolveContextImpl(wirings, candMap,
+            Collections.<Resource> singletonList(f), optional);
+
+        // The optional resource with the uses conflict is left out.
+        Map<Resource, List<Wire>> wireMap = resolver.resolve(rci);
+        assertEquals(1, wireMap.size());
+        assertNotNull(findResource("F", wireMap.keySet()));
+        assertEquals(2, resolver.getCheckedPermutations());
+    }
+
     @Test
     public void testScenario4() throws Exception
     {
@@ -433,6 +523,56 @@ public class ResolverTest
         assertEquals(resC1, wiresB.get(1).getProvider());
     }
 
+    @Test
+    public void testScenario9Incremental() throws Exception
+    {
+        Resolver resolver = new ResolverImpl(new Logger(Logger.LOG_DEBUG), new Executor()
+        {
+            public void execute(Runnable command)
+            {
+                command.run();
+            }
+        }, true);
+
+        Map<Resource, Wiring> wirings = new HashMap<Resource, Wiring>();
+        Map<Requirement, List<Capability>> candMap = new HashMap<Requirement, List<Capability>>();
+        List<Resource> mandatory = populateScenario9(wirings, candMap);
+
+        Resource resA = findResource("A", wirings.keySet());
+        Resource resC1 = findResource("C1", wirings.keySet());
+        Resource resC2 = findResource("C2", wirings.keySet());
+
+        // The package spaces of the wired resources calculated by the first
+        // resolve must lead to the same result when reused by the second one.
+        for (int i = 0; i < 2; i++)
+        {
+            ResolveContextImpl rci = new ResolveContextImpl(wirings, candMap, mandatory, Collections.<Resource> emptyList());
+            Map<Resource, List<Wire>> wireMap = resolver.resolve(rci);
+            assertEquals(1, wireMap.size());
+            List<Wire> wiresB = wireMap.get(findResource("B", wireMap.keySet()));
+            assertEquals(2, wiresB.size());
+            assertEquals(resA, wiresB.get(0).getProvider());
+            assertEquals(resC1, wiresB.get(1).getProvider());
+        }
+
+        // Rewire A to C2; the package space of the old wiring must not be used.
+        Requirement f1_pkgReq = findResource("F1", wirings.keySet())
+            .getRequirements(PackageNamespace.PACKAGE_NAMESPACE).get(0);
+        Capability c2_pkgCap = resC2.getCapabilities(PackageNamespace.PACKAGE_NAMESPACE).get(0);
+        Map<Resource, List<Wire>> wires = new HashMap<Resource, List<Wire>>();
+        wires.put(resA, Collections.<Wire> singletonList(new SimpleWire(f1_pkgReq, c2_pkgCap, resA, resC2)));
+        Map<Resource, List<Wire>> invertedWires = new HashMap<Resource, List<Wire>>();
+        invertedWires.put(resA, Collections.<Wire> emptyList());
+        wirings.put(resA, new SimpleWiring(resA, wirings.get(resA).getResourceCapabilities(null), wires, invertedWires));
+
+        ResolveContextImpl rci = new ResolveContextImpl(wirings, candMap, mandatory, Collections.<Resource> emptyList());
+        Map<Resource, List<Wire>> wireMap = resolver.resolve(rci);
+        List<Wire> wiresB = wireMap.get(findResource("B", wireMap.keySet()));
+        assertEquals(2, wiresB.size());
+        assertEquals(resA, wiresB.get(0).getProvider());
+        assertEquals(resC2, wiresB.get(1).getProvider());
+    }
+
     /**
      * Test dynamic resolution with a resolved fragment
      */
@@ -923,6 +1063,78 @@ public class ResolverTest
         assertEquals("Wrong number of resolved bundles", 9, result.size());
     }
 
+    /**
+     * Test a uses conflict that only appears in a later permutation, for a
+     * resource whose own candidates have not changed since the permutation
+     * in which it was consistent.
+     */
+    @Test
+    public void testScenario20() throws Exception
+    {
+        ResolverImpl resolver = new ResolverImpl(new Logger(Logger.LOG_DEBUG), 1);
+
+        Map<Requirement, List<Capability>> candMap = new HashMap<Requirement, List<Capability>>();
+        List<Resource> mandatory = populateScenario20(candMap);
+        ResolveContextImpl rci = new ResolveContextImpl(Collections.<Resource, Wiring> emptyMap(), candMap,
+            mandatory, Collections.<Resource> emptyList());
+
+        Map<Resource, List<Wire>> wireMap = resolver.resolve(rci);
+
+        // Q3 is the only provider of org.foo.q consistent for all resources
+        Resource q3 = findResource("Q3", wireMap.keySet());
+        assertEquals(q3, getPackageProvider(wireMap.get(findResource("A", wireMap.keySet())), "org.foo.q"));
+        assertEquals(q3, getPackageProvider(wireMap.get(findResource("X", wireMap.keySet())), "org.foo.q"));
+        assertEquals(q3, getPackageProvider(wireMap.get(findResource("Y", wireMap.keySet())), "org.foo.q"));
+    }
+
+    /**
+     * Test the package spaces reused across the permutations of scenario 20
+     * when they are calculated in parallel.
+     */
+    @Test
+    public void testScenario20Parallel() throws Exception
+    {
+        ResolverImpl resolver = new ResolverImpl(new Logger(Logger.LOG_DEBUG), 4);
+
+        Map<Requirement, List<Capability>> candMap = new HashMap<Requirement, List<Capability>>();
+        List<Resource> mandatory = populateScenario20(candMap);
+        ResolveContextImpl rci = new ResolveContextImpl(Collections.<Resource, Wiring> emptyMap(), candMap,
+            mandatory, Collections.<Resource> emptyList());
+
+        Map<Resource, List<Wire>> wireMap = resolver.resolve(rci);
+
+        assertSameAsSinglePermutation(wireMap, mandatory);
+    }
+
+    /**
+     * Test a uses conflict through the package space of a resource whose
+     * candidates do not change, when only the candidate of a transitive
+     * dependency is permuted.
+     */
+    @Test
+    public void testScenario21() throws Exception
+    {
+        ResolverImpl resolver = new ResolverImpl(new Logger(Logger.LOG_DEBUG), 1);
+
+        Map<Requirement, List<Capability>> candMap = new HashMap<Requirement, List<Capability>>();
+        List<Resource> mandatory = populateScenario21(candMap);
+        ResolveContextImpl rci = new ResolveContextImpl(Collections.<Resource, Wiring> emptyMap(), candMap,
+            mandatory, Collections.<Resource> emptyList());
+
+        Map<Resource, List<Wire>> wireMap = resolver.resolve(rci);
+
+        Resource a = findResource("A", wireMap.keySet());
+        Resource b = findResource("B", wireMap.keySet());
+        Resource x = findResource("X", wireMap.keySet());
+        Resource q2 = findResource("Q2", wireMap.keySet());
+        assertEquals(q2, getPackageProvider(wireMap.get(a), "org.foo.q"));
+        assertEquals(a, getPackageProvider(wireMap.get(b), "org.foo.p"));
+        assertEquals(b, getPackageProvider(wireMap.get(x), "org.foo.r"));
+        assertEquals(q2, getPackageProvider(wireMap.get(x), "org.foo.q"));
+
+        assertSameAsSinglePermutation(wireMap, mandatory);
+    }
+
     private ResolveContext populateScenario17(boolean realSubstitute,
         boolean felixResolveContext, boolean existingWirings)
     {
@@ -1560,6 +1772,114 @@ public class ResolverTest
         return Collections.<Resource>singletonList(b1);
     }
 
+    private static List<Resource> populateScenario20(Map<Requirement, List<Capability>> candMap)
+    {
+        ResourceImpl q1 = new ResourceImpl("Q1");
+        Capability q1_pkgCap = addCap(q1, PackageNamespace.PACKAGE_NAMESPACE, "org.foo.q");
+        ResourceImpl q2 = new ResourceImpl("Q2");
+        Capability q2_pkgCap = addCap(q2, PackageNamespace.PACKAGE_NAMESPACE, "org.foo.q");
+        ResourceImpl q3 = new ResourceImpl("Q3");
+        Capability q3_pkgCap = addCap(q3, PackageNamespace.PACKAGE_NAMESPACE, "org.foo.q");
+
+        ResourceImpl a = new ResourceImpl("A");
+        Capability a_pkgCap = addCap(a, PackageNamespace.PACKAGE_NAMESPACE, "org.foo.p", "org.foo.q");
+        Requirement a_pkgReq = addReq(a, PackageNamespace.PACKAGE_NAMESPACE, "org.foo.q");
+
+        // X is consistent with A wired to Q1, Y with A wired to Q2
+        ResourceImpl x = new ResourceImpl("X");
+        Requirement x_pkgReq1 = addReq(x, PackageNamespace.PACKAGE_NAMESPACE, "org.foo.p");
+        Requirement x_pkgReq2 = addReq(x, PackageNamespace.PACKAGE_NAMESPACE, "org.foo.q");
+
+        ResourceImpl y = new ResourceImpl("Y");
+        Requirement y_pkgReq1 = addReq(y, PackageNamespace.PACKAGE_NAMESPACE, "org.foo.p");
+        Requirement y_pkgReq2 = addReq(y, PackageNamespace.PACKAGE_NAMESPACE, "org.foo.q");
+
+        candMap.put(a_pkgReq, Arrays.asList(q1_pkgCap, q2_pkgCap, q3_pkgCap));
+        candMap.put(x_pkgReq1, Collections.singletonList(a_pkgCap));
+        candMap.put(x_pkgReq2, Arrays.asList(q1_pkgCap, q3_pkgCap));
+        candMap.put(y_pkgReq1, Collections.singletonList(a_pkgCap));
+        candMap.put(y_pkgReq2, Arrays.asList(q2_pkgCap, q3_pkgCap));
+
+        return Arrays.<Resource>asList(x, y);
+    }
+
+    private static List<Resource> populateScenario21(Map<Requirement, List<Capability>> candMap)
+    {
+        ResourceImpl q1 = new ResourceImpl("Q1");
+        Capability q1_pkgCap = addCap(q1, PackageNamespace.PACKAGE_NAMESPACE, "org.foo.q");
+        ResourceImpl q2 = new ResourceImpl("Q2");
+        Capability q2_pkgCap = addCap(q2, PackageNamespace.PACKAGE_NAMESPACE, "org.foo.q");
+
+        ResourceImpl a = new ResourceImpl("A");
+        Capability a_pkgCap = addCap(a, PackageNamespace.PACKAGE_NAMESPACE, "org.foo.p", "org.foo.q");
+        Requirement a_pkgReq = addReq(a, PackageNamespace.PACKAGE_NAMESPACE, "org.foo.q");
+
+        ResourceImpl b = new ResourceImpl("B");
+        Capability b_pkgCap = addCap(b, PackageNamespace.PACKAGE_NAMESPACE, "org.foo.r", "org.foo.p");
+        Requirement b_pkgReq = addReq(b, PackageNamespace.PACKAGE_NAMESPACE, "org.foo.p");
+
+        // X only sees the package org.foo.q of A through B
+        ResourceImpl x = new ResourceImpl("X");
+        Requirement x_pkgReq1 = addReq(x, PackageNamespace.PACKAGE_NAMESPACE, "org.foo.r");
+        Requirement x_pkgReq2 = addReq(x, PackageNamespace.PACKAGE_NAMESPACE, "org.foo.q");
+
+        candMap.put(a_pkgReq, Arrays.asList(q1_pkgCap, q2_pkgCap));
+        candMap.put(b_pkgReq, Collections.singletonList(a_pkgCap));
+        candMap.put(x_pkgReq1, Collections.singletonList(b_pkgCap));
+        candMap.put(x_pkgReq2, Collections.singletonList(q2_pkgCap));
+
+        return Collections.<Resource>singletonList(x);
+    }
+
+    /**
+     * Resolves the resources again with only the capabilities they were
+     * wired to as candidates, which takes a single permutation and so does
+     * not reuse any package space, and checks that the wires are the same.
+     */
+    private static void assertSameAsSinglePermutation(Map<Resource, List<Wire>> wireMap,
+        List<Resource> mandatory) throws ResolutionException
+    {
+        Map<Requirement, List<Capability>> candMap = new HashMap<Requirement, List<Capability>>();
+        for (List<Wire> wires : wireMap.values())
+        {
+            for (Wire wire : wires)
+            {
+                candMap.put(wire.getRequirement(), Collections.singletonList(wire.getCapability()));
+            }
+        }
+        ResolveContextImpl rci = new ResolveContextImpl(Collections.<Resource, Wiring> emptyMap(), candMap,
+            mandatory, Collections.<Resource> emptyList());
+        Map<Resource, List<Wire>> expected = new ResolverImpl(new Logger(Logger.LOG_DEBUG), 1).resolve(rci);
+
+        assertEquals(expected.keySet(), wireMap.keySet());
+        for (Map.Entry<Resource, List<Wire>> entry : expected.entrySet())
+        {
+            assertEquals(getWiredCapabilities(entry.getValue()), getWiredCapabilities(wireMap.get(entry.getKey())));
+        }
+    }
+
+    private static Map<Requirement, Capability> getWiredCapabilities(List<Wire> wires)
+    {
+        Map<Requirement, Capability> caps = new HashMap<Requirement, Capability>();
+        for (Wire wire : wires)
+        {
+            caps.put(wire.getRequirement(), wire.getCapability());
+        }
+        return caps;
+    }
+
+    private static Resource getPackageProvider(List<Wire> wires, String pkgName)
+    {
+        for (Wire wire : wires)
+        {
+            if (pkgName.equals(wire.getCapability().getAttributes().get(PackageNamespace.PACKAGE_NAMESPACE)))
+            {
+                return wire.getProvider();
+            }
+        }
+        return null;
+    }
+
     private static Capability addCap(ResourceImpl res, String namespace, String value)
     {
         return addCap(res, namespace, value, null);
@@ -20,12 +20,17 @@ package org.apache.felix.scr.impl;
 
 import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
+import java.io.EOFException;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
@@ -105,6 +110,9 @@ public class Activator extends AbstractExtender
 
     private ConcurrentMap<Long, List<ComponentMetadata>> m_componentMetadataStore;
 
+    // cached component metadata of bundles whose components are not loaded yet
+    private volatile EncodedComponentMetadata m_encodedComponentMetadata;
+
     public Activator()
     {
         m_configuration = new ScrConfigurationImpl( this );
@@ -158,7 +166,8 @@ public class Activator extends AbstractExtender
 
     public void restart(boolean globalExtender, boolean initialStart)
     {
-        m_componentMetadataStore = load(m_context, logger,
+        m_componentMetadataStore = new ConcurrentHashMap<>();
+        m_encodedComponentMetadata = load(m_context, logger,
             m_configuration.cacheMetadata());
         BundleContext context = m_globalContext;
         if ( globalExtender )
@@ -230,7 +239,7 @@ public class Activator extends AbstractExtender
 
         super.doStart();
 
-        m_componentCommands = new ComponentCommands(m_context, runtime, m_configuration);
+        m_componentCommands = new ComponentCommands(m_context, runtime, m_componentRegistry, m_configuration);
         m_componentCommands.register();
         m_componentCommands.updateProvideScrInfoService(m_configuration.infoAsService());
         m_configuration.setScrCommand(m_componentCommands);
@@ -241,6 +250,15 @@ public class Activator extends AbstractExtender
     {
         super.stop( context );
         m_configuration.stop();
+        if (m_configuration.cacheMetadata())
+        {
+            // components of bundles which have not been started since
+            // the cache has been loaded are stored again
+            for (Long bundleId : m_encodedComponentMetadata.getBundleIds())
+            {
+                getCachedComponents(bundleId);
+            }
+        }
         store(m_componentMetadataStore, context, logger, m_configuration.cacheMetadata());
         logger.close();
     }
@@ -260,6 +278,7 @@ public class Activator extends AbstractExtender
             || eType == BundleEvent.UNRESOLVED)
         {
             m_componentMetadataStore.remove(event.getBundle().getBundleId());
+            m_encodedComponentMetadata.remove(event.getBundle().getBundleId());
         }
         if (eType == BundleEvent.RESOLVED)
         {
@@ -274,19 +293,20 @@ public class Activator extends AbstractExtender
                     {
                         // invalidate any hosts of newly resolved fragments
                         m_componentMetadataStore.remove(hostWire.getProvider().getBundle().getBundleId());
+                        m_encodedComponentMetadata.remove(hostWire.getProvider().getBundle().getBundleId());
                     }
                 }
             }
         }
     }
 
-    private static ConcurrentMap<Long, List<ComponentMetadata>> load(
+    static EncodedComponentMetadata load(
         BundleContext context,
         ScrLogger logger, boolean loadFromCache)
     {
+        EncodedComponentMetadata result = new EncodedComponentMetadata();
         try
         {
-            ConcurrentMap<Long, List<ComponentMetadata>> result = new ConcurrentHashMap<>();
             if (!loadFromCache)
             {
                 return result;
@@ -300,7 +320,7 @@ public class Activator extends AbstractExtender
                 try (DataInputStream in = new DataInputStream(
                     new BufferedInputStream(new FileInputStream(store))))
                 {
-                    MetaDataReader metaDataReader = new MetaDataReader();
+                    MetaDataReader metaDataReader = result.getReader();
                     if (!metaDataReader.isVersionSupported(in))
                     {
                         // the stored version is not compatible
@@ -314,23 +334,29 @@ public class Activator extends AbstractExtender
                     int numBundles = in.readInt();
                     for (int i = 0; i < numBundles; i++)
                     {
-                        // Read all the components for the ID even if the bundle does not exist;
+                        // The components are only decoded when the bundle is started;
+                        // skip them if the bundle does not exist or has changed
                         long bundleId = in.readLong();
-                        int numComponents = in.readInt();
                         long lastModified = in.readLong();
-                        List<ComponentMetadata> components = new ArrayList<>(
-                            numComponents);
-                        for (int j = 0; j < numComponents; j++)
-                        {
-                            components.add(ComponentMetadata.load(in, metaDataReader));
-                        }
+                        int length = in.readInt();
                         // Check with system context by ID to avoid hooks hiding;
                         Bundle b = systemContext.getBundle(bundleId);
-                        if (b != null)
+                        if (b != null && lastModified == b.getLastModified())
+                        {
+                            byte[] components = new byte[length];
+                            in.readFully(components);
+                            result.put(bundleId, components);
+                        }
+                        else
                         {
-                            if (lastModified == b.getLastModified())
+                            while (length > 0)
                             {
-                                result.put(bundleId, components);
+                                int skipped = in.skipBytes(length);
+                                if (skipped <= 0)
+                                {
+                                    throw new EOFException();
+                                }
+                                length -= skipped;
                             }
                         }
                     }
@@ -348,12 +374,12 @@ public class Activator extends AbstractExtender
             // avoid failing all of SCR start on cache load bug
             logger.log(Level.ERROR,
                 "Error loading component metadata cache.", re);
-            return new ConcurrentHashMap<>();
+            return new EncodedComponentMetadata();
         }
 
     }
 
-    private static void store(Map<Long, List<ComponentMetadata>> componentsMap,
+    static void store(Map<Long, List<ComponentMetadata>> componentsMap,
         BundleContext context, ScrLogger logger, boolean storeCache)
     {
         if (!storeCache)
@@ -363,8 +389,11 @@ public class Activator extends AbstractExtender
         BundleContext systemContext = context.getBundle(
             Constants.SYSTEM_BUNDLE_LOCATION).getBundleContext();
         File store = context.getDataFile("componentMetadataStore");
+        // write a new file and replace the store with it only once complete,
+        // so that a failure while writing does not leave a truncated store
+        File tmp = context.getDataFile("componentMetadataStore.tmp");
         try (DataOutputStream out = new DataOutputStream(
-            new BufferedOutputStream(new FileOutputStream(store))))
+            new BufferedOutputStream(new FileOutputStream(tmp))))
         {
             MetaDataWriter metaDataWriter = new MetaDataWriter();
             metaDataWriter.writeVersion(out);
@@ -385,22 +414,43 @@ public class Activator extends AbstractExtender
                 metaDataWriter.writeIndexedString(s, out);
             }
             out.writeInt(componentsMap.size());
+            ByteArrayOutputStream buffer = new ByteArrayOutputStream();
             for (Entry<Long, List<ComponentMetadata>> entry : componentsMap.entrySet())
             {
                 out.writeLong(entry.getKey());
-                out.writeInt(entry.getValue().size());
                 Bundle b = systemContext.getBundle(entry.getKey());
                 out.writeLong(b == null ? -1 : b.getLastModified());
+                // prefix the components with their length, so that they can be
+                // skipped without decoding them when the cache is loaded
+                buffer.reset();
+                DataOutputStream components = new DataOutputStream(buffer);
+                components.writeInt(entry.getValue().size());
                 for (ComponentMetadata component : entry.getValue())
                 {
-                    component.store(out, metaDataWriter);
+                    component.store(components, metaDataWriter);
                 }
+                components.flush();
+                out.writeInt(buffer.size());
+                buffer.writeTo(out);
             }
         }
         catch (IOException e)
         {
             logger.log(Level.WARN, "Error storing component metadata cache.",
                 e);
+            tmp.delete();
+            return;
+        }
+        try
+        {
+            Files.move(tmp.toPath(), store.toPath(),
+                StandardCopyOption.REPLACE_EXISTING);
+        }
+        catch (IOException e)
+        {
+            logger.log(Level.WARN, "Error storing component metadata cache.",
+                e);
+            tmp.delete();
         }
     }
 
@@ -531,7 +581,7 @@ public class Activator extends AbstractExtender
     private void loadComponents(Bundle bundle)
     {
         final Long bundleId = bundle.getBundleId();
-        List<ComponentMetadata> cached = m_componentMetadataStore.get(bundleId);
+        List<ComponentMetadata> cached = getCachedComponents(bundleId);
         if (cached != null && cached.isEmpty())
         {
             // Cached that there are no components for this bundle.
@@ -651,6 +701,49 @@ public class Activator extends AbstractExtender
         }
     }
 
+    /**
+     * Returns the cached metadata of the components of the given bundle or
+     * <code>null</code> if the components of the bundle are not cached. The
+     * metadata read from the cache is decoded on first use; it has been
+     * validated before being stored.
+     */
+    private List<ComponentMetadata> getCachedComponents(Long bundleId)
+    {
+        return getCachedComponents(bundleId, m_componentMetadataStore,
+            m_encodedComponentMetadata, logger);
+    }
+
+    static List<ComponentMetadata> getCachedComponents(Long bundleId,
+        ConcurrentMap<Long, List<ComponentMetadata>> componentMetadataStore,
+        EncodedComponentMetadata encodedComponentMetadata, ScrLogger logger)
+    {
+        List<ComponentMetadata> cached = componentMetadataStore.get(bundleId);
+        if (cached == null)
+        {
+            try
+            {
+                cached = encodedComponentMetadata.decode(bundleId);
+            }
+            catch (IOException | RuntimeException e)
+            {
+                // fall back to reading the component descriptors
+                logger.log(Level.WARN,
+                    "Error loading cached component metadata of bundle {0}.", e,
+                    bundleId);
+                return null;
+            }
+            if (cached != null)
+            {
+                List<ComponentMetadata> existing = componentMetadataStore.putIfAbsent(bundleId, cached);
+                if (existing != null)
+                {
+                    cached = existing;
+                }
+            }
+        }
+        return cached;
+    }
+
     /**
      * Unloads components of the given bundle. If no components have been loaded
      * for the bundle, this method has no effect.
@@ -723,4 +816,54 @@ public class Activator extends AbstractExtender
         }
 
     }
+
+    /**
+     * The component metadata read from the cache, kept encoded per bundle
+     * until the components of the bundle are loaded. This way only the
+     * components of bundles which are actually started are decoded.
+     */
+    static final class EncodedComponentMetadata
+    {
+        // holds the string table shared by all encoded components
+        private final MetaDataReader reader = new MetaDataReader();
+
+        private final ConcurrentMap<Long, byte[]> components = new ConcurrentHashMap<>();
+
+        MetaDataReader getReader()
+        {
+            return reader;
+        }
+
+        void put(long bundleId, byte[] encoded)
+        {
+            components.put(bundleId, encoded);
+        }
+
+        void remove(long bundleId)
+        {
+            components.remove(bundleId);
+        }
+
+        Set<Long> getBundleIds()
+        {
+            return components.keySet();
+        }
+
+        List<ComponentMetadata> decode(long bundleId) throws IOException
+        {
+            byte[] encoded = components.remove(bundleId);
+            if (encoded == null)
+            {
+                return null;
+            }
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(encoded));
+            int numComponents = in.readInt();
+            List<ComponentMetadata> result = new ArrayList<>(numComponents);
+            for (int i = 0; i < numComponents; i++)
+            {
+                result.add(ComponentMetadata.load(in, reader));
+            }
+            return result;
+        }
+    }
 }
@@ -30,6 +30,7 @@ import java.util.List;
 import java.util.Map;
 import java.util.StringTokenizer;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 
@@ -53,9 +54,8 @@ import org.apache.felix.scr.impl.metadata.ComponentMetadata;
 import org.apache.felix.scr.impl.xml.XmlHandler;
 import org.osgi.framework.Bundle;
 import org.osgi.framework.BundleContext;
+import org.osgi.framework.Filter;
 import org.osgi.framework.InvalidSyntaxException;
-import org.osgi.framework.ServiceEvent;
-import org.osgi.framework.ServiceListener;
 import org.osgi.framework.ServiceReference;
 import org.osgi.service.cm.ConfigurationAdmin;
 import org.osgi.service.component.ComponentException;
@@ -92,76 +92,49 @@ public class BundleComponentActivator implements ComponentActivator
 
     private final ConfigAdminTracker configAdminTracker;
 
-    private final Map<String, ListenerInfo> listenerMap = new HashMap<>();
+    private final Map<String, SharedServiceListener> listenerMap = new HashMap<>();
 
     private final BundleLogger logger;
 
     private final ServiceReference<?> m_trueCondition;
 
-    private static class ListenerInfo implements ServiceListener
-    {
-        List<ExtendedServiceListener<ExtendedServiceEvent>> listeners = new ArrayList<>();
-
-        @Override
-        public void serviceChanged(ServiceEvent event)
-        {
-            ExtendedServiceEvent extEvent = new ExtendedServiceEvent(event);
-            List<ExtendedServiceListener<ExtendedServiceEvent>> listeners;
-            synchronized ( this )
-            {
-                listeners = this.listeners;
-            }
-
-            for ( ExtendedServiceListener<ExtendedServiceEvent> forwardTo : listeners)
-            {
-                forwardTo.serviceChanged( extEvent );
-            }
-
-            if ( extEvent != null )
-            {
-                extEvent.activateManagers();
-            }
-        }
-
-        public synchronized void add(ExtendedServiceListener<ExtendedServiceEvent> listener)
-        {
-            listeners = new ArrayList<>(listeners);
-            listeners.add(listener);
-        }
-
-        public synchronized boolean remove(ExtendedServiceListener<ExtendedServiceEvent> listener)
-        {
-            listeners = new ArrayList<>(listeners);
-            listeners.remove(listener);
-            return listeners.isEmpty();
-        }
-    }
-
     @Override
     public void addServiceListener(String serviceFilterString,
         ExtendedServiceListener<ExtendedServiceEvent> listener)
     {
-        ListenerInfo listenerInfo;
         synchronized ( listenerMap )
         {
             logger.log(Level.DEBUG, "serviceFilterString: " + serviceFilterString,
                 null);
-            listenerInfo = listenerMap.get( serviceFilterString );
+            // references to the same service interface share a listener
+            final String listenerFilterString = SharedServiceListener.getListenerFilter( serviceFilterString );
+            final Filter filter;
+            try
+            {
+                filter = listenerFilterString.equals( serviceFilterString ) ? null
+                    : m_context.createFilter( serviceFilterString );
+            }
+            catch ( InvalidSyntaxException e )
+            {
+                throw (IllegalArgumentException) new IllegalArgumentException(
+                    "invalid target filter" ).initCause( e );
+            }
+            SharedServiceListener listenerInfo = listenerMap.get( listenerFilterString );
             if ( listenerInfo == null )
             {
-                listenerInfo = new ListenerInfo();
-                listenerMap.put( serviceFilterString, listenerInfo );
+                listenerInfo = new SharedServiceListener( listenerFilterString );
                 try
                 {
-                    m_context.addServiceListener( listenerInfo, serviceFilterString );
+                    m_context.addServiceListener( listenerInfo, listenerFilterString );
                 }
                 catch ( InvalidSyntaxException e )
                 {
                     throw (IllegalArgumentException) new IllegalArgumentException(
                         "invalid class name filter" ).initCause( e );
                 }
+                listenerMap.put( listenerFilterString, listenerInfo );
             }
-            listenerInfo.add(listener);
+            listenerInfo.add( serviceFilterString, filter, listener );
         }
     }
 
@@ -171,12 +144,14 @@ public class BundleComponentActivator implements ComponentActivator
     {
         synchronized ( listenerMap )
         {
-            ListenerInfo listenerInfo = listenerMap.get( serviceFilterString );
+            final String listenerFilterString = SharedServiceListener.getListenerFilter( serviceFilterString );
+            SharedServiceListener listenerInfo = listenerMap.get( listenerFilterString );
             if ( listenerInfo != null )
             {
-                if (listenerInfo.remove(listener)) {
-                    listenerMap.remove(serviceFilterString);
-                    m_context.removeServiceListener(listenerInfo);
+                if ( listenerInfo.remove( serviceFilterString, listener ) )
+                {
+                    listenerMap.remove( listenerFilterString );
+                    m_context.removeServiceListener( listenerInfo );
                 }
             }
         }
@@ -724,6 +699,12 @@ public class BundleComponentActivator implements ComponentActivator
         }
     }
 
+    @Override
+    public Executor getActivationExecutor()
+    {
+        return isActive() ? m_componentRegistry.getActivationExecutor() : null;
+    }
+
     @Override
     public BundleLogger getLogger() {
         return logger;
@@ -38,6 +38,7 @@ import java.util.Map;
 import java.util.SortedMap;
 import java.util.TreeMap;
 
+import org.apache.felix.scr.impl.manager.AbstractComponentManager;
 import org.apache.felix.scr.impl.manager.ScrConfiguration;
 import org.apache.felix.scr.info.ScrInfo;
 import org.apache.felix.service.command.Converter;
@@ -70,6 +71,7 @@ public class ComponentCommands implements ServiceTrackerCustomizer<Object, Servi
     private final BundleContext context;
     private final ServiceComponentRuntime scr;
     private final ScrConfiguration scrConfig;
+    private final ComponentRegistry registry;
     private final ServiceTracker<Object, ServiceRegistration<?>> gogoRuntimeTracker;
 
     private final Comparator<ComponentConfigurationDTO> configDtoComparator = new Comparator<ComponentConfigurationDTO>() {
@@ -134,8 +136,13 @@ public class ComponentCommands implements ServiceTrackerCustomizer<Object, Servi
     }
 
     protected ComponentCommands(BundleContext context, ServiceComponentRuntime scr, ScrConfiguration scrConfig) {
+        this(context, scr, null, scrConfig);
+    }
+
+    protected ComponentCommands(BundleContext context, ServiceComponentRuntime scr, ComponentRegistry registry, ScrConfiguration scrConfig) {
         this.context = context;
         this.scr = scr;
+        this.registry = registry;
         this.scrConfig = scrConfig;
         this.gogoRuntimeTracker = new ServiceTracker<>(context, "org.apache.felix.service.command.CommandProcessor", this);
     }
@@ -234,6 +241,7 @@ public class ComponentCommands implements ServiceTrackerCustomizer<Object, Servi
         out.put("Stop timeout ms", Long.toString(scrConfig.stopTimeout()));
         out.put("Global extender", Boolean.toString(scrConfig.globalExtender()));
         out.put("Info Service registered", scrConfig.infoAsService() ? "Supported" : "Unsupported");
+        out.put("Activation threads", Integer.toString(scrConfig.activationThreads()));
 
         StringBuilder builder = new StringBuilder();
         printColumnsAligned("SCR Configuration", out, '=', builder);
@@ -380,6 +388,12 @@ public class ComponentCommands implements ServiceTrackerCustomizer<Object, Servi
             // Print References
             out.put("References", printServiceReferences(configDto.satisfiedReferences, configDto.unsatisfiedReferences, descDto.references));
 
+            // Print the time taken to create and activate the instance
+            AbstractComponentManager<?> manager = registry == null ? null : registry.getComponentManager(configDto.id);
+            if (manager != null && manager.getActivationTime() >= 0) {
+                out.put("Activation time", String.format("%.3f ms", manager.getActivationTime() / 1000000d));
+            }
+
             // Print Failure
             if (configDto.failure != null) {
                 out.put("Failure", configDto.failure);
@@ -32,6 +32,11 @@ import java.util.Timer;
 import java.util.TimerTask;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.felix.scr.impl.inject.ComponentMethods;
@@ -775,10 +780,82 @@ public class ComponentRegistry
         }
     }
 
+    //---------- parallel activation
+
+    private ThreadPoolExecutor activationExecutor;
+
+    private final Object activationExecutorLock = new Object();
+
+    /**
+     * Returns the executor creating immediate component instances, sized by
+     * the {@link ScrConfiguration#activationThreads()} configuration, or
+     * <code>null</code> if instances are to be created by the calling thread.
+     * The pool threads time out when idle, so the pool only costs threads
+     * while components are being activated.
+     */
+    public Executor getActivationExecutor()
+    {
+        final int threads = m_configuration.activationThreads();
+        synchronized ( activationExecutorLock )
+        {
+            if ( threads <= 0 || ( activationExecutor != null && activationExecutor.isShutdown() ) )
+            {
+                return null;
+            }
+            if ( activationExecutor == null )
+            {
+                final AtomicLong threadCount = new AtomicLong();
+                activationExecutor = new ThreadPoolExecutor( threads, threads, 10, TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<Runnable>(), new ThreadFactory()
+                    {
+                        @Override
+                        public Thread newThread( final Runnable r )
+                        {
+                            final Thread t = new Thread( r, "SCR Component Activator #" + threadCount.incrementAndGet() );
+                            t.setDaemon( true );
+                            return t;
+                        }
+                    } );
+                activationExecutor.allowCoreThreadTimeOut( true );
+            }
+            else if ( threads > activationExecutor.getMaximumPoolSize() )
+            {
+                activationExecutor.setMaximumPoolSize( threads );
+                activationExecutor.setCorePoolSize( threads );
+            }
+            else if ( threads < activationExecutor.getMaximumPoolSize() )
+            {
+                activationExecutor.setCorePoolSize( threads );
+                activationExecutor.setMaximumPoolSize( threads );
+            }
+            return activationExecutor;
+        }
+    }
+
+    /**
+     * Returns the component manager registered with the given component ID or
+     * <code>null</code> if there is none.
+     */
+    final AbstractComponentManager<?> getComponentManager( final long componentId )
+    {
+        synchronized ( m_componentsById )
+        {
+            return m_componentsById.get( componentId );
+        }
+    }
+
     public void shutdown() {
         final Timer timer = changeCountTimer;
         if (timer != null) {
             timer.cancel();
         }
+        synchronized ( activationExecutorLock )
+        {
+            if ( activationExecutor != null )
+            {
+                // pending activations find their components deactivated
+                activationExecutor.shutdown();
+            }
+        }
     }
 }
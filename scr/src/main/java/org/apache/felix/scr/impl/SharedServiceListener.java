@@ -0,0 +1,508 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.felix.scr.impl;
+
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.felix.scr.impl.manager.ExtendedServiceEvent;
+import org.apache.felix.scr.impl.manager.ExtendedServiceListener;
+import org.osgi.framework.Constants;
+import org.osgi.framework.Filter;
+import org.osgi.framework.ServiceEvent;
+import org.osgi.framework.ServiceListener;
+import org.osgi.framework.ServiceReference;
+
+
+/**
+ * The <code>SharedServiceListener</code> is the framework service listener
+ * shared by all service trackers of a bundle's components whose filters only
+ * differ in their target. It is registered with the
+ * <code>(objectClass=...)</code> part of the filters and matches the events
+ * against the complete filters itself.
+ * <p>
+ * To not match every event against every filter, the filters are indexed by
+ * one of their equality operands, usually the one of the target. Only the
+ * filters whose indexed value equals the property of the service and the
+ * filters which cannot be indexed are matched.
+ * <p>
+ * Since the framework only sends <code>MODIFIED_ENDMATCH</code> events for
+ * the shared filter, this listener sends them for the complete filters. It
+ * remembers which filters matched a service at its last event, so that the
+ * trackers of these filters are told when the service stops matching.
+ */
+class SharedServiceListener implements ServiceListener
+{
+
+    private static final String OBJECTCLASS_CLAUSE = "(" + Constants.OBJECTCLASS + "=";
+
+    // the filter with which this listener is registered
+    private final String m_listenerFilter;
+
+    // the listeners per filter string
+    private final Map<String, FilterListeners> m_members = new HashMap<>();
+
+    // indexed filters by attribute and value
+    private final Map<String, Map<String, List<FilterListeners>>> m_index = new HashMap<>();
+
+    // filters which are matched against each event
+    private final List<FilterListeners> m_unindexed = new ArrayList<>();
+
+    // the filters which matched a service at its last event
+    private final Map<ServiceReference<?>, Set<FilterListeners>> m_matched = new HashMap<>();
+
+
+    SharedServiceListener( final String listenerFilter )
+    {
+        this.m_listenerFilter = listenerFilter;
+    }
+
+
+    /**
+     * Returns the filter of the framework service listener to be used for
+     * the given filter. This is the <code>objectClass</code> operand of
+     * filters of the form <code>(&(objectClass=...)...)</code> created for
+     * references and the filter itself otherwise.
+     */
+    static String getListenerFilter( final String filterString )
+    {
+        final List<String> operands = getAndOperands( filterString );
+        if ( operands != null && operands.size() > 1 && isObjectClassFilter( operands.get( 0 ) ) )
+        {
+            return operands.get( 0 );
+        }
+        return filterString;
+    }
+
+
+    /**
+     * Adds a listener for services matching the given filter.
+     *
+     * @param filterString The filter string
+     * @param filter The filter or <code>null</code> if the filter string is
+     *      the filter of this listener
+     * @param listener The listener to add
+     */
+    synchronized void add( final String filterString, final Filter filter,
+        final ExtendedServiceListener<ExtendedServiceEvent> listener )
+    {
+        FilterListeners member = m_members.get( filterString );
+        if ( member == null )
+        {
+            member = new FilterListeners( filter, filter == null ? null : getIndexKey( filterString ) );
+            m_members.put( filterString, member );
+            if ( member.indexKey == null )
+            {
+                m_unindexed.add( member );
+            }
+            else
+            {
+                Map<String, List<FilterListeners>> values = m_index.get( member.indexKey[0] );
+                if ( values == null )
+                {
+                    values = new HashMap<>();
+                    m_index.put( member.indexKey[0], values );
+                }
+                List<FilterListeners> members = values.get( member.indexKey[1] );
+                if ( members == null )
+                {
+                    members = new ArrayList<>( 1 );
+                    values.put( member.indexKey[1], members );
+                }
+                members.add( member );
+            }
+
+            // services seen before may match the new filter
+            for ( Map.Entry<ServiceReference<?>, Set<FilterListeners>> entry : m_matched.entrySet() )
+            {
+                if ( member.matches( entry.getKey() ) )
+                {
+                    entry.getValue().add( member );
+                }
+            }
+        }
+        member.add( listener );
+    }
+
+
+    /**
+     * Removes a listener for services matching the given filter.
+     *
+     * @return <code>true</code> if this listener has no more listeners and
+     *      can be unregistered
+     */
+    synchronized boolean remove( final String filterString,
+        final ExtendedServiceListener<ExtendedServiceEvent> listener )
+    {
+        final FilterListeners member = m_members.get( filterString );
+        if ( member != null && member.remove( listener ) )
+        {
+            m_members.remove( filterString );
+            if ( member.indexKey == null )
+            {
+                m_unindexed.remove( member );
+            }
+            else
+            {
+                final Map<String, List<FilterListeners>> values = m_index.get( member.indexKey[0] );
+                final List<FilterListeners> members = values.get( member.indexKey[1] );
+                members.remove( member );
+                if ( members.isEmpty() )
+                {
+                    values.remove( member.indexKey[1] );
+                    if ( values.isEmpty() )
+                    {
+                        m_index.remove( member.indexKey[0] );
+                    }
+                }
+            }
+            for ( Set<FilterListeners> matched : m_matched.values() )
+            {
+                matched.remove( member );
+            }
+        }
+        return m_members.isEmpty();
+    }
+
+
+    @Override
+    public void serviceChanged( final ServiceEvent event )
+    {
+        final ServiceReference<?> ref = event.getServiceReference();
+        final Set<FilterListeners> matching = new HashSet<>();
+        final Collection<FilterListeners> endMatch;
+        synchronized ( this )
+        {
+            if ( event.getType() == ServiceEvent.MODIFIED_ENDMATCH )
+            {
+                // the service does not match the filter of this listener anymore
+                m_matched.remove( ref );
+                endMatch = new ArrayList<>( m_members.values() );
+            }
+            else
+            {
+                for ( FilterListeners member : getCandidates( ref ) )
+                {
+                    if ( member.matches( ref ) )
+                    {
+                        matching.add( member );
+                    }
+                }
+
+                if ( event.getType() == ServiceEvent.UNREGISTERING )
+                {
+                    m_matched.remove( ref );
+                    endMatch = null;
+                }
+                else
+                {
+                    final Set<FilterListeners> previous = m_matched.put( ref, new HashSet<>( matching ) );
+                    if ( event.getType() == ServiceEvent.MODIFIED )
+                    {
+                        // without knowing the filters matched before, all trackers not
+                        // matching anymore are told, which they ignore if not tracking
+                        endMatch = new ArrayList<>( previous == null ? m_members.values() : previous );
+                        endMatch.removeAll( matching );
+                    }
+                    else
+                    {
+                        endMatch = null;
+                    }
+                }
+            }
+        }
+
+        final ExtendedServiceEvent extEvent = new ExtendedServiceEvent( event );
+        for ( FilterListeners member : matching )
+        {
+            member.serviceChanged( extEvent );
+        }
+        extEvent.activateManagers();
+
+        if ( endMatch != null && !endMatch.isEmpty() )
+        {
+            final ExtendedServiceEvent endMatchEvent = new ExtendedServiceEvent( ServiceEvent.MODIFIED_ENDMATCH, ref );
+            for ( FilterListeners member : endMatch )
+            {
+                member.serviceChanged( endMatchEvent );
+            }
+            endMatchEvent.activateManagers();
+        }
+    }
+
+
+    @Override
+    public String toString()
+    {
+        return "SharedServiceListener[" + m_listenerFilter + "]";
+    }
+
+
+    private Collection<FilterListeners> getCandidates( final ServiceReference<?> ref )
+    {
+        if ( m_index.isEmpty() )
+        {
+            return m_unindexed;
+        }
+        final Set<FilterListeners> candidates = new HashSet<>( m_unindexed );
+        for ( Map.Entry<String, Map<String, List<FilterListeners>>> entry : m_index.entrySet() )
+        {
+            final Object value = ref.getProperty( entry.getKey() );
+            if ( value instanceof String )
+            {
+                addCandidates( entry.getValue(), (String) value, candidates );
+            }
+            else if ( value instanceof String[] )
+            {
+                for ( String element : (String[]) value )
+                {
+                    addCandidates( entry.getValue(), element, candidates );
+                }
+            }
+            else if ( value != null )
+            {
+                // the filter values may match other types after conversion
+                for ( List<FilterListeners> members : entry.getValue().values() )
+                {
+                    candidates.addAll( members );
+                }
+            }
+        }
+        return candidates;
+    }
+
+
+    private static void addCandidates( final Map<String, List<FilterListeners>> values, final String value,
+        final Set<FilterListeners> candidates )
+    {
+        final List<FilterListeners> members = values.get( value );
+        if ( members != null )
+        {
+            candidates.addAll( members );
+        }
+    }
+
+
+    /**
+     * Returns the attribute and value of the equality operand by which the
+     * given filter is indexed or <code>null</code> if the filter has no
+     * equality operand besides the <code>objectClass</code> one. Operands on
+     * the service scope are only used if there is no other operand.
+     */
+    static String[] getIndexKey( final String filterString )
+    {
+        final List<String[]> equalities = new ArrayList<>();
+        collectEqualities( filterString, equalities );
+        String[] key = null;
+        for ( String[] equality : equalities )
+        {
+            if ( Constants.OBJECTCLASS.equalsIgnoreCase( equality[0] ) )
+            {
+                continue;
+            }
+            if ( !Constants.SERVICE_SCOPE.equalsIgnoreCase( equality[0] ) )
+            {
+                return equality;
+            }
+            if ( key == null )
+            {
+                key = equality;
+            }
+        }
+        return key;
+    }
+
+
+    private static void collectEqualities( final String filterString, final List<String[]> equalities )
+    {
+        final List<String> operands = getAndOperands( filterString );
+        if ( operands == null )
+        {
+            final String[] equality = getEquality( filterString );
+            if ( equality != null )
+            {
+                equalities.add( equality );
+            }
+        }
+        else
+        {
+            for ( String operand : operands )
+            {
+                collectEqualities( operand, equalities );
+            }
+        }
+    }
+
+
+    /**
+     * Returns the attribute and value of a filter of the form
+     * <code>(attribute=value)</code>, or <code>null</code> if the filter has
+     * another form or the value contains wildcards, escapes or surrounding
+     * whitespace and cannot be compared as is.
+     */
+    private static String[] getEquality( final String filterString )
+    {
+        final int length = filterString.length();
+        if ( length < 4 || filterString.charAt( 0 ) != '(' || filterString.charAt( length - 1 ) != ')' )
+        {
+            return null;
+        }
+        final int eq = filterString.indexOf( '=' );
+        if ( eq < 2 )
+        {
+            return null;
+        }
+        final String attribute = filterString.substring( 1, eq );
+        final String value = filterString.substring( eq + 1, length - 1 );
+        if ( value.isEmpty() || !value.trim().equals( value ) )
+        {
+            return null;
+        }
+        for ( int i = 0; i < attribute.length(); i++ )
+        {
+            final char c = attribute.charAt( i );
+            if ( Character.isWhitespace( c ) || "()<>~*\\".indexOf( c ) >= 0 )
+            {
+                return null;
+            }
+        }
+        for ( int i = 0; i < value.length(); i++ )
+        {
+            if ( "()*\\".indexOf( value.charAt( i ) ) >= 0 )
+            {
+                return null;
+            }
+        }
+        return new String[] { attribute, value };
+    }
+
+
+    /**
+     * Returns the operands of a filter of the form <code>(&...)</code> or
+     * <code>null</code> if the filter has another form.
+     */
+    private static List<String> getAndOperands( final String filterString )
+    {
+        final int length = filterString.length();
+        if ( !filterString.startsWith( "(&" ) || filterString.charAt( length - 1 ) != ')' )
+        {
+            return null;
+        }
+        final List<String> operands = new ArrayList<>();
+        int depth = 0;
+        int start = -1;
+        for ( int i = 2; i < length - 1; i++ )
+        {
+            final char c = filterString.charAt( i );
+            if ( c == '\\' )
+            {
+                i++;
+            }
+            else if ( c == '(' )
+            {
+                if ( depth++ == 0 )
+                {
+                    start = i;
+                }
+            }
+            else if ( c == ')' )
+            {
+                if ( --depth == 0 )
+                {
+                    operands.add( filterString.substring( start, i + 1 ) );
+                }
+                else if ( depth < 0 )
+                {
+                    return null;
+                }
+            }
+            else if ( depth == 0 && !Character.isWhitespace( c ) )
+            {
+                return null;
+            }
+        }
+        return depth == 0 ? operands : null;
+    }
+
+
+    private static boolean isObjectClassFilter( final String filterString )
+    {
+        return filterString.startsWith( OBJECTCLASS_CLAUSE ) && filterString.indexOf( '(', 1 ) < 0
+            && filterString.indexOf( '\\' ) < 0;
+    }
+
+
+    /**
+     * The listeners of service trackers with the same filter.
+     */
+    private static final class FilterListeners
+    {
+        // null if the filter of the shared listener applies
+        private final Filter filter;
+
+        private final String[] indexKey;
+
+        private volatile List<ExtendedServiceListener<ExtendedServiceEvent>> listeners = new ArrayList<>();
+
+
+        FilterListeners( final Filter filter, final String[] indexKey )
+        {
+            this.filter = filter;
+            this.indexKey = indexKey;
+        }
+
+
+        boolean matches( final ServiceReference<?> ref )
+        {
+            return filter == null || filter.match( ref );
+        }
+
+
+        void add( final ExtendedServiceListener<ExtendedServiceEvent> listener )
+        {
+            final List<ExtendedServiceListener<ExtendedServiceEvent>> newListeners = new ArrayList<>( listeners );
+            newListeners.add( listener );
+            listeners = newListeners;
+        }
+
+
+        boolean remove( final ExtendedServiceListener<ExtendedServiceEvent> listener )
+        {
+            final List<ExtendedServiceListener<ExtendedServiceEvent>> newListeners = new ArrayList<>( listeners );
+            newListeners.remove( listener );
+            listeners = newListeners;
+            return newListeners.isEmpty();
+        }
+
+
+        void serviceChanged( final ExtendedServiceEvent event )
+        {
+            for ( ExtendedServiceListener<ExtendedServiceEvent> forwardTo : listeners )
+            {
+                forwardTo.serviceChanged( event );
+            }
+        }
+    }
+}
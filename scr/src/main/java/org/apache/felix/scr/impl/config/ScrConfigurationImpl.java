@@ -83,6 +83,8 @@ public class ScrConfigurationImpl implements ScrConfiguration
 
     private boolean cacheMetadata;
 
+    private int activationThreads;
+
     private boolean isLogEnabled;
 
     private boolean isLogExtensionEnabled;
@@ -182,6 +184,7 @@ public class ScrConfigurationImpl implements ScrConfiguration
                         serviceChangecountTimeout = DEFAULT_SERVICE_CHANGECOUNT_TIMEOUT_MILLISECONDS;
                         newGlobalExtender = false;
                         cacheMetadata = false;
+                        activationThreads = 0;
                         isLogEnabled = true;
                         isLogExtensionEnabled = false;
                     }
@@ -196,6 +199,7 @@ public class ScrConfigurationImpl implements ScrConfiguration
                         serviceChangecountTimeout = getServiceChangecountTimeout();
                         newGlobalExtender = getDefaultGlobalExtender();
                         cacheMetadata = getDefaultCacheMetadata();
+                        activationThreads = getActivationThreads( bundleContext.getProperty( PROP_ACTIVATION_THREADS ) );
                         isLogEnabled = getDefaultLogEnabled();
                         isLogExtensionEnabled = getDefaultLogExtension();
                     }
@@ -218,6 +222,7 @@ public class ScrConfigurationImpl implements ScrConfiguration
                 newGlobalExtender = VALUE_TRUE.equalsIgnoreCase( String.valueOf( config.get( PROP_GLOBAL_EXTENDER) ) );
                 cacheMetadata = VALUE_TRUE.equalsIgnoreCase(
                     String.valueOf(config.get(PROP_CACHE_METADATA)));
+                activationThreads = getActivationThreads( config.get( PROP_ACTIVATION_THREADS ) );
                 isLogEnabled = checkIfLogEnabled(config);
                 isLogExtensionEnabled = VALUE_TRUE.equalsIgnoreCase(String.valueOf(config.get(PROP_LOG_EXTENSION)));
             }
@@ -290,6 +295,12 @@ public class ScrConfigurationImpl implements ScrConfiguration
         return cacheMetadata;
     }
 
+    @Override
+    public int activationThreads()
+    {
+        return activationThreads;
+    }
+
     @Override
     public long serviceChangecountTimeout()
     {
@@ -359,6 +370,26 @@ public class ScrConfigurationImpl implements ScrConfiguration
             bundleContext.getProperty(PROP_CACHE_METADATA));
     }
 
+    private int getActivationThreads( final Object value )
+    {
+        if ( value instanceof Number )
+        {
+            return Math.max( 0, ( ( Number ) value ).intValue() );
+        }
+        if ( value != null )
+        {
+            try
+            {
+                return Math.max( 0, Integer.parseInt( value.toString().trim() ) );
+            }
+            catch ( NumberFormatException nfe )
+            {
+                // fall back to serial activation
+            }
+        }
+        return 0;
+    }
+
     private Level getLogLevel(final Object levelObject)
     {
         if ( levelObject != null )
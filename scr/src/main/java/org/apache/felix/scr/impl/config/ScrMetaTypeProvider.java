@@ -123,6 +123,16 @@ class ScrMetaTypeProvider implements MetaTypeProvider
                 "Whether to extend all bundles whether or not visible to this bundle.",
                 false ) );
 
+        adList.add( new AttributeDefinitionImpl(
+                ScrConfiguration.PROP_ACTIVATION_THREADS,
+                "Activation threads",
+                "Number of threads creating immediate component instances once their references are satisfied. "
+                    + "Activating independent components in parallel shortens startup if they have slow activate "
+                    + "methods. The default of 0 creates the instances on the thread satisfying the component.",
+                AttributeDefinition.INTEGER,
+                new String[] { String.valueOf(this.configuration.activationThreads())},
+                0, null, null) );
+
         return new ObjectClassDefinition()
         {
 
@@ -19,6 +19,7 @@
 package org.apache.felix.scr.impl.inject.field;
 
 
+import java.lang.invoke.MethodHandle;
 import java.lang.reflect.Field;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Modifier;
@@ -40,6 +41,7 @@ import org.apache.felix.scr.impl.inject.ValueUtils;
 import org.apache.felix.scr.impl.inject.ValueUtils.ValueType;
 import org.apache.felix.scr.impl.inject.field.FieldUtils.FieldSearchResult;
 import org.apache.felix.scr.impl.inject.internal.ClassUtils;
+import org.apache.felix.scr.impl.inject.internal.MethodHandleUtils;
 import org.apache.felix.scr.impl.logger.ComponentLogger;
 import org.apache.felix.scr.impl.logger.InternalLogger.Level;
 import org.apache.felix.scr.impl.metadata.ReferenceMetadata;
@@ -59,6 +61,10 @@ public class FieldHandler
     /** The field used for the injection. */
     private volatile Field field;
 
+    /** Handles setting and getting the field, null if reflection is used. */
+    private volatile MethodHandle setter;
+    private volatile MethodHandle getter;
+
     /** Value type. */
     private volatile ValueType valueType;
 
@@ -321,6 +327,19 @@ public class FieldHandler
     private void setFieldValue(final Object componentInstance, final Object value)
     throws InvocationTargetException
     {
+        final MethodHandle handle = setter;
+        if ( handle != null )
+        {
+            try
+            {
+                handle.invokeExact(componentInstance, value);
+            }
+            catch ( final Throwable t )
+            {
+                throw new InvocationTargetException(t);
+            }
+            return;
+        }
         try
         {
             field.set(componentInstance, value);
@@ -338,6 +357,18 @@ public class FieldHandler
     private Object getFieldValue(final Object componentInstance)
     throws InvocationTargetException
     {
+        final MethodHandle handle = getter;
+        if ( handle != null )
+        {
+            try
+            {
+                return handle.invokeExact(componentInstance);
+            }
+            catch ( final Throwable t )
+            {
+                throw new InvocationTargetException(t);
+            }
+        }
         try
         {
             return field.get(componentInstance);
@@ -468,6 +499,8 @@ public class FieldHandler
         if (result == null)
         {
             field = null;
+            setter = null;
+            getter = null;
             valueType = null;
             state = NotFound.INSTANCE;
             // TODO - will component really fail?
@@ -483,6 +516,8 @@ public class FieldHandler
             }
             else
             {
+                setter = MethodHandleUtils.getSetter(result.field);
+                getter = MethodHandleUtils.getGetter(result.field);
                 valueType = ValueUtils.getReferenceValueType(componentClass, metadata,
                     result.field.getType(), result.field, logger);
             }
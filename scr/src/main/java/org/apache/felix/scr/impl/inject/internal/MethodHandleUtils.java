@@ -0,0 +1,129 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.felix.scr.impl.inject.internal;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+
+
+/**
+ * Utility methods creating method handles for the methods and fields of
+ * component classes. The handles are created once, when the method or field
+ * is resolved, and then used for every call instead of reflection.
+ * <p>
+ * The methods and fields must be instance members and must already have
+ * been made accessible. If no handle can be created <code>null</code> is
+ * returned and callers fall back to reflection.
+ */
+public class MethodHandleUtils
+{
+    private static final MethodHandles.Lookup LOOKUP = MethodHandles.lookup();
+
+    private static final MethodType SETTER_TYPE = MethodType.methodType( Void.TYPE, Object.class, Object.class );
+
+    private static final MethodType GETTER_TYPE = MethodType.methodType( Object.class, Object.class );
+
+    private MethodHandleUtils()
+    {
+    }
+
+
+    /**
+     * Returns a method handle of type <code>(Object, Object[])Object</code>
+     * calling the method on the object given as the first argument with the
+     * elements of the array as the method arguments. Primitive arguments are
+     * unboxed, and the handle returns <code>null</code> for <code>void</code>
+     * methods.
+     *
+     * @param method The accessible method
+     * @return The method handle or <code>null</code> if the method cannot be
+     *      accessed through a method handle.
+     */
+    public static MethodHandle getInvoker( final Method method )
+    {
+        if ( Modifier.isStatic( method.getModifiers() ) )
+        {
+            return null;
+        }
+        try
+        {
+            final MethodHandle handle = LOOKUP.unreflect( method );
+            return handle.asType( handle.type().generic() ).asSpreader( Object[].class,
+                method.getParameterTypes().length );
+        }
+        catch ( final IllegalAccessException iae )
+        {
+            return null;
+        }
+    }
+
+
+    /**
+     * Returns a method handle of type <code>(Object, Object)void</code>
+     * setting the field of the object given as the first argument.
+     *
+     * @param field The accessible field
+     * @return The method handle or <code>null</code> if the field cannot be
+     *      written through a method handle, for example because it is final.
+     */
+    public static MethodHandle getSetter( final Field field )
+    {
+        if ( Modifier.isStatic( field.getModifiers() ) )
+        {
+            return null;
+        }
+        try
+        {
+            return LOOKUP.unreflectSetter( field ).asType( SETTER_TYPE );
+        }
+        catch ( final IllegalAccessException iae )
+        {
+            return null;
+        }
+    }
+
+
+    /**
+     * Returns a method handle of type <code>(Object)Object</code> reading the
+     * field of the object given as the argument.
+     *
+     * @param field The accessible field
+     * @return The method handle or <code>null</code> if the field cannot be
+     *      read through a method handle.
+     */
+    public static MethodHandle getGetter( final Field field )
+    {
+        if ( Modifier.isStatic( field.getModifiers() ) )
+        {
+            return null;
+        }
+        try
+        {
+            return LOOKUP.unreflectGetter( field ).asType( GETTER_TYPE );
+        }
+        catch ( final IllegalAccessException iae )
+        {
+            return null;
+        }
+    }
+}
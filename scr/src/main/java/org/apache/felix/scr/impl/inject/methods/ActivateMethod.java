@@ -255,7 +255,7 @@ public class ActivateMethod extends BaseMethod<ActivatorParameter, Object> imple
     @Override
     protected Object[] getParameters( Method method, ActivatorParameter rawParameter )
     {
-        final Class<?>[] parameterTypes = method.getParameterTypes();
+        final Class<?>[] parameterTypes = getParameterTypes();
         final ActivatorParameter ap = rawParameter;
         final Object[] param = new Object[parameterTypes.length];
         for ( int i = 0; i < param.length; i++ )
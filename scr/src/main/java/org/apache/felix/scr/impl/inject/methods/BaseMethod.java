@@ -19,6 +19,7 @@
 package org.apache.felix.scr.impl.inject.methods;
 
 
+import java.lang.invoke.MethodHandle;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
 import java.lang.reflect.Modifier;
@@ -30,6 +31,7 @@ import java.util.Map;
 import org.apache.felix.scr.impl.inject.BaseParameter;
 import org.apache.felix.scr.impl.inject.MethodResult;
 import org.apache.felix.scr.impl.inject.internal.ClassUtils;
+import org.apache.felix.scr.impl.inject.internal.MethodHandleUtils;
 import org.apache.felix.scr.impl.logger.ComponentLogger;
 import org.apache.felix.scr.impl.logger.InternalLogger.Level;
 import org.apache.felix.scr.impl.metadata.DSVersion;
@@ -49,6 +51,13 @@ public abstract class BaseMethod<P extends BaseParameter, T>
 
     private volatile Method m_method;
 
+    // handle invoking m_method, null if reflection has to be used
+    private volatile MethodHandle m_handle;
+
+    private volatile Class<?>[] m_parameterTypes;
+
+    private volatile boolean m_returnsValue;
+
     private final boolean m_methodRequired;
 
     private volatile State m_state;
@@ -101,6 +110,15 @@ public abstract class BaseMethod<P extends BaseParameter, T>
         return m_componentClass;
     }
 
+    /**
+     * Returns the parameter types of the resolved method. The array is
+     * shared and must not be modified.
+     */
+    protected final Class<?>[] getParameterTypes()
+    {
+        return m_parameterTypes;
+    }
+
     protected abstract void setTypes(T types);
 
     synchronized void setMethod(MethodInfo<T> methodInfo, ComponentLogger logger)
@@ -109,6 +127,11 @@ public abstract class BaseMethod<P extends BaseParameter, T>
 
         if (m_method != null)
         {
+            // create the handle and the parameter types once instead of
+            // looking them up through reflection on each call
+            m_handle = MethodHandleUtils.getInvoker( m_method );
+            m_parameterTypes = m_method.getParameterTypes();
+            m_returnsValue = m_method.getReturnType() != Void.TYPE;
             setTypes(methodInfo.getTypes());
             m_state = Resolved.INSTANCE;
             logger.log(Level.DEBUG, "Found {0} method: {1}", null,
@@ -254,11 +277,11 @@ public abstract class BaseMethod<P extends BaseParameter, T>
                             getMethodName(), Arrays.asList(getParametersForLogging(params)));
                 }
                 @SuppressWarnings("unchecked")
-                final Map<String, Object> result = (Map<String, Object>) m_method.invoke(
+                final Map<String, Object> result = (Map<String, Object>) callMethod(
                     componentInstance, params);
                 logger.log(Level.DEBUG, "invoked {0}: {1}", null,
                         getMethodNamePrefix(), getMethodName() );
-                return new MethodResult((m_method.getReturnType() != Void.TYPE), result);
+                return m_returnsValue ? new MethodResult(true, result) : MethodResult.VOID;
             }
             else
             {
@@ -296,6 +319,29 @@ public abstract class BaseMethod<P extends BaseParameter, T>
         return MethodResult.VOID;
     }
 
+    /**
+     * Calls the method through its method handle, if available, or through
+     * reflection otherwise. Any exception thrown by the method is wrapped in
+     * an <code>InvocationTargetException</code> like it is by reflection.
+     */
+    private Object callMethod(final Object componentInstance, final Object[] params)
+            throws InvocationTargetException, IllegalAccessException
+    {
+        final MethodHandle handle = m_handle;
+        if ( handle == null )
+        {
+            return m_method.invoke( componentInstance, params );
+        }
+        try
+        {
+            return handle.invokeExact( componentInstance, params );
+        }
+        catch ( Throwable t )
+        {
+            throw new InvocationTargetException( t );
+        }
+    }
+
     protected boolean returnValue()
     {
         // allow returning Map if declared as DS 1.2-Felix or newer
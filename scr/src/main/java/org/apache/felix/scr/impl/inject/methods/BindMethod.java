@@ -682,14 +682,15 @@ implements org.apache.felix.scr.impl.inject.ReferenceMethod
     protected Object[] getParameters( Method method, BindParameters bp )
     {
         ScrComponentContext key = bp.getComponentContext();
-        Object[] result = new Object[ m_paramTypes.size()];
+        List<ValueUtils.ValueType> paramTypes = m_paramTypes;
+        Class<?>[] parameterTypes = getParameterTypes();
+        Object[] result = new Object[ paramTypes.size()];
         RefPair<?, ?> refPair = bp.getRefPair();
-        int i = 0;
-        for ( ValueUtils.ValueType pt: m_paramTypes )
+        String componentClassName = getComponentClass().getName();
+        for ( int i = 0; i < result.length; i++ )
         {
-            result[i] = ValueUtils.getValue(getComponentClass().getName(), pt,
-                method.getParameterTypes()[i], key, refPair, null);
-            i++;
+            result[i] = ValueUtils.getValue(componentClassName, paramTypes.get( i ),
+                parameterTypes[i], key, refPair, null);
         }
         return result;
     }
@@ -33,6 +33,8 @@ import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.TreeSet;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
@@ -163,6 +165,8 @@ public abstract class AbstractComponentManager<S> implements ComponentManager<S>
 
     private volatile String failureReason;
 
+    private volatile long m_activationNanos = -1;
+
     /**
      * The constructor receives both the container and the methods.
      *
@@ -755,40 +759,119 @@ public abstract class AbstractComponentManager<S> implements ComponentManager<S>
                 return;
             }
 
-            if ((isImmediate() || getComponentMetadata().isFactory()))
+            if ( getComponentMetadata().isFactory() )
             {
-                final ServiceRegistration<S> serviceRegistration = registrationManager.getServiceRegistration();
-                ServiceReference<S> ref = null;
-                try
-                {
-                    ref = serviceRegistration == null ? null : serviceRegistration.getReference();
-                }
-                catch ( final IllegalStateException ise )
+                createImmediateInstance();
+            }
+            else if ( isImmediate() )
+            {
+                final Executor executor = m_container.getActivator().getActivationExecutor();
+                if ( executor == null || !scheduleImmediateInstance( executor ) )
                 {
-                    // catch service already being unregistered again
+                    createImmediateInstance();
                 }
+            }
+        }
+        finally
+        {
+            releaseActivationReadLock();
+        }
+    }
+
+    /**
+     * Creates the instance of an immediate or factory component whose
+     * service, if any, has just been registered. Must be called while
+     * holding the activation read lock.
+     */
+    private void createImmediateInstance()
+    {
+        final ServiceRegistration<S> serviceRegistration = registrationManager.getServiceRegistration();
+        ServiceReference<S> ref = null;
+        try
+        {
+            ref = serviceRegistration == null ? null : serviceRegistration.getReference();
+        }
+        catch ( final IllegalStateException ise )
+        {
+            // catch service already being unregistered again
+        }
+
+        if ( ref != null )
+        {
+            m_container.getActivator().enterCreate( ref );
+            try
+            {
+                getServiceInternal( serviceRegistration );
+            }
+            finally
+            {
+                m_container.getActivator().leaveCreate( ref );
+            }
+        }
+        else
+        {
+            getServiceInternal( null );
+        }
+    }
 
-                if ( ref != null )
+    /**
+     * Creates the instance of this immediate component on the given executor,
+     * so that components with slow activate methods are activated in
+     * parallel. The task takes the activation read lock itself and only
+     * creates the instance if the component is still satisfied; a consumer of
+     * the already registered service may have created it in the meantime, or
+     * the component may have been deactivated. Circular references are still
+     * detected, since the references being created are tracked per thread and
+     * the task starts its own stack on the pool thread.
+     *
+     * @return <code>false</code> if the executor does not accept the task
+     */
+    private boolean scheduleImmediateInstance( final Executor executor )
+    {
+        try
+        {
+            executor.execute( new Runnable()
+            {
+
+                long count = taskCounter.incrementAndGet();
+
+                @Override
+                public void run()
                 {
-                    m_container.getActivator().enterCreate( ref );
                     try
                     {
-                        getServiceInternal( serviceRegistration );
+                        obtainActivationReadLock();
+                        try
+                        {
+                            if ( getState() == State.satisfied )
+                            {
+                                createImmediateInstance();
+                            }
+                        }
+                        finally
+                        {
+                            releaseActivationReadLock();
+                        }
                     }
-                    finally
+                    catch ( final Throwable t )
                     {
-                        m_container.getActivator().leaveCreate( ref );
+                        m_container.getLogger().log(Level.ERROR,
+                            "Unexpected problem activating component", t);
                     }
                 }
-                else
+
+                @Override
+                public String toString()
                 {
-                    getServiceInternal( null );
+                    return "Parallel Activate: " + getComponentMetadata().getName() + " id: " + count;
                 }
-            }
+            } );
+            return true;
         }
-        finally
+        catch ( final RejectedExecutionException ree )
         {
-            releaseActivationReadLock();
+            // the executor is shutting down
+            return false;
         }
     }
 
@@ -1451,6 +1534,20 @@ public abstract class AbstractComponentManager<S> implements ComponentManager<S>
         this.failureReason = sw.toString();
     }
 
+    /**
+     * Returns how long creating and activating the most recent component
+     * instance took, in nanoseconds, or -1 if no instance has been created.
+     */
+    public long getActivationTime()
+    {
+        return m_activationNanos;
+    }
+
+    void setActivationTime(final long nanos)
+    {
+        m_activationNanos = nanos;
+    }
+
     void setState(final State previousState, final State newState)
     {
         if (state.compareAndSet(previousState, newState))
@@ -18,6 +18,8 @@
  */
 package org.apache.felix.scr.impl.manager;
 
+import java.util.concurrent.Executor;
+
 import org.apache.felix.scr.impl.logger.BundleLogger;
 import org.osgi.framework.BundleContext;
 import org.osgi.framework.ServiceReference;
@@ -36,6 +38,12 @@ public interface ComponentActivator extends ExtendedServiceListenerContext<Exten
 
     void schedule(Runnable runnable);
 
+    /**
+     * Returns the executor to create immediate component instances on, or
+     * {@code null} to create them on the thread activating the component.
+     */
+    Executor getActivationExecutor();
+
     long registerComponentId(AbstractComponentManager<?> sAbstractComponentManager);
 
     void unregisterComponentId(AbstractComponentManager<?> sAbstractComponentManager);
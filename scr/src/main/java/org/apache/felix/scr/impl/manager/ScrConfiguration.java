@@ -68,6 +68,8 @@ public interface ScrConfiguration extends LogConfiguration
     String PROP_SERVICE_CHANGECOUNT_TIMEOUT = "ds.service.changecount.timeout";
 
     String PROP_CACHE_METADATA = "ds.cache.metadata";
+
+    String PROP_ACTIVATION_THREADS = "ds.activation.threads";
     
 
     boolean isFactoryEnabled();
@@ -94,4 +96,11 @@ public interface ScrConfiguration extends LogConfiguration
 
     boolean cacheMetadata();
 
+    /**
+     * Returns the number of threads used to create immediate component
+     * instances once their references are satisfied. Zero means that
+     * instances are created by the thread satisfying the component.
+     */
+    int activationThreads();
+
 }
@@ -112,6 +112,7 @@ public class SingleComponentManager<S> extends AbstractComponentManager<S> imple
         }
         if ( m_componentContext == null )
         {
+            final long start = System.nanoTime();
             S tmpComponent = createImplementationObject( null, new SetImplementationObject<S>()
             {
                 @Override
@@ -133,6 +134,7 @@ public class SingleComponentManager<S> extends AbstractComponentManager<S> imple
             {
                 return false;
             }
+            setActivationTime( System.nanoTime() - start );
 
             // otherwise set the context and component instance and return true
             getLogger().log(Level.DEBUG, "Set implementation object for component",
@@ -0,0 +1,221 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.felix.scr.impl;
+
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.apache.felix.scr.impl.Activator.EncodedComponentMetadata;
+import org.apache.felix.scr.impl.logger.InternalLogger.Level;
+import org.apache.felix.scr.impl.logger.ScrLogger;
+import org.apache.felix.scr.impl.metadata.ComponentMetadata;
+import org.apache.felix.scr.impl.metadata.DSVersion;
+import org.mockito.Mockito;
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.Constants;
+
+import junit.framework.TestCase;
+
+
+public class ActivatorTest extends TestCase
+{
+
+    private File dataDir;
+
+    private BundleContext context;
+
+    private BundleContext systemContext;
+
+    private ScrLogger logger;
+
+
+    @Override
+    protected void setUp() throws Exception
+    {
+        dataDir = Files.createTempDirectory( "scr" ).toFile();
+        context = Mockito.mock( BundleContext.class );
+        systemContext = Mockito.mock( BundleContext.class );
+        final Bundle systemBundle = Mockito.mock( Bundle.class );
+        Mockito.when( systemBundle.getBundleContext() ).thenReturn( systemContext );
+        Mockito.when( context.getBundle( Constants.SYSTEM_BUNDLE_LOCATION ) ).thenReturn( systemBundle );
+        Mockito.when( context.getDataFile( Mockito.anyString() ) ).thenAnswer(
+            invocation -> new File( dataDir, ( String ) invocation.getArguments()[0] ) );
+        logger = Mockito.mock( ScrLogger.class );
+    }
+
+
+    @Override
+    protected void tearDown()
+    {
+        for ( File file : dataDir.listFiles() )
+        {
+            file.delete();
+        }
+        dataDir.delete();
+    }
+
+
+    public void test_store_load()
+    {
+        bundle( 1, 100 );
+        bundle( 2, 200 );
+        final Map<Long, List<ComponentMetadata>> components = new HashMap<>();
+        components.put( 1L, Arrays.asList( component( "a" ), component( "b" ) ) );
+        components.put( 2L, Arrays.asList( component( "c" ) ) );
+        Activator.store( components, context, logger, true );
+        assertTrue( new File( dataDir, "componentMetadataStore" ).isFile() );
+        assertFalse( new File( dataDir, "componentMetadataStore.tmp" ).exists() );
+
+        final EncodedComponentMetadata encoded = Activator.load( context, logger, true );
+        assertEquals( new HashSet<>( Arrays.asList( 1L, 2L ) ), encoded.getBundleIds() );
+
+        final ConcurrentMap<Long, List<ComponentMetadata>> store = new ConcurrentHashMap<>();
+        assertNames( Activator.getCachedComponents( 1L, store, encoded, logger ), "a", "b" );
+        assertNames( Activator.getCachedComponents( 2L, store, encoded, logger ), "c" );
+        assertTrue( encoded.getBundleIds().isEmpty() );
+
+        // decoded components are kept to be stored again
+        assertSame( store.get( 1L ), Activator.getCachedComponents( 1L, store, encoded, logger ) );
+        assertNull( Activator.getCachedComponents( 3L, store, encoded, logger ) );
+        Mockito.verifyZeroInteractions( logger );
+    }
+
+
+    public void test_load_disabled()
+    {
+        bundle( 1, 100 );
+        final Map<Long, List<ComponentMetadata>> components = new HashMap<>();
+        components.put( 1L, Arrays.asList( component( "a" ) ) );
+
+        Activator.store( components, context, logger, false );
+        assertFalse( new File( dataDir, "componentMetadataStore" ).exists() );
+
+        Activator.store( components, context, logger, true );
+        assertTrue( Activator.load( context, logger, false ).getBundleIds().isEmpty() );
+    }
+
+
+    public void test_load_skips_changed_bundles()
+    {
+        bundle( 1, 100 );
+        bundle( 2, 200 );
+        bundle( 3, 300 );
+        final Map<Long, List<ComponentMetadata>> components = new HashMap<>();
+        components.put( 1L, Arrays.asList( component( "a" ) ) );
+        components.put( 2L, Arrays.asList( component( "b" ), component( "c" ) ) );
+        components.put( 3L, Arrays.asList( component( "d" ) ) );
+        Activator.store( components, context, logger, true );
+
+        // bundle 2 has been updated and bundle 3 uninstalled since
+        bundle( 2, 201 );
+        Mockito.when( systemContext.getBundle( 3L ) ).thenReturn( null );
+
+        final EncodedComponentMetadata encoded = Activator.load( context, logger, true );
+        assertEquals( new HashSet<>( Arrays.asList( 1L ) ), encoded.getBundleIds() );
+        assertNames( Activator.getCachedComponents( 1L, new ConcurrentHashMap<Long, List<ComponentMetadata>>(),
+            encoded, logger ), "a" );
+        Mockito.verifyZeroInteractions( logger );
+    }
+
+
+    public void test_corrupt_entry_falls_back_to_descriptors()
+    {
+        bundle( 1, 100 );
+        bundle( 2, 200 );
+        final Map<Long, List<ComponentMetadata>> components = new HashMap<>();
+        components.put( 1L, Arrays.asList( component( "a" ) ) );
+        components.put( 2L, Arrays.asList( component( "b" ) ) );
+        Activator.store( components, context, logger, true );
+
+        final EncodedComponentMetadata encoded = Activator.load( context, logger, true );
+        // a single component whose encoding ends prematurely
+        encoded.put( 1L, new byte[] { 0, 0, 0, 1, 0 } );
+
+        final ConcurrentMap<Long, List<ComponentMetadata>> store = new ConcurrentHashMap<>();
+        assertNull( Activator.getCachedComponents( 1L, store, encoded, logger ) );
+        Mockito.verify( logger ).log( Mockito.eq( Level.WARN ), Mockito.anyString(),
+            Mockito.any( Throwable.class ), Mockito.<Object> any() );
+        assertFalse( store.containsKey( 1L ) );
+
+        // the corrupt entry is dropped, the descriptors are read from now on
+        assertFalse( encoded.getBundleIds().contains( 1L ) );
+        assertNull( Activator.getCachedComponents( 1L, store, encoded, logger ) );
+
+        // other entries are not affected
+        assertNames( Activator.getCachedComponents( 2L, store, encoded, logger ), "b" );
+    }
+
+
+    public void test_truncated_store() throws Exception
+    {
+        bundle( 1, 100 );
+        final Map<Long, List<ComponentMetadata>> components = new HashMap<>();
+        components.put( 1L, Arrays.asList( component( "a" ) ) );
+        Activator.store( components, context, logger, true );
+
+        final File file = new File( dataDir, "componentMetadataStore" );
+        final byte[] content = Files.readAllBytes( file.toPath() );
+        Files.write( file.toPath(), Arrays.copyOf( content, content.length - 4 ) );
+
+        assertTrue( Activator.load( context, logger, true ).getBundleIds().isEmpty() );
+        Mockito.verify( logger ).log( Mockito.eq( Level.WARN ), Mockito.anyString(),
+            Mockito.any( Throwable.class ) );
+    }
+
+
+    private void bundle( final long id, final long lastModified )
+    {
+        final Bundle bundle = Mockito.mock( Bundle.class );
+        Mockito.when( bundle.getBundleId() ).thenReturn( id );
+        Mockito.when( bundle.getLastModified() ).thenReturn( lastModified );
+        Mockito.when( systemContext.getBundle( id ) ).thenReturn( bundle );
+    }
+
+
+    private static ComponentMetadata component( final String name )
+    {
+        final ComponentMetadata component = new ComponentMetadata( DSVersion.DS13 );
+        component.setName( name );
+        component.setImplementationClassName( "foo." + name );
+        component.validate();
+        return component;
+    }
+
+
+    private static void assertNames( final List<ComponentMetadata> components, final String... names )
+    {
+        assertNotNull( components );
+        final List<String> actual = new ArrayList<>();
+        for ( ComponentMetadata component : components )
+        {
+            actual.add( component.getName() );
+        }
+        assertEquals( Arrays.asList( names ), actual );
+    }
+}
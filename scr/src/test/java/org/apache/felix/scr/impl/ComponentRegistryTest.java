@@ -0,0 +1,171 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.felix.scr.impl;
+
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.felix.scr.impl.logger.ScrLogger;
+import org.apache.felix.scr.impl.manager.ScrConfiguration;
+import org.mockito.Mockito;
+import org.osgi.framework.ServiceReference;
+
+import junit.framework.TestCase;
+
+
+public class ComponentRegistryTest extends TestCase
+{
+
+    public void test_activation_executor_disabled()
+    {
+        final ComponentRegistry registry = createRegistry( 0 );
+        assertNull( registry.getActivationExecutor() );
+        registry.shutdown();
+    }
+
+
+    public void test_activation_executor_bounded() throws Exception
+    {
+        final ComponentRegistry registry = createRegistry( 2 );
+        final Executor executor = registry.getActivationExecutor();
+        assertTrue( executor instanceof ThreadPoolExecutor );
+        assertEquals( 2, ( ( ThreadPoolExecutor ) executor ).getMaximumPoolSize() );
+        assertSame( executor, registry.getActivationExecutor() );
+
+        final int tasks = 6;
+        final Thread caller = Thread.currentThread();
+        final Set<Thread> threads = ConcurrentHashMap.newKeySet();
+        final AtomicInteger running = new AtomicInteger();
+        final AtomicInteger maxRunning = new AtomicInteger();
+        final CountDownLatch done = new CountDownLatch( tasks );
+        for ( int i = 0; i < tasks; i++ )
+        {
+            executor.execute( new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    final int current = running.incrementAndGet();
+                    maxRunning.accumulateAndGet( current, Math::max );
+                    threads.add( Thread.currentThread() );
+                    try
+                    {
+                        Thread.sleep( 50 );
+                    }
+                    catch ( final InterruptedException ie )
+                    {
+                        Thread.currentThread().interrupt();
+                    }
+                    running.decrementAndGet();
+                    done.countDown();
+                }
+            } );
+        }
+        assertTrue( done.await( 10, TimeUnit.SECONDS ) );
+
+        assertFalse( threads.contains( caller ) );
+        assertTrue( "Too many threads: " + threads, threads.size() <= 2 );
+        assertTrue( "Too many concurrent tasks: " + maxRunning.get(), maxRunning.get() <= 2 );
+        for ( Thread thread : threads )
+        {
+            assertTrue( thread.getName(), thread.getName().startsWith( "SCR Component Activator" ) );
+            assertTrue( thread.isDaemon() );
+        }
+
+        registry.shutdown();
+    }
+
+
+    public void test_activation_executor_shutdown() throws Exception
+    {
+        final ComponentRegistry registry = createRegistry( 2 );
+        final ThreadPoolExecutor executor = ( ThreadPoolExecutor ) registry.getActivationExecutor();
+
+        registry.shutdown();
+        assertTrue( executor.isShutdown() );
+        assertTrue( executor.awaitTermination( 10, TimeUnit.SECONDS ) );
+
+        // components fall back to activation on the calling thread
+        assertNull( registry.getActivationExecutor() );
+    }
+
+
+    public void test_circular_reference_per_thread() throws Exception
+    {
+        final ComponentRegistry registry = createRegistry( 1 );
+        final ServiceReference<?> ref = Mockito.mock( ServiceReference.class );
+
+        assertFalse( registry.enterCreate( ref ) );
+        try
+        {
+            // a create on the same thread is circular
+            assertTrue( registry.enterCreate( ref ) );
+
+            // an activation handed to the pool starts its own stack
+            final AtomicBoolean circular = new AtomicBoolean( true );
+            final AtomicBoolean nestedCircular = new AtomicBoolean( false );
+            final CountDownLatch done = new CountDownLatch( 1 );
+            registry.getActivationExecutor().execute( new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    circular.set( registry.enterCreate( ref ) );
+                    try
+                    {
+                        nestedCircular.set( registry.enterCreate( ref ) );
+                    }
+                    finally
+                    {
+                        registry.leaveCreate( ref );
+                        done.countDown();
+                    }
+                }
+            } );
+            assertTrue( done.await( 10, TimeUnit.SECONDS ) );
+            assertFalse( circular.get() );
+            assertTrue( nestedCircular.get() );
+        }
+        finally
+        {
+            registry.leaveCreate( ref );
+        }
+
+        // the stack of this thread is cleared again
+        assertFalse( registry.enterCreate( ref ) );
+        registry.leaveCreate( ref );
+
+        registry.shutdown();
+    }
+
+
+    private static ComponentRegistry createRegistry( final int activationThreads )
+    {
+        final ScrConfiguration configuration = Mockito.mock( ScrConfiguration.class );
+        Mockito.when( configuration.activationThreads() ).thenReturn( activationThreads );
+        return new ComponentRegistry( configuration, Mockito.mock( ScrLogger.class ) );
+    }
+}
@@ -0,0 +1,231 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.felix.scr.impl;
+
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.felix.scr.impl.manager.ExtendedServiceEvent;
+import org.apache.felix.scr.impl.manager.ExtendedServiceListener;
+import org.mockito.Mockito;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.osgi.framework.Constants;
+import org.osgi.framework.FrameworkUtil;
+import org.osgi.framework.ServiceEvent;
+import org.osgi.framework.ServiceReference;
+
+import junit.framework.TestCase;
+
+
+public class SharedServiceListenerTest extends TestCase
+{
+
+    private static final String CLASS_FILTER = "(objectClass=foo.Bar)";
+
+
+    public void test_listener_filter()
+    {
+        assertEquals( CLASS_FILTER, SharedServiceListener.getListenerFilter( CLASS_FILTER ) );
+        assertEquals( CLASS_FILTER, SharedServiceListener.getListenerFilter( "(&(objectClass=foo.Bar)(name=a))" ) );
+        assertEquals( CLASS_FILTER, SharedServiceListener.getListenerFilter(
+            "(&(objectClass=foo.Bar)(service.scope=prototype)(|(a=b)(c=d)))" ) );
+
+        // filters not created for references are not shared
+        assertEquals( "(&(name=a)(objectClass=foo.Bar))",
+            SharedServiceListener.getListenerFilter( "(&(name=a)(objectClass=foo.Bar))" ) );
+        assertEquals( "(|(objectClass=foo.Bar)(name=a))",
+            SharedServiceListener.getListenerFilter( "(|(objectClass=foo.Bar)(name=a))" ) );
+    }
+
+
+    public void test_index_key()
+    {
+        assertIndexKey( "name", "a", "(&(objectClass=foo.Bar)(name=a))" );
+        assertIndexKey( "name", "a", "(&(objectClass=foo.Bar)(service.scope=prototype)(&(name=a)(rank>=1)))" );
+        assertIndexKey( "service.scope", "prototype", "(&(objectClass=foo.Bar)(service.scope=prototype)(|(a=b)(c=d)))" );
+
+        assertNull( SharedServiceListener.getIndexKey( "(&(objectClass=foo.Bar)(name=a*))" ) );
+        assertNull( SharedServiceListener.getIndexKey( "(&(objectClass=foo.Bar)(name~=a))" ) );
+        assertNull( SharedServiceListener.getIndexKey( "(&(objectClass=foo.Bar)(name=a\\29))" ) );
+        assertNull( SharedServiceListener.getIndexKey( "(&(objectClass=foo.Bar)(name= a))" ) );
+        assertNull( SharedServiceListener.getIndexKey( "(&(objectClass=foo.Bar)(!(name=a)))" ) );
+    }
+
+
+    public void test_dispatch() throws Exception
+    {
+        final SharedServiceListener listener = new SharedServiceListener( CLASS_FILTER );
+        final Recorder all = add( listener, CLASS_FILTER );
+        final Recorder a = add( listener, "(&(objectClass=foo.Bar)(name=a))" );
+        final Recorder b = add( listener, "(&(objectClass=foo.Bar)(name=b))" );
+
+        final Map<String, Object> props = new HashMap<>();
+        props.put( "name", "a" );
+        final ServiceReference<?> ref = reference( props );
+
+        listener.serviceChanged( new ServiceEvent( ServiceEvent.REGISTERED, ref ) );
+        all.assertEvents( ServiceEvent.REGISTERED );
+        a.assertEvents( ServiceEvent.REGISTERED );
+        b.assertEvents();
+
+        props.put( "name", "b" );
+        listener.serviceChanged( new ServiceEvent( ServiceEvent.MODIFIED, ref ) );
+        all.assertEvents( ServiceEvent.MODIFIED );
+        a.assertEvents( ServiceEvent.MODIFIED_ENDMATCH );
+        b.assertEvents( ServiceEvent.MODIFIED );
+
+        listener.serviceChanged( new ServiceEvent( ServiceEvent.UNREGISTERING, ref ) );
+        all.assertEvents( ServiceEvent.UNREGISTERING );
+        a.assertEvents();
+        b.assertEvents( ServiceEvent.UNREGISTERING );
+    }
+
+
+    public void test_dispatch_added_filter() throws Exception
+    {
+        final SharedServiceListener listener = new SharedServiceListener( CLASS_FILTER );
+        final Recorder a = add( listener, "(&(objectClass=foo.Bar)(name=a))" );
+
+        final Map<String, Object> props = new HashMap<>();
+        props.put( "name", "b" );
+        final ServiceReference<?> ref = reference( props );
+        listener.serviceChanged( new ServiceEvent( ServiceEvent.REGISTERED, ref ) );
+        a.assertEvents();
+
+        // a tracker opened now finds the service through its initial references
+        final Recorder b = add( listener, "(&(objectClass=foo.Bar)(name=b))" );
+
+        props.put( "name", "a" );
+        listener.serviceChanged( new ServiceEvent( ServiceEvent.MODIFIED, ref ) );
+        a.assertEvents( ServiceEvent.MODIFIED );
+        b.assertEvents( ServiceEvent.MODIFIED_ENDMATCH );
+    }
+
+
+    public void test_dispatch_unknown_service() throws Exception
+    {
+        final SharedServiceListener listener = new SharedServiceListener( CLASS_FILTER );
+        final Recorder a = add( listener, "(&(objectClass=foo.Bar)(name=a))" );
+        final Recorder b = add( listener, "(&(objectClass=foo.Bar)(name=b))" );
+
+        // the service has been registered before the listener
+        final Map<String, Object> props = new HashMap<>();
+        props.put( "name", "a" );
+        listener.serviceChanged( new ServiceEvent( ServiceEvent.MODIFIED, reference( props ) ) );
+        a.assertEvents( ServiceEvent.MODIFIED );
+        b.assertEvents( ServiceEvent.MODIFIED_ENDMATCH );
+    }
+
+
+    public void test_dispatch_converted_value() throws Exception
+    {
+        final SharedServiceListener listener = new SharedServiceListener( CLASS_FILTER );
+        final Recorder five = add( listener, "(&(objectClass=foo.Bar)(rank=5))" );
+        final Recorder six = add( listener, "(&(objectClass=foo.Bar)(rank=6))" );
+
+        final Map<String, Object> props = new HashMap<>();
+        props.put( "rank", 5L );
+        listener.serviceChanged( new ServiceEvent( ServiceEvent.REGISTERED, reference( props ) ) );
+        five.assertEvents( ServiceEvent.REGISTERED );
+        six.assertEvents();
+    }
+
+
+    public void test_remove()
+    {
+        final SharedServiceListener listener = new SharedServiceListener( CLASS_FILTER );
+        final Recorder a = add( listener, "(&(objectClass=foo.Bar)(name=a))" );
+        final Recorder b = add( listener, "(&(objectClass=foo.Bar)(name=b))" );
+
+        assertFalse( listener.remove( "(&(objectClass=foo.Bar)(name=a))", a ) );
+        assertTrue( listener.remove( "(&(objectClass=foo.Bar)(name=b))", b ) );
+    }
+
+
+    private static void assertIndexKey( final String attribute, final String value, final String filter )
+    {
+        final String[] key = SharedServiceListener.getIndexKey( filter );
+        assertNotNull( key );
+        assertEquals( attribute, key[0] );
+        assertEquals( value, key[1] );
+    }
+
+
+    private static Recorder add( final SharedServiceListener listener, final String filter )
+    {
+        final Recorder recorder = new Recorder();
+        try
+        {
+            listener.add( filter, CLASS_FILTER.equals( filter ) ? null : FrameworkUtil.createFilter( filter ),
+                recorder );
+        }
+        catch ( final Exception e )
+        {
+            throw new IllegalArgumentException( e );
+        }
+        return recorder;
+    }
+
+
+    private static ServiceReference<?> reference( final Map<String, Object> props )
+    {
+        props.put( Constants.OBJECTCLASS, new String[] { "foo.Bar" } );
+        final ServiceReference<?> ref = Mockito.mock( ServiceReference.class );
+        Mockito.when( ref.getProperty( Mockito.anyString() ) ).thenAnswer( new Answer<Object>()
+        {
+            @Override
+            public Object answer( final InvocationOnMock invocation )
+            {
+                return props.get( invocation.getArguments()[0] );
+            }
+        } );
+        Mockito.when( ref.getPropertyKeys() ).thenAnswer( new Answer<String[]>()
+        {
+            @Override
+            public String[] answer( final InvocationOnMock invocation )
+            {
+                return props.keySet().toArray( new String[props.size()] );
+            }
+        } );
+        return ref;
+    }
+
+
+    private static class Recorder implements ExtendedServiceListener<ExtendedServiceEvent>
+    {
+        private final List<Integer> events = new ArrayList<>();
+
+        @Override
+        public void serviceChanged( final ExtendedServiceEvent event )
+        {
+            events.add( event.getType() );
+        }
+
+        void assertEvents( final Integer... expected )
+        {
+            assertEquals( Arrays.asList( expected ), events );
+            events.clear();
+        }
+    }
+}
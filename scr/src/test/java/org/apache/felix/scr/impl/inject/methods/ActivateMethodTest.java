@@ -25,6 +25,7 @@ import java.util.List;
 import java.util.Map;
 
 import org.apache.felix.scr.impl.inject.ActivatorParameter;
+import org.apache.felix.scr.impl.inject.MethodResult;
 import org.apache.felix.scr.impl.inject.internal.ComponentMethodsImpl;
 import org.apache.felix.scr.impl.logger.ComponentLogger;
 import org.apache.felix.scr.impl.logger.MockComponentLogger;
@@ -246,6 +247,23 @@ public class ActivateMethodTest extends TestCase
         checkMethod( level2, "activate_precedence_2", "activate_precedence_2_empty" );
     }
 
+    public void test_method_failure() throws Exception
+    {
+        // an exception thrown by the method itself must be reported as a
+        // failure and not be mistaken for a missing parameter
+        ComponentContainer<Object> container = newContainer();
+        SingleComponentManager<?> icm = new SingleComponentManager<>(container,
+            new ComponentMethodsImpl<>());
+        ActivateMethod am = new ActivateMethod( "activate_failure", true, base.getClass(), DSVersion.DS11, false, false );
+
+        MethodResult failure = new MethodResult( false, null );
+        MethodResult result = am.invoke( base,
+            new ActivatorParameter( new ComponentContextImpl<>( icm, m_bundle, null ), -1 ),
+            failure );
+        assertSame( failure, result );
+        assertEquals( "activate_failure", base.getCalledMethod() );
+    }
+
     //---------- internal
 
     /**
@@ -23,6 +23,7 @@ import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertSame;
 
 import java.lang.reflect.Field;
+import java.util.concurrent.Executor;
 import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.felix.scr.impl.inject.internal.ComponentMethodsImpl;
@@ -93,6 +94,12 @@ public class SingleComponentManagerTest
 
         }
 
+        @Override
+        public Executor getActivationExecutor()
+        {
+            return null;
+        }
+
         @Override
         public long registerComponentId(AbstractComponentManager<?> sAbstractComponentManager)
         {
@@ -107,6 +107,13 @@ public class BaseObject
     }
 
 
+    protected void activate_failure( ComponentContext ctx )
+    {
+        setCalledMethod( "activate_failure" );
+        throw new IllegalStateException( "activate_failure" );
+    }
+
+
     public @interface Ann1 { }
     public @interface Ann2 { }
    
@@ -0,0 +1,74 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.felix.scr.integration;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import org.apache.felix.scr.integration.components.circular.A;
+import org.apache.felix.scr.integration.components.circular.B;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.ops4j.pax.exam.junit.PaxExam;
+import org.osgi.service.component.runtime.dto.ComponentConfigurationDTO;
+
+/**
+ * Runs the circular reference tests with immediate components activated on
+ * the SCR activation thread pool, so that creating the instances of a
+ * circular dependency hops between the thread satisfying the component and
+ * the pool threads.
+ */
+@RunWith(PaxExam.class)
+public class CircularReferenceParallelActivationTest extends CircularReferenceTest
+{
+
+    static
+    {
+        // uncomment to enable debugging of this test class
+        //        paxRunnerVmOption = DEBUG_VM_OPTION;
+
+        ACTIVATION_THREADS = 2;
+    }
+
+
+    /**
+     * A > 1.1 > B > 0..n > A Both immediate components are activated by the
+     * pool and not by the thread starting the bundle.
+     */
+    @Test
+    public void test_immediate_activated_on_pool()
+    {
+        final Thread current = Thread.currentThread();
+        delay();
+
+        final ComponentConfigurationDTO componentA = findComponentConfigurationByName( "2.A.1.1.dynamic", ComponentConfigurationDTO.ACTIVE );
+        A a = getServiceFromConfiguration( componentA, A.class );
+        assertNotNull( a.getActivationThread() );
+        assertTrue( a.getActivationThread(), a.getActivationThread().startsWith( "SCR Component Activator" ) );
+        assertTrue( !current.getName().equals( a.getActivationThread() ) );
+        assertEquals( 1, a.getBs().size() );
+
+        final ComponentConfigurationDTO componentB = findComponentConfigurationByName( "2.B.0.n.dynamic", ComponentConfigurationDTO.ACTIVE );
+        B b = getServiceFromConfiguration( componentB, B.class );
+        assertNotNull( b.getActivationThread() );
+        assertTrue( b.getActivationThread(), b.getActivationThread().startsWith( "SCR Component Activator" ) );
+    }
+
+}
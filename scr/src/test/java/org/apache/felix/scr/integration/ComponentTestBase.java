@@ -130,6 +130,9 @@ public abstract class ComponentTestBase
     protected static boolean NONSTANDARD_COMPONENT_FACTORY_BEHAVIOR = false;
     
     protected static boolean CACHE_META_DATA = false;
+
+    // the number of threads activating immediate components, 0 to activate them on the calling thread
+    protected static int ACTIVATION_THREADS = 0;
     
     protected volatile Log log;
 
@@ -195,11 +198,13 @@ public abstract class ComponentTestBase
                 junitBundles(), frameworkProperty( "org.osgi.framework.bsnversion" ).value( bsnVersionUniqueness ),
                 systemProperty( "ds.factory.enabled" ).value( Boolean.toString( NONSTANDARD_COMPONENT_FACTORY_BEHAVIOR ) ),
                 systemProperty( "ds.loglevel" ).value( DS_LOGLEVEL ),
-                systemProperty( "ds.cache.metadata" ).value( Boolean.toString(CACHE_META_DATA) )
+                systemProperty( "ds.cache.metadata" ).value( Boolean.toString(CACHE_META_DATA) ),
+                systemProperty( "ds.activation.threads" ).value( Integer.toString( ACTIVATION_THREADS ) )
 
                 );
         final Option vmOption = ( paxRunnerVmOption != null )? CoreOptions.vmOption( paxRunnerVmOption ): null;
         NONSTANDARD_COMPONENT_FACTORY_BEHAVIOR = false;
+        ACTIVATION_THREADS = 0;
         return OptionUtils.combine( base, vmOption );
     }
 
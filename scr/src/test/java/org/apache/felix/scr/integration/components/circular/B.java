@@ -36,10 +36,13 @@ public class B
     @SuppressWarnings("unused")
     private boolean activated;
 
+    private volatile String activationThread;
+
     @SuppressWarnings("unused")
     private void activate(ComponentContext cc)
     {
         activated = true;
+        activationThread = Thread.currentThread().getName();
     }
 
     @SuppressWarnings("unused")
@@ -59,4 +62,9 @@ public class B
         return as;
     }
 
+    public String getActivationThread()
+    {
+        return activationThread;
+    }
+
 }